@@ -0,0 +1,128 @@
+package tech.nagatani.dev;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import tech.nagatani.dev.metrics.PipelineMetrics;
+import tech.nagatani.dev.service.ExecutionTeardown;
+import tech.nagatani.dev.service.ExecutionWatchdog;
+import tech.nagatani.dev.service.InteractiveProcessManager;
+import tech.nagatani.dev.service.OutputLogStore;
+import tech.nagatani.dev.websocket.ExecutionWebSocketHandler;
+import tech.nagatani.dev.websocket.OutputChannel;
+import tech.nagatani.dev.worker.ChildJvmLauncher;
+import tech.nagatani.dev.worker.ResourceLimits;
+import tech.nagatani.dev.worker.WorkerPool;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ベンチマーク用に、Springコンテキストを使わずにコンパイルと実行に必要なコンポーネントを組み立てたもの。
+ * 設定値は application.properties の既定値に合わせ、cgroup だけは環境による差が出ないよう無効にしています。
+ * WebSocketハンドラは {@link StubWebSocketHandler} に置き換え、送信の代わりに出力の文字数を数えます。
+ */
+final class BenchmarkEnvironment implements AutoCloseable {
+
+    final PipelineMetrics metrics; // 記録先は単純なメモリ上のレジストリ
+    final ResourceLimits limits; // 実行のリソースの上限
+    final ChildJvmLauncher launcher; // 子JVMのランチャー
+    final WorkerPool workerPool; // 事前起動ワーカーのプール（サイズ0の場合は無効）
+    final CompilerFileManagerPool fileManagerPool; // javacのファイルマネージャのプール
+    final ExecutionWatchdog watchdog; // リソースの上限の監視
+    final ExecutionTeardown teardown; // プロセスの終了と一時ディレクトリの削除
+    final DynamicCompiler compiler; // 計測対象のコンパイラ
+    final InteractiveProcessManager processManager; // 実行中のプロセスの管理
+    final StubWebSocketHandler webSocketHandler; // 出力の送信先（スタブ）
+
+    /**
+     * コンポーネントを組み立てます。
+     * @param workerPoolSize 事前起動ワーカーの数。0の場合は毎回新しいJVMを起動します。
+     */
+    BenchmarkEnvironment(int workerPoolSize) {
+        this.metrics = new PipelineMetrics(new SimpleMeterRegistry());
+        this.limits = new ResourceLimits(300_000, 10_000, 256, 64, 0, 0, 100, false, "");
+        this.launcher = new ChildJvmLauncher("", "fast-start", limits);
+        this.workerPool = new WorkerPool(launcher, workerPoolSize, 20, Math.max(1, workerPoolSize));
+        this.fileManagerPool = new CompilerFileManagerPool(1, 1);
+        this.watchdog = new ExecutionWatchdog(limits, metrics, 200);
+        this.compiler = new DynamicCompiler(fileManagerPool, workerPool, launcher, watchdog, metrics);
+        this.teardown = new ExecutionTeardown(compiler, metrics, 500, 50);
+        this.processManager = new InteractiveProcessManager(teardown, watchdog, new OutputLogStore(teardown, metrics, 1048576, 268435456), metrics, 1000, 1000);
+        this.webSocketHandler = new StubWebSocketHandler(metrics);
+    }
+
+    /**
+     * コンパイルに成功したことを確認してコンパイル結果を返します。
+     * @param sourceCode コンパイルするソースコード
+     * @return コンパイル結果
+     * @throws IllegalStateException コンパイルに失敗した場合
+     */
+    CompilationResult compileOrFail(String sourceCode) {
+        CompilationResult result = compiler.compileToJar(sourceCode);
+        if (!result.isSuccess()) {
+            throw new IllegalStateException("ベンチマーク用のソースをコンパイルできません: " + result.getDiagnostics());
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        workerPool.shutdown();
+        watchdog.shutdown();
+        teardown.shutdown();
+        fileManagerPool.close();
+    }
+
+    /**
+     * 出力を送信せずに文字数だけを数え、終了報告を待てるようにしたWebSocketハンドラ。
+     * 親クラスのセッション管理や送信キューは使用しないため、依存するサービスにはnullを渡しています。
+     */
+    static final class StubWebSocketHandler extends ExecutionWebSocketHandler {
+
+        private final LongAdder receivedChars = new LongAdder(); // 受け取った出力の文字数
+        private final Map<String, CompletableFuture<ExitReport>> exitReports = new ConcurrentHashMap<>(); // 実行ID → 終了報告
+
+        StubWebSocketHandler(PipelineMetrics metrics) {
+            super(null, null, null, null, new ObjectMapper(), metrics, 50, 16384, 1048576, "pause", 10000, 1048576, 30000);
+        }
+
+        /**
+         * 指定された実行の終了報告を待つためのFutureを登録します（実行を開始する前に呼び出してください）。
+         * @param executionId 実行ID
+         * @return 終了報告が届いたときに完了するFuture
+         */
+        CompletableFuture<ExitReport> expectExit(String executionId) {
+            CompletableFuture<ExitReport> future = new CompletableFuture<>();
+            exitReports.put(executionId, future);
+            return future;
+        }
+
+        /**
+         * これまでに受け取った出力の文字数を返します。
+         * @return 文字数
+         */
+        long getReceivedChars() {
+            return receivedChars.sum();
+        }
+
+        @Override
+        public void sendOutputToSession(String executionId, OutputChannel channel, String text) {
+            receivedChars.add(text.length());
+        }
+
+        @Override
+        public void flushSession(String executionId) {
+            // まとめる処理がないので何もしない
+        }
+
+        @Override
+        public void sendExitReport(String executionId, ExitReport report) {
+            CompletableFuture<ExitReport> future = exitReports.remove(executionId);
+            if (future != null) {
+                future.complete(report);
+            }
+        }
+    }
+}
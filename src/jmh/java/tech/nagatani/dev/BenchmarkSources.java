@@ -0,0 +1,76 @@
+package tech.nagatani.dev;
+
+/**
+ * ベンチマークで使用するJavaソースコードを生成します。
+ * 生成結果は引数だけで決まるため、コミット間で同じ入力を使った比較ができます。
+ */
+final class BenchmarkSources {
+
+    private BenchmarkSources() {
+    }
+
+    /**
+     * 指定された数のメソッドを持つ、コンパイル可能なクラスのソースを生成します。
+     * 各メソッドはループ、文字列操作、ジェネリクスとラムダを含み、javacの各フェーズに一通り負荷をかけます。
+     * @param className publicクラスの名前
+     * @param methods 生成するメソッドの数
+     * @return ソースコード
+     */
+    static String program(String className, int methods) {
+        StringBuilder source = new StringBuilder();
+        source.append("import java.util.*;\n");
+        source.append("import java.util.function.*;\n\n");
+        source.append("public class ").append(className).append(" {\n");
+        for (int i = 0; i < methods; i++) {
+            source.append("    static int method").append(i).append("(List<String> values) {\n");
+            source.append("        Map<String, Integer> counts = new HashMap<>();\n");
+            source.append("        for (String value : values) {\n");
+            source.append("            counts.merge(value.trim().toLowerCase(), ").append(i).append(", Integer::sum);\n");
+            source.append("        }\n");
+            source.append("        Function<Integer, Integer> f = x -> x * ").append(i + 1).append(" + 1;\n");
+            source.append("        return counts.values().stream().map(f).reduce(0, Integer::sum);\n");
+            source.append("    }\n\n");
+        }
+        source.append("    public static void main(String[] args) {\n");
+        source.append("        System.out.println(method0(Arrays.asList(\"a\", \"b\", \"a\")));\n");
+        source.append("    }\n");
+        source.append("}\n");
+        return source.toString();
+    }
+
+    /**
+     * 指定された数の入れ子のstaticクラスを持つソースを生成します（生成されるクラスファイルの数を変えるために使用します）。
+     * @param className publicクラスの名前
+     * @param nestedClasses 入れ子のクラスの数
+     * @return ソースコード
+     */
+    static String nestedClasses(String className, int nestedClasses) {
+        StringBuilder source = new StringBuilder();
+        source.append("public class ").append(className).append(" {\n");
+        for (int i = 0; i < nestedClasses; i++) {
+            source.append("    static class Nested").append(i).append(" { int value = ").append(i).append("; }\n");
+        }
+        source.append("    public static void main(String[] args) { System.out.println(\"done\"); }\n");
+        source.append("}\n");
+        return source.toString();
+    }
+
+    /**
+     * 標準出力に指定されたバイト数の行を書き出して終了するプログラムのソースを生成します。
+     * @param className publicクラスの名前
+     * @param lines 出力する行数
+     * @return ソースコード
+     */
+    static String printer(String className, int lines) {
+        return "public class " + className + " {\n"
+            + "    public static void main(String[] args) {\n"
+            + "        StringBuilder out = new StringBuilder();\n"
+            + "        for (int i = 0; i < " + lines + "; i++) {\n"
+            + "            out.append(\"line \").append(i).append('\\n');\n"
+            + "            if (out.length() > 8192) { System.out.print(out); out.setLength(0); }\n"
+            + "        }\n"
+            + "        System.out.print(out);\n"
+            + "    }\n"
+            + "}\n";
+    }
+}
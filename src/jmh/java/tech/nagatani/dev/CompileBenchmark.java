@@ -0,0 +1,56 @@
+package tech.nagatani.dev;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DynamicCompiler#compileToJar(String)} のコンパイル時間。
+ * キャッシュを通さず、プールされたファイルマネージャで毎回javacを実行します。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompileBenchmark {
+
+    /**
+     * ソースの大きさ（メソッド数）。small: 5, medium: 100, large: 500。
+     */
+    @Param({"small", "medium", "large"})
+    public String size;
+
+    private BenchmarkEnvironment environment;
+    private String source;
+
+    @Setup
+    public void setUp() {
+        environment = new BenchmarkEnvironment(0);
+        int methods = "small".equals(size) ? 5 : "medium".equals(size) ? 100 : 500;
+        source = BenchmarkSources.program("Bench", methods);
+        environment.compileOrFail(source); // 生成したソースがコンパイルできることを確認
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.close();
+    }
+
+    @Benchmark
+    public CompilationResult compileToJar() {
+        return environment.compiler.compileToJar(source);
+    }
+}
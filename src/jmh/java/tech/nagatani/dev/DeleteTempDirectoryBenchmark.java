@@ -0,0 +1,63 @@
+package tech.nagatani.dev;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DynamicCompiler#deleteTempDirectory(Path)} による一時ディレクトリの削除時間。
+ * 呼び出しごとに、コンパイル結果のクラスファイルを新しい一時ディレクトリに書き出してから削除します（書き出しは計測に含みません）。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeleteTempDirectoryBenchmark {
+
+    /**
+     * ディレクトリ内のクラスファイルの数（入れ子のクラスの数 + 1）。
+     */
+    @Param({"1", "50", "500"})
+    public int nestedClasses;
+
+    private BenchmarkEnvironment environment;
+    private CompilationResult compiled;
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        environment = new BenchmarkEnvironment(0);
+        compiled = environment.compileOrFail(BenchmarkSources.nestedClasses("Bench", nestedClasses));
+    }
+
+    @Setup(Level.Invocation)
+    public void writeClassFiles() throws IOException {
+        directory = compiled.copyForNewExecution().getOrCreateCompiledCodePath();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        environment.close();
+    }
+
+    @Benchmark
+    public void deleteTempDirectory() {
+        environment.compiler.deleteTempDirectory(directory);
+    }
+}
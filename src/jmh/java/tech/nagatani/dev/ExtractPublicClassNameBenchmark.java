@@ -0,0 +1,68 @@
+package tech.nagatani.dev;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DynamicCompiler#extractPublicClassName(String)} の、大きな入力に対する処理時間。
+ * publicクラスの宣言がソースの末尾にある場合と、どこにもない場合（最悪の場合）を計測します。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExtractPublicClassNameBenchmark {
+
+    /**
+     * publicクラスの宣言の前に置くコメント行の数。
+     */
+    @Param({"1000", "100000"})
+    public int leadingLines;
+
+    private BenchmarkEnvironment environment;
+    private String declaredLast; // 宣言が末尾にあるソース
+    private String notDeclared; // 宣言がないソース
+
+    @Setup
+    public void setUp() {
+        environment = new BenchmarkEnvironment(0);
+        StringBuilder prefix = new StringBuilder();
+        for (int i = 0; i < leadingLines; i++) {
+            prefix.append("// class Example").append(i).append(" is not public\n");
+        }
+        declaredLast = prefix + "public class Main { public static void main(String[] args) {} }\n";
+        notDeclared = prefix + "class Main { public static void main(String[] args) {} }\n";
+        if (!"Main".equals(environment.compiler.extractPublicClassName(declaredLast))) {
+            throw new IllegalStateException("クラス名を抽出できません");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.close();
+    }
+
+    @Benchmark
+    public String declaredLast() {
+        return environment.compiler.extractPublicClassName(declaredLast);
+    }
+
+    @Benchmark
+    public String notDeclared() {
+        return environment.compiler.extractPublicClassName(notDeclared);
+    }
+}
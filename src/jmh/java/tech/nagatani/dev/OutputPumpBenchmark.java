@@ -0,0 +1,73 @@
+package tech.nagatani.dev;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tech.nagatani.dev.service.ExecutionWatchdog;
+import tech.nagatani.dev.websocket.OutputChannel;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 子プロセスの出力を読み取ってWebSocketハンドラへ渡す処理（{@code DynamicCompiler.pumpOutput}）の処理量。
+ * 子JVMの代わりにメモリ上のストリームから読み取るため、デコードと出力量の監視、ハンドラの呼び出しだけを計測します。
+ * 1回の呼び出しで {@link #OUTPUT_BYTES} バイト前後を転送します。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OutputPumpBenchmark {
+
+    /** 1回の呼び出しで転送する出力のおおよそのバイト数 */
+    static final int OUTPUT_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * 出力の内容。ascii: 英数字のみ、multibyte: 日本語（読み取りの境界で文字が分断される）。
+     */
+    @Param({"ascii", "multibyte"})
+    public String content;
+
+    private BenchmarkEnvironment environment;
+    private byte[] output;
+
+    @Setup
+    public void setUp() {
+        environment = new BenchmarkEnvironment(0);
+        String line = "ascii".equals(content) ? "line 0123456789 abcdefghijklmnopqrstuvwxyz\n" : "出力の行 あいうえおかきくけこ 0123456789\n";
+        byte[] lineBytes = line.getBytes(StandardCharsets.UTF_8);
+        output = new byte[OUTPUT_BYTES / lineBytes.length * lineBytes.length];
+        for (int offset = 0; offset < output.length; offset += lineBytes.length) {
+            System.arraycopy(lineBytes, 0, output, offset, lineBytes.length);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        environment.close();
+    }
+
+    @Benchmark
+    public long pumpOutput() {
+        String executionId = UUID.randomUUID().toString();
+        ExecutionWatchdog.Guard guard = environment.watchdog.watch(executionId, () -> { });
+        environment.compiler.pumpOutput(new ByteArrayInputStream(output), OutputChannel.STDOUT, executionId,
+            environment.webSocketHandler, guard, () -> { }, "ベンチマーク");
+        guard.finish(0);
+        return environment.webSocketHandler.getReceivedChars();
+    }
+}
@@ -0,0 +1,86 @@
+package tech.nagatani.dev;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DynamicCompiler#startProcess} で子プロセスを開始してから、終了報告が届くまでの時間。
+ * 出力の少ないプログラムでは起動時間を、多いプログラムでは出力の読み取りと転送の処理量を計測します。
+ * WebSocketへの送信はスタブに置き換えているため、ネットワークの影響は含みません。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessLaunchBenchmark {
+
+    /**
+     * 起動方法。new-jvm: 毎回JVMを起動、worker: 事前起動ワーカーを使用。
+     */
+    @Param({"new-jvm", "worker"})
+    public String launch;
+
+    /**
+     * プログラムが出力する行数（0の場合は "done" の1行のみ）。
+     */
+    @Param({"0", "100000"})
+    public int outputLines;
+
+    private BenchmarkEnvironment environment;
+    private CompilationResult compiled;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        environment = new BenchmarkEnvironment("worker".equals(launch) ? 1 : 0);
+        String source = outputLines == 0
+            ? BenchmarkSources.nestedClasses("Bench", 0)
+            : BenchmarkSources.printer("Bench", outputLines);
+        compiled = environment.compileOrFail(source);
+    }
+
+    @Setup(Level.Invocation)
+    public void awaitIdleWorker() throws InterruptedException {
+        // ワーカーの補充を待たずに開始すると新しいJVMの起動にフォールバックしてしまうため、補充を待つ（計測には含まない）
+        if (environment.workerPool.isEnabled()) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (environment.workerPool.getIdleCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        environment.close();
+    }
+
+    @Benchmark
+    public ExitReport startProcess() throws Exception {
+        String executionId = UUID.randomUUID().toString();
+        CompletableFuture<ExitReport> exit = environment.webSocketHandler.expectExit(executionId);
+        environment.compiler.startProcess(compiled.copyForNewExecution(), executionId,
+            environment.processManager, environment.webSocketHandler);
+        try {
+            return exit.get(60, TimeUnit.SECONDS);
+        } finally {
+            environment.processManager.cleanupProcess(executionId); // 読み取りスレッドの終了待ちと一時ディレクトリの削除
+        }
+    }
+}
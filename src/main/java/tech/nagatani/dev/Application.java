@@ -2,13 +2,16 @@ package tech.nagatani.dev;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 /**
  * このJava Dynamic Compiler Web UIアプリケーションのメインエントリポイントとなるクラスです。
  * {@link SpringBootApplication} アノテーションは、このクラスがSpring Bootアプリケーションであり、
  * 自動設定、コンポーネントスキャン、および追加設定の機能を有効にすることを示します。
+ * {@link EnableScheduling} は、放置されたリソースの定期的な回収（{@code ResourceReaper}）のために有効にしています。
  */
 @SpringBootApplication
+@EnableScheduling
 public class Application {
 
     /**
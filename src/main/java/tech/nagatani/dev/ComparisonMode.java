@@ -0,0 +1,57 @@
+package tech.nagatani.dev;
+
+import java.util.Arrays;
+
+/**
+ * ジャッジがプログラムの出力と期待される出力を比較する方法を表す列挙型。
+ */
+public enum ComparisonMode {
+    /** 完全一致で比較します。改行コードの違い（CRLFとLF）のみ無視します。既定の方法です。 */
+    EXACT,
+    /** 空白文字（スペース・タブ・改行）で区切った語の並びとして比較します。空白の量や末尾の改行の違いは無視します。 */
+    WHITESPACE,
+    /** 利用者が提供したチェッカープログラムで判定します（{@link tech.nagatani.dev.service.JudgeService} を参照）。 */
+    CHECKER;
+
+    /**
+     * リクエストの文字列から比較方法を解析します。大文字・小文字の違いは無視されます。
+     * @param value 解析する文字列（例: "exact", "whitespace", "checker"）
+     * @return 対応する比較方法。nullまたは不明な値の場合は {@link #EXACT}。
+     */
+    public static ComparisonMode fromString(String value) {
+        if (value != null) {
+            for (ComparisonMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(value.trim())) {
+                    return mode;
+                }
+            }
+        }
+        return EXACT;
+    }
+
+    /**
+     * 出力が期待される出力と一致するかどうかを判定します。
+     * @param expected 期待される出力
+     * @param actual プログラムの出力
+     * @return 一致する場合はtrue
+     * @throws IllegalStateException {@link #CHECKER} の場合（チェッカーの実行が必要なため、ここでは判定できない）
+     */
+    public boolean matches(String expected, String actual) {
+        switch (this) {
+            case EXACT:
+                return expected.replace("\r\n", "\n").equals(actual.replace("\r\n", "\n"));
+            case WHITESPACE:
+                return Arrays.equals(tokens(expected), tokens(actual));
+            default:
+                throw new IllegalStateException("チェッカーによる比較は JudgeService で行います。");
+        }
+    }
+
+    /**
+     * 空白文字で区切った語の配列を返します。
+     */
+    private static String[] tokens(String text) {
+        String trimmed = text.trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+    }
+}
@@ -1,36 +1,72 @@
 package tech.nagatani.dev;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Javaソースコードのコンパイル試行の結果を保持するクラス。
  * コンパイルの成功ステータス、診断メッセージ（エラーや警告）、抽出されたクラス名、
- * コンパイルされたクラスファイルが格納される一時ディレクトリのパス、および元のソースコードを格納します。
+ * メモリ上に保持されたクラスファイルのバイト列、および元のソースコードを格納します。
+ * クラスファイル用の一時ディレクトリは、ディレクトリを必要とするランチャーが要求したときにのみ遅延作成されます。
  */
 public class CompilationResult {
     private final boolean success; // コンパイルが成功したかどうか
     private final List<String> diagnostics; // コンパイラからの診断メッセージのリスト
+    private final List<CompilerDiagnostic> structuredDiagnostics; // 同じ診断メッセージの構造化された形式（JSON APIで使用）
     private final String className; // 抽出されたpublicクラス名
-    private final Path compiledCodePath; // コンパイルされたクラスファイルが格納される一時ディレクトリのパス。ディレクトリまたはJARファイルのパスになることがあります。
+    private final Map<String, byte[]> classBytes; // バイナリクラス名 → クラスファイルのバイト列（メモリ内コンパイルの出力）
     private final String sourceCode; // コンパイルに使用された元のソースコード
+    private Path compiledCodePath; // クラスファイルを書き出した一時ディレクトリのパス。必要になるまでnull（遅延作成）
+    private volatile CompilationWorkspace.IncrementalStats incrementalStats; // インクリメンタルコンパイルの統計情報（作業領域を使用しない場合はnull）
+    private volatile CompilePhaseTimings phaseTimings; // javacのフェーズごとの所要時間（javacを実行していない場合はnull）
+    private volatile boolean transientFailure; // javacの結果ではない一時的な失敗（割り込みなど）かどうか
 
     /**
      * CompilationResultの新しいインスタンスを構築します。
      * @param success コンパイルが成功した場合はtrue、それ以外はfalse。
      * @param diagnostics コンパイラからの診断メッセージのリスト。
      * @param className 抽出されたpublicクラス名。コンパイル失敗時はnullの場合があります。
-     * @param compiledCodePath コンパイルされたクラスファイルが格納される一時ディレクトリのパス。コンパイル失敗時はnullの場合があります。
+     * @param classBytes バイナリクラス名をキー、クラスファイルのバイト列を値とするマップ。コンパイル失敗時はnullの場合があります。
      * @param sourceCode コンパイルに使用された元のソースコード。
      */
-    public CompilationResult(boolean success, List<String> diagnostics, String className, Path compiledCodePath, String sourceCode) {
+    public CompilationResult(boolean success, List<String> diagnostics, String className, Map<String, byte[]> classBytes, String sourceCode) {
+        this(success, diagnostics, Collections.emptyList(), className, classBytes, sourceCode);
+    }
+
+    /**
+     * 構造化された診断メッセージを含むCompilationResultの新しいインスタンスを構築します。
+     * @param success コンパイルが成功した場合はtrue、それ以外はfalse。
+     * @param diagnostics コンパイラからの診断メッセージのリスト。
+     * @param structuredDiagnostics 同じ診断メッセージの構造化された形式。
+     * @param className 抽出されたpublicクラス名。コンパイル失敗時はnullの場合があります。
+     * @param classBytes バイナリクラス名をキー、クラスファイルのバイト列を値とするマップ。コンパイル失敗時はnullの場合があります。
+     * @param sourceCode コンパイルに使用された元のソースコード。
+     */
+    public CompilationResult(boolean success, List<String> diagnostics, List<CompilerDiagnostic> structuredDiagnostics,
+                             String className, Map<String, byte[]> classBytes, String sourceCode) {
         this.success = success;
         this.diagnostics = diagnostics;
+        this.structuredDiagnostics = structuredDiagnostics;
         this.className = className;
-        this.compiledCodePath = compiledCodePath;
+        this.classBytes = classBytes != null ? Collections.unmodifiableMap(classBytes) : Collections.emptyMap();
         this.sourceCode = sourceCode;
     }
 
+    /**
+     * 同じコンパイル出力（クラスファイルのバイト列と診断メッセージ）を共有する新しいインスタンスを返します。
+     * 一時ディレクトリは実行ごとに作成・削除されるため、コピーには書き出し済みのパスは引き継がれません。
+     * コンパイルキャッシュのヒット時に、別の実行IDへ結果を割り当てる場合に使用します。
+     * @return 一時ディレクトリが未作成状態の新しい {@link CompilationResult}
+     */
+    public CompilationResult copyForNewExecution() {
+        return new CompilationResult(success, diagnostics, structuredDiagnostics, className, classBytes, sourceCode);
+    }
+
     /**
      * コンパイルが成功したかどうかを返します。
      * @return コンパイルが成功した場合はtrue、それ以外はfalse。
@@ -48,6 +84,16 @@ public class CompilationResult {
         return diagnostics;
     }
 
+    /**
+     * 構造化された診断メッセージのリストを返します。
+     * コンパイラを実行する前に検出されたエラー（publicクラスが見つからない場合など）は、
+     * 行番号が-1の診断として含まれます。
+     * @return 構造化された診断メッセージのリスト。
+     */
+    public List<CompilerDiagnostic> getStructuredDiagnostics() {
+        return structuredDiagnostics;
+    }
+
     /**
      * ソースコードから抽出されたpublicクラス名を返します。
      * @return 抽出されたクラス名。コンパイル失敗時やクラス名が見つからなかった場合はnull。
@@ -57,14 +103,101 @@ public class CompilationResult {
     }
 
     /**
-     * コンパイルされたクラスファイルが格納されている一時ディレクトリのパスを返します。
-     * このパスは、後続の実行ステップでクラスパスに追加するために使用されます。
-     * @return コンパイルされたコードへのパス。コンパイル失敗時はnull。
+     * メモリ内でコンパイルされたクラスファイルのバイト列を返します。
+     * キーはバイナリクラス名（例: "Main", "Main$Inner"）です。
+     * @return 変更不可のクラス名 → バイト列マップ。コンパイル失敗時は空のマップ。
+     */
+    public Map<String, byte[]> getClassBytes() {
+        return classBytes;
+    }
+
+    /**
+     * クラスファイルが既に書き出されている一時ディレクトリのパスを返します。
+     * ディレクトリはまだ作成されていない場合があります（{@link #getOrCreateCompiledCodePath()} を参照）。
+     * @return 書き出し済みのディレクトリへのパス。まだ書き出されていない場合はnull。
+     */
+    public synchronized Path getCompiledCodePath() {
+        return compiledCodePath;
+    }
+
+    /**
+     * クラスファイルを一時ディレクトリに書き出し、そのパスを返します。
+     * 既に書き出し済みの場合は同じパスを返します。子プロセスの {@code -cp} のように、
+     * ランチャーが実際にディレクトリを必要とする場合にのみ呼び出してください。
+     * 作成されたディレクトリは {@link DynamicCompiler#deleteTempDirectory(Path)} で削除されます。
+     * @return コンパイルされたコードへのパス。クラスファイルが存在しない場合はnull。
+     * @throws IOException 一時ディレクトリの作成またはクラスファイルの書き込みに失敗した場合
      */
-    public Path getCompiledCodePath() {
+    public synchronized Path getOrCreateCompiledCodePath() throws IOException {
+        if (compiledCodePath != null || classBytes.isEmpty()) {
+            return compiledCodePath;
+        }
+        Path tempDir = Files.createTempDirectory("java-compile-");
+        for (Map.Entry<String, byte[]> entry : classBytes.entrySet()) {
+            // バイナリクラス名をパッケージ階層に対応するファイルパスに変換（例: a.b.C → a/b/C.class）
+            Path classFile = tempDir.resolve(entry.getKey().replace('.', '/') + ".class");
+            Files.createDirectories(classFile.getParent());
+            try (OutputStream out = Files.newOutputStream(classFile)) {
+                out.write(entry.getValue());
+            }
+        }
+        compiledCodePath = tempDir;
         return compiledCodePath;
     }
 
+    /**
+     * インクリメンタルコンパイルの統計情報を返します。
+     * この統計はコンパイル1回分のものなので、{@link #copyForNewExecution()} のコピーには引き継がれません。
+     * @return 統計情報。{@link CompilationWorkspace} を使用せずにコンパイルした場合はnull。
+     */
+    public CompilationWorkspace.IncrementalStats getIncrementalStats() {
+        return incrementalStats;
+    }
+
+    /**
+     * インクリメンタルコンパイルの統計情報を設定します。
+     * @param incrementalStats 統計情報
+     */
+    public void setIncrementalStats(CompilationWorkspace.IncrementalStats incrementalStats) {
+        this.incrementalStats = incrementalStats;
+    }
+
+    /**
+     * javacのフェーズごとの所要時間と生成されたクラスの数を返します。
+     * インクリメンタルコンパイルの場合は、今回実行した全ラウンドの合計です。
+     * この計測はコンパイル1回分のものなので、{@link #copyForNewExecution()} のコピーには引き継がれません。
+     * @return 計測結果。javacを実行する前に失敗した場合はnull。
+     */
+    public CompilePhaseTimings getPhaseTimings() {
+        return phaseTimings;
+    }
+
+    /**
+     * javacのフェーズごとの所要時間を設定します。
+     * @param phaseTimings 計測結果
+     */
+    public void setPhaseTimings(CompilePhaseTimings phaseTimings) {
+        this.phaseTimings = phaseTimings;
+    }
+
+    /**
+     * この失敗がjavacの判定ではなく、ファイルマネージャの取得待機中の割り込みなどによる一時的なものかどうかを返します。
+     * 一時的な失敗は同じソースコードでも再試行すれば成功しうるため、コンパイルキャッシュには追加されません。
+     * @return 一時的な失敗の場合はtrue
+     */
+    public boolean isTransientFailure() {
+        return transientFailure;
+    }
+
+    /**
+     * この結果を一時的な失敗として記録します。
+     * @return このインスタンス
+     */
+    public CompilationResult markTransientFailure() {
+        this.transientFailure = true;
+        return this;
+    }
+
     /**
      * コンパイルに使用された元のソースコードを返します。
      * これは、GUIアプリケーションのタイムアウトチェックなど、特定のロジックで使用されることがあります。
@@ -0,0 +1,590 @@
+package tech.nagatani.dev;
+
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 1人のユーザーの「編集して再実行」を繰り返すセッションのための、インクリメンタルなコンパイル作業領域。
+ * 前回のコンパイルで得たファイル（コンパイル単位）ごとのクラスファイルを保持し、再投稿時には
+ * 内容が変わったファイルだけを再コンパイルします。変わっていないファイルのクラスはメモリ上のクラスパスとして
+ * javacに渡されるため、ソースから解析し直す必要がありません。
+ * <p>
+ * 再コンパイルしたファイルの公開シグネチャ（privateでないメンバーの宣言と定数値）が変わった場合は、
+ * そのファイルのクラスに依存しているファイルも無効化して再コンパイルします。依存関係は、各ファイルから生成された
+ * クラスファイルのコンスタントプールが参照しているクラスから求めます。そのため {@code var b = c.getB(); b.foo();} のように
+ * 型名をソースに書かずに使っている場合も依存として扱われます。参照側のクラスファイルに値が埋め込まれてクラスへの参照が
+ * 残らない定数に備えて、型名を字句的に参照しているファイルも無効化します。
+ * これをシグネチャの変化がなくなるまで繰り返します。
+ * <p>
+ * 同じ作業領域への同時のコンパイルは順番に実行されます。
+ */
+public class CompilationWorkspace {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompilationWorkspace.class);
+
+    private final DynamicCompiler dynamicCompiler; // javacタスクの実行に使用するコンパイラ
+    private final ReentrantLock lock = new ReentrantLock(); // 同じ作業領域への同時コンパイルを直列化するロック
+    private final Map<String, UnitState> units = new HashMap<>(); // ファイルのパス → 前回のコンパイル結果
+    private volatile long lastUsedNanos = System.nanoTime(); // 最後に使用された時刻（作業領域の破棄の判定に使用）
+
+    /**
+     * 前回のコンパイルで得た、1つのファイルの状態。
+     */
+    private static class UnitState {
+        final String contentHash; // ソースコードのハッシュ
+        final Map<String, byte[]> classBytes; // このファイルから生成されたクラス
+        final String signatureHash; // 公開シグネチャのハッシュ
+        final Set<String> declaredTypes; // このファイルが宣言している型の単純名
+        final Set<String> referencedClasses; // このファイルのクラスファイルが参照しているクラスのバイナリ名
+        final List<CompilerDiagnostic> diagnostics; // このファイルの診断（警告など）
+        final long costNanos; // このファイルのコンパイルにかかった時間の推定値
+
+        UnitState(String contentHash, Map<String, byte[]> classBytes, String signatureHash, Set<String> declaredTypes,
+                  List<CompilerDiagnostic> diagnostics, long costNanos) {
+            this.contentHash = contentHash;
+            this.classBytes = classBytes;
+            this.signatureHash = signatureHash;
+            this.declaredTypes = declaredTypes;
+            this.referencedClasses = referencedClasses(classBytes);
+            this.diagnostics = diagnostics;
+            this.costNanos = costNanos;
+        }
+    }
+
+    /**
+     * 1回のインクリメンタルコンパイルの統計情報。
+     */
+    public static class IncrementalStats {
+        private final List<String> reusedUnits; // クラスを再利用したファイル
+        private final List<String> recompiledUnits; // 内容が変わったため再コンパイルしたファイル
+        private final List<String> invalidatedUnits; // 依存先のシグネチャが変わったため再コンパイルしたファイル
+        private final int rounds; // 実行したjavacタスクの数
+        private final long compileMillis; // 実際のコンパイル時間
+        private final long estimatedSavedMillis; // 再利用により節約できたと推定される時間
+
+        IncrementalStats(List<String> reusedUnits, List<String> recompiledUnits, List<String> invalidatedUnits,
+                         int rounds, long compileMillis, long estimatedSavedMillis) {
+            this.reusedUnits = reusedUnits;
+            this.recompiledUnits = recompiledUnits;
+            this.invalidatedUnits = invalidatedUnits;
+            this.rounds = rounds;
+            this.compileMillis = compileMillis;
+            this.estimatedSavedMillis = estimatedSavedMillis;
+        }
+
+        /**
+         * JSON API の応答やログに含めるためのマップに変換します。
+         * @return 項目名 → 値のマップ
+         */
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("reusedUnits", reusedUnits);
+            map.put("recompiledUnits", recompiledUnits);
+            map.put("invalidatedUnits", invalidatedUnits);
+            map.put("rounds", rounds);
+            map.put("compileMillis", compileMillis);
+            map.put("estimatedSavedMillis", estimatedSavedMillis);
+            return map;
+        }
+
+        /**
+         * クラスを再利用したファイルのパスを返します。
+         * @return ファイルのパスのリスト
+         */
+        public List<String> getReusedUnits() {
+            return reusedUnits;
+        }
+
+        /**
+         * 内容が変わったため再コンパイルしたファイルのパスを返します。
+         * @return ファイルのパスのリスト
+         */
+        public List<String> getRecompiledUnits() {
+            return recompiledUnits;
+        }
+
+        /**
+         * 依存先のシグネチャが変わったため再コンパイルしたファイルのパスを返します。
+         * @return ファイルのパスのリスト
+         */
+        public List<String> getInvalidatedUnits() {
+            return invalidatedUnits;
+        }
+
+        /**
+         * 実行したjavacタスクの数を返します（変更がなければ0）。
+         * @return javacタスクの数
+         */
+        public int getRounds() {
+            return rounds;
+        }
+
+        /**
+         * 実際のコンパイル時間を返します。
+         * @return コンパイル時間（ミリ秒）
+         */
+        public long getCompileMillis() {
+            return compileMillis;
+        }
+
+        /**
+         * 再利用したファイルを前回コンパイルしたときにかかった時間の合計（節約できた時間の推定値）を返します。
+         * @return 推定節約時間（ミリ秒）
+         */
+        public long getEstimatedSavedMillis() {
+            return estimatedSavedMillis;
+        }
+    }
+
+    /**
+     * 空の作業領域を構築します。
+     * @param dynamicCompiler javacタスクの実行に使用するコンパイラ
+     */
+    public CompilationWorkspace(DynamicCompiler dynamicCompiler) {
+        this.dynamicCompiler = dynamicCompiler;
+    }
+
+    /**
+     * プロジェクトをインクリメンタルにコンパイルします。
+     * 結果は {@link DynamicCompiler#compileProject(List, String)} と同じ形式で、
+     * {@link CompilationResult#getIncrementalStats()} に再利用の統計情報が格納されます。
+     * コンパイルに失敗した場合、作業領域は前回成功したときの状態のまま保持されます。
+     *
+     * @param sourceUnits コンパイルするソースファイルのリスト（プロジェクト全体）
+     * @param mainClass メインクラスの名前（nullの場合は自動検出）
+     * @return コンパイル結果
+     */
+    public CompilationResult compile(List<SourceUnit> sourceUnits, String mainClass) {
+        lock.lock();
+        try {
+            lastUsedNanos = System.nanoTime();
+            return compileLocked(sourceUnits, mainClass);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 最後に使用されてからの経過時間を返します。
+     * @return 経過時間（ミリ秒）
+     */
+    public long getIdleMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastUsedNanos);
+    }
+
+    /**
+     * 作業領域が保持しているファイル数を返します。
+     * @return ファイル数
+     */
+    public int getUnitCount() {
+        lock.lock();
+        try {
+            return units.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * ロックを取得した状態でコンパイルを行います。
+     */
+    private CompilationResult compileLocked(List<SourceUnit> sourceUnits, String mainClass) {
+        StringBuilder combinedSource = new StringBuilder();
+        Map<String, SourceUnit> unitsByPath = new LinkedHashMap<>();
+        for (int i = 0; i < sourceUnits.size(); i++) {
+            SourceUnit unit = sourceUnits.get(i);
+            String path = unit.getPathWithoutExtension("Unit" + (i + 1));
+            if (unitsByPath.putIfAbsent(path, unit) != null) {
+                return dynamicCompiler.projectFailure("ファイル名が重複しています: " + path + ".java", null, combinedSource.toString());
+            }
+            combinedSource.append("// ").append(path).append(".java\n").append(unit.getSourceCode()).append('\n');
+        }
+        if (unitsByPath.isEmpty()) {
+            return dynamicCompiler.projectFailure("ソースファイルがありません。", null, "");
+        }
+        String mainClassName = dynamicCompiler.resolveMainClass(sourceUnits, mainClass);
+        if (mainClassName == null) {
+            String message = mainClass != null && !mainClass.trim().isEmpty()
+                ? "指定されたメインクラスが見つかりません: " + mainClass.trim()
+                : "mainメソッドを持つpublicクラスが1つに決まりません。メインクラスを指定してください。";
+            return dynamicCompiler.projectFailure(message, null, combinedSource.toString());
+        }
+
+        // 今回の状態（成功した場合にのみ作業領域に反映する）
+        Map<String, UnitState> next = new HashMap<>();
+        Set<String> pending = new LinkedHashSet<>(); // これからコンパイルするファイル
+        Set<String> changedTypes = new HashSet<>(); // シグネチャが変わった（または消えた）型の単純名
+        Set<String> changedClasses = new HashSet<>(); // シグネチャが変わった（または消えた）クラスのバイナリ名
+        List<String> recompiled = new ArrayList<>();
+        List<String> invalidated = new ArrayList<>();
+        for (Map.Entry<String, SourceUnit> entry : unitsByPath.entrySet()) {
+            UnitState previous = units.get(entry.getKey());
+            if (previous != null && previous.contentHash.equals(hash(entry.getValue().getSourceCode()))) {
+                next.put(entry.getKey(), previous);
+            } else {
+                pending.add(entry.getKey());
+                recompiled.add(entry.getKey() + ".java");
+            }
+        }
+        // 削除されたファイルが宣言していた型は、参照しているファイルを無効化する
+        for (Map.Entry<String, UnitState> entry : units.entrySet()) {
+            if (!unitsByPath.containsKey(entry.getKey())) {
+                changedTypes.addAll(entry.getValue().declaredTypes);
+                changedClasses.addAll(entry.getValue().classBytes.keySet());
+            }
+        }
+        addInvalidatedDependents(unitsByPath, next, changedTypes, changedClasses, pending, invalidated);
+
+        long startNanos = System.nanoTime();
+        int rounds = 0;
+        CompilePhaseTimings phaseTimings = new CompilePhaseTimings(); // 全ラウンドの合計
+        while (!pending.isEmpty()) {
+            rounds++;
+            List<String> roundPaths = new ArrayList<>(pending);
+            pending.clear();
+            CompilationResult failure = compileRound(roundPaths, unitsByPath, next, changedTypes, changedClasses, phaseTimings,
+                mainClassName, combinedSource.toString());
+            if (failure != null) {
+                return failure; // 作業領域は前回の状態のまま
+            }
+            addInvalidatedDependents(unitsByPath, next, changedTypes, changedClasses, pending, invalidated);
+        }
+        long compileNanos = System.nanoTime() - startNanos;
+
+        // 成功したので作業領域を更新し、全ファイルのクラスと診断をまとめる
+        units.clear();
+        units.putAll(next);
+        Map<String, byte[]> classBytes = new LinkedHashMap<>();
+        List<CompilerDiagnostic> diagnostics = new ArrayList<>();
+        List<String> reused = new ArrayList<>();
+        long savedNanos = 0;
+        Set<String> compiledThisTime = new HashSet<>(recompiled);
+        compiledThisTime.addAll(invalidated);
+        for (String path : unitsByPath.keySet()) {
+            UnitState state = next.get(path);
+            classBytes.putAll(state.classBytes);
+            diagnostics.addAll(state.diagnostics);
+            if (!compiledThisTime.contains(path + ".java")) {
+                reused.add(path + ".java");
+                savedNanos += state.costNanos;
+            }
+        }
+        IncrementalStats stats = new IncrementalStats(reused, recompiled, invalidated, rounds,
+            TimeUnit.NANOSECONDS.toMillis(compileNanos), TimeUnit.NANOSECONDS.toMillis(savedNanos));
+
+        if (!classBytes.containsKey(mainClassName)) {
+            String simpleName = mainClassName.substring(mainClassName.lastIndexOf('.') + 1);
+            mainClassName = classBytes.keySet().stream()
+                .filter(name -> name.equals(simpleName) || name.endsWith("." + simpleName))
+                .findFirst().orElse(null);
+            if (mainClassName == null) {
+                return dynamicCompiler.projectFailure("指定されたメインクラスが見つかりません: " + simpleName, null, combinedSource.toString());
+            }
+        }
+        LOG.debug("{}: インクリメンタルコンパイル成功 (再利用: {}, 再コンパイル: {}, 無効化: {}, 推定節約時間: {}ms)",
+            mainClassName, reused.size(), recompiled.size(), invalidated.size(), stats.getEstimatedSavedMillis());
+        CompilationResult result = new CompilationResult(true, DynamicCompiler.formatDiagnostics(diagnostics), diagnostics,
+            mainClassName, classBytes, combinedSource.toString());
+        result.setIncrementalStats(stats);
+        result.setPhaseTimings(phaseTimings);
+        return result;
+    }
+
+    /**
+     * 指定されたファイルを1つのjavacタスクでコンパイルし、成功した場合は {@code next} を更新します。
+     * 他のファイルのクラスはメモリ上のクラスパスとして渡されます。
+     * シグネチャが変わったファイルの型名は {@code changedTypes} に、クラスのバイナリ名（変更前と変更後の両方）は {@code changedClasses} に追加され、
+     * javacのフェーズごとの時間は {@code phaseTimings} に加算されます。
+     * @return 失敗した場合は失敗の {@link CompilationResult}、成功した場合はnull
+     */
+    private CompilationResult compileRound(List<String> roundPaths, Map<String, SourceUnit> unitsByPath, Map<String, UnitState> next,
+                                           Set<String> changedTypes, Set<String> changedClasses, CompilePhaseTimings phaseTimings,
+                                           String mainClassName, String combinedSource) {
+        // 今回コンパイルしないファイルのクラスをクラスパスに置く
+        Set<String> roundSet = new HashSet<>(roundPaths);
+        Map<String, byte[]> classPath = new HashMap<>();
+        for (Map.Entry<String, UnitState> entry : next.entrySet()) {
+            if (!roundSet.contains(entry.getKey()) && unitsByPath.containsKey(entry.getKey())) {
+                classPath.putAll(entry.getValue().classBytes);
+            }
+        }
+        List<JavaFileObject> compilationUnits = new ArrayList<>();
+        Map<JavaFileObject, String> pathBySource = new HashMap<>();
+        Map<URI, String> pathByUri = new HashMap<>(); // 診断のソースもラップされているため、URIで対応付ける
+        for (String path : roundPaths) {
+            JavaFileObject sourceFile = new DynamicCompiler.StringSourceJavaObject(path.replace('/', '.'), unitsByPath.get(path).getSourceCode());
+            compilationUnits.add(sourceFile);
+            pathBySource.put(sourceFile, path);
+            pathByUri.put(sourceFile.toUri(), path);
+        }
+
+        SignatureCollector signatures = new SignatureCollector();
+        long startNanos = System.nanoTime();
+        DynamicCompiler.TaskOutcome outcome = dynamicCompiler.runCompilationTask(compilationUnits, classPath, signatures);
+        long elapsedNanos = System.nanoTime() - startNanos;
+        if (outcome == null) {
+            return dynamicCompiler.projectFailure("致命的エラー: ファイルマネージャの取得待機中に割り込みが発生しました。", mainClassName, combinedSource)
+                .markTransientFailure();
+        }
+        phaseTimings.add(outcome.phaseTimings);
+
+        Map<String, List<CompilerDiagnostic>> diagnosticsByPath = new HashMap<>();
+        List<CompilerDiagnostic> allDiagnostics = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : outcome.diagnostics) {
+            CompilerDiagnostic converted = CompilerDiagnostic.from(diagnostic);
+            allDiagnostics.add(converted);
+            String path = diagnostic.getSource() != null ? pathByUri.get(diagnostic.getSource().toUri()) : null;
+            if (path != null) {
+                diagnosticsByPath.computeIfAbsent(path, key -> new ArrayList<>()).add(converted);
+            }
+        }
+        if (!outcome.success) {
+            LOG.debug("{}: インクリメンタルコンパイル失敗 ({} ファイル)。", mainClassName, roundPaths.size());
+            CompilationResult failure = new CompilationResult(false, DynamicCompiler.formatDiagnostics(allDiagnostics), allDiagnostics, mainClassName, null, combinedSource);
+            failure.setPhaseTimings(phaseTimings);
+            return failure;
+        }
+
+        // コンパイル時間はソースの長さに応じて各ファイルに按分し、次回以降の節約時間の推定に使う
+        long totalLength = 0;
+        for (String path : roundPaths) {
+            totalLength += Math.max(1, unitsByPath.get(path).getSourceCode().length());
+        }
+        for (Map.Entry<JavaFileObject, String> entry : pathBySource.entrySet()) {
+            String path = entry.getValue();
+            SourceUnit unit = unitsByPath.get(path);
+            UnitState previous = next.get(path) != null ? next.get(path) : units.get(path);
+            String signatureHash = signatures.hashFor(entry.getKey());
+            Set<String> declaredTypes = unit.getDeclaredTypeNames();
+            Map<String, byte[]> classBytes = outcome.fileManager.getClassBytes(entry.getKey());
+            if (previous == null || !previous.signatureHash.equals(signatureHash) || !previous.declaredTypes.equals(declaredTypes)) {
+                changedTypes.addAll(declaredTypes);
+                changedClasses.addAll(classBytes.keySet());
+                if (previous != null) {
+                    changedTypes.addAll(previous.declaredTypes);
+                    changedClasses.addAll(previous.classBytes.keySet());
+                }
+            }
+            long cost = elapsedNanos * Math.max(1, unit.getSourceCode().length()) / totalLength;
+            next.put(path, new UnitState(hash(unit.getSourceCode()), classBytes, signatureHash,
+                declaredTypes, diagnosticsByPath.getOrDefault(path, Collections.emptyList()), cost));
+        }
+        return null;
+    }
+
+    /**
+     * シグネチャが変わったクラスに依存しているファイルのうち、まだコンパイル予定でないものを無効化します。
+     * クラスファイルがそのクラスを参照しているファイルに加えて、値が埋め込まれる定数に備えて型名を字句的に参照しているファイルも対象にします。
+     * 処理済みの型名とクラス名は {@code changedTypes} と {@code changedClasses} から取り除かれます。
+     */
+    private void addInvalidatedDependents(Map<String, SourceUnit> unitsByPath, Map<String, UnitState> next, Set<String> changedTypes,
+                                          Set<String> changedClasses, Set<String> pending, List<String> invalidated) {
+        if (changedTypes.isEmpty() && changedClasses.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, SourceUnit> entry : unitsByPath.entrySet()) {
+            String path = entry.getKey();
+            UnitState state = next.get(path);
+            // 既に今回コンパイルしたファイル（の最新の状態）や予定のファイルは対象外。再利用予定のファイルだけを無効化する
+            if (state == null || pending.contains(path) || state != units.get(path)) {
+                continue;
+            }
+            if (!Collections.disjoint(state.referencedClasses, changedClasses)
+                    || !Collections.disjoint(entry.getValue().getIdentifiers(), changedTypes)) {
+                pending.add(path);
+                invalidated.add(path + ".java");
+            }
+        }
+        changedTypes.clear();
+        changedClasses.clear();
+    }
+
+    /**
+     * クラスファイルのコンスタントプールから、参照しているクラスのバイナリ名を集めます。
+     * クラスの参照（CONSTANT_Class）に加えて、フィールドやメソッドの記述子・ジェネリクスのシグネチャに現れる型
+     * （{@code Lpkg/Name;} の形式）も含めます。文字列定数が同じ形式に見える場合も含まれますが、無効化が増えるだけで結果は変わりません。
+     * @param classBytes バイナリクラス名 → クラスファイルのバイト列
+     * @return 参照しているクラスのバイナリ名（{@code pkg.Outer$Inner} の形式）
+     */
+    private static Set<String> referencedClasses(Map<String, byte[]> classBytes) {
+        Set<String> referenced = new HashSet<>();
+        for (byte[] bytes : classBytes.values()) {
+            try {
+                collectConstantPoolReferences(bytes, referenced);
+            } catch (IOException | RuntimeException e) {
+                // javacが生成したクラスファイルなので通常は発生しない。字句的な判定だけで依存を求める
+            }
+        }
+        return referenced;
+    }
+
+    /**
+     * 1つのクラスファイルのコンスタントプールを読み、参照しているクラスのバイナリ名を追加します。
+     */
+    private static void collectConstantPoolReferences(byte[] bytes, Set<String> referenced) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        in.skipBytes(8); // magic, minor_version, major_version
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        List<Integer> classNameIndexes = new ArrayList<>();
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: // Utf8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7: // Class
+                    classNameIndexes.add(in.readUnsignedShort());
+                    break;
+                case 8: case 16: case 19: case 20: // String, MethodType, Module, Package
+                    in.skipBytes(2);
+                    break;
+                case 15: // MethodHandle
+                    in.skipBytes(3);
+                    break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: // Integer, Float, 各種参照, NameAndType, Dynamic, InvokeDynamic
+                    in.skipBytes(4);
+                    break;
+                case 5: case 6: // Long, Double（2つ分の番号を使用する）
+                    in.skipBytes(8);
+                    i++;
+                    break;
+                default:
+                    throw new IOException("不明なコンスタントプールのタグ: " + tag);
+            }
+        }
+        for (int index : classNameIndexes) {
+            String name = utf8[index];
+            if (name != null && !name.startsWith("[")) {
+                referenced.add(name.replace('/', '.'));
+            }
+        }
+        // 記述子とシグネチャ（配列のクラス参照を含む）に現れる型
+        for (String value : utf8) {
+            if (value == null) {
+                continue;
+            }
+            int start = value.indexOf('L');
+            while (start >= 0) {
+                int end = start + 1;
+                while (end < value.length() && value.charAt(end) != ';' && value.charAt(end) != '<') {
+                    end++;
+                }
+                if (end < value.length() && end > start + 1) {
+                    referenced.add(value.substring(start + 1, end).replace('/', '.'));
+                }
+                start = value.indexOf('L', end);
+            }
+        }
+    }
+
+    /**
+     * 文字列のSHA-256ハッシュを16進数表記で返します。
+     */
+    private static String hash(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : bytes) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 が利用できません", e); // 全てのJava実装で必須のため通常は発生しない
+        }
+    }
+
+    /**
+     * javacの解析（ANALYZE）フェーズの完了通知を受け取り、ファイルごとの公開シグネチャを収集するリスナー。
+     * シグネチャには、privateでない型・メンバーの種類、修飾子、名前、型、スーパータイプ、例外、定数値が含まれます。
+     * メソッドの本体は含まれないため、メソッドの中身だけを変更した場合はシグネチャは変わりません。
+     */
+    private static class SignatureCollector implements TaskListener {
+        // ソースファイルのURI → 最上位の型名 → その型のシグネチャ（型名順に並べて順序の影響をなくす）。
+        // javacはリスナーに渡すファイルオブジェクトをラップするため、インスタンスではなくURIで対応付ける
+        private final Map<URI, Map<String, String>> signatures = new HashMap<>();
+
+        @Override
+        public void finished(TaskEvent event) {
+            if (event.getKind() != TaskEvent.Kind.ANALYZE || event.getTypeElement() == null) {
+                return;
+            }
+            StringBuilder signature = new StringBuilder();
+            appendType(event.getTypeElement(), signature);
+            signatures.computeIfAbsent(event.getSourceFile().toUri(), key -> new TreeMap<>())
+                .put(event.getTypeElement().getQualifiedName().toString(), signature.toString());
+        }
+
+        /**
+         * 型のシグネチャを追加します（ネストした型を含む）。
+         */
+        private void appendType(TypeElement type, StringBuilder signature) {
+            signature.append(type.getKind()).append(' ').append(type.getModifiers()).append(' ')
+                .append(type.getQualifiedName()).append(type.getTypeParameters())
+                .append(" extends ").append(type.getSuperclass())
+                .append(" implements ").append(type.getInterfaces()).append(" {\n");
+            for (Element member : type.getEnclosedElements()) {
+                if (member.getModifiers().contains(Modifier.PRIVATE)) {
+                    continue;
+                }
+                if (member instanceof TypeElement) {
+                    appendType((TypeElement) member, signature);
+                    continue;
+                }
+                signature.append(member.getKind()).append(' ').append(member.getModifiers()).append(' ')
+                    .append(member.getSimpleName()).append(' ').append(member.asType());
+                if (member instanceof VariableElement && ((VariableElement) member).getConstantValue() != null) {
+                    // 定数は参照側のクラスファイルに埋め込まれるため、値の変化もシグネチャの変化として扱う
+                    signature.append(" = ").append(((VariableElement) member).getConstantValue());
+                }
+                if (member instanceof ExecutableElement) {
+                    signature.append(" throws ").append(((ExecutableElement) member).getThrownTypes());
+                    if (((ExecutableElement) member).getDefaultValue() != null) {
+                        signature.append(" default ").append(((ExecutableElement) member).getDefaultValue());
+                    }
+                }
+                signature.append('\n');
+            }
+            signature.append("}\n");
+        }
+
+        /**
+         * 指定されたソースファイルのシグネチャのハッシュを返します。
+         * @param sourceFile ソースファイル
+         * @return シグネチャのハッシュ（型がない場合は空のシグネチャのハッシュ）
+         */
+        String hashFor(JavaFileObject sourceFile) {
+            return hash(String.join("", signatures.getOrDefault(sourceFile.toUri(), Collections.emptyMap()).values()));
+        }
+    }
+}
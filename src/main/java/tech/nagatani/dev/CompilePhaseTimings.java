@@ -0,0 +1,194 @@
+package tech.nagatani.dev;
+
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * javacのフェーズごとの所要時間と、生成されたクラスの数。
+ * {@link TaskListener} としてjavacタスクに登録すると、各フェーズの開始・終了の通知から時間を積算します。
+ * <ul>
+ *   <li>parse: 構文解析（ソースファイルごと）</li>
+ *   <li>enter: シンボルの登録（クラスやメンバーの宣言の解決）</li>
+ *   <li>analyze: 属性付け（型検査・メソッド解決・ジェネリクスの推論）とフロー解析。javacは両者を1つのイベントとして通知するため分けられません。</li>
+ *   <li>generate: 脱糖（ラムダや内部クラスの変換）とクラスファイルの生成（クラスごと）</li>
+ * </ul>
+ * 巨大な生成コードは parse と generate、深いジェネリクスや複雑な型推論は analyze が突出するため、
+ * コンパイル時間を支配している投稿の原因を見分けるのに使用します。
+ * javacタスク1回の間は1つのスレッドからのみ更新されます。
+ */
+public class CompilePhaseTimings implements TaskListener {
+
+    /**
+     * 計測するフェーズ。
+     */
+    public enum Phase {
+        PARSE("parse"),
+        ENTER("enter"),
+        ANALYZE("analyze"),
+        GENERATE("generate");
+
+        private final String wireName; // JSONやメトリクスのタグで使用する名前
+
+        Phase(String wireName) {
+            this.wireName = wireName;
+        }
+
+        /**
+         * JSONやメトリクスのタグで使用する名前を返します。
+         * @return 名前（例: "analyze"）
+         */
+        public String getWireName() {
+            return wireName;
+        }
+
+        /**
+         * javacのイベントの種類に対応するフェーズを返します。
+         * @return 対応するフェーズ。計測対象外の場合はnull。
+         */
+        static Phase of(TaskEvent.Kind kind) {
+            switch (kind) {
+                case PARSE:
+                    return PARSE;
+                case ENTER:
+                    return ENTER;
+                case ANALYZE:
+                    return ANALYZE;
+                case GENERATE:
+                    return GENERATE;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private final Map<Phase, Long> totalNanos = new EnumMap<>(Phase.class); // フェーズ → 積算時間
+    private final Map<Phase, Long> startedNanos = new EnumMap<>(Phase.class); // フェーズ → 実行中の区間の開始時刻
+    private final Map<Phase, Integer> depth = new EnumMap<>(Phase.class); // フェーズ → 入れ子になった開始通知の数
+    private int generatedClasses = 0; // 生成されたクラスの数（内部クラス・匿名クラスを含む）
+    private int parsedFiles = 0; // 構文解析されたソースファイルの数
+
+    /**
+     * 空の計測結果を作成します。
+     */
+    public CompilePhaseTimings() {
+        for (Phase phase : Phase.values()) {
+            totalNanos.put(phase, 0L);
+            depth.put(phase, 0);
+        }
+    }
+
+    @Override
+    public void started(TaskEvent event) {
+        Phase phase = Phase.of(event.getKind());
+        if (phase == null) {
+            return;
+        }
+        // 同じフェーズの通知が入れ子になった場合（アノテーション処理の再実行など）は、外側の区間だけを数える
+        int current = depth.get(phase);
+        if (current == 0) {
+            startedNanos.put(phase, System.nanoTime());
+        }
+        depth.put(phase, current + 1);
+    }
+
+    @Override
+    public void finished(TaskEvent event) {
+        Phase phase = Phase.of(event.getKind());
+        if (phase == null) {
+            return;
+        }
+        int current = depth.get(phase);
+        if (current == 0) {
+            return; // 開始通知を受け取る前に登録された場合
+        }
+        depth.put(phase, current - 1);
+        if (current == 1) {
+            totalNanos.put(phase, totalNanos.get(phase) + System.nanoTime() - startedNanos.get(phase));
+        }
+        if (phase == Phase.GENERATE) {
+            generatedClasses++;
+        } else if (phase == Phase.PARSE) {
+            parsedFiles++;
+        }
+    }
+
+    /**
+     * 別の計測結果を加算します（複数回のjavacタスクからなるコンパイルの合計を求める場合に使用します）。
+     * @param other 加算する計測結果
+     */
+    public void add(CompilePhaseTimings other) {
+        for (Phase phase : Phase.values()) {
+            totalNanos.put(phase, totalNanos.get(phase) + other.totalNanos.get(phase));
+        }
+        generatedClasses += other.generatedClasses;
+        parsedFiles += other.parsedFiles;
+    }
+
+    /**
+     * フェーズの所要時間を返します。
+     * @param phase フェーズ
+     * @return 所要時間（ナノ秒）
+     */
+    public long getNanos(Phase phase) {
+        return totalNanos.get(phase);
+    }
+
+    /**
+     * フェーズの所要時間をミリ秒で返します（テンプレートでの表示用）。
+     * @param phase フェーズの名前（例: "ANALYZE"）
+     * @return 所要時間（ミリ秒）
+     */
+    public long getMillis(String phase) {
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos.get(Phase.valueOf(phase)));
+    }
+
+    /**
+     * 最も時間のかかったフェーズを返します。
+     * @return フェーズ
+     */
+    public Phase getDominantPhase() {
+        Phase dominant = Phase.PARSE;
+        for (Phase phase : Phase.values()) {
+            if (totalNanos.get(phase) > totalNanos.get(dominant)) {
+                dominant = phase;
+            }
+        }
+        return dominant;
+    }
+
+    /**
+     * 生成されたクラスの数を返します。
+     * @return 生成されたクラスの数（内部クラス・匿名クラスを含む）
+     */
+    public int getGeneratedClasses() {
+        return generatedClasses;
+    }
+
+    /**
+     * 構文解析されたソースファイルの数を返します。
+     * @return ソースファイルの数
+     */
+    public int getParsedFiles() {
+        return parsedFiles;
+    }
+
+    /**
+     * JSON応答に含める形式に変換します。
+     * @return 項目名 → 値のマップ（フェーズごとの時間はミリ秒、小数点以下3桁）
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            map.put(phase.getWireName() + "Millis", Math.round(totalNanos.get(phase) / 1_000.0) / 1_000.0);
+        }
+        map.put("dominantPhase", getDominantPhase().getWireName());
+        map.put("parsedFiles", parsedFiles);
+        map.put("generatedClasses", generatedClasses);
+        return map;
+    }
+}
@@ -0,0 +1,111 @@
+package tech.nagatani.dev;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * コンパイラの診断メッセージ（エラーや警告）1件を構造化して保持するクラス。
+ * 文字列の診断メッセージ（{@link CompilationResult#getDiagnostics()}）と異なり、
+ * 種類・行・列を個別に参照できるため、JSON API でそのまま返すことができます。
+ */
+public class CompilerDiagnostic {
+    private final String kind; // 診断の種類（ERROR, WARNING, NOTE など）
+    private final String source; // 診断の対象となったソースの名前（不明な場合はnull）
+    private final long line; // 行番号（1始まり、不明な場合は-1）
+    private final long column; // 列番号（1始まり、不明な場合は-1）
+    private final String message; // 診断メッセージ
+
+    /**
+     * 新しい診断メッセージを構築します。
+     * @param kind 診断の種類
+     * @param source 対象のソースの名前（不明な場合はnull）
+     * @param line 行番号（不明な場合は-1）
+     * @param column 列番号（不明な場合は-1）
+     * @param message 診断メッセージ
+     */
+    public CompilerDiagnostic(String kind, String source, long line, long column, String message) {
+        this.kind = kind;
+        this.source = source;
+        this.line = line;
+        this.column = column;
+        this.message = message;
+    }
+
+    /**
+     * javacの {@link Diagnostic} から構築します。
+     * @param diagnostic javacの診断
+     * @return 構造化された診断メッセージ
+     */
+    public static CompilerDiagnostic from(Diagnostic<? extends JavaFileObject> diagnostic) {
+        return new CompilerDiagnostic(
+            diagnostic.getKind().name(),
+            diagnostic.getSource() != null ? diagnostic.getSource().getName() : null,
+            diagnostic.getLineNumber(),
+            diagnostic.getColumnNumber(),
+            diagnostic.getMessage(null)); // nullはデフォルトロケールを使用
+    }
+
+    /**
+     * 従来の文字列形式（{@link CompilationResult#getDiagnostics()} の要素と同じ形式）に変換します。
+     * @return 診断メッセージの文字列
+     */
+    public String format() {
+        return String.format("種類: %s, ソース: %s, 行: %d, メッセージ: %s", kind, source != null ? source : "N/A", line, message);
+    }
+
+    /**
+     * JSON API の応答に含めるためのマップ（kind, source, line, column, message）に変換します。
+     * @return 項目名 → 値のマップ
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("kind", kind);
+        map.put("source", source);
+        map.put("line", line);
+        map.put("column", column);
+        map.put("message", message);
+        return map;
+    }
+
+    /**
+     * 診断の種類を返します。
+     * @return 診断の種類（ERROR, WARNING, NOTE など）
+     */
+    public String getKind() {
+        return kind;
+    }
+
+    /**
+     * 診断の対象となったソースの名前を返します。
+     * @return ソースの名前。不明な場合はnull。
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * 行番号を返します。
+     * @return 行番号（1始まり）。不明な場合は-1。
+     */
+    public long getLine() {
+        return line;
+    }
+
+    /**
+     * 列番号を返します。
+     * @return 列番号（1始まり）。不明な場合は-1。
+     */
+    public long getColumn() {
+        return column;
+    }
+
+    /**
+     * 診断メッセージを返します。
+     * @return 診断メッセージ
+     */
+    public String getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,156 @@
+package tech.nagatani.dev;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ウォームアップ済みの {@link StandardJavaFileManager} を再利用するための上限付きプール。
+ * ファイルマネージャの作成時にはプラットフォームモジュールのオープンとインデックス作成が行われるため、
+ * コンパイルごとに作成するとその処理がレイテンシの大半を占めます。
+ * このプールはコンパイルごとにマネージャを貸し出し（リース）、返却時にリセットして再利用します。
+ * 同時に貸し出せる数は設定されたプールサイズで制限され、ファイルハンドルのリークを防ぎます。
+ */
+@Component
+public class CompilerFileManagerPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompilerFileManagerPool.class);
+    // 貸し出しと返却はコンパイルごとに行われるため、警告は件数を制限して出力する
+    private static final RateLimitedLogger RATE_LIMITED_LOG = new RateLimitedLogger(LOG, 20, 10, TimeUnit.SECONDS);
+
+    private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    private final int poolSize; // 同時に貸し出せるファイルマネージャの最大数
+    private final Semaphore permits; // 貸し出し数を制限するセマフォ
+    // 返却済みで再利用可能なファイルマネージャ（最近使われたものから再利用するため両端キューを使用）
+    private final ConcurrentLinkedDeque<StandardJavaFileManager> idleManagers = new ConcurrentLinkedDeque<>();
+
+    /**
+     * プールを構築します。
+     * @param configuredSize 設定されたプールサイズ（{@code compiler.file-manager-pool.size}）。0以下の場合はCPUコア数を使用します。
+     * @param warmupCount 起動時に事前作成するファイルマネージャの数（{@code compiler.file-manager-pool.warmup}）。
+     */
+    public CompilerFileManagerPool(@Value("${compiler.file-manager-pool.size:0}") int configuredSize,
+                                   @Value("${compiler.file-manager-pool.warmup:1}") int warmupCount) {
+        this.poolSize = configuredSize > 0 ? configuredSize : Runtime.getRuntime().availableProcessors();
+        this.permits = new Semaphore(poolSize, true); // 公平モードで待機順に貸し出す
+        // 起動時に指定数のマネージャを作成・ウォームアップしておき、最初のコンパイルの遅延を減らす
+        for (int i = 0; i < Math.min(warmupCount, poolSize); i++) {
+            idleManagers.push(createManager());
+        }
+        LOG.info("ファイルマネージャプールを初期化しました (サイズ: {}, ウォームアップ済み: {})", poolSize, idleManagers.size());
+    }
+
+    /**
+     * ファイルマネージャを1つ貸し出します。プールが上限に達している場合は返却されるまで待機します。
+     * 使用後は必ず {@link #release(StandardJavaFileManager, boolean)} で返却してください。
+     * @return 貸し出されたファイルマネージャ
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    public StandardJavaFileManager lease() throws InterruptedException {
+        permits.acquire();
+        try {
+            StandardJavaFileManager fileManager = idleManagers.pollFirst();
+            return fileManager != null ? fileManager : createManager();
+        } catch (RuntimeException e) {
+            permits.release(); // 作成に失敗した場合は許可を戻す
+            throw e;
+        }
+    }
+
+    /**
+     * 貸し出したファイルマネージャを返却します。
+     * 正常に使用された場合はリセットしてプールに戻し、異常があった場合は閉じて破棄します。
+     * @param fileManager 返却するファイルマネージャ。nullの場合は許可のみ返却します。
+     * @param reusable 再利用可能な場合はtrue。コンパイラ内部で例外が発生した場合などはfalse。
+     */
+    public void release(StandardJavaFileManager fileManager, boolean reusable) {
+        try {
+            if (fileManager == null) {
+                return;
+            }
+            if (reusable) {
+                try {
+                    fileManager.flush(); // 前回のタスクの出力をフラッシュしてリセット
+                    idleManagers.push(fileManager);
+                    return;
+                } catch (IOException e) {
+                    RATE_LIMITED_LOG.warn("ファイルマネージャのリセットに失敗したため破棄します: {}", e.getMessage());
+                }
+            }
+            closeQuietly(fileManager);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * プールの最大サイズを返します。
+     * @return 同時に貸し出せるファイルマネージャの最大数
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * 現在プール内で待機している（再利用可能な）ファイルマネージャの数を返します。
+     * @return アイドル状態のファイルマネージャ数
+     */
+    public int getIdleCount() {
+        return idleManagers.size();
+    }
+
+    /**
+     * アプリケーション終了時に、プール内のすべてのファイルマネージャを閉じます。
+     */
+    @PreDestroy
+    public void close() {
+        StandardJavaFileManager fileManager;
+        while ((fileManager = idleManagers.pollFirst()) != null) {
+            closeQuietly(fileManager);
+        }
+    }
+
+    /**
+     * 新しい標準ファイルマネージャを作成し、ウォームアップします。
+     * ユーザーコードのコンパイルにサーバー自身のクラスパスは不要なため、クラスパスを空に設定します。
+     * これにより、タスクごとにサーバーの依存JARを走査するコストも避けられます。
+     * @return ウォームアップ済みのファイルマネージャ
+     */
+    private StandardJavaFileManager createManager() {
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+        try {
+            fileManager.setLocation(StandardLocation.CLASS_PATH, Collections.emptyList());
+            // java.lang パッケージを一覧してプラットフォームモジュールのオープンとインデックス作成を先に済ませる
+            fileManager.list(StandardLocation.PLATFORM_CLASS_PATH, "java.lang", EnumSet.of(JavaFileObject.Kind.CLASS), false);
+        } catch (IOException e) {
+            RATE_LIMITED_LOG.warn("ファイルマネージャのウォームアップに失敗しました: {}", e.getMessage());
+        }
+        return fileManager;
+    }
+
+    /**
+     * ファイルマネージャを閉じます。失敗しても例外はスローしません。
+     * @param fileManager 閉じるファイルマネージャ
+     */
+    private void closeQuietly(StandardJavaFileManager fileManager) {
+        try {
+            fileManager.close();
+        } catch (IOException e) {
+            RATE_LIMITED_LOG.warn("ファイルマネージャのクローズに失敗しました: {}", e.getMessage());
+        }
+    }
+}
@@ -1,24 +1,38 @@
 package tech.nagatani.dev;
 
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskListener;
+
 import javax.tools.*;
 import java.io.*;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileAttribute;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.concurrent.TimeUnit; // タイムアウト用に追加
-// import java.nio.charset.StandardCharsets; // UTF-8ストリーム読み取り用に追加 (前のステップで削除された)
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // プロセス管理とWebSocket連携のための新しいインポート
+import tech.nagatani.dev.metrics.PipelineMetrics;
+import tech.nagatani.dev.service.ExecutionWatchdog;
 import tech.nagatani.dev.service.InteractiveProcessManager;
-import tech.nagatani.dev.websocket.ExecutionWebSocketHandler;
+import tech.nagatani.dev.websocket.OutputChannel;
+import tech.nagatani.dev.worker.ChildJvmLauncher;
+import tech.nagatani.dev.worker.LaunchProfile;
+import tech.nagatani.dev.worker.WorkerPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component; // Springコンポーネントとして追加
 
 /**
@@ -27,10 +41,23 @@ import org.springframework.stereotype.Component; // Springコンポーネント
  */
 @Component // Spring @Componentアノテーション追加
 public class DynamicCompiler {
+    private static final Logger LOG = LoggerFactory.getLogger(DynamicCompiler.class);
+    // 実行ごとに発生しうる警告（出力の読み取りエラーなど）は件数を制限して出力する
+    private static final RateLimitedLogger RATE_LIMITED_LOG = new RateLimitedLogger(LOG, 20, 10, TimeUnit.SECONDS);
     private static final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
     // publicクラス名（final修飾子があってもなくても）を抽出するための正規表現パターン
     // 例: "public class MyClass", "public final class MyOtherClass"
     private static final Pattern PUBLIC_CLASS_NAME_PATTERN = Pattern.compile("public\\s+(?:final\\s+)?class\\s+([A-Za-z_][A-Za-z0-9_]*)\\s*");
+    // コンパイラオプション: ユーザーコードはアノテーションプロセッサを使わないため、プロセッサの探索を無効化する
+    private static final List<String> COMPILER_OPTIONS = Collections.singletonList("-proc:none");
+    // 子プロセスの出力を1回に読み取る最大バイト数
+    private static final int OUTPUT_READ_BUFFER_SIZE = 8192;
+
+    private final CompilerFileManagerPool fileManagerPool; // 再利用されるファイルマネージャのプール
+    private final WorkerPool workerPool; // 事前起動されたワーカーJVMのプール
+    private final ChildJvmLauncher launcher; // 子JVMの起動コマンドを組み立てるランチャー
+    private final ExecutionWatchdog watchdog; // 実行ごとのリソースの上限を適用する監視サービス
+    private final PipelineMetrics metrics; // javacのフェーズごとの時間や、起動から最初の出力までの時間の記録先
 
     /**
      * ソースコードを文字列としてメモリ内でJavaFileObjectとして表現するためのカスタムクラス。
@@ -61,25 +88,224 @@ public class DynamicCompiler {
         }
     }
 
+    /**
+     * コンパイラが生成したクラスファイルをディスクではなくメモリ上のバイト配列に受け取るためのカスタムクラス。
+     */
+    static class ByteArrayJavaClassObject extends SimpleJavaFileObject {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(); // クラスファイルの書き込み先
+
+        /**
+         * 指定されたバイナリクラス名の出力先オブジェクトを構築します。
+         * @param className 生成されるクラスのバイナリ名（例: "Main$Inner"）
+         */
+        protected ByteArrayJavaClassObject(String className) {
+            super(URI.create("mem:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+        }
+
+        /**
+         * コンパイラがクラスファイルを書き込むための出力ストリームを返します。
+         * @return メモリ上のバッファに書き込む出力ストリーム
+         */
+        @Override
+        public OutputStream openOutputStream() {
+            return bytes;
+        }
+
+        /**
+         * 書き込まれたクラスファイルのバイト列を返します。
+         * @return クラスファイルのバイト列
+         */
+        byte[] getBytes() {
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * コンパイラにクラスパス上のクラスファイルとして読み込ませる、メモリ上のクラスファイル。
+     */
+    static class MemoryClassInput extends SimpleJavaFileObject {
+        private final String binaryName; // バイナリクラス名（例: "com.example.Helper"）
+        private final byte[] bytes; // クラスファイルのバイト列
+
+        /**
+         * 指定されたクラスファイルを表すオブジェクトを構築します。
+         * @param binaryName バイナリクラス名
+         * @param bytes クラスファイルのバイト列
+         */
+        MemoryClassInput(String binaryName, byte[] bytes) {
+            super(URI.create("mem:///" + binaryName.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+            this.binaryName = binaryName;
+            this.bytes = bytes;
+        }
+
+        /**
+         * クラスファイルのバイト列を読み込む入力ストリームを返します。
+         */
+        @Override
+        public InputStream openInputStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        String getBinaryName() {
+            return binaryName;
+        }
+
+        String getPackageName() {
+            int lastDot = binaryName.lastIndexOf('.');
+            return lastDot < 0 ? "" : binaryName.substring(0, lastDot);
+        }
+    }
+
+    /**
+     * クラスファイルの出力をすべてメモリ上に捕捉する {@link ForwardingJavaFileManager}。
+     * ソースの読み込みやプラットフォームクラスの解決は委譲先の標準ファイルマネージャが行い、
+     * 出力先だけを {@link ByteArrayJavaClassObject} に差し替えます。これにより一時ディレクトリへの書き込みが不要になります。
+     */
+    static class InMemoryClassFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        // 生成順を保持するため LinkedHashMap を使用（キーはバイナリクラス名）
+        private final Map<String, ByteArrayJavaClassObject> outputClasses = new LinkedHashMap<>();
+        // バイナリクラス名 → 生成元のソース（複数のソースをまとめてコンパイルした場合の振り分けに使用）
+        private final Map<String, FileObject> classSources = new HashMap<>();
+        // クラスパス上にあるものとしてコンパイラに見せる、メモリ上のクラスファイル（インクリメンタルコンパイルで再利用するクラス）
+        private final Map<String, MemoryClassInput> classPathClasses = new HashMap<>();
+
+        /**
+         * 指定された標準ファイルマネージャに委譲するインスタンスを構築します。
+         * @param fileManager 委譲先の標準ファイルマネージャ
+         */
+        protected InMemoryClassFileManager(StandardJavaFileManager fileManager) {
+            this(fileManager, Collections.emptyMap());
+        }
+
+        /**
+         * メモリ上のクラスファイルをクラスパスに追加したインスタンスを構築します。
+         * 追加されたクラスは、ソースの代わりにクラスファイルとして参照されます。
+         * @param fileManager 委譲先の標準ファイルマネージャ
+         * @param classPathClasses バイナリクラス名 → クラスファイルのバイト列
+         */
+        protected InMemoryClassFileManager(StandardJavaFileManager fileManager, Map<String, byte[]> classPathClasses) {
+            super(fileManager);
+            for (Map.Entry<String, byte[]> entry : classPathClasses.entrySet()) {
+                this.classPathClasses.put(entry.getKey(), new MemoryClassInput(entry.getKey(), entry.getValue()));
+            }
+        }
+
+        /**
+         * クラスパスの一覧に、メモリ上のクラスファイルのうち指定されたパッケージに属するものを加えます。
+         */
+        @Override
+        public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds,
+                                             boolean recurse) throws IOException {
+            Iterable<JavaFileObject> listed = super.list(location, packageName, kinds, recurse);
+            if (location != StandardLocation.CLASS_PATH || !kinds.contains(JavaFileObject.Kind.CLASS) || classPathClasses.isEmpty()) {
+                return listed;
+            }
+            List<JavaFileObject> result = new ArrayList<>();
+            listed.forEach(result::add);
+            for (MemoryClassInput classInput : classPathClasses.values()) {
+                String classPackage = classInput.getPackageName();
+                if (classPackage.equals(packageName) || (recurse && classPackage.startsWith(packageName + "."))) {
+                    result.add(classInput);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * メモリ上のクラスファイルについては、保持しているバイナリクラス名を返します。
+         */
+        @Override
+        public String inferBinaryName(Location location, JavaFileObject file) {
+            if (file instanceof MemoryClassInput) {
+                return ((MemoryClassInput) file).getBinaryName();
+            }
+            return super.inferBinaryName(location, file);
+        }
+
+        /**
+         * クラスファイルの出力先としてメモリ上のオブジェクトを返します。
+         * クラスファイル以外の出力は委譲先に任せます。
+         */
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                   JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+            if (kind == JavaFileObject.Kind.CLASS) {
+                ByteArrayJavaClassObject classObject = new ByteArrayJavaClassObject(className);
+                outputClasses.put(className, classObject);
+                classSources.put(className, sibling);
+                return classObject;
+            }
+            return super.getJavaFileForOutput(location, className, kind, sibling);
+        }
+
+        /**
+         * これまでに生成されたすべてのクラスファイルのバイト列を返します。
+         * @return バイナリクラス名 → バイト列のマップ
+         */
+        Map<String, byte[]> getClassBytes() {
+            Map<String, byte[]> result = new LinkedHashMap<>();
+            for (Map.Entry<String, ByteArrayJavaClassObject> entry : outputClasses.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().getBytes());
+            }
+            return result;
+        }
+
+        /**
+         * 指定されたソースから生成されたクラスファイルのバイト列を返します。
+         * @param source 生成元のソース
+         * @return バイナリクラス名 → バイト列のマップ
+         */
+        Map<String, byte[]> getClassBytes(FileObject source) {
+            Map<String, byte[]> result = new LinkedHashMap<>();
+            for (Map.Entry<String, ByteArrayJavaClassObject> entry : outputClasses.entrySet()) {
+                if (classSources.get(entry.getKey()) == source) {
+                    result.put(entry.getKey(), entry.getValue().getBytes());
+                }
+            }
+            return result;
+        }
+    }
+
     /**
      * DynamicCompilerの新しいインスタンスを作成します。
      * システムJavaコンパイラが利用可能かどうかを確認します。
+     * @param fileManagerPool コンパイルごとに貸し出されるファイルマネージャのプール
+     * @param workerPool プログラムの実行に使用する事前起動済みワーカーJVMのプール
+     * @param launcher ワーカーが使えない場合に子JVMの起動コマンドを組み立てるランチャー
+     * @param watchdog 実行ごとのリソースの上限を適用する監視サービス
+     * @param metrics パイプラインのメトリクス
      * @throws IllegalStateException Javaコンパイラが見つからない場合
      */
-    public DynamicCompiler() {
+    public DynamicCompiler(CompilerFileManagerPool fileManagerPool, WorkerPool workerPool, ChildJvmLauncher launcher,
+                           ExecutionWatchdog watchdog, PipelineMetrics metrics) {
+        this.fileManagerPool = fileManagerPool;
+        this.workerPool = workerPool;
+        this.launcher = launcher;
+        this.watchdog = watchdog;
+        this.metrics = metrics;
         if (compiler == null) {
-            System.err.println("コンパイラが見つかりません。このアプリケーションは機能できません。");
+            LOG.error("コンパイラが見つかりません。このアプリケーションは機能できません。");
             // Springコンテキストでより優雅に処理するか、例外をスローすることを検討
             throw new IllegalStateException("Javaコンパイラが利用できません。JDKがインストールされ、正しく設定されていることを確認してください。");
         }
     }
 
+    /**
+     * コンパイル時に使用されるコンパイラオプションを返します。
+     * コンパイルキャッシュのキーの一部として使用されます。
+     * @return 変更不可のコンパイラオプションのリスト
+     */
+    public List<String> getCompilerOptions() {
+        return COMPILER_OPTIONS;
+    }
+
     /**
      * 提供されたソースコード文字列からpublicクラス名を抽出します。
+     * パッケージプライベートなのは、ベンチマーク（src/jmh/java）から直接呼び出すためです。
      * @param sourceCode 抽出元のJavaソースコード
      * @return 抽出されたpublicクラス名。見つからない場合やソースコードが無効な場合はnull。
      */
-    private String extractPublicClassName(String sourceCode) {
+    String extractPublicClassName(String sourceCode) {
         // ソースコードがnullまたは空の場合は処理しない
         if (sourceCode == null || sourceCode.trim().isEmpty()) {
             return null;
@@ -96,203 +322,497 @@ public class DynamicCompiler {
 
     /**
      * 指定されたJavaソースコードをコンパイルします。
+     * ファイルマネージャは {@link CompilerFileManagerPool} から借用され、コンパイル後に返却されます。
+     * コンパイルは完全にメモリ内で行われ、クラスファイルは一時ディレクトリではなく
+     * {@link CompilationResult#getClassBytes()} にバイト列として格納されます。
      * コンパイル結果には、成功ステータス、診断メッセージ（エラーや警告）、
-     * 抽出されたクラス名、およびコンパイルされたコード（クラスファイル）へのパスが含まれます。
+     * 抽出されたクラス名、およびコンパイルされたクラスファイルのバイト列が含まれます。
      *
      * @param sourceCode コンパイルするJavaソースコード文字列。
      * @return コンパイル結果を含む {@link CompilationResult} オブジェクト。
      */
     public CompilationResult compileToJar(String sourceCode) {
-        // 診断情報（コンパイルエラーなど）を収集するためのコレクタ
-        DiagnosticCollector<JavaFileObject> diagnosticsCollector = new DiagnosticCollector<>();
-        List<String> diagnosticMessages = new ArrayList<>(); // 診断メッセージを格納するリスト
-        Path tempDir = null; // コンパイルされたクラスファイル用の一時ディレクトリ
         String className = extractPublicClassName(sourceCode); // ソースコードからクラス名を抽出
 
         // クラス名が抽出できなかった場合、エラーとして処理
         if (className == null || className.trim().isEmpty()) {
-            diagnosticMessages.add("エラー: publicクラスが見つからないか、クラス名が無効です（例: 'public class MyClass {...}'）。");
-            return new CompilationResult(false, diagnosticMessages, null, null, sourceCode);
+            return missingClassNameResult(sourceCode);
         }
 
-        try {
-            // コンパイルされたクラスファイル用の一時ディレクトリを作成
-            tempDir = Files.createTempDirectory("java-compile-");
-
-            // メモリ内のソースコードを表すJavaFileObjectを作成
-            JavaFileObject sourceFile = new StringSourceJavaObject(className, sourceCode);
-            // コンパイル単位のリスト（この場合は単一ファイル）
-            Iterable<? extends JavaFileObject> compilationUnits = Collections.singletonList(sourceFile);
-            
-            // コンパイラオプション: -d はクラスファイルの出力ディレクトリを指定します
-            Iterable<String> options = Arrays.asList("-d", tempDir.toString());
-
-            // 標準ファイルマネージャを取得
-            StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnosticsCollector, null, null);
-            // コンパイルタスクを作成
-            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnosticsCollector, options, null, compilationUnits);
-            boolean success = task.call(); // コンパイルを実行
-
-            // 診断情報を処理してメッセージリストに追加
-            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnosticsCollector.getDiagnostics()) {
-                diagnosticMessages.add(String.format("種類: %s, ソース: %s, 行: %d, メッセージ: %s",
-                    diagnostic.getKind(),
-                    diagnostic.getSource() != null ? diagnostic.getSource().getName() : "N/A",
-                    diagnostic.getLineNumber(),
-                    diagnostic.getMessage(null))); // nullはデフォルトロケールを使用
+        // メモリ内のソースコードを表すJavaFileObjectを作成
+        JavaFileObject sourceFile = new StringSourceJavaObject(className, sourceCode);
+        // コンパイル単位のリスト（この場合は単一ファイル）
+        TaskOutcome outcome = runCompilationTask(Collections.singletonList(sourceFile));
+        if (outcome == null) {
+            List<String> diagnosticMessages = new ArrayList<>();
+            diagnosticMessages.add("致命的エラー: ファイルマネージャの取得待機中に割り込みが発生しました。");
+            return new CompilationResult(false, diagnosticMessages, className, null, sourceCode).markTransientFailure();
+        }
+
+        // 診断情報を処理してメッセージリストに追加
+        List<CompilerDiagnostic> diagnostics = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : outcome.diagnostics) {
+            diagnostics.add(CompilerDiagnostic.from(diagnostic));
+        }
+
+        if (outcome.success) {
+            Map<String, byte[]> classBytes = outcome.fileManager.getClassBytes();
+            LOG.debug("{}: コンパイル成功。メモリ内に {} 個のクラスを生成しました。", className, classBytes.size());
+            // クラスファイルはメモリ上に保持され、ディレクトリが必要になった時点で書き出されます。
+            CompilationResult result = new CompilationResult(true, formatDiagnostics(diagnostics), diagnostics, className, classBytes, sourceCode);
+            result.setPhaseTimings(outcome.phaseTimings);
+            return result;
+        } else {
+            LOG.debug("{}: コンパイル失敗。", className);
+            CompilationResult result = new CompilationResult(false, formatDiagnostics(diagnostics), diagnostics, className, null, sourceCode);
+            result.setPhaseTimings(outcome.phaseTimings);
+            return result;
+        }
+    }
+
+    /**
+     * 複数のソースコードを1つのjavacタスクでまとめてコンパイルします。
+     * コンパイラの初期化や標準ライブラリのシンボル読み込みがソース間で共有されるため、個別にコンパイルするより高速です。
+     * 生成されたクラスファイルと診断メッセージは、生成元のソースごとに振り分けて返されます。
+     * <p>
+     * 呼び出し側は、ソース間で型名が衝突せず、互いの型を参照しないことを保証する必要があります
+     * （参照があると、単独ではコンパイルできないソースが成功してしまうため）。
+     * javacはどれか1つのソースにエラーがあるとクラスファイルを生成しないため、タスク全体が失敗した場合、
+     * 自身にエラーのないソースの結果は判定できず {@code null} になります。それらは個別に再コンパイルしてください。
+     *
+     * @param sourceCodes コンパイルするJavaソースコードのリスト
+     * @return 入力と同じ順序のコンパイル結果のリスト。判定できなかったソースの要素は {@code null}。
+     */
+    public List<CompilationResult> compileTogether(List<String> sourceCodes) {
+        List<CompilationResult> results = new ArrayList<>(Collections.nCopies(sourceCodes.size(), null));
+        List<JavaFileObject> compilationUnits = new ArrayList<>();
+        Map<JavaFileObject, Integer> indexBySource = new HashMap<>();
+        Map<JavaFileObject, String> classNameBySource = new HashMap<>();
+        for (int i = 0; i < sourceCodes.size(); i++) {
+            String className = extractPublicClassName(sourceCodes.get(i));
+            if (className == null || className.trim().isEmpty()) {
+                results.set(i, missingClassNameResult(sourceCodes.get(i)));
+                continue;
             }
+            JavaFileObject sourceFile = new StringSourceJavaObject(className, sourceCodes.get(i));
+            compilationUnits.add(sourceFile);
+            indexBySource.put(sourceFile, i);
+            classNameBySource.put(sourceFile, className);
+        }
+        if (compilationUnits.isEmpty()) {
+            return results;
+        }
+
+        TaskOutcome outcome = runCompilationTask(compilationUnits);
+        if (outcome == null) {
+            return results; // 割り込まれた場合は判定不能として呼び出し側に任せる
+        }
 
-            if (success) {
-                System.out.println(className + ": コンパイル成功。出力先: " + tempDir);
-                // ここではtempDirを削除しない。実行に必要です。
-                // 実行が完全に終了した後にクリーンアップされるべきです。
-                return new CompilationResult(true, diagnosticMessages, className, tempDir, sourceCode);
+        // 診断メッセージを生成元のソースごとに振り分ける（ソース不明の診断は全員に付ける）
+        Map<JavaFileObject, List<CompilerDiagnostic>> diagnosticsBySource = new HashMap<>();
+        List<CompilerDiagnostic> unattributed = new ArrayList<>();
+        Map<JavaFileObject, Boolean> hasError = new HashMap<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : outcome.diagnostics) {
+            JavaFileObject source = diagnostic.getSource();
+            if (source != null && indexBySource.containsKey(source)) {
+                diagnosticsBySource.computeIfAbsent(source, key -> new ArrayList<>()).add(CompilerDiagnostic.from(diagnostic));
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                    hasError.put(source, true);
+                }
             } else {
-                System.out.println(className + ": コンパイル失敗。");
-                deleteTempDirectory(tempDir); // コンパイル失敗時は一時ディレクトリをクリーンアップ
-                return new CompilationResult(false, diagnosticMessages, className, null, sourceCode);
+                unattributed.add(CompilerDiagnostic.from(diagnostic));
             }
-        } catch (IOException e) {
-            diagnosticMessages.add("致命的エラー: 一時ディレクトリの作成またはファイル管理ができませんでした - " + e.getMessage());
-            if (tempDir != null) {
-                deleteTempDirectory(tempDir); // エラー時にもクリーンアップを試行
+        }
+
+        for (JavaFileObject sourceFile : compilationUnits) {
+            int index = indexBySource.get(sourceFile);
+            List<CompilerDiagnostic> diagnostics = new ArrayList<>(unattributed);
+            diagnostics.addAll(diagnosticsBySource.getOrDefault(sourceFile, Collections.emptyList()));
+            String className = classNameBySource.get(sourceFile);
+            if (outcome.success) {
+                results.set(index, new CompilationResult(true, formatDiagnostics(diagnostics), diagnostics, className,
+                        outcome.fileManager.getClassBytes(sourceFile), sourceCodes.get(index)));
+            } else if (hasError.containsKey(sourceFile)) {
+                results.set(index, new CompilationResult(false, formatDiagnostics(diagnostics), diagnostics, className, null, sourceCodes.get(index)));
+            }
+            // 自身にエラーのないソースは、他のソースのエラーのために生成されなかっただけなので null のまま
+        }
+        LOG.debug("{} 個のソースを1つのタスクでコンパイルしました (結果: {})", compilationUnits.size(), outcome.success ? "成功" : "失敗");
+        return results;
+    }
+
+    /**
+     * 複数のファイル（パッケージを含む）からなるプロジェクトを1つのjavacタスクでコンパイルします。
+     * ファイル同士は互いの型を参照でき、生成されたすべてのクラスファイルが1つの {@link CompilationResult} に格納されます。
+     * 実行するメインクラスは {@code mainClass} で指定でき（完全修飾名または単純名）、
+     * 省略した場合はmainメソッドを宣言しているファイルのpublicな型が選ばれます。
+     * 結果の {@link CompilationResult#getSourceCode()} は、全ファイルのソースコードを連結したものになります。
+     *
+     * @param sourceUnits コンパイルするソースファイルのリスト
+     * @param mainClass 実行するメインクラスの名前。nullまたは空の場合は自動検出します。
+     * @return コンパイル結果。クラス名にはメインクラスの完全修飾名が格納されます。
+     */
+    public CompilationResult compileProject(List<SourceUnit> sourceUnits, String mainClass) {
+        StringBuilder combinedSource = new StringBuilder(); // 結果に格納する連結済みソース（GUIチェックなどに使用）
+        List<JavaFileObject> compilationUnits = new ArrayList<>();
+        Map<String, SourceUnit> unitsByPath = new LinkedHashMap<>();
+        for (int i = 0; i < sourceUnits.size(); i++) {
+            SourceUnit unit = sourceUnits.get(i);
+            String path = unit.getPathWithoutExtension("Unit" + (i + 1));
+            if (unitsByPath.putIfAbsent(path, unit) != null) {
+                return projectFailure("ファイル名が重複しています: " + path + ".java", null, combinedSource.toString());
+            }
+            combinedSource.append("// ").append(path).append(".java\n").append(unit.getSourceCode()).append('\n');
+            // StringSourceJavaObject はクラス名の "." を "/" に変換してURIを作るため、パスを "." 区切りにして渡す
+            compilationUnits.add(new StringSourceJavaObject(path.replace('/', '.'), unit.getSourceCode()));
+        }
+        if (compilationUnits.isEmpty()) {
+            return projectFailure("ソースファイルがありません。", null, "");
+        }
+
+        String mainClassName = resolveMainClass(sourceUnits, mainClass);
+        if (mainClassName == null) {
+            String message = mainClass != null && !mainClass.trim().isEmpty()
+                ? "指定されたメインクラスが見つかりません: " + mainClass.trim()
+                : "mainメソッドを持つpublicクラスが1つに決まりません。メインクラスを指定してください。";
+            return projectFailure(message, null, combinedSource.toString());
+        }
+
+        TaskOutcome outcome = runCompilationTask(compilationUnits);
+        if (outcome == null) {
+            return projectFailure("致命的エラー: ファイルマネージャの取得待機中に割り込みが発生しました。", mainClassName, combinedSource.toString())
+                .markTransientFailure();
+        }
+        List<CompilerDiagnostic> diagnostics = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : outcome.diagnostics) {
+            diagnostics.add(CompilerDiagnostic.from(diagnostic));
+        }
+        if (!outcome.success) {
+            LOG.debug("{}: プロジェクト ({} ファイル) のコンパイル失敗。", mainClassName, compilationUnits.size());
+            CompilationResult result = new CompilationResult(false, formatDiagnostics(diagnostics), diagnostics, mainClassName, null, combinedSource.toString());
+            result.setPhaseTimings(outcome.phaseTimings);
+            return result;
+        }
+        Map<String, byte[]> classBytes = outcome.fileManager.getClassBytes();
+        if (!classBytes.containsKey(mainClassName)) {
+            // 単純名で指定されたが、ソースからは検出できなかった型（非publicな型など）を生成されたクラスから探す
+            String simpleName = mainClassName.substring(mainClassName.lastIndexOf('.') + 1);
+            mainClassName = classBytes.keySet().stream()
+                .filter(name -> name.equals(simpleName) || name.endsWith("." + simpleName))
+                .findFirst().orElse(null);
+            if (mainClassName == null) {
+                return projectFailure("指定されたメインクラスが見つかりません: " + simpleName, null, combinedSource.toString());
+            }
+        }
+        LOG.debug("{}: プロジェクト ({} ファイル) のコンパイル成功。メモリ内に {} 個のクラスを生成しました。", mainClassName, compilationUnits.size(), classBytes.size());
+        CompilationResult result = new CompilationResult(true, formatDiagnostics(diagnostics), diagnostics, mainClassName, classBytes, combinedSource.toString());
+        result.setPhaseTimings(outcome.phaseTimings);
+        return result;
+    }
+
+    /**
+     * プロジェクトのメインクラスの完全修飾名を決定します。
+     * 指定された名前に "." が含まれる場合は完全修飾名としてそのまま使用し、単純名の場合はその名前のpublicな型を持つファイルの
+     * パッケージを補います。省略された場合は、mainメソッドを宣言しているファイルがちょうど1つであればそのpublicな型を選びます。
+     * @param sourceUnits ソースファイルのリスト
+     * @param mainClass 指定されたメインクラスの名前（nullまたは空の場合は自動検出）
+     * @return メインクラスの完全修飾名。決定できない場合はnull。
+     */
+    String resolveMainClass(List<SourceUnit> sourceUnits, String mainClass) {
+        if (mainClass != null && !mainClass.trim().isEmpty()) {
+            String requested = mainClass.trim();
+            if (requested.contains(".")) {
+                return requested;
+            }
+            for (SourceUnit unit : sourceUnits) {
+                if (requested.equals(unit.getPublicTypeName())) {
+                    return qualify(unit.getPackageName(), requested);
+                }
+            }
+            return requested; // 非publicな型の可能性があるため、コンパイル後に生成されたクラスから探す
+        }
+        String found = null;
+        for (SourceUnit unit : sourceUnits) {
+            String typeName = unit.getPublicTypeName();
+            if (typeName != null && unit.declaresMainMethod()) {
+                if (found != null) {
+                    return null; // 候補が複数ある
+                }
+                found = qualify(unit.getPackageName(), typeName);
             }
-            return new CompilationResult(false, diagnosticMessages, className, null, sourceCode);
         }
-        // 注意: tempDir削除のための 'finally' ブロックはここからは削除されました。
-        // クリーンアップは現在、条件的またはInteractiveProcessManagerによって処理されます。
+        return found;
+    }
+
+    /**
+     * パッケージ名と単純名から完全修飾名を作ります。
+     */
+    private static String qualify(String packageName, String simpleName) {
+        return packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+    }
+
+    /**
+     * コンパイラを実行する前に検出されたプロジェクトのエラーに対する失敗結果を作成します。
+     */
+    CompilationResult projectFailure(String message, String className, String combinedSource) {
+        CompilerDiagnostic diagnostic = new CompilerDiagnostic(Diagnostic.Kind.ERROR.name(), null, -1, -1, message);
+        List<String> diagnosticMessages = new ArrayList<>();
+        diagnosticMessages.add("エラー: " + message);
+        return new CompilationResult(false, diagnosticMessages, Collections.singletonList(diagnostic), className, null, combinedSource);
+    }
+
+    /**
+     * 1回のjavacタスクの実行結果。
+     */
+    static class TaskOutcome {
+        final boolean success; // タスク全体が成功したかどうか
+        final List<Diagnostic<? extends JavaFileObject>> diagnostics; // 収集された診断
+        final InMemoryClassFileManager fileManager; // 生成されたクラスファイルを保持するマネージャ
+        final CompilePhaseTimings phaseTimings; // javacのフェーズごとの所要時間
+
+        TaskOutcome(boolean success, List<Diagnostic<? extends JavaFileObject>> diagnostics, InMemoryClassFileManager fileManager,
+                    CompilePhaseTimings phaseTimings) {
+            this.success = success;
+            this.diagnostics = diagnostics;
+            this.fileManager = fileManager;
+            this.phaseTimings = phaseTimings;
+        }
+    }
+
+    /**
+     * プールから借りたファイルマネージャで、指定されたコンパイル単位のjavacタスクを実行します。
+     * @param compilationUnits コンパイル単位のリスト
+     * @return タスクの実行結果。ファイルマネージャの取得待機中に割り込まれた場合はnull。
+     */
+    private TaskOutcome runCompilationTask(List<JavaFileObject> compilationUnits) {
+        return runCompilationTask(compilationUnits, Collections.emptyMap(), null);
+    }
+
+    /**
+     * プールから借りたファイルマネージャで、指定されたコンパイル単位のjavacタスクを実行します。
+     * {@code classPathClasses} のクラスはクラスパス上のクラスファイルとして参照され、再コンパイルされません。
+     * javacのフェーズごとの所要時間は常に計測し、結果に含めるとともにメトリクスに記録します。
+     * @param compilationUnits コンパイル単位のリスト
+     * @param classPathClasses クラスパスに追加するメモリ上のクラス（バイナリクラス名 → バイト列）
+     * @param taskListener タスクの各フェーズの通知を受け取るリスナー（不要な場合はnull）
+     * @return タスクの実行結果。ファイルマネージャの取得待機中に割り込まれた場合はnull。
+     */
+    TaskOutcome runCompilationTask(List<JavaFileObject> compilationUnits, Map<String, byte[]> classPathClasses, TaskListener taskListener) {
+        // 診断情報（コンパイルエラーなど）を収集するためのコレクタ
+        DiagnosticCollector<JavaFileObject> diagnosticsCollector = new DiagnosticCollector<>();
+
+        // プールからウォームアップ済みの標準ファイルマネージャを借り、クラスファイルの出力をメモリに捕捉するマネージャでラップ
+        StandardJavaFileManager standardFileManager;
+        try {
+            standardFileManager = fileManagerPool.lease();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // スレッドの割り込み状態を再設定
+            return null;
+        }
+        InMemoryClassFileManager fileManager = new InMemoryClassFileManager(standardFileManager, classPathClasses);
+        CompilePhaseTimings phaseTimings = new CompilePhaseTimings();
+        boolean success;
+        boolean reusable = false; // コンパイラ内部で例外が発生した場合はファイルマネージャを再利用しない
+        try {
+            // コンパイルタスクを作成（出力先はファイルマネージャが決めるため -d オプションは不要）
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnosticsCollector, COMPILER_OPTIONS, null, compilationUnits);
+            ((JavacTask) task).addTaskListener(phaseTimings);
+            if (taskListener != null) {
+                ((JavacTask) task).addTaskListener(taskListener);
+            }
+            success = task.call(); // コンパイルを実行
+            reusable = true;
+        } finally {
+            // ラッパーは閉じず（委譲先が閉じられてしまうため）、標準ファイルマネージャのみプールに返却
+            fileManagerPool.release(standardFileManager, reusable);
+        }
+        metrics.recordCompilePhases(phaseTimings);
+        return new TaskOutcome(success, diagnosticsCollector.getDiagnostics(), fileManager, phaseTimings);
+    }
+
+    /**
+     * publicクラスが見つからないソースに対する失敗結果を作成します。
+     * @param sourceCode 対象のソースコード
+     * @return コンパイル失敗の {@link CompilationResult}
+     */
+    private CompilationResult missingClassNameResult(String sourceCode) {
+        CompilerDiagnostic diagnostic = new CompilerDiagnostic(Diagnostic.Kind.ERROR.name(), null, -1, -1,
+                "publicクラスが見つからないか、クラス名が無効です（例: 'public class MyClass {...}'）。");
+        List<String> diagnosticMessages = new ArrayList<>();
+        diagnosticMessages.add("エラー: " + diagnostic.getMessage());
+        return new CompilationResult(false, diagnosticMessages, Collections.singletonList(diagnostic), null, null, sourceCode);
+    }
+
+    /**
+     * 構造化された診断メッセージを従来の文字列形式のリストに変換します。
+     * @param diagnostics 構造化された診断メッセージ
+     * @return 文字列形式の診断メッセージのリスト
+     */
+    static List<String> formatDiagnostics(List<CompilerDiagnostic> diagnostics) {
+        List<String> messages = new ArrayList<>();
+        for (CompilerDiagnostic diagnostic : diagnostics) {
+            messages.add(diagnostic.format());
+        }
+        return messages;
+    }
+
+    /**
+     * コンパイルされたJavaクラスを指定された実行IDでプロセスとして、既定の起動プロファイルで開始します。
+     * @param compilationResult 実行するコードの {@link CompilationResult}。
+     * @param executionId この特定の実行を識別する一意のID。
+     * @param processManager プロセスと関連リソースを管理する {@link InteractiveProcessManager}。
+     * @param outputSink 出力と終了報告の送信先（WebSocketハンドラやHTTPのストリーミング応答）。
+     * @see #startProcess(CompilationResult, String, InteractiveProcessManager, OutputSink, LaunchProfile)
+     */
+    public void startProcess(CompilationResult compilationResult, String executionId,
+                             InteractiveProcessManager processManager, OutputSink outputSink) {
+        startProcess(compilationResult, executionId, processManager, outputSink, null);
     }
 
     /**
      * コンパイルされたJavaクラスを指定された実行IDでプロセスとして開始します。
-     * プロセスの標準出力と標準エラー出力を読み取り、WebSocketを通じてクライアントに送信します。
-     * GUIアプリケーションが疑われる場合はタイムアウト処理を適用します。
+     * プロセスの標準出力と標準エラー出力を読み取り、{@link OutputSink}（WebSocketまたはHTTPのストリーミング応答）を通じてクライアントに送信します。
+     * すべての実行に {@link ExecutionWatchdog} による実時間・CPU時間・スレッド数・出力量の上限が適用され、
+     * 終了時には終了理由と使用したリソースを含む終了報告がクライアントに送信されます。
      *
-     * @param compilationResult 実行するコードの {@link CompilationResult}。コンパイル成功、クラス名、およびコードパスを含む必要があります。
+     * @param compilationResult 実行するコードの {@link CompilationResult}。コンパイル成功、クラス名、およびクラスファイルのバイト列を含む必要があります。
      * @param executionId この特定の実行を識別する一意のID。
      * @param processManager プロセスと関連リソースを管理する {@link InteractiveProcessManager}。
-     * @param webSocketHandler クライアントとのWebSocket通信を処理する {@link ExecutionWebSocketHandler}。
+     * @param outputSink 出力と終了報告の送信先（WebSocketハンドラやHTTPのストリーミング応答）。
+     * @param launchProfile 子JVMの起動プロファイル。nullの場合はサーバー設定の既定値。
      */
     public void startProcess(CompilationResult compilationResult, String executionId,
-                             InteractiveProcessManager processManager, ExecutionWebSocketHandler webSocketHandler) {
+                             InteractiveProcessManager processManager, OutputSink outputSink,
+                             LaunchProfile launchProfile) {
         // コンパイルが失敗しているか、必要な情報が欠けている場合はプロセスを開始できない
-        if (!compilationResult.isSuccess() || compilationResult.getCompiledCodePath() == null || compilationResult.getClassName() == null) {
-            System.err.println("実行ID " + executionId + " のコンパイル失敗または詳細不足のため、プロセスを開始できません。");
-            webSocketHandler.sendMessageToSession(executionId, "エラー: コンパイル失敗または詳細不足のため、プロセスを開始できません。");
+        if (!compilationResult.isSuccess() || compilationResult.getClassBytes().isEmpty() || compilationResult.getClassName() == null) {
+            LOG.warn("実行ID {} のコンパイル失敗または詳細不足のため、プロセスを開始できません。", executionId);
+            outputSink.sendMessageToSession(executionId, "エラー: コンパイル失敗または詳細不足のため、プロセスを開始できません。");
             return;
         }
 
         String className = compilationResult.getClassName();
-        Path tempDir = compilationResult.getCompiledCodePath(); // コンパイルされたクラスファイルがある一時ディレクトリ
         String sourceCode = compilationResult.getSourceCode(); // 元のソースコード（GUIチェックなどに使用）
+        Path tempDir = null; // コンパイルされたクラスファイルを書き出す一時ディレクトリ
 
+        long launchNanos = System.nanoTime(); // 起動から最初の出力までの時間の計測開始
         try {
-            // 子プロセス（コンパイルされたJavaコード）を起動するためのProcessBuilderを設定
-            // java -cp <一時ディレクトリ> <クラス名> を実行
-            ProcessBuilder processBuilder = new ProcessBuilder(
-                "java",
-                // "-Dfile.encoding=UTF-8", // 子プロセスのファイルエンコーディングをUTF-8に設定 (前のステップで削除された)
-                "-cp",
-                tempDir.toString(),
-                className
-            );
-            Process process = processBuilder.start(); // プロセスを開始
-
-            // GUIチェックとタイムアウトロジック
-            // ソースコードにSwingやAWTのインポートが含まれているかを確認
-            boolean isSuspectedGui = sourceCode.contains("import javax.swing.*;") || sourceCode.contains("import java.awt.*;");
+            // まず事前起動済みのワーカーJVMにクラスを送信して実行を試みる（JVMの起動時間を省略できる）
+            ChildJvmLauncher.ChildJvm leasedWorker = workerPool.lease(compilationResult, launchProfile);
+            ChildJvmLauncher.ChildJvm childJvm;
+            if (leasedWorker != null) {
+                childJvm = leasedWorker;
+                LOG.debug("実行ID {} は事前起動済みワーカー (PID: {}) で実行されます。", executionId, childJvm.getProcess().pid());
+            } else {
+                // 利用可能なワーカーがない場合は新しいJVMを起動する
+                // 子プロセスはクラスパス上のディレクトリを必要とするため、ここで初めてクラスファイルを書き出す
+                tempDir = compilationResult.getOrCreateCompiledCodePath();
+                // 子プロセス（コンパイルされたJavaコード）を起動する
+                // <サーバーと同じJDKのjava> <プロファイルのフラグ> -cp <ブートストラップJAR>:<一時ディレクトリ> <クラス名> を実行
+                // （ブートストラップJARを先頭に置くのは、CDSアーカイブ作成時のクラスパスと前方一致させるため）
+                // （cgroup v2 が利用可能な場合は、JVMを exec する前に実行ごとのcgroupに入れる）
+                childJvm = launcher.start(launchProfile, Collections.singletonList(tempDir.toString()), className, executionId);
+            }
+            Process process = childJvm.getProcess();
+
+            // リソースの上限の監視を開始する（プロセスは起動時点ですでにcgroupに属している）
+            ExecutionWatchdog.Guard guard = watchdog.watch(executionId, process, childJvm.getCgroup());
+
+            // ソースコードにSwingやAWTのインポートが含まれている場合は、GUIが表示されないことを通知する
+            // （GUIアプリケーションも他のプログラムと同じく、実行時間などの上限に達した時点で終了する）
+            boolean isSuspectedGui = sourceCode.contains("import javax.swing.") || sourceCode.contains("import java.awt.");
             if (isSuspectedGui) {
-                System.out.println("実行ID " + executionId + " はGUIアプリケーションの可能性があります。");
-                boolean exited = false;
-                try {
-                    // 10秒間のタイムアウトを設定してプロセスの終了を待つ
-                    exited = process.waitFor(10, TimeUnit.SECONDS);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt(); // スレッドの割り込み状態を再設定
-                    System.err.println("実行ID " + executionId + " のタイムアウト待機が中断されました: " + e.getMessage());
-                    // プロセスはonExitまたはクリーンアップによって処理されます
-                }
+                LOG.debug("実行ID {} はGUIアプリケーションの可能性があります。", executionId);
+                outputSink.sendMessageToSession(executionId, "情報: これはGUIアプリケーションのようです。GUIの表示はサポートされていないため、ウィンドウは表示されません。");
+            }
 
-                // プロセスがタイムアウト期間内に終了しなかった場合
-                if (!exited) {
-                    webSocketHandler.sendMessageToSession(executionId, "情報: これはGUIアプリケーションまたは長時間実行されるプロセスのようです。完全なGUI/長時間プロセスのエミュレーションはまだサポートされていないため、10秒のタイムアウト後に終了しました。");
-                    process.destroyForcibly(); // プロセスを強制終了
-                    System.out.println("実行ID " + executionId + " のGUIアプリケーション/長時間実行プロセスがタイムアウトし、破棄されました。");
-                    // 以下で開始されるI/Oスレッドはストリームが閉じられていることを見つけます。
-                    // process.onExit() はそれでも発火します。
+            // 標準出力と標準エラー出力のうち、最初に届いた出力までの時間を記録する
+            boolean pooledWorker = leasedWorker != null;
+            AtomicBoolean firstOutputSeen = new AtomicBoolean();
+            Runnable onFirstOutput = () -> {
+                if (firstOutputSeen.compareAndSet(false, true)) {
+                    metrics.recordFirstOutput(pooledWorker, System.nanoTime() - launchNanos);
                 }
-            }
-            
+            };
+
             // 標準出力を読み取るスレッド - プロセスが生存しているか、タイムアウトチェックから正常に終了した場合のみ進行
             // プロセスが破棄された場合、これらのスレッドは開始され、ストリームが閉じられていることを見つけて終了します。
-            Thread outputThread = new Thread(() -> {
-                // プロセスの標準出力を読み取る (デフォルトの文字セットを使用)
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        // System.out.println("サーバープロセス STDOUT読み取り: " + line); // ログ出力は前のステップで削除された
-                        webSocketHandler.sendMessageToSession(executionId, line); // WebSocket経由でクライアントに送信
-                    }
-                } catch (IOException e) {
-                    // ストリームが閉じられたことによる一般的なエラーは無視
-                    if (!e.getMessage().toLowerCase().contains("stream closed")) {
-                         System.err.println("実行ID " + executionId + " の出力ストリームリーダーでのIOException: " + e.getMessage());
-                    }
-                } finally {
-                    System.out.println("実行ID " + executionId + " の出力ストリームリーダーが終了しました。");
-                }
-            });
-            outputThread.setName("stdout-reader-" + executionId); // スレッドに名前を設定
-
-            // 標準エラー出力を読み取るスレッド
-            Thread errorThread = new Thread(() -> {
-                // プロセスの標準エラー出力を読み取る (デフォルトの文字セットを使用)
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        // System.out.println("サーバープロセス STDERR読み取り: " + line); // ログ出力は前のステップで削除された
-                        webSocketHandler.sendMessageToSession(executionId, "ERROR: " + line); // エラーとしてクライアントに送信
-                    }
-                } catch (IOException e) {
-                    // ストリームが閉じられたことによる一般的なエラーは無視
-                     if (!e.getMessage().toLowerCase().contains("stream closed")) {
-                        System.err.println("実行ID " + executionId + " のエラーストリームリーダーでのIOException: " + e.getMessage());
-                     }
-                } finally {
-                    System.out.println("実行ID " + executionId + " のエラーストリームリーダーが終了しました。");
-                }
-            });
-            errorThread.setName("stderr-reader-" + executionId); // スレッドに名前を設定
-            
+            // 読み取りスレッドは仮想スレッドとして作成するため、読み取りでブロックしている間はキャリアスレッド（OSスレッド）を占有せず、
+            // 同時実行セッション数が増えてもOSスレッド数とスタック用メモリは増えません。
+            Thread outputThread = Thread.ofVirtual().name("stdout-reader-" + executionId).unstarted(() ->
+                pumpOutput(process.getInputStream(), OutputChannel.STDOUT, executionId, outputSink, guard, onFirstOutput, "出力ストリームリーダー"));
+
+            // 標準エラー出力を読み取るスレッド（標準出力とは別のチャネルとしてクライアントに送信）
+            Thread errorThread = Thread.ofVirtual().name("stderr-reader-" + executionId).unstarted(() ->
+                pumpOutput(process.getErrorStream(), OutputChannel.STDERR, executionId, outputSink, guard, onFirstOutput, "エラーストリームリーダー"));
+
             // プロセスとI/OスレッドをInteractiveProcessManagerに登録
             processManager.registerProcess(executionId, process, outputThread, errorThread);
-            System.out.println("実行ID " + executionId + " のプロセスがクラス " + className + " で開始されました。");
+            RATE_LIMITED_LOG.info("実行ID {} のプロセスがクラス {} で開始されました。", executionId, className);
 
-            // プロセスの完了を待機し、その後クリーンアップをトリガー
+            // プロセスの完了を待機し、終了報告を送信
             process.onExit().thenRun(() -> {
-                // プロセスがまだ生存しているか確認（タイムアウトで破棄された可能性があるため）
-                // ただし、onExitはどのように終了したかに関わらず発火するはずです。
-                // タイムアウトした場合はメッセージが若干ずれるかもしれませんが、終了コードは情報を提供します。
-                System.out.println("実行ID " + executionId + " のプロセスが終了コード " + process.exitValue() + " で終了しました。");
-                // タイムアウトにより強制終了され、既にメッセージが送信されている場合は、「プログラム終了」メッセージの送信を避ける
-                // このチェックは少し間接的です。より堅牢な方法は、タイムアウトが発生したかどうかを示すフラグを設定することです。
-                if (!isSuspectedGui || process.exitValue() == 0) { // 単純なチェック、改良が必要な場合あり
-                     webSocketHandler.sendMessageToSession(executionId, "\nプログラムが終了コード " + process.exitValue() + " で終了しました。");
-                } else if (isSuspectedGui && process.exitValue() != 0 && process.exitValue() != 137 && process.exitValue() != 143) { 
-                    // 137 SIGKILL、143 SIGTERM。タイムアウトで強制終了された場合、既にメッセージを送信済み。
-                    // GUIが疑われ、別のエラーで終了した場合はそれを表示。
-                    webSocketHandler.sendMessageToSession(executionId, "\nプログラム（GUIの可能性あり）が終了コード " + process.exitValue() + " で終了しました。");
+                RATE_LIMITED_LOG.info("実行ID {} のプロセスが終了コード {} で終了しました。", executionId, process.exitValue());
+                ExitReport report = guard.finish(process.exitValue());
+                if (report != null) {
+                    outputSink.sendExitReport(executionId, report); // 終了報告は待たずに送信される
                 }
                 // processManager.cleanupProcess(executionId); // クリーンアップは現在WebSocketのクローズによって開始されます
             });
 
         } catch (IOException e) {
-            System.err.println("実行ID " + executionId + " のプロセス開始に失敗しました: " + e.getMessage());
-            webSocketHandler.sendMessageToSession(executionId, "エラー: プロセスの開始に失敗しました - " + e.getMessage());
+            LOG.warn("実行ID {} のプロセス開始に失敗しました: {}", executionId, e.getMessage());
+            outputSink.sendMessageToSession(executionId, "エラー: プロセスの開始に失敗しました - " + e.getMessage());
             deleteTempDirectory(tempDir); // プロセス開始失敗時に一時ディレクトリをクリーンアップ
         }
     }
 
+    /**
+     * 子プロセスの出力ストリームを、届いたバイト列のチャンクごとにクライアントへ転送します。
+     * 行単位ではなく読み取れた分をすぐに転送するため、改行のないプロンプト（{@code System.out.print("名前: ")} など）も即座に表示されます。
+     * 子プロセスはUTF-8で出力するように起動されており、読み取りの境界で分断されたマルチバイト文字は次の読み取りと結合してからデコードします。
+     * 子JVMを起動せずに転送処理だけを測れるよう、ベンチマーク（src/jmh/java）からも呼び出されます。
+     * @param in 読み取る出力ストリーム
+     * @param channel クライアントに送信する際のチャネル
+     * @param executionId 実行ID
+     * @param outputSink 出力の送信先（ストリームの終端に達したら {@link OutputSink#outputClosed} で通知します）
+     * @param guard 出力量の上限を適用する監視中の実行（上限を超えた場合は以降の出力を転送しない）
+     * @param onFirstOutput 最初の出力を読み取ったときに呼び出される処理（2回目以降の呼び出しは無視されるもの）
+     * @param readerName ログ出力に使用する読み取りスレッドの名前
+     */
+    void pumpOutput(InputStream in, OutputChannel channel, String executionId,
+                            OutputSink outputSink, ExecutionWatchdog.Guard guard, Runnable onFirstOutput, String readerName) {
+        IncrementalTextDecoder decoder = new IncrementalTextDecoder(StandardCharsets.UTF_8);
+        byte[] buffer = new byte[OUTPUT_READ_BUFFER_SIZE];
+        try (InputStream stream = in) {
+            int n;
+            boolean first = true;
+            while ((n = stream.read(buffer)) != -1) {
+                if (first) {
+                    onFirstOutput.run();
+                    first = false;
+                }
+                if (!guard.recordOutput(n)) {
+                    break; // 出力の上限を超えた（プロセスは監視サービスが終了させる）
+                }
+                outputSink.sendOutputToSession(executionId, channel, decoder.decode(buffer, 0, n)); // WebSocketまたはHTTPの応答でクライアントに送信
+                if (stream.available() == 0) {
+                    // パイプに続きのデータがない（プログラムが入力待ちか処理中）ので、まとめている出力をすぐに送信
+                    outputSink.flushSession(executionId);
+                }
+            }
+            outputSink.sendOutputToSession(executionId, channel, decoder.finish());
+        } catch (IOException e) {
+            // ストリームが閉じられたことによる一般的なエラーは無視
+            if (e.getMessage() == null || !e.getMessage().toLowerCase().contains("stream closed")) {
+                RATE_LIMITED_LOG.warn("実行ID {} の{}でのIOException: {}", executionId, readerName, e.getMessage());
+            }
+        } finally {
+            outputSink.outputClosed(executionId, channel); // 上限超過や読み取りエラーで終わった場合も通知する
+            LOG.debug("実行ID {} の{}が終了しました。", executionId, readerName);
+        }
+    }
+
     /**
      * 指定された一時ディレクトリを再帰的に削除します。
      * 主にコンパイルされたクラスファイルやその他のアーティファクトのクリーンアップに使用されます。
@@ -307,33 +827,9 @@ public class DynamicCompiler {
                 .sorted(Comparator.reverseOrder()) // 逆順ソート（ファイル→ディレクトリの順で削除するため）
                 .map(Path::toFile)                 // PathをFileオブジェクトに変換
                 .forEach(File::delete);            // 各Fileオブジェクトを削除
-            System.out.println("一時ディレクトリの削除に成功しました: " + directory);
+            LOG.debug("一時ディレクトリの削除に成功しました: {}", directory);
         } catch (IOException e) {
-            System.err.println("警告: 一時ディレクトリ " + directory + " の削除に失敗しました - " + e.getMessage());
+            RATE_LIMITED_LOG.warn("一時ディレクトリ {} の削除に失敗しました - {}", directory, e.getMessage());
         }
     }
-
-
-    public static void main(String[] args) {
-        // mainメソッドは、compile()シグネチャが変更されたため、テストに使用する場合は調整が必要になる場合があります。
-        // 現在はアプリケーションのコア機能に必須ではないため、コメントアウトされています。
-        /*
-        DynamicCompiler dc = new DynamicCompiler();
-        String source = "public class Test { public static void main(String[] args) { System.out.println(\"Hello\"); try { Thread.sleep(2000); } catch (InterruptedException e) {} System.err.println(\"Error\"); } }";
-        CompilationResult result = dc.compileToJar(source);
-        System.out.println("Compilation Success: " + result.isSuccess());
-        System.out.println("Compiler Diagnostics:");
-        result.getDiagnostics().forEach(System.out::println);
-
-        if (result.isSuccess()) {
-            // startProcessをテストするには、InteractiveProcessManagerとExecutionWebSocketHandlerのモック/スタブが必要です
-            System.out.println("\nSimulating execution (actual process start requires more setup)...");
-            System.out.println("Class Name: " + result.getClassName());
-            System.out.println("Temp Dir: " + result.getCompiledCodePath());
-            // dc.startProcess(result, "test-exec", mockProcessManager, mockWebSocketHandler);
-            // テスト後にtempDirをクリーンアップすることを忘れないでください
-            // dc.deleteTempDirectory(result.getCompiledCodePath());
-        }
-        */
-    }
 }
\ No newline at end of file
@@ -0,0 +1,49 @@
+package tech.nagatani.dev;
+
+import tech.nagatani.dev.websocket.OutputChannel;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1つの実行の終了を、終了報告と出力ストリームの終端の両方が揃った時点として判定するためのヘルパー。
+ * 子プロセスの終了報告は出力の読み取りが終わる前に届くことがあるため、実行が終わった後に応答を閉じる
+ * {@link OutputSink} の実装（HTTPのストリーミング応答やジャッジのテストケース）は、
+ * {@link OutputSink#sendExitReport} と {@link OutputSink#outputClosed} をこのクラスに転送し、
+ * {@link #whenFinished()} の完了を待ってから最後の出力を扱います。
+ */
+public class ExecutionCompletion {
+
+    // 終了報告の後、出力ストリームの終端を待つ最大時間（子プロセスが生成した孫プロセスがパイプを保持している場合など）
+    private static final long OUTPUT_DRAIN_TIMEOUT_MS = 2000;
+
+    private final CompletableFuture<ExitReport> exitReport = new CompletableFuture<>(); // 終了報告
+    private final CompletableFuture<Void> stdoutClosed = new CompletableFuture<>(); // 標準出力の終端
+    private final CompletableFuture<Void> stderrClosed = new CompletableFuture<>(); // 標準エラー出力の終端
+
+    /**
+     * 終了報告が届いたことを記録します。2回目以降の呼び出しは無視されます。
+     * @param report 終了報告
+     */
+    public void exitReported(ExitReport report) {
+        exitReport.complete(report);
+    }
+
+    /**
+     * 出力ストリームの終端に達したことを記録します。
+     * @param channel 終了したチャネル（{@link OutputChannel#STDOUT} または {@link OutputChannel#STDERR}）
+     */
+    public void outputClosed(OutputChannel channel) {
+        (channel == OutputChannel.STDERR ? stderrClosed : stdoutClosed).complete(null);
+    }
+
+    /**
+     * 終了報告が届き、出力ストリームの終端に達したとき（または終端を一定時間待ったとき）に完了するFutureを返します。
+     * @return 終了報告で完了するFuture
+     */
+    public CompletableFuture<ExitReport> whenFinished() {
+        return exitReport.thenCompose(report -> CompletableFuture.allOf(stdoutClosed, stderrClosed)
+            .completeOnTimeout(null, OUTPUT_DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            .thenApply(ignored -> report));
+    }
+}
@@ -0,0 +1,28 @@
+package tech.nagatani.dev;
+
+/**
+ * コンパイルされたプログラムの実行方式を表す列挙型。
+ * 実行要求ごとに選択され、{@link tech.nagatani.dev.service.InteractiveProcessManager} に実行IDと共に保持されます。
+ */
+public enum ExecutionMode {
+    /** 子JVMプロセス（事前起動ワーカーまたは新規起動）で実行します。既定の方式です。 */
+    PROCESS,
+    /** サーバーJVM内で、実行ごとの分離されたクラスローダーと仮想スレッドを使って実行します。信頼できる環境専用です。 */
+    IN_PROCESS;
+
+    /**
+     * リクエストパラメータなどの文字列から実行方式を解析します。大文字・小文字およびハイフンの違いは無視されます。
+     * @param value 解析する文字列（例: "process", "in-process"）
+     * @return 対応する実行方式。nullまたは不明な値の場合は {@link #PROCESS}。
+     */
+    public static ExecutionMode fromString(String value) {
+        if (value != null) {
+            for (ExecutionMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(value.trim().replace('-', '_'))) {
+                    return mode;
+                }
+            }
+        }
+        return PROCESS;
+    }
+}
@@ -0,0 +1,42 @@
+package tech.nagatani.dev;
+
+import tech.nagatani.dev.worker.LaunchProfile;
+
+/**
+ * 実行要求ごとに選択された実行オプション（実行方式と起動プロファイル）を保持するクラス。
+ * コンパイル結果と共に {@link tech.nagatani.dev.service.InteractiveProcessManager} に登録され、
+ * WebSocket接続時にプログラムを開始する際に参照されます。
+ */
+public class ExecutionOptions {
+    /** 既定の実行オプション（子プロセスで、サーバー設定の起動プロファイルを使用）。 */
+    public static final ExecutionOptions DEFAULT = new ExecutionOptions(ExecutionMode.PROCESS, null);
+
+    private final ExecutionMode executionMode; // 実行方式
+    private final LaunchProfile launchProfile; // 子JVMの起動プロファイル。nullの場合はサーバー設定の既定値
+
+    /**
+     * ExecutionOptionsの新しいインスタンスを構築します。
+     * @param executionMode 実行方式。nullの場合は {@link ExecutionMode#PROCESS}。
+     * @param launchProfile 子JVMの起動プロファイル。nullの場合はサーバー設定の既定値を使用します。
+     */
+    public ExecutionOptions(ExecutionMode executionMode, LaunchProfile launchProfile) {
+        this.executionMode = executionMode != null ? executionMode : ExecutionMode.PROCESS;
+        this.launchProfile = launchProfile;
+    }
+
+    /**
+     * 実行方式を返します。
+     * @return 実行方式
+     */
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * 子JVMの起動プロファイルを返します。
+     * @return 起動プロファイル。サーバー設定の既定値を使用する場合はnull。
+     */
+    public LaunchProfile getLaunchProfile() {
+        return launchProfile;
+    }
+}
@@ -0,0 +1,36 @@
+package tech.nagatani.dev;
+
+/**
+ * プログラムの実行が終了した理由を表す列挙型。
+ * 実行の終了時に {@link ExitReport} としてクライアントに通知されます。
+ */
+public enum ExitReason {
+    /** プログラム自身が終了しました（終了コードは問いません）。 */
+    EXITED("exited"),
+    /** 実行時間（実時間）の上限を超えたため、サーバーが終了させました。 */
+    WALL_CLOCK_LIMIT("wall-clock-limit"),
+    /** CPU時間の上限を超えたため、サーバーが終了させました。 */
+    CPU_LIMIT("cpu-limit"),
+    /** メモリの上限（cgroup の memory.max）を超えたため、カーネルが終了させました。 */
+    MEMORY_LIMIT("memory-limit"),
+    /** スレッド数の上限を超えたため、サーバーが終了させました。 */
+    THREAD_LIMIT("thread-limit"),
+    /** 出力の上限バイト数を超えたため、サーバーが終了させました。 */
+    OUTPUT_LIMIT("output-limit"),
+    /** クライアントの切断や送信キューの溢れなど、上記以外の理由でサーバーが終了させました。 */
+    TERMINATED("terminated");
+
+    private final String wireName; // クライアントに通知する際の名前
+
+    ExitReason(String wireName) {
+        this.wireName = wireName;
+    }
+
+    /**
+     * クライアントに通知する際の名前を返します。
+     * @return 名前（例: "cpu-limit"）
+     */
+    public String getWireName() {
+        return wireName;
+    }
+}
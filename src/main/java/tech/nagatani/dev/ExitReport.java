@@ -0,0 +1,132 @@
+package tech.nagatani.dev;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 1回の実行の終了報告。終了理由、終了コード、および実行中に使用したリソースを保持します。
+ * WebSocketでは {@code exit} チャネルのチャンクとして、人が読むためのメッセージと共にクライアントに送信されます。
+ */
+public class ExitReport {
+    private final ExitReason reason; // 終了理由
+    private final int exitCode; // 終了コード（インプロセス実行では0または1）
+    private final long limit; // 超過した上限の値（上限による終了でない場合は0）
+    private final long wallMillis; // 実行時間（実時間）
+    private final long cpuMillis; // 使用したCPU時間（取得できない場合は-1）
+    private final long outputBytes; // 出力したバイト数（標準出力と標準エラー出力の合計）
+    private final int peakThreads; // 観測されたスレッド数の最大値（取得できない場合は-1）
+    private final long peakMemoryKb; // 観測された常駐メモリ（VmHWM）の最大値（KB、取得できない場合は-1）
+
+    /**
+     * 終了報告を構築します。
+     * @param reason 終了理由
+     * @param exitCode 終了コード
+     * @param limit 超過した上限の値（上限による終了でない場合は0）
+     * @param wallMillis 実行時間（ミリ秒）
+     * @param cpuMillis 使用したCPU時間（ミリ秒、取得できない場合は-1）
+     * @param outputBytes 出力したバイト数
+     * @param peakThreads 観測されたスレッド数の最大値（取得できない場合は-1）
+     * @param peakMemoryKb 観測された常駐メモリの最大値（KB、取得できない場合は-1）
+     */
+    public ExitReport(ExitReason reason, int exitCode, long limit, long wallMillis, long cpuMillis, long outputBytes, int peakThreads,
+                      long peakMemoryKb) {
+        this.reason = reason;
+        this.exitCode = exitCode;
+        this.limit = limit;
+        this.wallMillis = wallMillis;
+        this.cpuMillis = cpuMillis;
+        this.outputBytes = outputBytes;
+        this.peakThreads = peakThreads;
+        this.peakMemoryKb = peakMemoryKb;
+    }
+
+    /**
+     * クライアントに表示するメッセージを返します。
+     * @return 終了理由に応じたメッセージ（先頭と末尾に改行を含む）
+     */
+    public String getMessage() {
+        switch (reason) {
+            case WALL_CLOCK_LIMIT:
+                return "\n情報: 実行時間の上限 (" + limit + "ms) を超えたため、プログラムを終了しました。\n";
+            case CPU_LIMIT:
+                return "\n情報: CPU時間の上限 (" + limit + "ms) を超えたため、プログラムを終了しました。\n";
+            case MEMORY_LIMIT:
+                return "\n情報: メモリの上限 (" + limit + "MB) を超えたため、プログラムが終了させられました。\n";
+            case THREAD_LIMIT:
+                return "\n情報: スレッド数の上限 (" + limit + ") を超えたため、プログラムを終了しました。\n";
+            case OUTPUT_LIMIT:
+                return "\n情報: 出力の上限 (" + limit + " バイト) を超えたため、プログラムを終了しました。\n";
+            case TERMINATED:
+                return "\nプログラムはサーバーによって終了されました (終了コード " + exitCode + ")。\n";
+            default:
+                return "\nプログラムが終了コード " + exitCode + " で終了しました。\n";
+        }
+    }
+
+    /**
+     * クライアントに送信する構造化された形式に変換します。
+     * @return 項目名 → 値のマップ
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("reason", reason.getWireName());
+        map.put("exitCode", exitCode);
+        if (limit > 0) {
+            map.put("limit", limit);
+        }
+        map.put("wallMillis", wallMillis);
+        map.put("cpuMillis", cpuMillis);
+        map.put("outputBytes", outputBytes);
+        map.put("peakThreads", peakThreads);
+        map.put("peakMemoryKb", peakMemoryKb);
+        return map;
+    }
+
+    /**
+     * 終了理由を返します。
+     * @return 終了理由
+     */
+    public ExitReason getReason() {
+        return reason;
+    }
+
+    /**
+     * 終了コードを返します。
+     * @return 終了コード
+     */
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * 実行時間を返します。
+     * @return 実行時間（ミリ秒）
+     */
+    public long getWallMillis() {
+        return wallMillis;
+    }
+
+    /**
+     * 使用したCPU時間を返します。
+     * @return CPU時間（ミリ秒）。取得できない場合は-1。
+     */
+    public long getCpuMillis() {
+        return cpuMillis;
+    }
+
+    /**
+     * 出力したバイト数を返します。
+     * @return 出力したバイト数
+     */
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * 観測された常駐メモリの最大値を返します（子プロセスのみ。JVM自身が使用するメモリを含みます）。
+     * @return 常駐メモリの最大値（KB）。取得できない場合は-1。
+     */
+    public long getPeakMemoryKb() {
+        return peakMemoryKb;
+    }
+}
@@ -0,0 +1,66 @@
+package tech.nagatani.dev;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 任意の位置で区切られたバイト列のチャンクを、順番に文字列へデコードするデコーダ。
+ * パイプからの読み取りでは、UTF-8のマルチバイト文字が2回の読み取りにまたがって届くことがあります。
+ * このクラスは末尾の不完全なバイト列を次のチャンクまで保持するため、文字が分断されたり化けたりしません。
+ * 不正なバイト列は置換文字（U+FFFD）に置き換えられます。
+ * 1つのストリームに対して1つのインスタンスを使用し、同時に複数のスレッドから呼び出さないでください。
+ */
+public class IncrementalTextDecoder {
+
+    private final CharsetDecoder decoder; // 状態を持つデコーダ
+    private byte[] leftover = new byte[0]; // 前回のチャンクの末尾に残った不完全なバイト列
+
+    /**
+     * 指定された文字セットのデコーダを構築します。
+     * @param charset バイト列の文字セット（通常はUTF-8）
+     */
+    public IncrementalTextDecoder(Charset charset) {
+        this.decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * 次のチャンクをデコードします。チャンク末尾の不完全な文字は次回の呼び出しまで保持されます。
+     * @param bytes チャンクを含む配列
+     * @param offset チャンクの開始位置
+     * @param length チャンクのバイト数
+     * @return デコードされた文字列（完全な文字がない場合は空文字列）
+     */
+    public String decode(byte[] bytes, int offset, int length) {
+        ByteBuffer in;
+        if (leftover.length == 0) {
+            in = ByteBuffer.wrap(bytes, offset, length);
+        } else {
+            in = ByteBuffer.allocate(leftover.length + length);
+            in.put(leftover).put(bytes, offset, length).flip();
+        }
+        CharBuffer out = CharBuffer.allocate((int) (in.remaining() * (double) decoder.maxCharsPerByte()) + 1);
+        decoder.decode(in, out, false);
+        leftover = new byte[in.remaining()];
+        in.get(leftover);
+        return out.flip().toString();
+    }
+
+    /**
+     * ストリームの終端で呼び出し、保持している不完全なバイト列をデコードします（置換文字になります）。
+     * @return 残りの文字列（残りがない場合は空文字列）
+     */
+    public String finish() {
+        ByteBuffer in = ByteBuffer.wrap(leftover);
+        CharBuffer out = CharBuffer.allocate(leftover.length * 2 + 2);
+        decoder.decode(in, out, true);
+        decoder.flush(out);
+        decoder.reset();
+        leftover = new byte[0];
+        return out.flip().toString();
+    }
+}
@@ -0,0 +1,53 @@
+package tech.nagatani.dev;
+
+import tech.nagatani.dev.websocket.OutputChannel;
+
+/**
+ * 実行中のプログラムの出力と終了報告の送信先。
+ * 子プロセス（{@link DynamicCompiler#startProcess}）とインプロセス実行（{@link tech.nagatani.dev.service.InProcessExecutor}）は、
+ * 出力の送信先がWebSocket（{@link tech.nagatani.dev.websocket.ExecutionWebSocketHandler}）か
+ * HTTPのストリーミング応答（{@code /api/run}）かを区別せず、このインターフェースを通して出力を送信します。
+ * 各メソッドは出力の読み取りスレッドなど複数のスレッドから呼び出されるため、実装はスレッドセーフである必要があります。
+ */
+public interface OutputSink {
+
+    /**
+     * サーバーからの通知メッセージを送信します（{@link OutputChannel#SYSTEM} の1行として扱われます）。
+     * @param executionId 実行ID
+     * @param message 送信するメッセージ（改行は付加されます）
+     */
+    void sendMessageToSession(String executionId, String message);
+
+    /**
+     * プログラムの出力を送信します。実装は出力をまとめてから送信してもかまいません。
+     * @param executionId 実行ID
+     * @param channel 出力のチャネル
+     * @param text 送信する出力（改行は付加されません）
+     */
+    void sendOutputToSession(String executionId, OutputChannel channel, String text);
+
+    /**
+     * まとめている未送信の出力を、待たずに送信するよう要求します。
+     * プログラムの出力が途切れたとき（入力待ちになった可能性があるとき）に呼び出されます。
+     * @param executionId 実行ID
+     */
+    void flushSession(String executionId);
+
+    /**
+     * 実行の終了報告を送信します。
+     * 子プロセスの場合、終了報告は出力の読み取りが終わる前に届くことがあります（{@link #outputClosed} を参照）。
+     * @param executionId 実行ID
+     * @param report 終了報告
+     */
+    void sendExitReport(String executionId, ExitReport report);
+
+    /**
+     * 指定されたチャネルの出力がこれ以上届かないことを通知します（子プロセスの出力ストリームの終端に達した場合など）。
+     * すべての出力を送信し終えてから応答を閉じる必要がある送信先は、終了報告とこの通知の両方を待ってください。
+     * @param executionId 実行ID
+     * @param channel 終了したチャネル（{@link OutputChannel#STDOUT} または {@link OutputChannel#STDERR}）
+     */
+    default void outputClosed(String executionId, OutputChannel channel) {
+        // 既定では何もしない（WebSocketは接続が閉じられるまで出力を送信し続ける）
+    }
+}
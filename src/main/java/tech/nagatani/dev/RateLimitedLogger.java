@@ -0,0 +1,119 @@
+package tech.nagatani.dev;
+
+import org.slf4j.Logger;
+import org.slf4j.event.Level;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一定時間あたりの出力件数を制限するロガー。
+ * 実行ごと・フレームごとに発生しうるログ（送信エラーや標準入力の書き込みエラーなど）が大量に出力され、
+ * ログの出力自体が処理を遅くすることを防ぎます。
+ * 1つの区間（{@code interval}）内で上限を超えたメッセージは破棄し、次の区間の最初のメッセージに破棄した件数を添えます。
+ * 上限の判定はレベルごとではなく、このロガー全体で行います。
+ */
+public class RateLimitedLogger {
+
+    private final Logger logger; // 出力先のロガー
+    private final int maxPerInterval; // 1つの区間で出力するメッセージの最大数
+    private final long intervalNanos; // 区間の長さ
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime()); // 現在の区間の開始時刻
+    private final AtomicLong emittedInWindow = new AtomicLong(); // 現在の区間で出力したメッセージ数
+    private final AtomicLong suppressed = new AtomicLong(); // まだ報告していない破棄したメッセージ数
+
+    /**
+     * ロガーを構築します。
+     * @param logger 出力先のロガー
+     * @param maxPerInterval 1つの区間で出力するメッセージの最大数
+     * @param interval 区間の長さ
+     * @param unit 区間の長さの単位
+     */
+    public RateLimitedLogger(Logger logger, int maxPerInterval, long interval, TimeUnit unit) {
+        this.logger = logger;
+        this.maxPerInterval = Math.max(1, maxPerInterval);
+        this.intervalNanos = unit.toNanos(interval);
+    }
+
+    /**
+     * WARNレベルでメッセージを出力します（上限を超えた場合は破棄します）。
+     * @param format SLF4J形式のメッセージ
+     * @param arguments メッセージの引数
+     */
+    public void warn(String format, Object... arguments) {
+        log(Level.WARN, format, arguments);
+    }
+
+    /**
+     * INFOレベルでメッセージを出力します（上限を超えた場合は破棄します）。
+     * @param format SLF4J形式のメッセージ
+     * @param arguments メッセージの引数
+     */
+    public void info(String format, Object... arguments) {
+        log(Level.INFO, format, arguments);
+    }
+
+    /**
+     * DEBUGレベルでメッセージを出力します（上限を超えた場合は破棄します）。
+     * @param format SLF4J形式のメッセージ
+     * @param arguments メッセージの引数
+     */
+    public void debug(String format, Object... arguments) {
+        log(Level.DEBUG, format, arguments);
+    }
+
+    private void log(Level level, String format, Object... arguments) {
+        if (!isEnabled(level)) {
+            return; // 無効なレベルは件数に数えない
+        }
+        long now = System.nanoTime();
+        long start = windowStart.get();
+        if (now - start >= intervalNanos && windowStart.compareAndSet(start, now)) {
+            emittedInWindow.set(0); // 新しい区間
+        }
+        if (emittedInWindow.incrementAndGet() > maxPerInterval) {
+            suppressed.incrementAndGet();
+            return;
+        }
+        long dropped = suppressed.getAndSet(0);
+        if (dropped > 0) {
+            write(level, "（直前の {} 件の同様のメッセージは抑制されました）", dropped);
+        }
+        write(level, format, arguments);
+    }
+
+    private void write(Level level, String format, Object... arguments) {
+        switch (level) {
+            case WARN:
+                logger.warn(format, arguments);
+                break;
+            case INFO:
+                logger.info(format, arguments);
+                break;
+            default:
+                logger.debug(format, arguments);
+                break;
+        }
+    }
+
+    private boolean isEnabled(Level level) {
+        switch (level) {
+            case WARN:
+                return logger.isWarnEnabled();
+            case INFO:
+                return logger.isInfoEnabled();
+            case DEBUG:
+                return logger.isDebugEnabled();
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * これまでに抑制してまだ報告していないメッセージ数を返します。
+     * @return 抑制したメッセージ数
+     */
+    public long getSuppressedCount() {
+        return suppressed.get();
+    }
+}
@@ -0,0 +1,132 @@
+package tech.nagatani.dev;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 複数ファイルからなるプロジェクトを構成する、名前付きのソースファイル1つ分を表すクラス。
+ * ファイル名（例: "Main.java", "com/example/util/Helper.java"）とソースコードを保持し、
+ * パッケージ宣言とpublicな型の名前をソースコードから検出します。
+ */
+public class SourceUnit {
+    // パッケージ宣言を抽出するための正規表現パターン（例: "package com.example;"）
+    private static final Pattern PACKAGE_PATTERN = Pattern.compile("^\\s*package\\s+([A-Za-z_$][A-Za-z0-9_$]*(?:\\s*\\.\\s*[A-Za-z_$][A-Za-z0-9_$]*)*)\\s*;", Pattern.MULTILINE);
+    // publicな最上位の型（class/interface/enum/record）の名前を抽出するための正規表現パターン
+    private static final Pattern PUBLIC_TYPE_NAME_PATTERN = Pattern.compile("public\\s+(?:(?:final|abstract|sealed|non-sealed|strictfp)\\s+)*(?:class|interface|enum|record)\\s+([A-Za-z_$][A-Za-z0-9_$]*)");
+    // 型宣言（class/interface/enum/record）の名前を抽出するパターン。ネストした型も含め、保守的に多めに抽出する
+    private static final Pattern TYPE_DECLARATION_PATTERN = Pattern.compile("\\b(?:class|interface|enum|record)\\s+([A-Za-z_$][A-Za-z0-9_$]*)");
+    // 識別子のパターン（コメントや文字列リテラル内の単語も含まれるが、依存関係の判定が保守的になるだけなので問題ない）
+    private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("[A-Za-z_$][A-Za-z0-9_$]*");
+    // mainメソッドの宣言を検出するための正規表現パターン
+    private static final Pattern MAIN_METHOD_PATTERN = Pattern.compile("static\\s+(?:final\\s+)?void\\s+main\\s*\\(");
+
+    private final String name; // ファイル名（ディレクトリを含む場合あり）。省略された場合はnull
+    private final String sourceCode; // ソースコード
+
+    /**
+     * 新しいソースユニットを構築します。
+     * @param name ファイル名（例: "Main.java"）。nullの場合はpublicな型の名前から決定されます。
+     * @param sourceCode ソースコード
+     */
+    public SourceUnit(String name, String sourceCode) {
+        this.name = name != null && !name.trim().isEmpty() ? name.trim().replace('\\', '/') : null;
+        this.sourceCode = sourceCode != null ? sourceCode : "";
+    }
+
+    /**
+     * 指定されたファイル名を返します。
+     * @return ファイル名。省略された場合はnull。
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * ソースコードを返します。
+     * @return ソースコード
+     */
+    public String getSourceCode() {
+        return sourceCode;
+    }
+
+    /**
+     * ソースコードのパッケージ宣言から、パッケージ名を返します。
+     * @return パッケージ名（例: "com.example"）。無名パッケージの場合は空文字列。
+     */
+    public String getPackageName() {
+        Matcher matcher = PACKAGE_PATTERN.matcher(sourceCode);
+        return matcher.find() ? matcher.group(1).replaceAll("\\s+", "") : "";
+    }
+
+    /**
+     * ソースコード内で最初に宣言されたpublicな型の名前を返します。
+     * @return 型の単純名。見つからない場合はnull。
+     */
+    public String getPublicTypeName() {
+        Matcher matcher = PUBLIC_TYPE_NAME_PATTERN.matcher(sourceCode);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /**
+     * ソースコード内で宣言されている型（ネストした型を含む）の単純名を返します（字句的な判定）。
+     * @return 型の単純名の集合
+     */
+    public Set<String> getDeclaredTypeNames() {
+        return findAll(TYPE_DECLARATION_PATTERN, 1);
+    }
+
+    /**
+     * ソースコード内に現れるすべての識別子を返します（字句的な判定）。
+     * 他のソースが宣言する型名が含まれていれば、そのソースに依存している可能性があります。
+     * @return 識別子の集合
+     */
+    public Set<String> getIdentifiers() {
+        return findAll(IDENTIFIER_PATTERN, 0);
+    }
+
+    /**
+     * ソースコードにmainメソッドの宣言が含まれるかどうかを返します（字句的な判定）。
+     * @return 含まれる場合はtrue
+     */
+    public boolean declaresMainMethod() {
+        return MAIN_METHOD_PATTERN.matcher(sourceCode).find();
+    }
+
+    /**
+     * コンパイラに渡すファイルのパス（拡張子なし、"/" 区切り）を返します。
+     * ファイル名が指定されていればそのファイル名を、なければpublicな型の名前を使用し、
+     * ディレクトリが指定されていない場合はパッケージに対応するディレクトリを補います。
+     * javacはpublicな型の名前とファイル名が一致しない場合にエラーを報告します。
+     * @param fallbackName ファイル名もpublicな型もない場合に使用する名前
+     * @return ファイルのパス（例: "com/example/Helper"）
+     */
+    public String getPathWithoutExtension(String fallbackName) {
+        String path = name;
+        if (path == null) {
+            String typeName = getPublicTypeName();
+            path = typeName != null ? typeName : fallbackName;
+        }
+        if (path.endsWith(".java")) {
+            path = path.substring(0, path.length() - ".java".length());
+        }
+        String packageName = getPackageName();
+        if (!path.contains("/") && !packageName.isEmpty()) {
+            path = packageName.replace('.', '/') + "/" + path;
+        }
+        return path;
+    }
+
+    /**
+     * パターンに一致するすべての部分文字列（指定されたグループ）を集合として返します。
+     */
+    private Set<String> findAll(Pattern pattern, int group) {
+        Set<String> result = new HashSet<>();
+        Matcher matcher = pattern.matcher(sourceCode);
+        while (matcher.find()) {
+            result.add(matcher.group(group));
+        }
+        return result;
+    }
+}
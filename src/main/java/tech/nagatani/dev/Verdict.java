@@ -0,0 +1,38 @@
+package tech.nagatani.dev;
+
+/**
+ * ジャッジ（{@link tech.nagatani.dev.service.JudgeService}）がテストケースごとに下す判定を表す列挙型。
+ * 名前は一般的なオンラインジャッジの略称に合わせています。
+ */
+public enum Verdict {
+    /** 出力が期待される出力と一致しました。 */
+    ACCEPTED("AC"),
+    /** 正常に終了しましたが、出力が期待される出力と一致しませんでした。 */
+    WRONG_ANSWER("WA"),
+    /** 制限時間（CPU時間、または実時間）を超えました。 */
+    TIME_LIMIT_EXCEEDED("TLE"),
+    /** メモリの上限を超えたか、{@code OutOfMemoryError} で異常終了しました。 */
+    MEMORY_LIMIT_EXCEEDED("MLE"),
+    /** 出力の上限バイト数を超えました。 */
+    OUTPUT_LIMIT_EXCEEDED("OLE"),
+    /** 0以外の終了コードで終了したか、スレッド数の上限を超えました。 */
+    RUNTIME_ERROR("RE"),
+    /** プログラムのコンパイルに失敗しました（テストケースは実行されません）。 */
+    COMPILE_ERROR("CE"),
+    /** チェッカーの異常終了や実行の開始の失敗など、ジャッジ側の問題で判定できませんでした。 */
+    JUDGE_ERROR("JE");
+
+    private final String wireName; // JSONやメトリクスのタグで使用する名前
+
+    Verdict(String wireName) {
+        this.wireName = wireName;
+    }
+
+    /**
+     * JSONやメトリクスのタグで使用する名前を返します。
+     * @return 名前（例: "TLE"）
+     */
+    public String getWireName() {
+        return wireName;
+    }
+}
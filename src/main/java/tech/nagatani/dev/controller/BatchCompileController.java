@@ -0,0 +1,231 @@
+package tech.nagatani.dev.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import tech.nagatani.dev.CompilationResult;
+import tech.nagatani.dev.CompilerDiagnostic;
+import tech.nagatani.dev.ExecutionMode;
+import tech.nagatani.dev.ExecutionOptions;
+import tech.nagatani.dev.RateLimitedLogger;
+import tech.nagatani.dev.service.BatchCompilationService;
+import tech.nagatani.dev.service.CompilationScheduler;
+import tech.nagatani.dev.worker.LaunchProfile;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多数のソースコードをJSONで受け付けて一括コンパイルするRESTコントローラ（採点や事前チェック用）。
+ * 結果はNDJSON（1行に1つのJSONオブジェクト）として、ソースごとにコンパイルが完了した順にストリーミングされます。
+ * バッチ全体の完了を待たずに、最初の結果から受け取ることができます。
+ */
+@RestController
+public class BatchCompileController {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchCompileController.class);
+    // 結果の行ごとに発生しうるため、件数を制限して出力する
+    private static final RateLimitedLogger RATE_LIMITED_LOG = new RateLimitedLogger(LOG, 20, 10, TimeUnit.SECONDS);
+
+    // NDJSONのメディアタイプ（文字セットはUTF-8に固定）
+    private static final MediaType NDJSON = new MediaType("application", "x-ndjson", StandardCharsets.UTF_8);
+
+    private final BatchCompilationService batchCompilationService; // 一括コンパイルサービス
+    private final ObjectMapper objectMapper; // 結果の行をJSONに変換するためのマッパー
+    private final int maxSources; // 1回のリクエストで受け付ける最大ソース数
+    private final long timeoutMs; // ストリーミング応答のタイムアウト
+
+    /**
+     * 一括コンパイルのリクエスト本文。
+     */
+    public static class BatchCompileRequest {
+        private List<SourceEntry> sources; // コンパイルするソースのリスト
+        private String executionMode; // 成功したソースの実行方式（"process" / "in-process"）
+        private String launchProfile; // 子JVMの起動プロファイル（"standard" / "fast-start"）
+
+        public List<SourceEntry> getSources() {
+            return sources;
+        }
+
+        public void setSources(List<SourceEntry> sources) {
+            this.sources = sources;
+        }
+
+        public String getExecutionMode() {
+            return executionMode;
+        }
+
+        public void setExecutionMode(String executionMode) {
+            this.executionMode = executionMode;
+        }
+
+        public String getLaunchProfile() {
+            return launchProfile;
+        }
+
+        public void setLaunchProfile(String launchProfile) {
+            this.launchProfile = launchProfile;
+        }
+    }
+
+    /**
+     * 一括コンパイルする1つのソース。
+     */
+    public static class SourceEntry {
+        private String id; // 呼び出し側が結果を対応付けるためのID（省略時はリスト内の位置）
+        private String sourceCode; // Javaソースコード
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public String getSourceCode() {
+            return sourceCode;
+        }
+
+        public void setSourceCode(String sourceCode) {
+            this.sourceCode = sourceCode;
+        }
+    }
+
+    /**
+     * 必要なサービスを依存性注入（DI）によって初期化するコンストラクタです。
+     * @param batchCompilationService 一括コンパイルサービス。
+     * @param objectMapper JSONマッパー。
+     * @param maxSources 1回のリクエストで受け付ける最大ソース数（{@code compiler.batch.max-sources}）。
+     * @param timeoutMs ストリーミング応答のタイムアウト（{@code compiler.batch.timeout-ms}）。
+     */
+    public BatchCompileController(BatchCompilationService batchCompilationService,
+                                  ObjectMapper objectMapper,
+                                  @Value("${compiler.batch.max-sources:1000}") int maxSources,
+                                  @Value("${compiler.batch.timeout-ms:600000}") long timeoutMs) {
+        this.batchCompilationService = batchCompilationService;
+        this.objectMapper = objectMapper;
+        this.maxSources = maxSources;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * "/api/compile/batch" へのPOSTリクエストを処理し、ソースのリストを一括でコンパイルします。
+     * 応答はNDJSONで、各行は1つのソースの結果です:
+     * {@code {"index":0,"id":"...","success":true,"className":"Main","executionId":"...","grouped":true,"elapsedMillis":120,"diagnostics":[...]}}
+     * 成功したソースの executionId でWebSocketに接続すると、通常のコンソールと同様にプログラムを実行できます。
+     * バッチ1件につきクライアントのトークンを1つ消費し、不足している場合は HTTP 429 と Retry-After ヘッダーを返します
+     * （本文は拒否理由を表す1行）。
+     * @param request ソースのリストと実行方式
+     * @param httpRequest HTTPリクエスト（クライアントの識別に使用）
+     * @param httpResponse HTTPレスポンス（拒否時のステータスとヘッダーの設定に使用）
+     * @return 結果を完了順にストリーミングする {@link ResponseBodyEmitter}
+     */
+    @PostMapping(value = "/api/compile/batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseBodyEmitter compileBatch(@RequestBody BatchCompileRequest request, HttpServletRequest httpRequest,
+                                           HttpServletResponse httpResponse) {
+        List<SourceEntry> entries = request.getSources();
+        if (entries == null || entries.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "sources は空にできません。");
+        }
+        if (entries.size() > maxSources) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "1回に送信できるソースは " + maxSources + " 個までです。");
+        }
+        List<String> sourceCodes = new ArrayList<>();
+        for (SourceEntry entry : entries) {
+            sourceCodes.add(entry.getSourceCode() != null ? entry.getSourceCode() : "");
+        }
+        ExecutionOptions executionOptions = new ExecutionOptions(
+            ExecutionMode.fromString(request.getExecutionMode()), LaunchProfile.fromString(request.getLaunchProfile()));
+
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(timeoutMs) {
+            @Override
+            protected void extendResponse(ServerHttpResponse outputMessage) {
+                outputMessage.getHeaders().setContentType(NDJSON);
+            }
+        };
+        CompletableFuture<Void> batch;
+        try {
+            batch = batchCompilationService.compileBatch(CompilerController.resolveClientKey(httpRequest), httpRequest.getRemoteAddr(),
+                sourceCodes, executionOptions, (index, result) -> {
+                    String id = entries.get(index).getId() != null ? entries.get(index).getId() : String.valueOf(index);
+                    send(emitter, toLine(index, id, result));
+                });
+        } catch (CompilationScheduler.RejectedException e) {
+            // 混雑時は待たせずに 429 を返す
+            httpResponse.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            httpResponse.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+            Map<String, Object> rejected = new LinkedHashMap<>();
+            rejected.put("success", false);
+            rejected.put("message", e.getMessage());
+            rejected.put("queuePosition", e.getQueuePosition());
+            rejected.put("retryAfterSeconds", e.getRetryAfterSeconds());
+            send(emitter, rejected);
+            emitter.complete();
+            return emitter;
+        }
+        batch.whenComplete((ignored, error) -> {
+            if (error != null) {
+                RATE_LIMITED_LOG.warn("一括コンパイル中にエラーが発生しました: {}", error.getMessage());
+                emitter.completeWithError(error);
+            } else {
+                emitter.complete();
+            }
+        });
+        return emitter;
+    }
+
+    /**
+     * 1つのソースの結果をNDJSONの1行に対応するマップに変換します。
+     */
+    private Map<String, Object> toLine(int index, String id, BatchCompilationService.BatchItemResult itemResult) {
+        CompilationResult result = itemResult.getCompilationResult();
+        List<Map<String, Object>> diagnostics = new ArrayList<>();
+        for (CompilerDiagnostic diagnostic : result.getStructuredDiagnostics()) {
+            diagnostics.add(diagnostic.toMap());
+        }
+        Map<String, Object> line = new LinkedHashMap<>();
+        line.put("index", index);
+        line.put("id", id);
+        line.put("success", result.isSuccess());
+        line.put("className", result.getClassName());
+        line.put("executionId", itemResult.getExecutionId());
+        line.put("grouped", itemResult.isGrouped());
+        line.put("elapsedMillis", itemResult.getElapsedMillis());
+        line.put("diagnostics", diagnostics);
+        return line;
+    }
+
+    /**
+     * 1行を送信します。複数のスレッドから呼び出されるため、行の途中に他の行が混ざらないよう
+     * 改行を含めた1つの文字列として送信します。クライアントが切断していた場合は送信を諦めます。
+     */
+    private void send(ResponseBodyEmitter emitter, Map<String, Object> line) {
+        try {
+            emitter.send(objectMapper.writeValueAsString(line) + "\n", NDJSON);
+        } catch (JsonProcessingException e) {
+            RATE_LIMITED_LOG.warn("一括コンパイルの結果をJSONに変換できません: {}", e.getMessage());
+        } catch (IOException | IllegalStateException e) {
+            // クライアントが切断した、またはタイムアウトにより応答が既に完了している
+        }
+    }
+}
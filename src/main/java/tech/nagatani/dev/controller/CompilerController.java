@@ -1,18 +1,39 @@
 package tech.nagatani.dev.controller;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.ModelAndView;
 import tech.nagatani.dev.DynamicCompiler;
 import tech.nagatani.dev.CompilationResult; 
+import tech.nagatani.dev.CompilationWorkspace;
+import tech.nagatani.dev.CompilePhaseTimings;
+import tech.nagatani.dev.ExecutionMode;
+import tech.nagatani.dev.ExecutionOptions;
+import tech.nagatani.dev.SourceUnit;
+import tech.nagatani.dev.service.CompilationScheduler;
+import tech.nagatani.dev.service.InProcessExecutor;
 import tech.nagatani.dev.service.InteractiveProcessManager; 
-import tech.nagatani.dev.websocket.ExecutionWebSocketHandler; // WebSocketハンドラも注入されるが、現時点では直接使用されていない
+import tech.nagatani.dev.websocket.ExecutionWebSocketHandler;
+import tech.nagatani.dev.worker.LaunchProfile;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
-import java.util.Arrays; // ログ出力用に追加 (前のステップで追加されたもの)
-import java.nio.charset.StandardCharsets; // ログ出力用に追加 (前のステップで追加されたもの)
+import java.util.concurrent.CompletableFuture;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Javaコードのコンパイルと実行に関するHTTPリクエストを処理するコントローラ。
@@ -23,24 +44,33 @@ import java.nio.charset.StandardCharsets; // ログ出力用に追加 (前のス
 @Controller
 public class CompilerController {
 
+    private static final Logger LOG = LoggerFactory.getLogger(CompilerController.class);
+
     private final DynamicCompiler dynamicCompiler; // 動的コンパイルサービス
+    private final CompilationScheduler compilationScheduler; // コンパイル要求の受け付け制御（待ち行列とクライアントごとの制限）
+    private final InProcessExecutor inProcessExecutor; // インプロセス実行サービス（実行方式の選択肢表示に使用）
     private final InteractiveProcessManager processManager; // 対話型プロセス管理サービス
-    // ExecutionWebSocketHandlerは将来的に直接的な対話が必要な場合に備えて注入されるかもしれませんが、
-    // 現状の /compile エンドポイントでは直接使用されていません。
-    // プロセスの起動は ExecutionWebSocketHandler.afterConnectionEstablished で行われます。
+    // /compile エンドポイントでは直接使用されず、プロセスの起動は ExecutionWebSocketHandler.afterConnectionEstablished で行われます。
+    // コンソールページの再表示（/console/{executionId}）で、再接続できる実行かどうかの確認に使用します。
     private final ExecutionWebSocketHandler webSocketHandler; 
 
     /**
-     * 必要なサービス（{@link DynamicCompiler}, {@link InteractiveProcessManager}, {@link ExecutionWebSocketHandler}）を
+     * 必要なサービス（{@link DynamicCompiler}, {@link CompilationScheduler}, {@link InteractiveProcessManager}, {@link ExecutionWebSocketHandler}）を
      * 依存性注入（DI）によって初期化するコンストラクタです。
      * @param dynamicCompiler 動的コンパイルサービス。
+     * @param compilationScheduler コンパイルスケジューラ。
+     * @param inProcessExecutor インプロセス実行サービス。
      * @param processManager 対話型プロセス管理サービス。
      * @param webSocketHandler WebSocket実行ハンドラ。
      */
     public CompilerController(DynamicCompiler dynamicCompiler, 
+                              CompilationScheduler compilationScheduler,
+                              InProcessExecutor inProcessExecutor,
                               InteractiveProcessManager processManager,
                               ExecutionWebSocketHandler webSocketHandler) {
         this.dynamicCompiler = dynamicCompiler;
+        this.compilationScheduler = compilationScheduler;
+        this.inProcessExecutor = inProcessExecutor;
         this.processManager = processManager;
         this.webSocketHandler = webSocketHandler;
     }
@@ -48,45 +78,119 @@ public class CompilerController {
     /**
      * アプリケーションのルートURL ("/") へのGETリクエストを処理します。
      * 初期ページ（コード入力フォーム）である "index.html" を表示します。
+     * コンパイル要求をセッションごとに区別できるよう（{@link #resolveClientKey(HttpServletRequest)}）、ここでセッションを作成します。
+     * @param model Spring MVCモデル。インプロセス実行が選択可能かどうかをビューに渡すために使用されます。
+     * @param request HTTPリクエスト（セッションの作成に使用）
      * @return 表示するビューの名前 ("index")。
      */
     @GetMapping("/")
-    public String index() {
+    public String index(Model model, HttpServletRequest request) {
+        request.getSession(true);
+        model.addAttribute("inProcessEnabled", inProcessExecutor.isEnabled());
         return "index"; // "index.html" を返す
     }
 
+    /**
+     * 開始前、実行中、または再接続を待っている実行の対話型コンソールページを表示します。
+     * コンソールページは表示後にこのURLへ置き換えられるため、ページを再読み込みしてもコンパイルし直さずに同じ実行へ再接続できます。
+     * @param executionId 実行ID
+     * @return "interactive_console.html" のビュー。該当する実行がない場合はルートURLへのリダイレクト。
+     */
+    @GetMapping("/console/{executionId}")
+    public ModelAndView console(@PathVariable String executionId) {
+        if (!webSocketHandler.isReconnectable(executionId) && processManager.getCompilationResult(executionId) == null) {
+            return new ModelAndView("redirect:/");
+        }
+        ModelAndView view = new ModelAndView("interactive_console.html");
+        view.addObject("executionId", executionId);
+        view.addObject("compilationStatus", "SUCCESS");
+        view.addObject("diagnostics", "実行中のセッションに再接続します。");
+        return view;
+    }
+
     /**
      * "/compile" URLへのPOSTリクエストを処理し、提供されたJavaソースコードをコンパイルします。
+     * コンパイルは {@link CompilationScheduler} の待ち行列に入れられ、Tomcatのリクエストスレッドはその間解放されます（非同期処理）。
      * コンパイルが成功した場合、対話型コンソールページへリダイレクトするための準備を行います。
      * 失敗した場合、結果ページにエラー情報を表示します。
+     * サーバーが混雑していて受け付けられない場合は、待たせずに HTTP 429 と待ち行列の位置、Retry-After ヘッダーを返します。
+     * 複数の .java ファイルがアップロードされた場合は、テキストエリアのソースコードの代わりに、
+     * それらのファイルを1つのプロジェクトとしてまとめてコンパイルします（パッケージを含むことができます）。
      * 
      * @param sourceCode HTTPリクエストパラメータ "sourceCode" から受け取るJavaソースコード文字列。
-     * @param model Spring MVCモデル。ビューにデータを渡すために使用されます。
-     * @return コンパイル成功時は "interactive_console.html"、失敗時は "result.html" のビュー名。
+     * @param javaFiles HTTPリクエストパラメータ "javaFile" から受け取る .java ファイル（複数可）。省略可。
+     * @param mainClass HTTPリクエストパラメータ "mainClass" から受け取る、プロジェクトのメインクラス名。省略時は自動検出。
+     * @param executionMode HTTPリクエストパラメータ "executionMode" から受け取る実行方式（"process" または "in-process"）。省略時は子プロセス。
+     * @param launchProfile HTTPリクエストパラメータ "launchProfile" から受け取る子JVMの起動プロファイル（"standard" または "fast-start"）。省略時はサーバー設定の既定値。
+     * @param request HTTPリクエスト。公平性の単位となるクライアント（セッションまたはIPアドレス）の識別に使用されます。
+     * @param response HTTPレスポンス。拒否時の Retry-After ヘッダーの設定に使用されます。
+     * @return コンパイル完了時に完了する、"interactive_console.html"（成功時）または "result"（失敗・拒否時）のビュー。
      */
     @PostMapping("/compile")
-    public String compile(@RequestParam("sourceCode") String sourceCode,
-                          Model model) {
-        // 受信したソースコードのログ出力（最初の100文字とUTF-8バイト表現）
-        System.out.println("CompilerController RCV sourceCode (first 100 chars): " + (sourceCode != null && sourceCode.length() > 100 ? sourceCode.substring(0, 100) + "..." : sourceCode));
-        if (sourceCode != null) {
-            // StandardCharsets と Arrays がインポートされていることを確認
-            // import java.nio.charset.StandardCharsets;
-            // import java.util.Arrays;
-            System.out.println("CompilerController RCV sourceCode (UTF-8 bytes from getBytes()): " + java.util.Arrays.toString(sourceCode.getBytes(java.nio.charset.StandardCharsets.UTF_8)));
+    public CompletableFuture<ModelAndView> compile(@RequestParam(value = "sourceCode", required = false) String sourceCode,
+                                                   @RequestParam(value = "javaFile", required = false) List<MultipartFile> javaFiles,
+                                                   @RequestParam(value = "mainClass", required = false) String mainClass,
+                                                   @RequestParam(value = "executionMode", required = false) String executionMode,
+                                                   @RequestParam(value = "launchProfile", required = false) String launchProfile,
+                                                   HttpServletRequest request,
+                                                   HttpServletResponse response) {
+        // 受信したソースコードのログ出力（最初の100文字）
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("ソースコードを受信しました (最初の100文字): {}",
+                sourceCode != null && sourceCode.length() > 100 ? sourceCode.substring(0, 100) + "..." : sourceCode);
+        }
+
+        // アップロードされた .java ファイルがあれば、プロジェクトとしてまとめてコンパイルする
+        List<SourceUnit> sourceUnits;
+        try {
+            sourceUnits = readSourceUnits(javaFiles);
+        } catch (IOException e) {
+            ModelAndView view = new ModelAndView("result");
+            view.addObject("compilationStatus", "FAILURE");
+            view.addObject("diagnostics", "アップロードされたファイルを読み込めません: " + e.getMessage());
+            view.addObject("output", "");
+            return CompletableFuture.completedFuture(view);
         }
 
         // 基本的な入力検証: sourceCodeがnullまたは空文字の場合
-        if (sourceCode == null || sourceCode.trim().isEmpty()) {
-            model.addAttribute("compilationStatus", "FAILURE"); // コンパイル状況を「失敗」としてモデルに追加
-            model.addAttribute("diagnostics", "ソースコードは空にできません。"); // 診断メッセージをモデルに追加
-            model.addAttribute("output", ""); // 出力は空（result.htmlがリダイレクト先の場合、この属性を期待する可能性がある）
-            return "result"; // エラー情報を表示するため "result.html" へ（またはエラー表示付きの interactive_console.html）
+        if (sourceUnits.isEmpty() && (sourceCode == null || sourceCode.trim().isEmpty())) {
+            ModelAndView view = new ModelAndView("result"); // エラー情報を表示するため "result.html" へ
+            view.addObject("compilationStatus", "FAILURE"); // コンパイル状況を「失敗」としてモデルに追加
+            view.addObject("diagnostics", "ソースコードは空にできません。"); // 診断メッセージをモデルに追加
+            view.addObject("output", ""); // 出力は空（result.htmlがこの属性を期待する可能性がある）
+            return CompletableFuture.completedFuture(view);
         }
 
-        // DynamicCompilerサービスを使用してソースコードをコンパイル（JARへのコンパイルや準備）
-        // このメソッドはCompilationResultを返すことを想定（前のステップでDynamicCompilerを適合させた）
-        CompilationResult compilationResult = dynamicCompiler.compileToJar(sourceCode); 
+        // コンパイルスケジューラ経由でソースコードをコンパイル
+        // 同一ソースが既にコンパイル済みであれば待ち行列を経由せず、キャッシュされた結果がそのまま使われる
+        CompletableFuture<CompilationScheduler.ScheduledResult> scheduled;
+        try {
+            scheduled = sourceUnits.isEmpty()
+                ? compilationScheduler.submit(resolveClientKey(request), request.getRemoteAddr(), sourceCode)
+                : compilationScheduler.submitProject(resolveClientKey(request), request.getRemoteAddr(), sourceUnits, mainClass);
+        } catch (CompilationScheduler.RejectedException e) {
+            // 混雑時は待たせずに 429 を返す
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+            ModelAndView view = new ModelAndView("result", HttpStatus.TOO_MANY_REQUESTS);
+            view.addObject("compilationStatus", "FAILURE");
+            view.addObject("diagnostics", e.getMessage() + "\n待ち行列の位置: " + e.getQueuePosition()
+                    + "\n" + e.getRetryAfterSeconds() + " 秒後に再試行してください。");
+            view.addObject("output", "");
+            return CompletableFuture.completedFuture(view);
+        }
+        return scheduled.thenApply(result -> buildView(result, executionMode, launchProfile));
+    }
+
+    /**
+     * コンパイル結果から表示するビューを組み立てます。
+     * @param scheduledResult スケジューラから返されたコンパイル結果と計測時間
+     * @param executionMode 実行方式の文字列
+     * @param launchProfile 起動プロファイルの文字列
+     * @return 成功時は "interactive_console.html"、失敗時は "result" のビュー
+     */
+    private ModelAndView buildView(CompilationScheduler.ScheduledResult scheduledResult, String executionMode, String launchProfile) {
+        CompilationResult compilationResult = scheduledResult.getCompilationResult();
+        String diagnosticsOutput = String.join("\n", compilationResult.getDiagnostics());
 
         // コンパイル成功の場合
         if (compilationResult.isSuccess()) {
@@ -96,22 +200,79 @@ public class CompilerController {
             // コンパイル結果をInteractiveProcessManagerに登録。
             // これにより、後続のWebSocket接続時にExecutionWebSocketHandlerがこの情報を取得し、
             // 対応するプロセスを開始できるようになります。
-            processManager.registerCompilationResult(executionId, compilationResult); 
+            ExecutionOptions executionOptions = new ExecutionOptions(ExecutionMode.fromString(executionMode), LaunchProfile.fromString(launchProfile));
+            processManager.registerCompilationResult(executionId, compilationResult, executionOptions);
 
             // モデルに属性を追加して "interactive_console.html" に渡す
-            model.addAttribute("executionId", executionId); // 生成された実行ID
-            model.addAttribute("compilationStatus", "SUCCESS"); // コンパイル状況「成功」
-            String diagnosticsOutput = String.join("\n", compilationResult.getDiagnostics());
+            ModelAndView view = new ModelAndView("interactive_console.html"); // 対話型コンソールページへ
+            view.addObject("executionId", executionId); // 生成された実行ID
+            view.addObject("compilationStatus", "SUCCESS"); // コンパイル状況「成功」
             // 診断メッセージが空の場合は「コンパイルの問題なし」と表示
-            model.addAttribute("diagnostics", diagnosticsOutput.isEmpty() ? "コンパイルの問題はありません。" : diagnosticsOutput);
-            return "interactive_console.html"; // 対話型コンソールページへ
+            view.addObject("diagnostics", diagnosticsOutput.isEmpty() ? "コンパイルの問題はありません。" : diagnosticsOutput);
+            addTimings(view, scheduledResult);
+            return view;
         } else {
             // コンパイル失敗の場合
-            model.addAttribute("compilationStatus", "FAILURE"); // コンパイル状況「失敗」
-            String diagnosticsOutput = String.join("\n", compilationResult.getDiagnostics());
-            model.addAttribute("diagnostics", diagnosticsOutput); // 診断メッセージ
-            // model.addAttribute("output", ""); // コンパイル失敗時は実行出力なし
-            return "result"; // 結果表示ページへ（またはエラー処理付きの interactive_console.html）
+            ModelAndView view = new ModelAndView("result"); // 結果表示ページへ
+            view.addObject("compilationStatus", "FAILURE"); // コンパイル状況「失敗」
+            view.addObject("diagnostics", diagnosticsOutput); // 診断メッセージ
+            addTimings(view, scheduledResult);
+            return view;
+        }
+    }
+
+    /**
+     * 待ち行列での待ち時間とコンパイル時間、javacのフェーズごとの時間とインクリメンタルコンパイルの統計情報（あれば）をビューに追加します。
+     * @param view 対象のビュー
+     * @param scheduledResult 計測時間を含むコンパイル結果
+     */
+    private void addTimings(ModelAndView view, CompilationScheduler.ScheduledResult scheduledResult) {
+        view.addObject("queueWaitMillis", scheduledResult.getQueueWaitMillis());
+        view.addObject("compileMillis", scheduledResult.getCompileMillis());
+        CompilationWorkspace.IncrementalStats stats = scheduledResult.getCompilationResult().getIncrementalStats();
+        if (stats != null) {
+            view.addObject("incrementalStats", stats);
+        }
+        CompilePhaseTimings phaseTimings = scheduledResult.getCompilationResult().getPhaseTimings();
+        if (phaseTimings != null) {
+            view.addObject("phaseTimings", phaseTimings);
+        }
+    }
+
+    /**
+     * アップロードされた .java ファイルをソースユニットに変換します。空のファイル（ファイルが選択されなかった場合）は無視されます。
+     * @param javaFiles アップロードされたファイル（nullの場合あり）
+     * @return ソースユニットのリスト。ファイルがなければ空のリスト。
+     * @throws IOException ファイルの読み込みに失敗した場合
+     */
+    private List<SourceUnit> readSourceUnits(List<MultipartFile> javaFiles) throws IOException {
+        List<SourceUnit> sourceUnits = new ArrayList<>();
+        if (javaFiles == null) {
+            return sourceUnits;
+        }
+        for (MultipartFile file : javaFiles) {
+            if (!file.isEmpty()) {
+                sourceUnits.add(new SourceUnit(file.getOriginalFilename(), new String(file.getBytes(), StandardCharsets.UTF_8)));
+            }
+        }
+        return sourceUnits;
+    }
+
+    /**
+     * 公平性の単位となるクライアントキーを決定します。
+     * 既存のセッションを持つリクエストはセッションごと（同じIPアドレスを共有する教室内の端末を区別するため）、
+     * セッションを持たないリクエスト（Cookieを送らないクライアント）はIPアドレスごとに扱います。
+     * セッションはここでは作成しません（トップページの表示時に作成されます）。Cookieを保存しないクライアントが
+     * 要求のたびに新しいセッション（満杯のトークンバケット）を得たり、セッションを溜め込んだりしないようにするためです。
+     * いずれの場合も、IPアドレスごとのトークンバケットはスケジューラで別に消費されます。
+     * @param request HTTPリクエスト
+     * @return クライアントキー
+     */
+    static String resolveClientKey(HttpServletRequest request) {
+        HttpSession session = request.getSession(false);
+        if (session != null) {
+            return "session:" + session.getId();
         }
+        return "ip:" + request.getRemoteAddr();
     }
 }
@@ -0,0 +1,451 @@
+package tech.nagatani.dev.controller;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.server.ResponseStatusException;
+import tech.nagatani.dev.CompilationResult;
+import tech.nagatani.dev.ComparisonMode;
+import tech.nagatani.dev.CompilerDiagnostic;
+import tech.nagatani.dev.ExecutionMode;
+import tech.nagatani.dev.ExecutionOptions;
+import tech.nagatani.dev.Verdict;
+import tech.nagatani.dev.service.CompilationScheduler;
+import tech.nagatani.dev.service.JudgeService;
+import tech.nagatani.dev.worker.LaunchProfile;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 1つのプログラムを多数のテストケースで採点するRESTコントローラ。
+ * プログラムは1回だけコンパイルされ、{@link JudgeService} によりすべてのテストケースに対して並列に実行されます。
+ * 応答はすべてのケースの判定が終わった後に、1つのJSONとして返されます。
+ * 判定に時間がかかる場合は、待っている間 {@code judge.keepalive-interval-ms} ごとにJSONの前に空白を送信し、
+ * 送信に失敗したらクライアントが切断したとみなして、まだ開始していないケースを取り消します
+ * （HTTP/1.1の非同期処理では、Tomcatは応答を書き込むまでクライアントの切断に気付かないため）。
+ */
+@RestController
+public class JudgeController {
+
+    private final CompilationScheduler compilationScheduler; // コンパイル要求の受け付け制御（待ち行列とクライアントごとの制限）
+    private final JudgeService judgeService; // テストケースの実行と判定
+    private final int maxCases; // 1回のリクエストで受け付ける最大ケース数
+    private final long defaultTimeLimitMs; // 制限時間が省略された場合の値
+    private final long maxTimeLimitMs; // 指定できる制限時間の最大値
+    private final int maxCaseBytes; // 1つのケースの入力・期待される出力の最大バイト数
+    private final long responseTimeoutMarginMs; // 応答のタイムアウトで、ケースの実行時間の見積もりに加える余裕
+    private final long keepAliveIntervalMs; // 判定を待つ間に空白を送信する間隔（0以下で送信しない）
+    private final ScheduledExecutorService keepAliveScheduler; // 空白を送信するスレッド
+
+    /**
+     * 採点のリクエスト本文。
+     */
+    public static class JudgeRequest {
+        private String sourceCode; // 採点するJavaソースコード
+        private List<CaseEntry> cases; // テストケースのリスト
+        private String comparison; // 比較方法（"exact" / "whitespace" / "checker"）
+        private String checkerSource; // チェッカーのJavaソースコード（comparison が "checker" の場合に必須）
+        private Long timeLimitMs; // ケースごとの制限時間（ミリ秒）
+        private Long memoryLimitMb; // ケースごとのメモリの上限（MB、省略時は適用しない）
+        private String executionMode; // 実行方式（"process" / "in-process"）
+        private String launchProfile; // 子JVMの起動プロファイル（"standard" / "fast-start"）
+
+        public String getSourceCode() {
+            return sourceCode;
+        }
+
+        public void setSourceCode(String sourceCode) {
+            this.sourceCode = sourceCode;
+        }
+
+        public List<CaseEntry> getCases() {
+            return cases;
+        }
+
+        public void setCases(List<CaseEntry> cases) {
+            this.cases = cases;
+        }
+
+        public String getComparison() {
+            return comparison;
+        }
+
+        public void setComparison(String comparison) {
+            this.comparison = comparison;
+        }
+
+        public String getCheckerSource() {
+            return checkerSource;
+        }
+
+        public void setCheckerSource(String checkerSource) {
+            this.checkerSource = checkerSource;
+        }
+
+        public Long getTimeLimitMs() {
+            return timeLimitMs;
+        }
+
+        public void setTimeLimitMs(Long timeLimitMs) {
+            this.timeLimitMs = timeLimitMs;
+        }
+
+        public Long getMemoryLimitMb() {
+            return memoryLimitMb;
+        }
+
+        public void setMemoryLimitMb(Long memoryLimitMb) {
+            this.memoryLimitMb = memoryLimitMb;
+        }
+
+        public String getExecutionMode() {
+            return executionMode;
+        }
+
+        public void setExecutionMode(String executionMode) {
+            this.executionMode = executionMode;
+        }
+
+        public String getLaunchProfile() {
+            return launchProfile;
+        }
+
+        public void setLaunchProfile(String launchProfile) {
+            this.launchProfile = launchProfile;
+        }
+    }
+
+    /**
+     * 1つのテストケース。
+     */
+    public static class CaseEntry {
+        private String id; // 呼び出し側が結果を対応付けるためのID（省略時はリスト内の位置）
+        private String input; // 標準入力
+        private String expectedOutput; // 期待される出力
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public String getInput() {
+            return input;
+        }
+
+        public void setInput(String input) {
+            this.input = input;
+        }
+
+        public String getExpectedOutput() {
+            return expectedOutput;
+        }
+
+        public void setExpectedOutput(String expectedOutput) {
+            this.expectedOutput = expectedOutput;
+        }
+    }
+
+    /**
+     * 必要なサービスを依存性注入（DI）によって初期化するコンストラクタです。
+     * @param compilationScheduler コンパイルスケジューラ。
+     * @param judgeService ジャッジサービス。
+     * @param maxCases 1回のリクエストで受け付ける最大ケース数（{@code judge.max-cases}）。
+     * @param defaultTimeLimitMs 制限時間が省略された場合の値（{@code judge.default-time-limit-ms}）。
+     * @param maxTimeLimitMs 指定できる制限時間の最大値（{@code judge.max-time-limit-ms}）。
+     * @param maxCaseBytes 1つのケースの入力・期待される出力の最大バイト数（{@code judge.max-case-bytes}）。
+     * @param responseTimeoutMarginMs 応答のタイムアウトで、ケースの実行時間の見積もりに加える余裕（{@code judge.response-timeout-margin-ms}）。
+     * @param keepAliveIntervalMs 判定を待つ間に空白を送信する間隔（{@code judge.keepalive-interval-ms}、0以下で送信しない）。
+     */
+    public JudgeController(CompilationScheduler compilationScheduler,
+                           JudgeService judgeService,
+                           @Value("${judge.max-cases:500}") int maxCases,
+                           @Value("${judge.default-time-limit-ms:2000}") long defaultTimeLimitMs,
+                           @Value("${judge.max-time-limit-ms:10000}") long maxTimeLimitMs,
+                           @Value("${judge.max-case-bytes:1048576}") int maxCaseBytes,
+                           @Value("${judge.response-timeout-margin-ms:30000}") long responseTimeoutMarginMs,
+                           @Value("${judge.keepalive-interval-ms:5000}") long keepAliveIntervalMs) {
+        this.compilationScheduler = compilationScheduler;
+        this.judgeService = judgeService;
+        this.maxCases = maxCases;
+        this.defaultTimeLimitMs = defaultTimeLimitMs;
+        this.maxTimeLimitMs = maxTimeLimitMs;
+        this.maxCaseBytes = maxCaseBytes;
+        this.responseTimeoutMarginMs = Math.max(0, responseTimeoutMarginMs);
+        this.keepAliveIntervalMs = keepAliveIntervalMs;
+        this.keepAliveScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "judge-keepalive");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * "/api/judge" へのPOSTリクエストを処理し、プログラムをコンパイルしてすべてのテストケースで採点します。
+     * 応答は {@code {"compile":{...},"verdict":"WA","passed":9,"total":10,"summary":{"AC":9,"WA":1},"timing":{...},"cases":[...]}} の形式です。
+     * "cases" の各要素には判定（AC / WA / TLE / MLE / OLE / RE / JE）、終了コード、CPU時間、実時間、常駐メモリの最大値と出力の先頭が含まれます。
+     * コンパイルに失敗した場合、"verdict" は "CE" になり、ケースは実行されません。
+     * 混雑時は HTTP 429 と Retry-After ヘッダーを返します。
+     * <p>
+     * 応答のタイムアウトは、ケース数・制限時間・並列実行の枠の数から見積もった実行時間に
+     * {@code judge.response-timeout-margin-ms} を加えた値です（Spring MVCの非同期処理の既定のタイムアウトは使いません）。
+     * タイムアウトした場合は HTTP 503 を返します（空白の送信を始めた後はステータスが200に確定しているため、
+     * 本文の "success" が false になります）。タイムアウトやクライアントの切断で応答が打ち切られた場合は、
+     * まだ開始していないケースを取り消します。
+     * @param body ソースコードとテストケース、比較方法と上限
+     * @param request HTTPリクエスト（クライアントの識別に使用）
+     * @param httpResponse HTTPレスポンス（判定を待つ間の空白の送信に使用）
+     * @return すべてのケースの判定が終わったときに設定される応答
+     */
+    @PostMapping(value = "/api/judge", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public DeferredResult<ResponseEntity<Map<String, Object>>> judge(@RequestBody JudgeRequest body, HttpServletRequest request,
+                                                                     HttpServletResponse httpResponse) {
+        if (body.getSourceCode() == null || body.getSourceCode().trim().isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "ソースコードは空にできません。");
+        }
+        if (body.getCases() == null || body.getCases().isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "cases は空にできません。");
+        }
+        if (body.getCases().size() > maxCases) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "1回に送信できるケースは " + maxCases + " 個までです。");
+        }
+        ComparisonMode comparisonMode = ComparisonMode.fromString(body.getComparison());
+        if (comparisonMode == ComparisonMode.CHECKER && (body.getCheckerSource() == null || body.getCheckerSource().trim().isEmpty())) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "comparison が checker の場合は checkerSource が必要です。");
+        }
+        long timeLimitMs = body.getTimeLimitMs() != null ? body.getTimeLimitMs() : defaultTimeLimitMs;
+        if (timeLimitMs <= 0 || timeLimitMs > maxTimeLimitMs) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "timeLimitMs は 1〜" + maxTimeLimitMs + " の範囲で指定してください。");
+        }
+        List<JudgeService.TestCase> testCases = new ArrayList<>();
+        for (int i = 0; i < body.getCases().size(); i++) {
+            CaseEntry entry = body.getCases().get(i);
+            if (byteLength(entry.getInput()) > maxCaseBytes || byteLength(entry.getExpectedOutput()) > maxCaseBytes) {
+                throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "ケース " + i + " の入力または期待される出力が " + maxCaseBytes + " バイトを超えています。");
+            }
+            testCases.add(new JudgeService.TestCase(entry.getId(), entry.getInput(), entry.getExpectedOutput()));
+        }
+        JudgeService.JudgeOptions options = new JudgeService.JudgeOptions(comparisonMode, timeLimitMs,
+            body.getMemoryLimitMb() != null ? body.getMemoryLimitMb() : 0,
+            new ExecutionOptions(ExecutionMode.fromString(body.getExecutionMode()), LaunchProfile.fromString(body.getLaunchProfile())));
+        long responseTimeoutMs = judgeService.estimateDurationMillis(testCases.size(), options) + responseTimeoutMarginMs;
+        DeferredResult<ResponseEntity<Map<String, Object>>> deferred = new DeferredResult<>(responseTimeoutMs);
+
+        // プログラムとチェッカーのコンパイルを待ち行列に入れる（同じチェッカーは2回目以降キャッシュから返される）
+        CompletableFuture<CompilationScheduler.ScheduledResult> scheduledProgram;
+        CompletableFuture<CompilationScheduler.ScheduledResult> scheduledChecker;
+        try {
+            String clientKey = CompilerController.resolveClientKey(request);
+            scheduledProgram = compilationScheduler.submit(clientKey, request.getRemoteAddr(), body.getSourceCode());
+            scheduledChecker = comparisonMode == ComparisonMode.CHECKER
+                ? compilationScheduler.submit(clientKey, request.getRemoteAddr(), body.getCheckerSource())
+                : CompletableFuture.completedFuture(null);
+        } catch (CompilationScheduler.RejectedException e) {
+            Map<String, Object> rejected = new LinkedHashMap<>();
+            rejected.put("success", false);
+            rejected.put("message", e.getMessage());
+            rejected.put("queuePosition", e.getQueuePosition());
+            rejected.put("retryAfterSeconds", e.getRetryAfterSeconds());
+            deferred.setResult(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body(rejected));
+            return deferred;
+        }
+
+        // タイムアウトや切断で応答が打ち切られたら、まだ開始していないケースを取り消す
+        AtomicBoolean abandoned = new AtomicBoolean(false);
+        AtomicReference<JudgeService.JudgeRun> running = new AtomicReference<>();
+        Runnable abandon = () -> {
+            if (abandoned.compareAndSet(false, true) && running.get() != null) {
+                running.get().cancel();
+            }
+        };
+        KeepAlive keepAlive = new KeepAlive(httpResponse, abandon);
+        deferred.onTimeout(() -> {
+            keepAlive.stop();
+            abandon.run();
+            Map<String, Object> timedOut = new LinkedHashMap<>();
+            timedOut.put("success", false);
+            timedOut.put("message", "ジャッジが " + responseTimeoutMs + " ミリ秒以内に完了しませんでした。開始していないケースは取り消されました。");
+            deferred.setErrorResult(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(timedOut));
+        });
+        deferred.onError(error -> abandon.run());
+        deferred.onCompletion(() -> {
+            keepAlive.stop();
+            abandon.run(); // 正常に応答した場合はすべてのケースが開始済みのため何もしない
+        });
+        keepAlive.start();
+
+        scheduledProgram.thenCombine(scheduledChecker, (program, checker) -> new CompilationScheduler.ScheduledResult[] {program, checker})
+            .thenCompose(compiled -> {
+                CompilationScheduler.ScheduledResult program = compiled[0];
+                CompilationScheduler.ScheduledResult checker = compiled[1];
+                Map<String, Object> response = new LinkedHashMap<>();
+                response.put("compile", toCompileMap(program));
+                if (checker != null && !checker.getCompilationResult().isSuccess()) {
+                    response.put("checkerCompile", toCompileMap(checker));
+                    response.put("message", "チェッカーのコンパイルに失敗しました。");
+                    return CompletableFuture.completedFuture(ResponseEntity.badRequest().body(response));
+                }
+                if (!program.getCompilationResult().isSuccess()) {
+                    response.put("verdict", Verdict.COMPILE_ERROR.getWireName());
+                    response.put("passed", 0);
+                    response.put("total", testCases.size());
+                    return CompletableFuture.completedFuture(ResponseEntity.ok(response));
+                }
+                JudgeService.JudgeRun run = judgeService.judge(program.getCompilationResult(), testCases, options,
+                        checker != null ? checker.getCompilationResult() : null);
+                running.set(run);
+                if (abandoned.get()) {
+                    run.cancel(); // コンパイルを待っている間に応答が打ち切られた
+                }
+                return run.getFuture()
+                    .thenApply(report -> {
+                        response.putAll(report.toMap());
+                        return ResponseEntity.ok(response);
+                    });
+            })
+            .whenComplete((result, error) -> {
+                keepAlive.stop(); // 結果の書き込みと空白の送信が重ならないようにする
+                if (error != null) {
+                    deferred.setErrorResult(error);
+                } else {
+                    deferred.setResult(result);
+                }
+            });
+        return deferred;
+    }
+
+    /**
+     * アプリケーション終了時に、空白を送信するスレッドを停止します。
+     */
+    @PreDestroy
+    public void shutdown() {
+        keepAliveScheduler.shutdownNow();
+    }
+
+    /**
+     * 判定を待つ間、応答にJSONの前の空白を送信してクライアントの切断を検出します。
+     * 最初の送信でステータス（200）とヘッダーが確定するため、送信は {@code judge.keepalive-interval-ms} が経過してから始めます。
+     */
+    private class KeepAlive implements Runnable {
+        private final HttpServletResponse response; // 空白を送信する応答
+        private final Runnable onDisconnect; // 送信に失敗したときの処理
+        private final ReentrantLock lock = new ReentrantLock(); // 送信と停止を排他する
+        private boolean stopped = false; // 停止したかどうか
+        private boolean sending = false; // 空白の送信を始めたかどうか
+        private ScheduledFuture<?> task; // 定期的な送信
+
+        KeepAlive(HttpServletResponse response, Runnable onDisconnect) {
+            this.response = response;
+            this.onDisconnect = onDisconnect;
+        }
+
+        /**
+         * 定期的な送信を開始します。
+         */
+        void start() {
+            if (keepAliveIntervalMs <= 0) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (!stopped) {
+                    task = keepAliveScheduler.scheduleWithFixedDelay(this, keepAliveIntervalMs, keepAliveIntervalMs, TimeUnit.MILLISECONDS);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 送信を停止します。戻った後に空白が送信されることはありません。
+         */
+        void stop() {
+            lock.lock();
+            try {
+                stopped = true;
+                if (task != null) {
+                    task.cancel(false);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            lock.lock();
+            try {
+                if (stopped) {
+                    return;
+                }
+                if (!sending) {
+                    response.setContentType(MediaType.APPLICATION_JSON_VALUE); // 結果を書き込む時点ではヘッダーを変更できない
+                    sending = true;
+                }
+                response.getOutputStream().write(' ');
+                response.flushBuffer();
+            } catch (IOException | IllegalStateException e) {
+                // クライアントが切断した、または応答が既に完了している
+                stopped = true;
+                task.cancel(false);
+                onDisconnect.run();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * コンパイルの結果を応答に含める形式に変換します。
+     */
+    private Map<String, Object> toCompileMap(CompilationScheduler.ScheduledResult scheduledResult) {
+        CompilationResult result = scheduledResult.getCompilationResult();
+        List<Map<String, Object>> diagnostics = new ArrayList<>();
+        for (CompilerDiagnostic diagnostic : result.getStructuredDiagnostics()) {
+            diagnostics.add(diagnostic.toMap());
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("success", result.isSuccess());
+        map.put("className", result.getClassName());
+        map.put("queueWaitMillis", scheduledResult.getQueueWaitMillis());
+        map.put("compileMillis", scheduledResult.getCompileMillis());
+        if (result.getPhaseTimings() != null) {
+            map.put("phases", result.getPhaseTimings().toMap());
+        }
+        map.put("diagnostics", diagnostics);
+        return map;
+    }
+
+    /**
+     * 文字列のUTF-8でのバイト数を返します（nullの場合は0）。
+     */
+    private static int byteLength(String text) {
+        return text != null ? text.getBytes(StandardCharsets.UTF_8).length : 0;
+    }
+}
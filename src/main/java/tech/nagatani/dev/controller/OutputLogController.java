@@ -0,0 +1,172 @@
+package tech.nagatani.dev.controller;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import tech.nagatani.dev.service.OutputLogStore;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * 対話型実行の出力ログ（{@link OutputLogStore}）をダウンロードするためのRESTコントローラ。
+ * クライアントへの表示が打ち切られるほど大量の出力も、ここから全体（ファイルの上限まで）を取得できます。
+ * ログは実行中も追記され続け、実行の後片付け（WebSocketの切断など）で削除されます。
+ *
+ * <p>取得する範囲は次のいずれかで指定します。</p>
+ * <ul>
+ *   <li>指定なし: 記録済みの全体</li>
+ *   <li>{@code ?page=N}: {@code output.log.page-bytes} バイトごとに区切ったN番目（0始まり）のページ</li>
+ *   <li>{@code Range: bytes=a-b}（{@code bytes=a-}、{@code bytes=-n} も可。複数の範囲の指定は無視して全体を返します）</li>
+ * </ul>
+ * <p>ファイルに書き出されたログは、Tomcatのsendfile（{@code FileChannel#transferTo} によるゼロコピー転送）で送信します。
+ * sendfileが使用できない場合も {@link OutputLogStore.OutputLog#transferTo} でヒープにコピーせずに転送します。</p>
+ */
+@RestController
+public class OutputLogController {
+
+    // Tomcatのsendfileに関するリクエスト属性（org.apache.catalina.Globals の定数と同じ値）
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private final OutputLogStore outputLogs; // 出力ログ
+    private final long pageBytes; // 1ページのバイト数
+
+    /**
+     * 必要なサービスを依存性注入（DI）によって初期化するコンストラクタです。
+     * @param outputLogs 出力ログのサービス。
+     * @param pageBytes 1ページのバイト数（{@code output.log.page-bytes}）。
+     */
+    public OutputLogController(OutputLogStore outputLogs,
+                               @Value("${output.log.page-bytes:1048576}") long pageBytes) {
+        this.outputLogs = outputLogs;
+        this.pageBytes = Math.max(1, pageBytes);
+    }
+
+    /**
+     * "/api/executions/{executionId}/output" へのGETリクエストを処理し、出力ログの指定された範囲を {@code text/plain} で返します。
+     * 範囲を指定した場合は HTTP 206 と {@code Content-Range} ヘッダーを返します。
+     * 記録済みのバイト数は {@code X-Output-Total-Bytes}、ファイルの上限を超えて記録されなかったバイト数は
+     * {@code X-Output-Discarded-Bytes}、ページを指定した場合のページ数は {@code X-Output-Pages} ヘッダーで返します。
+     * ページのバイト境界はマルチバイト文字の途中になることがあるため、クライアントはページを連結してからデコードしてください。
+     * @param executionId 実行ID
+     * @param page ページ番号（0始まり、省略可）
+     * @param range Rangeヘッダー（省略可）
+     * @param request HTTPリクエスト（sendfileの指定に使用）
+     * @param response HTTPレスポンス
+     * @throws IOException 送信に失敗した場合
+     */
+    @GetMapping("/api/executions/{executionId}/output")
+    public void download(@PathVariable String executionId,
+                         @RequestParam(required = false) Long page,
+                         @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+                         HttpServletRequest request, HttpServletResponse response) throws IOException {
+        OutputLogStore.OutputLog log = outputLogs.get(executionId);
+        if (log == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "実行ID " + executionId + " の出力ログが見つかりません。終了後に削除された可能性があります。");
+        }
+        long total = log.getTotalBytes(); // この時点までに記録された範囲を返す
+        long start = 0;
+        long end = total; // 終端（この位置を含まない）
+        boolean partial = false;
+        if (page != null) {
+            if (page < 0) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "ページ番号は0以上で指定してください。");
+            }
+            long pages = (total + pageBytes - 1) / pageBytes;
+            // ページ数を超える番号では掛け算がオーバーフローしうるため、先に範囲外として扱う（416を返す）
+            if (page < pages) {
+                start = page * pageBytes;
+                end = Math.min(total, start + pageBytes);
+            } else {
+                start = total;
+                end = total;
+            }
+            partial = page > 0 || total > 0;
+            response.setHeader("X-Output-Pages", String.valueOf(pages));
+        } else if (range != null && !range.contains(",")) {
+            long[] parsed = parseRange(range, total);
+            if (parsed != null) {
+                start = parsed[0];
+                end = parsed[1];
+                partial = true;
+            }
+        }
+        if (partial && start >= end) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + total);
+            throw new ResponseStatusException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, "指定された範囲に出力がありません（記録済み: " + total + " バイト）。");
+        }
+
+        response.setContentType("text/plain;charset=UTF-8");
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader("X-Output-Total-Bytes", String.valueOf(total));
+        response.setHeader("X-Output-Discarded-Bytes", String.valueOf(log.getDiscardedBytes()));
+        if (partial) {
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (end - 1) + "/" + total);
+        } else {
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"output-" + executionId + ".log\"");
+        }
+        response.setContentLengthLong(end - start);
+        if (end == start) {
+            return;
+        }
+
+        Path file = log.flushToFile();
+        if (file != null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+            // レスポンスの本文はTomcatがファイルから直接送信する（終端の位置は含まない）
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.toString());
+            request.setAttribute(SENDFILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_END_ATTR, end);
+            return;
+        }
+        WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+        log.transferTo(start, end - start, target);
+    }
+
+    /**
+     * 単一の範囲を指定するRangeヘッダーを解析します。
+     * @param range Rangeヘッダーの値（例: "bytes=0-99", "bytes=100-", "bytes=-100"）
+     * @param total 記録済みのバイト数
+     * @return 開始位置と終端（含まない）。形式が不正な場合はnull（全体を返す）。範囲が記録済みのバイト数を超える場合は開始位置と終端が等しくなります。
+     */
+    private static long[] parseRange(String range, long total) {
+        if (!range.startsWith("bytes=")) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // 末尾からnバイト
+                long suffix = Long.parseLong(last);
+                return new long[] {Math.max(0, total - suffix), total};
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? total : Math.min(total, Long.parseLong(last) + 1);
+            if (end < start) {
+                return start > total ? new long[] {total, total} : null;
+            }
+            return new long[] {Math.min(start, total), end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package tech.nagatani.dev.controller;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import tech.nagatani.dev.CompilationResult;
+import tech.nagatani.dev.CompilerDiagnostic;
+import tech.nagatani.dev.ExecutionMode;
+import tech.nagatani.dev.ExecutionOptions;
+import tech.nagatani.dev.SourceUnit;
+import tech.nagatani.dev.service.CompilationScheduler;
+import tech.nagatani.dev.service.InteractiveProcessManager;
+import tech.nagatani.dev.worker.LaunchProfile;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 複数ファイル（パッケージを含む）からなるプロジェクトをJSONで受け付けてコンパイルするRESTコントローラ。
+ * すべてのファイルは1つのjavacタスクでまとめてコンパイルされ、成功した場合は実行IDが発行されます。
+ * コンパイル要求は {@link CompilationScheduler} を経由するため、"/compile" と同じ受け付け制御が適用されます。
+ */
+@RestController
+public class ProjectCompileController {
+
+    private final CompilationScheduler compilationScheduler; // コンパイル要求の受け付け制御
+    private final InteractiveProcessManager processManager; // 対話型プロセス管理サービス
+
+    /**
+     * プロジェクトのコンパイル要求の本文。
+     */
+    public static class ProjectCompileRequest {
+        private List<UnitEntry> units; // ソースファイルのリスト
+        private String mainClass; // メインクラスの名前（完全修飾名または単純名、省略時は自動検出）
+        private String executionMode; // 実行方式（"process" / "in-process"）
+        private String launchProfile; // 子JVMの起動プロファイル（"standard" / "fast-start"）
+
+        public List<UnitEntry> getUnits() {
+            return units;
+        }
+
+        public void setUnits(List<UnitEntry> units) {
+            this.units = units;
+        }
+
+        public String getMainClass() {
+            return mainClass;
+        }
+
+        public void setMainClass(String mainClass) {
+            this.mainClass = mainClass;
+        }
+
+        public String getExecutionMode() {
+            return executionMode;
+        }
+
+        public void setExecutionMode(String executionMode) {
+            this.executionMode = executionMode;
+        }
+
+        public String getLaunchProfile() {
+            return launchProfile;
+        }
+
+        public void setLaunchProfile(String launchProfile) {
+            this.launchProfile = launchProfile;
+        }
+    }
+
+    /**
+     * プロジェクトを構成するソースファイル1つ分。
+     */
+    public static class UnitEntry {
+        private String name; // ファイル名（例: "com/example/Main.java"、省略時はpublicな型の名前から決定）
+        private String sourceCode; // ソースコード
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getSourceCode() {
+            return sourceCode;
+        }
+
+        public void setSourceCode(String sourceCode) {
+            this.sourceCode = sourceCode;
+        }
+    }
+
+    /**
+     * 必要なサービスを依存性注入（DI）によって初期化するコンストラクタです。
+     * @param compilationScheduler コンパイルスケジューラ。
+     * @param processManager 対話型プロセス管理サービス。
+     */
+    public ProjectCompileController(CompilationScheduler compilationScheduler, InteractiveProcessManager processManager) {
+        this.compilationScheduler = compilationScheduler;
+        this.processManager = processManager;
+    }
+
+    /**
+     * "/api/compile/project" へのPOSTリクエストを処理し、プロジェクトをコンパイルします。
+     * 応答は {@code {"success":true,"className":"com.example.Main","executionId":"...","classCount":3,"incremental":{...},"phases":{...},"diagnostics":[...],...}} の形式です。
+     * "incremental" には、前回の投稿から再利用・再コンパイルしたファイルと推定節約時間が含まれます（キャッシュヒット時は省略）。
+     * "phases" には、javacのフェーズごとの所要時間と生成されたクラスの数が含まれます（キャッシュヒット時は省略）。
+     * 成功した場合、executionId でWebSocketに接続するとメインクラスが実行されます。
+     * 混雑時は HTTP 429 と Retry-After ヘッダーを返します。
+     * @param body ソースファイルのリストとメインクラス、実行方式
+     * @param request HTTPリクエスト（クライアントの識別に使用）
+     * @return コンパイルの完了時に完了する応答
+     */
+    @PostMapping(value = "/api/compile/project", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> compileProject(@RequestBody ProjectCompileRequest body,
+                                                                                 HttpServletRequest request) {
+        if (body.getUnits() == null || body.getUnits().isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "units は空にできません。");
+        }
+        List<SourceUnit> sourceUnits = new ArrayList<>();
+        for (UnitEntry unit : body.getUnits()) {
+            sourceUnits.add(new SourceUnit(unit.getName(), unit.getSourceCode()));
+        }
+        ExecutionOptions executionOptions = new ExecutionOptions(
+            ExecutionMode.fromString(body.getExecutionMode()), LaunchProfile.fromString(body.getLaunchProfile()));
+
+        CompletableFuture<CompilationScheduler.ScheduledResult> scheduled;
+        try {
+            scheduled = compilationScheduler.submitProject(CompilerController.resolveClientKey(request), request.getRemoteAddr(), sourceUnits, body.getMainClass());
+        } catch (CompilationScheduler.RejectedException e) {
+            Map<String, Object> rejected = new LinkedHashMap<>();
+            rejected.put("success", false);
+            rejected.put("message", e.getMessage());
+            rejected.put("queuePosition", e.getQueuePosition());
+            rejected.put("retryAfterSeconds", e.getRetryAfterSeconds());
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body(rejected));
+        }
+        return scheduled.thenApply(scheduledResult -> ResponseEntity.ok(toResponse(scheduledResult, executionOptions)));
+    }
+
+    /**
+     * コンパイル結果を応答の本文に変換します。成功した場合は実行IDを発行して結果を登録します。
+     */
+    private Map<String, Object> toResponse(CompilationScheduler.ScheduledResult scheduledResult, ExecutionOptions executionOptions) {
+        CompilationResult result = scheduledResult.getCompilationResult();
+        String executionId = null;
+        if (result.isSuccess()) {
+            executionId = UUID.randomUUID().toString();
+            processManager.registerCompilationResult(executionId, result, executionOptions);
+        }
+        List<Map<String, Object>> diagnostics = new ArrayList<>();
+        for (CompilerDiagnostic diagnostic : result.getStructuredDiagnostics()) {
+            diagnostics.add(diagnostic.toMap());
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("success", result.isSuccess());
+        response.put("className", result.getClassName());
+        response.put("executionId", executionId);
+        response.put("classCount", result.getClassBytes().size());
+        response.put("queueWaitMillis", scheduledResult.getQueueWaitMillis());
+        response.put("compileMillis", scheduledResult.getCompileMillis());
+        if (result.getIncrementalStats() != null) {
+            response.put("incremental", result.getIncrementalStats().toMap());
+        }
+        if (result.getPhaseTimings() != null) {
+            response.put("phases", result.getPhaseTimings().toMap());
+        }
+        response.put("diagnostics", diagnostics);
+        return response;
+    }
+}
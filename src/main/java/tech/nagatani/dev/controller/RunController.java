@@ -0,0 +1,303 @@
+package tech.nagatani.dev.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import tech.nagatani.dev.CompilationResult;
+import tech.nagatani.dev.CompilerDiagnostic;
+import tech.nagatani.dev.DynamicCompiler;
+import tech.nagatani.dev.ExecutionMode;
+import tech.nagatani.dev.ExecutionOptions;
+import tech.nagatani.dev.ExitReport;
+import tech.nagatani.dev.metrics.PipelineMetrics;
+import tech.nagatani.dev.service.CompilationScheduler;
+import tech.nagatani.dev.service.InProcessExecutor;
+import tech.nagatani.dev.service.InteractiveProcessManager;
+import tech.nagatani.dev.worker.LaunchProfile;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ソースコードと標準入力の全体を1回のリクエストで受け取り、コンパイルと実行を行うRESTコントローラ（採点やCIなどの非対話的な実行用）。
+ * WebSocketによる往復を行わず、標準入力は実行の開始直後に一度に書き込んで閉じます。
+ * 結果は Server-Sent Events として、次の順にストリーミングされます。
+ * <ul>
+ *   <li>{@code compile}: コンパイルの結果（成否・診断・待ち時間とコンパイル時間・javacのフェーズごとの時間）</li>
+ *   <li>{@code output}: プログラムの出力のチャンクのJSON配列（WebSocketのフレームと同じ形式。複数回）</li>
+ *   <li>{@code exit}: 終了報告（終了コード・終了理由・使用したリソース）と全体の所要時間</li>
+ * </ul>
+ * コンパイルに失敗した場合は {@code compile} イベントの後に応答を閉じます。
+ */
+@RestController
+public class RunController {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RunController.class);
+
+    private final CompilationScheduler compilationScheduler; // コンパイル要求の受け付け制御（待ち行列とクライアントごとの制限）
+    private final InteractiveProcessManager processManager; // 実行の登録と後片付け
+    private final DynamicCompiler dynamicCompiler; // 子プロセスでの実行
+    private final InProcessExecutor inProcessExecutor; // インプロセスでの実行
+    private final ObjectMapper objectMapper; // イベントのデータをJSONに変換するためのマッパー
+    private final PipelineMetrics metrics; // 出力量の記録先
+    private final long flushSizeBytes; // 出力をまとめて送信するバイト数
+    private final long timeoutMs; // ストリーミング応答のタイムアウト
+    private final int maxStdinBytes; // 受け付ける標準入力の最大バイト数
+    // コンパイル完了後の実行の開始を行うスレッド。子JVMの起動やワーカーの取得を待つ間、コンパイルワーカーを占有しないようにする
+    private final ExecutorService launchExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * 実行のリクエスト本文。
+     */
+    public static class RunRequest {
+        private String sourceCode; // Javaソースコード
+        private String stdin; // プログラムの標準入力に書き込む内容（省略時は空）
+        private String executionMode; // 実行方式（"process" / "in-process"）
+        private String launchProfile; // 子JVMの起動プロファイル（"standard" / "fast-start"）
+
+        public String getSourceCode() {
+            return sourceCode;
+        }
+
+        public void setSourceCode(String sourceCode) {
+            this.sourceCode = sourceCode;
+        }
+
+        public String getStdin() {
+            return stdin;
+        }
+
+        public void setStdin(String stdin) {
+            this.stdin = stdin;
+        }
+
+        public String getExecutionMode() {
+            return executionMode;
+        }
+
+        public void setExecutionMode(String executionMode) {
+            this.executionMode = executionMode;
+        }
+
+        public String getLaunchProfile() {
+            return launchProfile;
+        }
+
+        public void setLaunchProfile(String launchProfile) {
+            this.launchProfile = launchProfile;
+        }
+    }
+
+    /**
+     * 必要なサービスを依存性注入（DI）によって初期化するコンストラクタです。
+     * @param compilationScheduler コンパイルスケジューラ。
+     * @param processManager 対話型プロセス管理サービス。
+     * @param dynamicCompiler 動的コンパイルサービス。
+     * @param inProcessExecutor インプロセス実行サービス。
+     * @param objectMapper JSONマッパー。
+     * @param metrics パイプラインのメトリクス。
+     * @param flushSizeBytes 出力をまとめて送信するバイト数（{@code run.stream.flush-size-bytes}）。
+     * @param timeoutMs ストリーミング応答のタイムアウト（{@code run.stream.timeout-ms}）。
+     * @param maxStdinBytes 受け付ける標準入力の最大バイト数（{@code run.stdin.max-bytes}）。
+     */
+    public RunController(CompilationScheduler compilationScheduler,
+                         InteractiveProcessManager processManager,
+                         DynamicCompiler dynamicCompiler,
+                         InProcessExecutor inProcessExecutor,
+                         ObjectMapper objectMapper,
+                         PipelineMetrics metrics,
+                         @Value("${run.stream.flush-size-bytes:16384}") long flushSizeBytes,
+                         @Value("${run.stream.timeout-ms:330000}") long timeoutMs,
+                         @Value("${run.stdin.max-bytes:1048576}") int maxStdinBytes) {
+        this.compilationScheduler = compilationScheduler;
+        this.processManager = processManager;
+        this.dynamicCompiler = dynamicCompiler;
+        this.inProcessExecutor = inProcessExecutor;
+        this.objectMapper = objectMapper;
+        this.metrics = metrics;
+        this.flushSizeBytes = flushSizeBytes;
+        this.timeoutMs = timeoutMs;
+        this.maxStdinBytes = maxStdinBytes;
+    }
+
+    /**
+     * "/api/run" へのPOSTリクエストを処理し、ソースコードをコンパイルして標準入力を与えて実行します。
+     * 応答は {@code text/event-stream} で、{@code compile}・{@code output}・{@code exit} イベントが順に届きます。
+     * {@code exit} イベントのデータは {@code {"reason":"exited","exitCode":0,...,"message":"...","queueWaitMillis":0,"compileMillis":120,"totalMillis":480}} の形式です。
+     * 混雑時は HTTP 429 と Retry-After ヘッダーを返します。
+     * @param body ソースコードと標準入力、実行方式
+     * @param request HTTPリクエスト（クライアントの識別に使用）
+     * @return イベントをストリーミングする {@link SseEmitter}、または拒否時のJSON応答（{@link ResponseEntity}）。
+     *         Spring MVCは戻り値の実際の型で処理を選ぶため、戻り値の型は {@code Object} としています。
+     */
+    @PostMapping(value = "/api/run", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public Object run(@RequestBody RunRequest body, HttpServletRequest request) {
+        long receivedNanos = System.nanoTime();
+        if (body.getSourceCode() == null || body.getSourceCode().trim().isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "ソースコードは空にできません。");
+        }
+        byte[] stdin = body.getStdin() != null ? body.getStdin().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (stdin.length > maxStdinBytes) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "標準入力は " + maxStdinBytes + " バイトまでです。");
+        }
+        ExecutionOptions executionOptions = new ExecutionOptions(
+            ExecutionMode.fromString(body.getExecutionMode()), LaunchProfile.fromString(body.getLaunchProfile()));
+
+        CompletableFuture<CompilationScheduler.ScheduledResult> scheduled;
+        try {
+            scheduled = compilationScheduler.submit(CompilerController.resolveClientKey(request), request.getRemoteAddr(), body.getSourceCode());
+        } catch (CompilationScheduler.RejectedException e) {
+            Map<String, Object> rejected = new LinkedHashMap<>();
+            rejected.put("success", false);
+            rejected.put("message", e.getMessage());
+            rejected.put("queuePosition", e.getQueuePosition());
+            rejected.put("retryAfterSeconds", e.getRetryAfterSeconds());
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body(rejected);
+        }
+
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        SseOutputSink sink = new SseOutputSink(emitter, objectMapper, metrics, flushSizeBytes);
+        scheduled.whenCompleteAsync((scheduledResult, error) -> {
+            if (error != null) {
+                LOG.error("実行のためのコンパイル中にエラーが発生しました: {}", error.getMessage());
+                emitter.completeWithError(error);
+                return;
+            }
+            sink.sendEvent("compile", toCompileEvent(scheduledResult));
+            if (!scheduledResult.getCompilationResult().isSuccess()) {
+                emitter.complete();
+                return;
+            }
+            execute(scheduledResult, executionOptions, stdin, emitter, sink, receivedNanos);
+        }, launchExecutor);
+        return emitter;
+    }
+
+    /**
+     * アプリケーション終了時に、実行の開始を行うスレッドを停止します。
+     */
+    @PreDestroy
+    public void shutdown() {
+        launchExecutor.shutdownNow();
+    }
+
+    /**
+     * コンパイル結果を実行し、標準入力を書き込みます。終了報告と出力の終端が揃ったら {@code exit} イベントを送信して応答を閉じます。
+     * クライアントが先に切断した場合や応答がタイムアウトした場合は、実行を終了させます。
+     */
+    private void execute(CompilationScheduler.ScheduledResult scheduledResult, ExecutionOptions executionOptions, byte[] stdin,
+                         SseEmitter emitter, SseOutputSink sink, long receivedNanos) {
+        CompilationResult result = scheduledResult.getCompilationResult();
+        String executionId = UUID.randomUUID().toString();
+        // 登録しておくことで、後片付け（cleanupProcess）で一時ディレクトリも削除される
+        processManager.registerCompilationResult(executionId, result, executionOptions);
+        processManager.registerHttpConsumer(executionId); // WebSocketセッションがなくても孤立した実行として回収されないようにする
+
+        AtomicBoolean finished = new AtomicBoolean(false); // exit イベントを送信した（以降の後片付けは不要）
+        Runnable abort = () -> {
+            if (finished.compareAndSet(false, true)) {
+                processManager.terminateExecution(executionId);
+                processManager.cleanupProcess(executionId);
+            }
+        };
+        emitter.onCompletion(abort);
+        emitter.onTimeout(abort);
+        emitter.onError(e -> abort.run());
+
+        sink.whenFinished().thenAccept(report -> {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            sink.sendEvent("exit", toExitEvent(report, scheduledResult, receivedNanos));
+            processManager.cleanupProcess(executionId);
+            emitter.complete();
+        });
+
+        if (executionOptions.getExecutionMode() == ExecutionMode.IN_PROCESS && inProcessExecutor.isEnabled()) {
+            inProcessExecutor.start(result, executionId, processManager, sink);
+        } else {
+            dynamicCompiler.startProcess(result, executionId, processManager, sink, executionOptions.getLaunchProfile());
+        }
+
+        OutputStream processStdin = processManager.getProcessStdin(executionId);
+        if (processStdin == null) {
+            // 開始できなかった場合（理由は出力として送信済み）
+            if (finished.compareAndSet(false, true)) {
+                Map<String, Object> event = new LinkedHashMap<>();
+                event.put("message", "プログラムを開始できませんでした。");
+                sink.sendEvent("exit", event);
+                processManager.cleanupProcess(executionId);
+                emitter.complete();
+            }
+            return;
+        }
+        // 標準入力の書き込みは、プログラムが読み取らずにパイプが詰まってもブロックしないよう、仮想スレッドで行う
+        Thread.ofVirtual().name("run-stdin-" + executionId).start(() -> {
+            try (OutputStream out = processStdin) {
+                out.write(stdin);
+                out.flush();
+            } catch (IOException e) {
+                // プログラムが入力をすべて読まずに終了した場合など
+                LOG.debug("実行ID {} の標準入力への書き込みを中断しました: {}", executionId, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * コンパイルの結果を {@code compile} イベントのデータに変換します。
+     */
+    private Map<String, Object> toCompileEvent(CompilationScheduler.ScheduledResult scheduledResult) {
+        CompilationResult result = scheduledResult.getCompilationResult();
+        List<Map<String, Object>> diagnostics = new ArrayList<>();
+        for (CompilerDiagnostic diagnostic : result.getStructuredDiagnostics()) {
+            diagnostics.add(diagnostic.toMap());
+        }
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("success", result.isSuccess());
+        event.put("className", result.getClassName());
+        event.put("queueWaitMillis", scheduledResult.getQueueWaitMillis());
+        event.put("compileMillis", scheduledResult.getCompileMillis());
+        if (result.getPhaseTimings() != null) {
+            event.put("phases", result.getPhaseTimings().toMap());
+        }
+        event.put("diagnostics", diagnostics);
+        return event;
+    }
+
+    /**
+     * 終了報告を {@code exit} イベントのデータに変換します。
+     */
+    private Map<String, Object> toExitEvent(ExitReport report, CompilationScheduler.ScheduledResult scheduledResult, long receivedNanos) {
+        Map<String, Object> event = new LinkedHashMap<>(report.toMap());
+        event.put("message", report.getMessage());
+        event.put("queueWaitMillis", scheduledResult.getQueueWaitMillis());
+        event.put("compileMillis", scheduledResult.getCompileMillis());
+        event.put("totalMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - receivedNanos));
+        return event;
+    }
+}
@@ -0,0 +1,167 @@
+package tech.nagatani.dev.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import tech.nagatani.dev.ExecutionCompletion;
+import tech.nagatani.dev.ExitReport;
+import tech.nagatani.dev.OutputSink;
+import tech.nagatani.dev.metrics.PipelineMetrics;
+import tech.nagatani.dev.websocket.OutputChannel;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 1つの実行の出力を、Server-Sent Events のイベントとしてHTTPの応答にストリーミングする {@link OutputSink}。
+ * 出力はWebSocketのフレームと同じチャンクのJSON配列（{@code [{"channel":"stdout","data":"..."}]}）にまとめ、
+ * {@code output} イベントとして送信します。まとめた出力が {@code flushSizeBytes} に達したとき、
+ * またはプログラムの出力が途切れたとき（{@link #flushSession}）に送信します。
+ * <p>
+ * {@link #whenFinished()} は終了報告と標準出力・標準エラー出力の両方の終端を待ってから完了するため（{@link ExecutionCompletion}）、
+ * 呼び出し側はその後に最後のイベントを送信すれば、すべての出力の後に届けることができます。
+ */
+class SseOutputSink implements OutputSink {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SseOutputSink.class);
+
+    private final SseEmitter emitter; // 送信先の応答
+    private final ObjectMapper objectMapper; // イベントのデータをJSONに変換するためのマッパー
+    private final PipelineMetrics metrics; // 出力量の記録先
+    private final long flushSizeBytes; // このバイト数に達したら出力の途切れを待たずに送信する
+    // 送信待ちのチャンクと応答への書き込みを保護するロック（読み取りスレッドは仮想スレッドのため synchronized は使わない）
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<OutputChannel> pendingChannels = new ArrayList<>(); // 送信待ちのチャンクのチャネル
+    private final List<StringBuilder> pendingTexts = new ArrayList<>(); // 送信待ちのチャンクの内容（同じチャネルの連続した出力は結合する）
+    private long pendingBytes = 0; // 送信待ちの出力のバイト数
+    private boolean disconnected = false; // クライアントが切断した（以降の送信は行わない）
+    private final ExecutionCompletion completion = new ExecutionCompletion(); // 終了報告と出力の終端
+
+    /**
+     * 送信先を構築します。
+     * @param emitter 送信先の応答
+     * @param objectMapper JSONマッパー
+     * @param metrics 出力量の記録先
+     * @param flushSizeBytes このバイト数に達したら待たずに送信する
+     */
+    SseOutputSink(SseEmitter emitter, ObjectMapper objectMapper, PipelineMetrics metrics, long flushSizeBytes) {
+        this.emitter = emitter;
+        this.objectMapper = objectMapper;
+        this.metrics = metrics;
+        this.flushSizeBytes = flushSizeBytes;
+    }
+
+    @Override
+    public void sendMessageToSession(String executionId, String message) {
+        sendOutputToSession(executionId, OutputChannel.SYSTEM, message + "\n");
+    }
+
+    @Override
+    public void sendOutputToSession(String executionId, OutputChannel channel, String text) {
+        if (text.isEmpty()) {
+            return;
+        }
+        long bytes = text.getBytes(StandardCharsets.UTF_8).length;
+        if (channel != OutputChannel.SYSTEM) {
+            metrics.recordOutput(channel == OutputChannel.STDERR, bytes, text.chars().filter(c -> c == '\n').count());
+        }
+        lock.lock();
+        try {
+            int last = pendingChannels.size() - 1;
+            if (last >= 0 && pendingChannels.get(last) == channel) {
+                pendingTexts.get(last).append(text);
+            } else {
+                pendingChannels.add(channel);
+                pendingTexts.add(new StringBuilder(text));
+            }
+            pendingBytes += bytes;
+            if (pendingBytes >= flushSizeBytes) {
+                flushLocked();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void flushSession(String executionId) {
+        lock.lock();
+        try {
+            flushLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void sendExitReport(String executionId, ExitReport report) {
+        completion.exitReported(report);
+    }
+
+    @Override
+    public void outputClosed(String executionId, OutputChannel channel) {
+        completion.outputClosed(channel);
+    }
+
+    /**
+     * 終了報告が届き、出力ストリームの終端に達したとき（または終端を一定時間待ったとき）に完了するFutureを返します。
+     * @return 終了報告で完了するFuture
+     */
+    CompletableFuture<ExitReport> whenFinished() {
+        return completion.whenFinished();
+    }
+
+    /**
+     * まとめている出力を送信してから、指定された名前のイベントを送信します。
+     * @param name イベント名
+     * @param data イベントのデータ（JSONに変換されます）
+     */
+    void sendEvent(String name, Object data) {
+        lock.lock();
+        try {
+            flushLocked();
+            sendLocked(name, data);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLocked() {
+        if (pendingChannels.isEmpty()) {
+            return;
+        }
+        List<Map<String, Object>> chunks = new ArrayList<>();
+        for (int i = 0; i < pendingChannels.size(); i++) {
+            Map<String, Object> chunk = new LinkedHashMap<>();
+            chunk.put("channel", pendingChannels.get(i).getWireName());
+            chunk.put("data", pendingTexts.get(i).toString());
+            chunks.add(chunk);
+        }
+        pendingChannels.clear();
+        pendingTexts.clear();
+        pendingBytes = 0;
+        sendLocked("output", chunks);
+    }
+
+    private void sendLocked(String name, Object data) {
+        if (disconnected) {
+            return;
+        }
+        try {
+            emitter.send(SseEmitter.event().name(name).data(objectMapper.writeValueAsString(data)));
+        } catch (JsonProcessingException e) {
+            LOG.warn("{} イベントをJSONに変換できません: {}", name, e.getMessage());
+        } catch (IOException | IllegalStateException e) {
+            // クライアントが切断した、またはタイムアウトにより応答が既に完了している（実行の終了は呼び出し側が行う）
+            disconnected = true;
+        }
+    }
+}
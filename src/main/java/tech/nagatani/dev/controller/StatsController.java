@@ -0,0 +1,146 @@
+package tech.nagatani.dev.controller;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import tech.nagatani.dev.service.BatchCompilationService;
+import tech.nagatani.dev.service.CompilationScheduler;
+import tech.nagatani.dev.service.ExecutionTeardown;
+import tech.nagatani.dev.service.InProcessExecutor;
+import tech.nagatani.dev.service.IncrementalCompilationService;
+import tech.nagatani.dev.service.JudgeService;
+import tech.nagatani.dev.service.InteractiveProcessManager;
+import tech.nagatani.dev.service.ExecutionWatchdog;
+import tech.nagatani.dev.service.OutputLogStore;
+import tech.nagatani.dev.service.ResourceReaper;
+import tech.nagatani.dev.websocket.ExecutionWebSocketHandler;
+import tech.nagatani.dev.worker.CdsArchiveManager;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * サーバーの実行状況（スレッド数、メモリ使用量、コンパイルの待ち行列）をJSONで返すコントローラ。
+ * 同時実行セッション数に対してOSスレッド数やヒープ使用量がどのように増えるかを確認するために使用します。
+ */
+@RestController
+public class StatsController {
+
+    private final InteractiveProcessManager processManager; // 対話型プロセス管理サービス
+    private final ExecutionWebSocketHandler webSocketHandler; // WebSocket実行ハンドラ（送信キューの統計に使用）
+    private final CompilationScheduler compilationScheduler; // コンパイルスケジューラ（待ち行列の統計に使用）
+    private final BatchCompilationService batchCompilationService; // 一括コンパイルサービス
+    private final IncrementalCompilationService incrementalCompilationService; // インクリメンタルコンパイルの作業領域
+    private final ResourceReaper resourceReaper; // 放置されたリソースの回収
+    private final ExecutionWatchdog executionWatchdog; // 実行ごとのリソースの上限
+    private final JudgeService judgeService; // テストケースの採点
+    private final OutputLogStore outputLogStore; // 実行の出力ログ
+    private final ExecutionTeardown executionTeardown; // 実行の後片付け
+    private final CdsArchiveManager cdsArchiveManager; // 子JVM用のCDSアーカイブ
+    private final InProcessExecutor inProcessExecutor; // インプロセス実行のスレッドの枠
+
+    /**
+     * 必要なサービスを依存性注入（DI）によって初期化するコンストラクタです。
+     * @param processManager 対話型プロセス管理サービス。
+     * @param webSocketHandler WebSocket実行ハンドラ。
+     * @param compilationScheduler コンパイルスケジューラ。
+     * @param batchCompilationService 一括コンパイルサービス。
+     * @param incrementalCompilationService インクリメンタルコンパイルサービス。
+     * @param resourceReaper リソース回収コンポーネント。
+     * @param executionWatchdog 実行の監視サービス。
+     * @param judgeService ジャッジサービス。
+     * @param outputLogStore 出力ログのサービス。
+     * @param executionTeardown 実行の後片付けのサービス。
+     * @param cdsArchiveManager CDSアーカイブの管理コンポーネント。
+     * @param inProcessExecutor インプロセス実行サービス。
+     */
+    public StatsController(InteractiveProcessManager processManager, ExecutionWebSocketHandler webSocketHandler,
+                           CompilationScheduler compilationScheduler, BatchCompilationService batchCompilationService,
+                           IncrementalCompilationService incrementalCompilationService, ResourceReaper resourceReaper,
+                           ExecutionWatchdog executionWatchdog, JudgeService judgeService, OutputLogStore outputLogStore,
+                           ExecutionTeardown executionTeardown, CdsArchiveManager cdsArchiveManager,
+                           InProcessExecutor inProcessExecutor) {
+        this.processManager = processManager;
+        this.webSocketHandler = webSocketHandler;
+        this.compilationScheduler = compilationScheduler;
+        this.batchCompilationService = batchCompilationService;
+        this.incrementalCompilationService = incrementalCompilationService;
+        this.resourceReaper = resourceReaper;
+        this.executionWatchdog = executionWatchdog;
+        this.judgeService = judgeService;
+        this.outputLogStore = outputLogStore;
+        this.executionTeardown = executionTeardown;
+        this.cdsArchiveManager = cdsArchiveManager;
+        this.inProcessExecutor = inProcessExecutor;
+    }
+
+    /**
+     * "/api/stats" へのGETリクエストを処理し、現在のスレッド数、メモリ使用量、コンパイルの待ち行列の状態を返します。
+     * セッションあたりの値は、実行中のセッションがない場合は0になります。
+     * @return 統計情報（項目名 → 値）
+     */
+    @GetMapping("/api/stats")
+    public Map<String, Object> stats() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        int sessions = processManager.getActiveSessionCount();
+        int readerThreads = processManager.getLiveReaderThreadCount();
+        int platformReaderThreads = processManager.getLivePlatformReaderThreadCount();
+
+        Map<String, Object> sessionStats = new LinkedHashMap<>();
+        sessionStats.put("active", sessions);
+        sessionStats.put("pending", processManager.getPendingCount());
+
+        // ThreadMXBean が数えるのはプラットフォームスレッド（OSスレッド）のみで、仮想スレッドは含まれない
+        Map<String, Object> threadStats = new LinkedHashMap<>();
+        threadStats.put("platformThreads", threadBean.getThreadCount());
+        threadStats.put("peakPlatformThreads", threadBean.getPeakThreadCount());
+        threadStats.put("readerThreads", readerThreads);
+        threadStats.put("platformReaderThreads", platformReaderThreads);
+        threadStats.put("readerThreadsPerSession", perSession(readerThreads, sessions));
+        threadStats.put("platformReaderThreadsPerSession", perSession(platformReaderThreads, sessions));
+
+        Map<String, Object> memoryStats = new LinkedHashMap<>();
+        memoryStats.put("heapUsedBytes", heap.getUsed());
+        memoryStats.put("heapCommittedBytes", heap.getCommitted());
+        memoryStats.put("heapUsedBytesPerSession", perSession(heap.getUsed(), sessions));
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sessions", sessionStats);
+        stats.put("threads", threadStats);
+        stats.put("memory", memoryStats);
+        stats.put("compiler", compilationScheduler.getStats());
+        stats.put("batch", batchCompilationService.getStats());
+        stats.put("workspaces", incrementalCompilationService.getStats());
+        stats.put("reaper", resourceReaper.getStats());
+        stats.put("limits", executionWatchdog.getStats());
+        stats.put("judge", judgeService.getStats());
+        stats.put("outputLogs", outputLogStore.getStats());
+        stats.put("teardown", executionTeardown.getStats());
+        stats.put("cds", cdsArchiveManager.getStats());
+        stats.put("inProcess", inProcessExecutor.getStats());
+        return stats;
+    }
+
+    /**
+     * "/api/stats/sessions" へのGETリクエストを処理し、セッションごとの送信キューの状態
+     * （キューの深さ、破棄した出力、一時停止の回数、送信時間など）を返します。
+     * @return 実行ID → 送信キューの統計情報
+     */
+    @GetMapping("/api/stats/sessions")
+    public Map<String, Map<String, Object>> sessionStats() {
+        return webSocketHandler.getOutputQueueStats();
+    }
+
+    /**
+     * 値をセッション数で割った値を返します。
+     * @param value 対象の値
+     * @param sessions セッション数
+     * @return セッションあたりの値。セッション数が0の場合は0。
+     */
+    private static double perSession(double value, int sessions) {
+        return sessions == 0 ? 0 : value / sessions;
+    }
+}
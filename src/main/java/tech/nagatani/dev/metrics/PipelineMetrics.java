@@ -0,0 +1,268 @@
+package tech.nagatani.dev.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+import tech.nagatani.dev.CompilePhaseTimings;
+import tech.nagatani.dev.ExitReason;
+import tech.nagatani.dev.ExitReport;
+import tech.nagatani.dev.Verdict;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * コンパイルから実行結果の送信までの各段階のメトリクスをMicrometerに記録するコンポーネント。
+ * 記録したメトリクスはActuatorの {@code /actuator/metrics} と {@code /actuator/prometheus} で参照できます。
+ * <ul>
+ *   <li>タイマー（ヒストグラム付き）: コンパイル時間、javacのフェーズごとの時間、待ち行列での待ち時間、子プロセスの起動から最初の出力までの時間、
+ *       実行時間（終了理由ごと）、ジャッジの1テストケースの所要時間（判定ごと）、WebSocketの1フレームの送信時間、
+ *       実行の後片付け（呼び出し元の所要時間、プロセスの終了までの時間、一時ディレクトリの一括削除）</li>
+ *   <li>カウンタ: コンパイル要求の受け付け結果、出力のバイト数と行数（チャネルごと）</li>
+ *   <li>ゲージ: 実行中のプロセス数、開始待ちのコンパイル結果の数、使用中の一時ディレクトリの数など（各サービスが登録）</li>
+ * </ul>
+ * メーターは起動時に作成しておき、記録のたびにレジストリを検索しないようにしています。
+ */
+@Component
+public class PipelineMetrics {
+
+    private final MeterRegistry registry; // メトリクスの登録先
+
+    private final Timer queueWait; // コンパイル要求が待ち行列で待った時間
+    private final Map<String, Timer> compileTimers; // "種類.結果" → コンパイル時間
+    private final Map<String, Counter> compileRequests; // 受け付け結果 → コンパイル要求数
+    private final Map<CompilePhaseTimings.Phase, Timer> phaseTimers = new EnumMap<>(CompilePhaseTimings.Phase.class); // javacのフェーズ → 所要時間
+    private final DistributionSummary generatedClasses; // 1回のコンパイルで生成されたクラスの数
+    private final Timer firstOutputFromWorker; // 事前起動ワーカーでの開始から最初の出力まで
+    private final Timer firstOutputFromNewJvm; // 新しいJVMの起動から最初の出力まで
+    private final Map<ExitReason, Timer> runTimers = new EnumMap<>(ExitReason.class); // 終了理由 → 実行時間
+    private final Map<Verdict, Timer> judgeCaseTimers = new EnumMap<>(Verdict.class); // 判定 → ジャッジの1テストケースの所要時間
+    private final Timer webSocketSend; // WebSocketの1フレームの送信時間
+    private final DistributionSummary webSocketFrameBytes; // WebSocketの1フレームのバイト数
+    private final Counter stdoutBytes; // 標準出力のバイト数
+    private final Counter stderrBytes; // 標準エラー出力のバイト数
+    private final Counter stdoutLines; // 標準出力の行数
+    private final Counter stderrLines; // 標準エラー出力の行数
+    private final Timer cleanupCall; // 後片付けの呼び出し元（WebSocketのクローズ処理など）が待った時間
+    private final Map<String, Timer> teardownTimers; // 終了のしかた → 後片付けの要求からプロセスの終了までの時間
+    private final Timer directoryBatch; // 一時ディレクトリの1回の一括削除の所要時間
+    private final DistributionSummary directoryBatchSize; // 1回の一括削除で削除したディレクトリの数
+
+    /**
+     * メトリクスを構築し、メーターをレジストリに登録します。
+     * @param registry メトリクスの登録先
+     */
+    public PipelineMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.queueWait = timer("compiler.queue.wait", "コンパイル要求が待ち行列で待った時間");
+        this.compileTimers = Map.of(
+            "single.success", compileTimer("single", "success"),
+            "single.failure", compileTimer("single", "failure"),
+            "project.success", compileTimer("project", "success"),
+            "project.failure", compileTimer("project", "failure"),
+            "batch.success", compileTimer("batch", "success"),
+            "batch.failure", compileTimer("batch", "failure"));
+        this.compileRequests = Map.of(
+            "cached", requestCounter("cached"),
+            "queued", requestCounter("queued"),
+            "rate-limited", requestCounter("rate-limited"),
+            "queue-full", requestCounter("queue-full"),
+            "batch", requestCounter("batch"));
+        for (CompilePhaseTimings.Phase phase : CompilePhaseTimings.Phase.values()) {
+            phaseTimers.put(phase, Timer.builder("compiler.phase")
+                .description("javacの各フェーズの所要時間").tag("phase", phase.getWireName())
+                .publishPercentileHistogram().register(registry));
+        }
+        this.generatedClasses = DistributionSummary.builder("compiler.generated.classes")
+            .description("1回のコンパイルで生成されたクラスの数").baseUnit("classes").register(registry);
+        this.firstOutputFromWorker = Timer.builder("execution.first.output")
+            .description("プロセスの開始から最初の出力までの時間").tag("launch", "worker")
+            .publishPercentileHistogram().register(registry);
+        this.firstOutputFromNewJvm = Timer.builder("execution.first.output")
+            .description("プロセスの開始から最初の出力までの時間").tag("launch", "new-jvm")
+            .publishPercentileHistogram().register(registry);
+        for (ExitReason reason : ExitReason.values()) {
+            runTimers.put(reason, Timer.builder("execution.run.duration")
+                .description("プログラムの実行時間（開始から終了まで）").tag("reason", reason.getWireName())
+                .publishPercentileHistogram().register(registry));
+        }
+        for (Verdict verdict : Verdict.values()) {
+            judgeCaseTimers.put(verdict, Timer.builder("judge.case.duration")
+                .description("ジャッジの1テストケースの所要時間（実行と比較、チェッカーを含む）").tag("verdict", verdict.getWireName())
+                .publishPercentileHistogram().register(registry));
+        }
+        this.webSocketSend = timer("websocket.send", "WebSocketの1フレームの送信時間");
+        this.webSocketFrameBytes = DistributionSummary.builder("websocket.frame.size")
+            .description("WebSocketの1フレームのサイズ").baseUnit("bytes").register(registry);
+        this.stdoutBytes = outputCounter("execution.output.bytes", "プログラムの出力のバイト数", "stdout", "bytes");
+        this.stderrBytes = outputCounter("execution.output.bytes", "プログラムの出力のバイト数", "stderr", "bytes");
+        this.stdoutLines = outputCounter("execution.output.lines", "プログラムの出力の行数", "stdout", "lines");
+        this.stderrLines = outputCounter("execution.output.lines", "プログラムの出力の行数", "stderr", "lines");
+        this.cleanupCall = timer("execution.cleanup.call", "後片付けの呼び出し元がブロックされた時間");
+        this.teardownTimers = Map.of(
+            "exited", teardownTimer("exited"),
+            "terminated", teardownTimer("terminated"),
+            "killed", teardownTimer("killed"));
+        this.directoryBatch = timer("execution.teardown.directories", "一時ディレクトリの1回の一括削除の所要時間");
+        this.directoryBatchSize = DistributionSummary.builder("execution.teardown.directories.batch")
+            .description("1回の一括削除で削除した一時ディレクトリの数").baseUnit("directories").register(registry);
+    }
+
+    private Timer timer(String name, String description) {
+        return Timer.builder(name).description(description).publishPercentileHistogram().register(registry);
+    }
+
+    private Timer compileTimer(String kind, String outcome) {
+        return Timer.builder("compiler.compile").description("javacによるコンパイル時間（キャッシュヒットを除く）")
+            .tag("kind", kind).tag("outcome", outcome).publishPercentileHistogram().register(registry);
+    }
+
+    private Counter requestCounter(String result) {
+        return Counter.builder("compiler.requests").description("コンパイル要求の数（受け付け結果ごと）")
+            .tag("result", result).register(registry);
+    }
+
+    private Timer teardownTimer(String outcome) {
+        return Timer.builder("execution.teardown.duration").description("後片付けの要求からプロセスとその子孫が終了するまでの時間")
+            .tag("outcome", outcome).publishPercentileHistogram().register(registry);
+    }
+
+    private Counter outputCounter(String name, String description, String channel, String unit) {
+        return Counter.builder(name).description(description).tag("channel", channel).baseUnit(unit).register(registry);
+    }
+
+    /**
+     * 値を都度取得するゲージを登録します。
+     * @param name メトリクス名
+     * @param description 説明
+     * @param value 値を取得する処理
+     */
+    public void gauge(String name, String description, Supplier<Number> value) {
+        Gauge.builder(name, value).description(description).register(registry);
+    }
+
+    /**
+     * コンパイル要求の受け付け結果を記録します。
+     * @param result 受け付け結果（"cached" / "queued" / "rate-limited" / "queue-full" / "batch"）
+     */
+    public void recordCompileRequest(String result) {
+        Counter counter = compileRequests.get(result);
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+
+    /**
+     * コンパイル要求が待ち行列で待った時間を記録します。
+     * @param nanos 待ち時間（ナノ秒）
+     */
+    public void recordQueueWait(long nanos) {
+        queueWait.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * コンパイル時間を記録します。
+     * @param kind コンパイルの種類（"single" / "project" / "batch"）
+     * @param success コンパイルが成功したかどうか
+     * @param nanos コンパイル時間（ナノ秒）
+     */
+    public void recordCompile(String kind, boolean success, long nanos) {
+        Timer timer = compileTimers.get(kind + (success ? ".success" : ".failure"));
+        if (timer != null) {
+            timer.record(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * javacのフェーズごとの所要時間と生成されたクラスの数を記録します。
+     * @param timings 1回のjavacタスクの計測結果
+     */
+    public void recordCompilePhases(CompilePhaseTimings timings) {
+        for (Map.Entry<CompilePhaseTimings.Phase, Timer> entry : phaseTimers.entrySet()) {
+            entry.getValue().record(timings.getNanos(entry.getKey()), TimeUnit.NANOSECONDS);
+        }
+        generatedClasses.record(timings.getGeneratedClasses());
+    }
+
+    /**
+     * プロセスの開始から最初の出力までの時間を記録します。
+     * @param pooledWorker 事前起動ワーカーで実行したかどうか
+     * @param nanos 経過時間（ナノ秒）
+     */
+    public void recordFirstOutput(boolean pooledWorker, long nanos) {
+        (pooledWorker ? firstOutputFromWorker : firstOutputFromNewJvm).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 実行の終了を記録します。
+     * @param report 終了報告
+     */
+    public void recordRun(ExitReport report) {
+        runTimers.get(report.getReason()).record(Duration.ofMillis(report.getWallMillis()));
+    }
+
+    /**
+     * ジャッジの1テストケースの判定と所要時間を記録します。
+     * @param verdict 判定
+     * @param nanos 所要時間（ナノ秒、並列実行の枠を待った時間を除く）
+     */
+    public void recordJudgeCase(Verdict verdict, long nanos) {
+        judgeCaseTimers.get(verdict).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * WebSocketの1フレームの送信を記録します。
+     * @param nanos 送信にかかった時間（ナノ秒）
+     * @param bytes フレームのバイト数
+     */
+    public void recordWebSocketSend(long nanos, long bytes) {
+        webSocketSend.record(nanos, TimeUnit.NANOSECONDS);
+        webSocketFrameBytes.record(bytes);
+    }
+
+    /**
+     * プログラムの出力を記録します。
+     * @param stderr 標準エラー出力かどうか
+     * @param bytes バイト数
+     * @param lines 行数（改行の数）
+     */
+    public void recordOutput(boolean stderr, long bytes, long lines) {
+        (stderr ? stderrBytes : stdoutBytes).increment(bytes);
+        if (lines > 0) {
+            (stderr ? stderrLines : stdoutLines).increment(lines);
+        }
+    }
+
+    /**
+     * 後片付けの呼び出し元がブロックされた時間を記録します。
+     * @param nanos 所要時間（ナノ秒）
+     */
+    public void recordCleanupCall(long nanos) {
+        cleanupCall.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * プロセスの後片付けが完了したことを記録します。
+     * @param outcome 終了のしかた（"exited": 既に終了していた / "terminated": SIGTERMで終了した / "killed": 強制終了した）
+     * @param nanos 後片付けの要求からプロセスとその子孫が終了するまでの時間（ナノ秒）
+     */
+    public void recordTeardown(String outcome, long nanos) {
+        teardownTimers.get(outcome).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 一時ディレクトリの一括削除を記録します。
+     * @param directories 削除したディレクトリの数
+     * @param nanos 所要時間（ナノ秒）
+     */
+    public void recordDirectoryBatch(int directories, long nanos) {
+        directoryBatch.record(nanos, TimeUnit.NANOSECONDS);
+        directoryBatchSize.record(directories);
+    }
+}
@@ -0,0 +1,373 @@
+package tech.nagatani.dev.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import tech.nagatani.dev.CompilationResult;
+import tech.nagatani.dev.DynamicCompiler;
+import tech.nagatani.dev.ExecutionOptions;
+import tech.nagatani.dev.RateLimitedLogger;
+import tech.nagatani.dev.SourceUnit;
+import tech.nagatani.dev.metrics.PipelineMetrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * 多数のソースコードを一括でコンパイルするサービス（採点や事前チェック用）。
+ * 互いに干渉しないことが字句的に確認できるソースは、1つのjavacタスクにまとめてコンパイルします
+ * （コンパイラの初期化や標準ライブラリの読み込みが共有されるため高速です）。
+ * まとめられなかったソースと、まとめたタスクが失敗して結果を判定できなかったソースは、個別にコンパイルされます。
+ * 結果はソースごとに、完了した順にコールバックへ通知されます。
+ *
+ * <p>javacのタスクはすべて {@link CompilationScheduler} のワーカーで、要求元のクライアントの待ち行列を通して実行されます。
+ * バッチ1件につきクライアントのトークンを1つ消費し、同時に待ち行列に置くタスクは1クライアントあたりの上限までに抑えるため、
+ * 大きなバッチでも他のクライアントの対話的なコンパイルを締め出しません。</p>
+ */
+@Service
+public class BatchCompilationService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchCompilationService.class);
+    // まとめたコンパイルの失敗はグループごとに発生しうるため、件数を制限して出力する
+    private static final RateLimitedLogger RATE_LIMITED_LOG = new RateLimitedLogger(LOG, 20, 10, TimeUnit.SECONDS);
+
+    private final DynamicCompiler dynamicCompiler; // まとめてコンパイルする場合に使用するコンパイラ
+    private final CompilationCache compilationCache; // 個別にコンパイルする場合に使用するキャッシュ付きコンパイラ
+    private final CompilationScheduler compilationScheduler; // javacのタスクを実行するスケジューラ
+    private final InteractiveProcessManager processManager; // 成功したコンパイル結果の登録先
+    private final PipelineMetrics metrics; // まとめたコンパイルの時間の記録先
+    private final int maxGroupSize; // 1つのjavacタスクにまとめる最大ソース数
+
+    private final AtomicLong batches = new AtomicLong(); // 受け付けたバッチ数
+    private final AtomicLong sources = new AtomicLong(); // 受け付けたソース数
+    private final AtomicLong groupedSources = new AtomicLong(); // まとめたタスクで結果が確定したソース数
+    private final AtomicLong individualSources = new AtomicLong(); // 個別にコンパイルしたソース数
+    private final AtomicLong cachedSources = new AtomicLong(); // キャッシュから返したソース数
+
+    /**
+     * 1つのソースの一括コンパイル結果。
+     */
+    public static class BatchItemResult {
+        private final CompilationResult compilationResult;
+        private final String executionId;
+        private final boolean grouped;
+        private final long elapsedMillis;
+
+        BatchItemResult(CompilationResult compilationResult, String executionId, boolean grouped, long elapsedMillis) {
+            this.compilationResult = compilationResult;
+            this.executionId = executionId;
+            this.grouped = grouped;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * コンパイル結果を返します。
+         * @return コンパイル結果
+         */
+        public CompilationResult getCompilationResult() {
+            return compilationResult;
+        }
+
+        /**
+         * 実行用に登録された実行IDを返します。WebSocketで接続するとプログラムが開始されます。
+         * @return 実行ID。コンパイルに失敗した場合はnull。
+         */
+        public String getExecutionId() {
+            return executionId;
+        }
+
+        /**
+         * 他のソースとまとめた1つのjavacタスクで結果が確定したかどうかを返します。
+         * @return まとめたタスクで確定した場合はtrue
+         */
+        public boolean isGrouped() {
+            return grouped;
+        }
+
+        /**
+         * バッチの受け付けからこの結果が確定するまでの時間を返します。
+         * @return 経過時間（ミリ秒）
+         */
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+
+    /**
+     * 1つのjavacタスクにまとめるソースの集まり。
+     */
+    private static class Group {
+        final List<Integer> indexes = new ArrayList<>(); // 入力リスト内の位置
+        final Set<String> declaredTypes = new HashSet<>(); // メンバーが宣言している型名
+        final Set<String> identifiers = new HashSet<>(); // メンバーが使用している識別子
+    }
+
+    /**
+     * 1件のバッチのうち、まだスケジューラに渡していないタスクと、渡したが完了していないタスクの数を管理します。
+     * 待ち行列に置くタスクを1クライアントあたりの上限までに抑え、1つ完了するごとに次のタスクを渡します。
+     */
+    private class BatchRun {
+        final String clientKey; // 要求元のクライアントキー
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>(); // まだスケジューラに渡していないタスク
+        final CompletableFuture<Void> done = new CompletableFuture<>(); // すべてのタスクが完了したときに完了する
+        final ReentrantLock lock = new ReentrantLock();
+        int inFlight = 0; // スケジューラに渡して完了していないタスクの数
+
+        BatchRun(String clientKey) {
+            this.clientKey = clientKey;
+        }
+
+        /**
+         * タスクを追加し、空きがあればスケジューラに渡します。
+         */
+        void add(Runnable task) {
+            lock.lock();
+            try {
+                tasks.addLast(task);
+            } finally {
+                lock.unlock();
+            }
+            dispatch();
+        }
+
+        /**
+         * 待ち行列に置けるだけのタスクをスケジューラに渡します。タスクが残っておらず、すべて完了していればバッチを完了します。
+         */
+        void dispatch() {
+            List<Runnable> ready = new ArrayList<>();
+            lock.lock();
+            try {
+                while (inFlight < compilationScheduler.getMaxQueuedPerClient() && !tasks.isEmpty()) {
+                    ready.add(tasks.pollFirst());
+                    inFlight++;
+                }
+                if (inFlight == 0 && tasks.isEmpty()) {
+                    done.complete(null);
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Runnable task : ready) {
+                CompletableFuture<Void> future;
+                try {
+                    future = compilationScheduler.submitBatchTask(clientKey, task);
+                } catch (RuntimeException e) {
+                    future = CompletableFuture.failedFuture(e);
+                }
+                future.whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        done.completeExceptionally(error);
+                    }
+                    lock.lock();
+                    try {
+                        inFlight--;
+                    } finally {
+                        lock.unlock();
+                    }
+                    dispatch();
+                });
+            }
+        }
+    }
+
+    /**
+     * 一括コンパイルサービスを構築します。
+     * @param dynamicCompiler 動的コンパイルサービス
+     * @param compilationCache コンパイルキャッシュ
+     * @param compilationScheduler javacのタスクを実行するコンパイルスケジューラ
+     * @param processManager 対話型プロセス管理サービス
+     * @param metrics パイプラインのメトリクス
+     * @param maxGroupSize 1つのjavacタスクにまとめる最大ソース数（{@code compiler.batch.max-group-size}）。1以下でまとめない。
+     */
+    public BatchCompilationService(DynamicCompiler dynamicCompiler,
+                                   CompilationCache compilationCache,
+                                   CompilationScheduler compilationScheduler,
+                                   InteractiveProcessManager processManager,
+                                   PipelineMetrics metrics,
+                                   @Value("${compiler.batch.max-group-size:16}") int maxGroupSize) {
+        this.dynamicCompiler = dynamicCompiler;
+        this.compilationCache = compilationCache;
+        this.compilationScheduler = compilationScheduler;
+        this.processManager = processManager;
+        this.metrics = metrics;
+        this.maxGroupSize = Math.max(1, maxGroupSize);
+    }
+
+    /**
+     * ソースコードのリストを一括でコンパイルします。このメソッドはすぐに戻り、
+     * 各ソースの結果は確定した順に {@code onResult} へ（入力リスト内の位置とともに）通知されます。
+     * コールバックは複数のスレッドから同時に呼び出される可能性があります。
+     * 成功したソースは {@link InteractiveProcessManager} に一括コンパイル用の上限で登録され、結果に実行IDが付きます。
+     *
+     * @param clientKey 要求元のクライアントキー（トークンの消費と公平キューイングの単位）
+     * @param clientAddress 要求元のIPアドレス
+     * @param sourceCodes コンパイルするソースコードのリスト
+     * @param executionOptions 成功したソースを実行する際の実行方式
+     * @param onResult 結果を受け取るコールバック（入力リスト内の位置, 結果）
+     * @return すべての結果を通知し終えたときに完了する {@link CompletableFuture}
+     * @throws CompilationScheduler.RejectedException クライアントのトークンが不足している場合
+     */
+    public CompletableFuture<Void> compileBatch(String clientKey, String clientAddress, List<String> sourceCodes,
+                                                ExecutionOptions executionOptions, BiConsumer<Integer, BatchItemResult> onResult) {
+        compilationScheduler.admitBatch(clientKey, clientAddress);
+        long startNanos = System.nanoTime();
+        batches.incrementAndGet();
+        sources.addAndGet(sourceCodes.size());
+
+        BatchRun run = new BatchRun(clientKey);
+        List<Integer> uncached = new ArrayList<>();
+        for (int i = 0; i < sourceCodes.size(); i++) {
+            // キャッシュにあるソースはコンパイルせずにすぐ返す
+            CompilationResult cached = compilationCache.getIfCached(sourceCodes.get(i));
+            if (cached != null) {
+                cachedSources.incrementAndGet();
+                onResult.accept(i, toItemResult(cached, executionOptions, false, startNanos));
+            } else {
+                uncached.add(i);
+            }
+        }
+
+        for (Group group : groupSources(sourceCodes, uncached)) {
+            if (group.indexes.size() == 1) {
+                run.add(() -> compileIndividually(group.indexes.get(0), sourceCodes, executionOptions, onResult, startNanos));
+                continue;
+            }
+            // まとめたタスクを実行し、判定できなかったソースを個別のタスクとして追加する
+            run.add(() -> {
+                for (int index : compileGroup(group, sourceCodes, executionOptions, onResult, startNanos)) {
+                    run.add(() -> compileIndividually(index, sourceCodes, executionOptions, onResult, startNanos));
+                }
+            });
+        }
+        run.dispatch(); // すべてキャッシュにあった場合はここで完了する
+        return run.done.whenComplete((ignored, error) ->
+            LOG.debug("{} 個のソースの一括コンパイルが {}ms で完了しました。",
+                sourceCodes.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+    }
+
+    /**
+     * 一括コンパイルの統計情報（まとめて確定した数、個別にコンパイルした数など）を返します。
+     * @return 統計情報（項目名 → 値）
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("batches", batches.get());
+        stats.put("sources", sources.get());
+        stats.put("groupedSources", groupedSources.get());
+        stats.put("individualSources", individualSources.get());
+        stats.put("cachedSources", cachedSources.get());
+        return stats;
+    }
+
+    /**
+     * ソースを、1つのjavacタスクにまとめても安全なグループに分けます。
+     * あるソースが宣言する型名を他のメンバーが識別子として使っている場合（型名の衝突や相互参照の可能性がある場合）は、
+     * 同じグループに入れません。相互参照を許すと、単独ではコンパイルできないソースが成功してしまうためです。
+     * @param sourceCodes すべてのソースコード
+     * @param indexes グループ分けの対象となるソースの位置
+     * @return グループのリスト
+     */
+    private List<Group> groupSources(List<String> sourceCodes, List<Integer> indexes) {
+        List<Group> groups = new ArrayList<>();
+        for (int index : indexes) {
+            SourceUnit unit = new SourceUnit(null, sourceCodes.get(index));
+            Set<String> declaredTypes = unit.getDeclaredTypeNames();
+            Set<String> identifiers = unit.getIdentifiers();
+            Group target = null;
+            for (Group group : groups) {
+                if (group.indexes.size() < maxGroupSize
+                        && Collections.disjoint(declaredTypes, group.identifiers)
+                        && Collections.disjoint(identifiers, group.declaredTypes)) {
+                    target = group;
+                    break;
+                }
+            }
+            if (target == null) {
+                target = new Group();
+                groups.add(target);
+            }
+            target.indexes.add(index);
+            target.declaredTypes.addAll(declaredTypes);
+            target.identifiers.addAll(identifiers);
+        }
+        return groups;
+    }
+
+    /**
+     * グループを1つのjavacタスクでコンパイルし、結果が確定したソースを通知します。
+     * @return 結果を判定できなかった（個別にコンパイルし直す必要がある）ソースの位置のリスト
+     */
+    private List<Integer> compileGroup(Group group, List<String> sourceCodes, ExecutionOptions executionOptions,
+                                       BiConsumer<Integer, BatchItemResult> onResult, long startNanos) {
+        List<String> groupSources = new ArrayList<>();
+        for (int index : group.indexes) {
+            groupSources.add(sourceCodes.get(index));
+        }
+        List<CompilationResult> results;
+        long compileStart = System.nanoTime();
+        try {
+            results = dynamicCompiler.compileTogether(groupSources);
+            metrics.recordCompile("batch", results.stream().allMatch(result -> result != null && result.isSuccess()),
+                System.nanoTime() - compileStart);
+        } catch (RuntimeException e) {
+            RATE_LIMITED_LOG.warn("まとめたコンパイルに失敗したため、個別にコンパイルします: {}", e.getMessage());
+            return group.indexes;
+        }
+
+        List<Integer> undetermined = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            int index = group.indexes.get(i);
+            CompilationResult result = results.get(i);
+            if (result == null) {
+                undetermined.add(index);
+                continue;
+            }
+            if (result.isSuccess()) {
+                // 単独でコンパイルした場合と同じ結果なので、以後の /compile でも再利用できるようにキャッシュする
+                compilationCache.store(sourceCodes.get(index), result);
+                result = result.copyForNewExecution();
+            }
+            groupedSources.incrementAndGet();
+            onResult.accept(index, toItemResult(result, executionOptions, true, startNanos));
+        }
+        return undetermined;
+    }
+
+    /**
+     * 1つのソースを個別にコンパイルし、結果を通知します。
+     */
+    private void compileIndividually(int index, List<String> sourceCodes, ExecutionOptions executionOptions,
+                                     BiConsumer<Integer, BatchItemResult> onResult, long startNanos) {
+        individualSources.incrementAndGet();
+        long compileStart = System.nanoTime();
+        CompilationResult result = compilationCache.compile(sourceCodes.get(index));
+        metrics.recordCompile("batch", result.isSuccess(), System.nanoTime() - compileStart);
+        onResult.accept(index, toItemResult(result, executionOptions, false, startNanos));
+    }
+
+    /**
+     * コンパイル結果を通知用の結果に変換します。成功した場合は実行IDを発行して結果を登録します。
+     * 対話的な実行の保留中のコンパイル結果を押し出さないよう、一括コンパイル用の上限で登録します。
+     */
+    private BatchItemResult toItemResult(CompilationResult result, ExecutionOptions executionOptions, boolean grouped, long startNanos) {
+        String executionId = null;
+        if (result.isSuccess()) {
+            executionId = UUID.randomUUID().toString();
+            processManager.registerCompilationResult(executionId, result, executionOptions, true);
+        }
+        return new BatchItemResult(result, executionId, grouped, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+}
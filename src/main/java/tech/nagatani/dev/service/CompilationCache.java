@@ -0,0 +1,368 @@
+package tech.nagatani.dev.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import tech.nagatani.dev.CompilationResult;
+import tech.nagatani.dev.DynamicCompiler;
+import tech.nagatani.dev.SourceUnit;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * ソースコードのハッシュをキーとするコンテンツアドレス型のコンパイルキャッシュ。
+ * {@link DynamicCompiler#compileToJar(String)} の前段に置かれ、同一のソースコードとコンパイラオプションの組み合わせに対しては
+ * javacを再実行せずに前回の結果（成功時のクラスファイル、失敗時の診断メッセージ）を返します。
+ * エントリ数と合計バイト数の上限を超えた場合は、最も長く使われていないエントリから削除（LRU）されます。
+ */
+@Service
+public class CompilationCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompilationCache.class);
+
+    private final DynamicCompiler dynamicCompiler; // キャッシュミス時に使用するコンパイラ
+    private final int maxEntries; // 保持する最大エントリ数
+    private final long maxBytes; // 保持するエントリの合計サイズの上限（バイト）
+
+    // アクセス順のLinkedHashMapによるLRU。キーはハッシュ文字列、値はキャッシュされたエントリ。
+    // 複合操作があるため、アクセスはすべて this で同期する。
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes = 0; // 現在保持しているエントリの合計サイズ
+
+    // 同じキーのコンパイルが同時に要求された場合に、javacの実行を1回にまとめるためのマップ
+    private final Map<String, CompletableFuture<CompilationResult>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong(); // キャッシュヒット数
+    private final AtomicLong misses = new AtomicLong(); // キャッシュミス数
+    private final AtomicLong evictions = new AtomicLong(); // 上限超過により削除されたエントリ数
+
+    /**
+     * キャッシュされたコンパイル結果とその推定サイズの組。
+     */
+    private static class CacheEntry {
+        final CompilationResult result; // キャッシュされたコンパイル結果（一時ディレクトリ未作成の状態）
+        final long sizeBytes; // このエントリの推定サイズ
+
+        CacheEntry(CompilationResult result, long sizeBytes) {
+            this.result = result;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    /**
+     * コンパイルキャッシュを構築します。
+     * @param dynamicCompiler キャッシュミス時に使用する動的コンパイルサービス
+     * @param maxEntries 保持する最大エントリ数（{@code compiler.cache.max-entries}）。0以下の場合はキャッシュを無効化します。
+     * @param maxBytes 保持するエントリの合計サイズの上限（{@code compiler.cache.max-bytes}）
+     */
+    public CompilationCache(DynamicCompiler dynamicCompiler,
+                            @Value("${compiler.cache.max-entries:1000}") int maxEntries,
+                            @Value("${compiler.cache.max-bytes:67108864}") long maxBytes) {
+        this.dynamicCompiler = dynamicCompiler;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * ソースコードをコンパイルします。キャッシュにヒットした場合はjavacを実行せずに結果を返します。
+     * 返される {@link CompilationResult} は呼び出しごとに新しいインスタンスであり、
+     * 実行ごとの一時ディレクトリを独立して作成・削除できます。
+     * @param sourceCode コンパイルするJavaソースコード文字列
+     * @return コンパイル結果
+     */
+    public CompilationResult compile(String sourceCode) {
+        if (maxEntries <= 0) {
+            return dynamicCompiler.compileToJar(sourceCode); // キャッシュ無効
+        }
+        return compileWithKey(computeKey(sourceCode), () -> dynamicCompiler.compileToJar(sourceCode));
+    }
+
+    /**
+     * 複数ファイルからなるプロジェクトをコンパイルします。キャッシュのキーには全ファイルの名前と内容、メインクラスの指定が含まれます。
+     * @param sourceUnits コンパイルするソースファイルのリスト
+     * @param mainClass メインクラスの名前（nullの場合は自動検出）
+     * @return コンパイル結果
+     * @see DynamicCompiler#compileProject(List, String)
+     */
+    public CompilationResult compileProject(List<SourceUnit> sourceUnits, String mainClass) {
+        if (maxEntries <= 0) {
+            return dynamicCompiler.compileProject(sourceUnits, mainClass); // キャッシュ無効
+        }
+        return compileWithKey(computeProjectKey(sourceUnits, mainClass), () -> dynamicCompiler.compileProject(sourceUnits, mainClass));
+    }
+
+    /**
+     * キャッシュを参照し、なければ指定された処理でコンパイルして結果をキャッシュに追加します。
+     * @param key キャッシュキー
+     * @param compileAction キャッシュミス時に実行するコンパイル処理
+     * @return コンパイル結果の新しいインスタンス
+     */
+    private CompilationResult compileWithKey(String key, Supplier<CompilationResult> compileAction) {
+        CompilationResult cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        // 同じキーのコンパイルが進行中であれば、その結果を待つ
+        CompletableFuture<CompilationResult> future = new CompletableFuture<>();
+        CompletableFuture<CompilationResult> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            CompilationResult shared = existing.join();
+            if (shared != null) {
+                hits.incrementAndGet();
+                return shared.copyForNewExecution();
+            }
+            // 先行するコンパイルが一時的な失敗に終わった場合は、自分でコンパイルする（キャッシュには追加しない）
+            misses.incrementAndGet();
+            return compileAction.get();
+        }
+
+        misses.incrementAndGet();
+        try {
+            CompilationResult result = compileAction.get();
+            if (result.isTransientFailure()) {
+                future.complete(null); // 待っている要求にはそれぞれコンパイルし直してもらう
+                return result;
+            }
+            put(key, result);
+            future.complete(result);
+            // javacのフェーズごとの時間は、実際にコンパイルしたこの要求にだけ引き継ぐ
+            CompilationResult copy = result.copyForNewExecution();
+            copy.setPhaseTimings(result.getPhaseTimings());
+            return copy;
+        } catch (Throwable e) {
+            // Error の場合も結果を待っている要求が待ち続けないよう、必ず完了させる
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key);
+        }
+    }
+
+    /**
+     * キャッシュに結果があればそれを返し、なければjavacを実行せずにnullを返します。
+     * コンパイルスケジューラが、キャッシュヒットを待ち行列に入れずに処理するために使用します。
+     * @param sourceCode ソースコード
+     * @return キャッシュされた結果の新しいインスタンス。キャッシュが無効な場合やキャッシュにない場合はnull。
+     */
+    public CompilationResult getIfCached(String sourceCode) {
+        if (maxEntries <= 0) {
+            return null;
+        }
+        return lookup(computeKey(sourceCode));
+    }
+
+    /**
+     * プロジェクトのコンパイル結果がキャッシュにあればそれを返し、なければjavacを実行せずにnullを返します。
+     * @param sourceUnits ソースファイルのリスト
+     * @param mainClass メインクラスの名前（nullの場合は自動検出）
+     * @return キャッシュされた結果の新しいインスタンス。キャッシュが無効な場合やキャッシュにない場合はnull。
+     */
+    public CompilationResult getIfCachedProject(List<SourceUnit> sourceUnits, String mainClass) {
+        if (maxEntries <= 0) {
+            return null;
+        }
+        return lookup(computeProjectKey(sourceUnits, mainClass));
+    }
+
+    /**
+     * キャッシュからキーに対応する結果を探します。見つかった場合はヒット数を増やし、新しいインスタンスを返します。
+     * @param key キャッシュキー
+     * @return キャッシュされた結果の新しいインスタンス。キャッシュにない場合はnull。
+     */
+    private CompilationResult lookup(String key) {
+        CacheEntry cached;
+        synchronized (this) {
+            cached = entries.get(key); // アクセス順が更新される
+        }
+        if (cached == null) {
+            return null;
+        }
+        hits.incrementAndGet();
+        LOG.debug("コンパイルキャッシュヒット (キー: {}, クラス: {})", key.substring(0, 12), cached.result.getClassName());
+        return cached.result.copyForNewExecution();
+    }
+
+    /**
+     * キャッシュの外でコンパイルされた結果（複数ソースの一括コンパイルなど）をキャッシュに追加します。
+     * 追加された結果は以後の {@link #compile(String)} でそのまま再利用されるため、
+     * 単独でコンパイルした場合と同じ結果であるものだけを渡してください。
+     * @param sourceCode コンパイルしたソースコード
+     * @param result コンパイル結果（このインスタンス自体は実行に使用しないこと）
+     */
+    public void store(String sourceCode, CompilationResult result) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        put(computeKey(sourceCode), result);
+    }
+
+    /**
+     * キャッシュの外でコンパイルされたプロジェクトの結果（インクリメンタルコンパイルなど）をキャッシュに追加します。
+     * @param sourceUnits コンパイルしたソースファイルのリスト
+     * @param mainClass メインクラスの名前（nullの場合は自動検出）
+     * @param result コンパイル結果（このインスタンス自体は実行に使用しないこと）
+     * @see #store(String, CompilationResult)
+     */
+    public void storeProject(List<SourceUnit> sourceUnits, String mainClass, CompilationResult result) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        put(computeProjectKey(sourceUnits, mainClass), result);
+    }
+
+    /**
+     * キャッシュヒット数を返します。
+     * @return これまでのキャッシュヒット数
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * キャッシュミス数を返します。
+     * @return これまでのキャッシュミス数（javacが実行された回数）
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * 上限超過により削除されたエントリ数を返します。
+     * @return これまでの削除エントリ数
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * 現在キャッシュされているエントリ数を返します。
+     * @return エントリ数
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 現在キャッシュされているエントリの合計推定サイズを返します。
+     * @return 合計サイズ（バイト）
+     */
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * コンパイル結果をキャッシュに追加し、上限を超えた分を古い順に削除します。
+     * 単体で上限を超えるエントリと、一時的な失敗（{@link CompilationResult#isTransientFailure()}）はキャッシュしません。
+     * @param key キャッシュキー
+     * @param result 追加するコンパイル結果
+     */
+    private synchronized void put(String key, CompilationResult result) {
+        long size = estimateSize(result);
+        if (result.isTransientFailure() || size > maxBytes) {
+            return;
+        }
+        CacheEntry previous = entries.put(key, new CacheEntry(result, size));
+        if (previous != null) {
+            currentBytes -= previous.sizeBytes;
+        }
+        currentBytes += size;
+
+        // 最も長く使われていないエントリ（イテレーション順の先頭）から削除
+        Iterator<Map.Entry<String, CacheEntry>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || currentBytes > maxBytes) && iterator.hasNext()) {
+            CacheEntry eldest = iterator.next().getValue();
+            iterator.remove();
+            currentBytes -= eldest.sizeBytes;
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * コンパイル結果がメモリ上で占めるおおよそのサイズを見積もります。
+     * @param result 対象のコンパイル結果
+     * @return 推定サイズ（バイト）
+     */
+    private long estimateSize(CompilationResult result) {
+        long size = result.getSourceCode() != null ? result.getSourceCode().length() * 2L : 0;
+        for (byte[] bytes : result.getClassBytes().values()) {
+            size += bytes.length;
+        }
+        for (String diagnostic : result.getDiagnostics()) {
+            size += diagnostic.length() * 2L;
+        }
+        return size;
+    }
+
+    /**
+     * コンパイラオプションとソースコードからSHA-256ハッシュのキーを計算します。
+     * @param sourceCode ソースコード
+     * @return 16進数表記のハッシュ文字列
+     */
+    private String computeKey(String sourceCode) {
+        MessageDigest digest = newDigestWithOptions();
+        digest.update(sourceCode.getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * コンパイラオプション、全ファイルの名前と内容、メインクラスの指定からSHA-256ハッシュのキーを計算します。
+     * 単一ソースのキーと衝突しないよう、先頭に区別用の印を含めます。
+     * @param sourceUnits ソースファイルのリスト
+     * @param mainClass メインクラスの名前（nullの場合は自動検出）
+     * @return 16進数表記のハッシュ文字列
+     */
+    private String computeProjectKey(List<SourceUnit> sourceUnits, String mainClass) {
+        MessageDigest digest = newDigestWithOptions();
+        digest.update("project".getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        for (SourceUnit unit : sourceUnits) {
+            digest.update(String.valueOf(unit.getName()).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(unit.getSourceCode().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        digest.update(String.valueOf(mainClass).getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * コンパイラオプションを反映済みのSHA-256ダイジェストを作成します。
+     * @return ダイジェスト
+     */
+    private MessageDigest newDigestWithOptions() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String option : dynamicCompiler.getCompilerOptions()) {
+                digest.update(option.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0); // 区切り文字
+            }
+            digest.update((byte) 0);
+            return digest;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 が利用できません", e); // 全てのJava実装で必須のため通常は発生しない
+        }
+    }
+
+    /**
+     * バイト列を16進数表記の文字列に変換します。
+     */
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
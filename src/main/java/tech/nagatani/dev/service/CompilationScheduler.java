@@ -0,0 +1,585 @@
+package tech.nagatani.dev.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import tech.nagatani.dev.CompilationResult;
+import tech.nagatani.dev.SourceUnit;
+import tech.nagatani.dev.metrics.PipelineMetrics;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * コンパイル要求の受け付け制御（アドミッション制御）を行うスケジューラ。
+ * javacはCPUを大量に消費するため、Tomcatのリクエストスレッドで直接実行せず、
+ * 設定された並列度の専用ワーカースレッドで実行します。
+ * <ul>
+ *   <li>待ち行列は上限付きで、満杯の場合は要求を即座に拒否します（スレッドを溜め込まない）。</li>
+ *   <li>クライアント（セッションまたはIPアドレス）ごとのトークンバケットで、短時間の連続投稿を制限します。
+ *       加えて、要求元のIPアドレスごとのトークンバケットを常に消費するため、セッションを作り直しても
+ *       アドレス全体の上限（教室など、同じアドレスを共有する端末の合計）は超えられません。</li>
+ *   <li>待ち行列はクライアントごとに分かれており、ワーカーはクライアントを順番に巡回して取り出します（公平キューイング）。
+ *       1人が大量に投稿しても、他のクライアントの要求が後回しにされ続けることはありません。</li>
+ *   <li>一括コンパイルは {@link #admitBatch(String, String)} でバッチ1件につきトークンを1つ消費し、
+ *       個々のjavacタスクは {@link #submitBatchTask(String, Runnable)} で要求元のクライアントの待ち行列に入ります。
+ *       そのため一括コンパイルも、他のクライアントと同じ巡回の順番でしかワーカーを使えません。</li>
+ * </ul>
+ * 待ち行列での待ち時間とコンパイル時間は別々に計測されます。
+ */
+@Service
+public class CompilationScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompilationScheduler.class);
+
+    private final CompilationCache compilationCache; // 実際のコンパイルに使用するキャッシュ付きコンパイラ
+    private final IncrementalCompilationService incrementalCompilationService; // プロジェクトのインクリメンタルコンパイル
+    private final PipelineMetrics metrics; // 待ち時間とコンパイル時間の記録先
+    private final int parallelism; // 同時にコンパイルを実行するワーカー数
+    private final int queueCapacity; // 待ち行列全体の上限
+    private final int maxQueuedPerClient; // 1クライアントあたりの待ち行列の上限
+    private final double tokensPerSecond; // トークンバケットの補充速度（1秒あたりのコンパイル数）
+    private final double burst; // トークンバケットの容量（連続して投稿できるコンパイル数）
+    private final double addressTokensPerSecond; // IPアドレスごとのトークンバケットの補充速度
+    private final double addressBurst; // IPアドレスごとのトークンバケットの容量
+
+    // クライアントキー → そのクライアントの待ち行列。挿入順を巡回順として使用する
+    private final LinkedHashMap<String, ArrayDeque<Job>> queues = new LinkedHashMap<>();
+    private int queuedCount = 0; // 待ち行列全体の要求数
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition notEmpty = queueLock.newCondition();
+    private volatile boolean shutdown = false;
+
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>(); // クライアントキー → トークンバケット
+    private final Map<String, TokenBucket> addressBuckets = new ConcurrentHashMap<>(); // IPアドレス → トークンバケット
+    private final List<Thread> workers = new ArrayList<>();
+
+    private final AtomicInteger running = new AtomicInteger(); // 実行中のコンパイル数
+    private final AtomicLong completed = new AtomicLong(); // 完了したコンパイル数
+    private final AtomicLong rejectedRateLimited = new AtomicLong(); // トークン不足で拒否した数
+    private final AtomicLong rejectedQueueFull = new AtomicLong(); // 待ち行列の満杯で拒否した数
+    private final AtomicLong totalQueueWaitMillis = new AtomicLong(); // 待ち時間の合計
+    private final AtomicLong maxQueueWaitMillis = new AtomicLong(); // 待ち時間の最大値
+    private final AtomicLong totalCompileMillis = new AtomicLong(); // コンパイル時間の合計
+    private final AtomicLong maxCompileMillis = new AtomicLong(); // コンパイル時間の最大値
+
+    /**
+     * 待ち行列に置かれたコンパイル要求。
+     */
+    private static class Job {
+        final String clientKey; // 要求元のクライアントキー
+        final String kind; // コンパイルの種類（"single" / "project" / "batch"）
+        final Supplier<CompilationResult> compileAction; // ワーカーで実行するコンパイル処理（一括コンパイルのタスクはnullを返す）
+        final long enqueuedNanos = System.nanoTime(); // 待ち行列に入った時刻
+        final CompletableFuture<ScheduledResult> future = new CompletableFuture<>();
+
+        Job(String clientKey, String kind, Supplier<CompilationResult> compileAction) {
+            this.clientKey = clientKey;
+            this.kind = kind;
+            this.compileAction = compileAction;
+        }
+    }
+
+    /**
+     * スケジューラ経由で実行されたコンパイルの結果と、その待ち時間・コンパイル時間。
+     */
+    public static class ScheduledResult {
+        private final CompilationResult compilationResult;
+        private final long queueWaitMillis;
+        private final long compileMillis;
+
+        ScheduledResult(CompilationResult compilationResult, long queueWaitMillis, long compileMillis) {
+            this.compilationResult = compilationResult;
+            this.queueWaitMillis = queueWaitMillis;
+            this.compileMillis = compileMillis;
+        }
+
+        /**
+         * コンパイル結果を返します。
+         * @return コンパイル結果
+         */
+        public CompilationResult getCompilationResult() {
+            return compilationResult;
+        }
+
+        /**
+         * 待ち行列での待ち時間を返します。
+         * @return 待ち時間（ミリ秒）
+         */
+        public long getQueueWaitMillis() {
+            return queueWaitMillis;
+        }
+
+        /**
+         * コンパイル（キャッシュ参照を含む）にかかった時間を返します。
+         * @return コンパイル時間（ミリ秒）
+         */
+        public long getCompileMillis() {
+            return compileMillis;
+        }
+    }
+
+    /**
+     * コンパイル要求が受け付けられなかったことを表す例外。
+     * 呼び出し側は HTTP 429 (Too Many Requests) として応答し、{@link #getRetryAfterSeconds()} を Retry-After として返します。
+     */
+    public static class RejectedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int queuePosition;
+        private final long retryAfterSeconds;
+
+        RejectedException(String message, int queuePosition, long retryAfterSeconds) {
+            super(message);
+            this.queuePosition = queuePosition;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        /**
+         * 拒否された時点で、この要求が並ぶはずだった待ち行列の位置（1始まり）を返します。
+         * @return 待ち行列の位置
+         */
+        public int getQueuePosition() {
+            return queuePosition;
+        }
+
+        /**
+         * 再試行までに待つべき秒数を返します。
+         * @return 秒数（1以上）
+         */
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    /**
+     * クライアントごとのトークンバケット。コンパイル1回につきトークンを1つ消費し、時間の経過とともに補充されます。
+     */
+    private static class TokenBucket {
+        private double tokens; // 現在のトークン数
+        private long lastRefillNanos = System.nanoTime(); // 最後に補充した時刻
+
+        TokenBucket(double capacity) {
+            this.tokens = capacity;
+        }
+
+        /**
+         * 経過時間分のトークンを補充してから、トークンを1つ消費します。
+         * @return 消費できた場合は0、できなかった場合はトークンが1つ貯まるまでのナノ秒数
+         */
+        synchronized long tryAcquire(double tokensPerSecond, double capacity) {
+            refill(tokensPerSecond, capacity);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) ((1 - tokens) / tokensPerSecond * 1_000_000_000L);
+        }
+
+        /**
+         * 消費したトークンを1つ戻します（トークン消費後に待ち行列が満杯で拒否された場合）。
+         */
+        synchronized void refund(double capacity) {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+
+        /**
+         * バケットが満杯（長時間使われていない）かどうかを返します。
+         */
+        synchronized boolean isFull(double tokensPerSecond, double capacity) {
+            refill(tokensPerSecond, capacity);
+            return tokens >= capacity;
+        }
+
+        private void refill(double tokensPerSecond, double capacity) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefillNanos) / 1_000_000_000.0 * tokensPerSecond);
+            lastRefillNanos = now;
+        }
+    }
+
+    /**
+     * スケジューラを構築し、ワーカースレッドを開始します。
+     * @param compilationCache コンパイルに使用するキャッシュ付きコンパイラ
+     * @param incrementalCompilationService プロジェクトのコンパイルに使用するクライアントごとの作業領域
+     * @param metrics パイプラインのメトリクス
+     * @param configuredParallelism 同時にコンパイルを実行する数（{@code compiler.scheduler.parallelism}）。0以下の場合はCPUコア数。
+     * @param queueCapacity 待ち行列全体の上限（{@code compiler.scheduler.queue-capacity}）
+     * @param maxQueuedPerClient 1クライアントあたりの待ち行列の上限（{@code compiler.scheduler.max-queued-per-client}）
+     * @param tokensPerSecond クライアントごとのトークン補充速度（{@code compiler.scheduler.rate-per-second}）
+     * @param burst クライアントごとのトークンバケットの容量（{@code compiler.scheduler.burst}）
+     * @param addressTokensPerSecond IPアドレスごとのトークン補充速度（{@code compiler.scheduler.address-rate-per-second}）
+     * @param addressBurst IPアドレスごとのトークンバケットの容量（{@code compiler.scheduler.address-burst}）
+     */
+    public CompilationScheduler(CompilationCache compilationCache, IncrementalCompilationService incrementalCompilationService,
+                                PipelineMetrics metrics,
+                                @Value("${compiler.scheduler.parallelism:0}") int configuredParallelism,
+                                @Value("${compiler.scheduler.queue-capacity:64}") int queueCapacity,
+                                @Value("${compiler.scheduler.max-queued-per-client:4}") int maxQueuedPerClient,
+                                @Value("${compiler.scheduler.rate-per-second:1.0}") double tokensPerSecond,
+                                @Value("${compiler.scheduler.burst:5}") double burst,
+                                @Value("${compiler.scheduler.address-rate-per-second:10.0}") double addressTokensPerSecond,
+                                @Value("${compiler.scheduler.address-burst:30}") double addressBurst) {
+        this.compilationCache = compilationCache;
+        this.incrementalCompilationService = incrementalCompilationService;
+        this.metrics = metrics;
+        this.parallelism = configuredParallelism > 0 ? configuredParallelism : Runtime.getRuntime().availableProcessors();
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.maxQueuedPerClient = Math.max(1, maxQueuedPerClient);
+        this.tokensPerSecond = tokensPerSecond;
+        this.burst = Math.max(1, burst);
+        this.addressTokensPerSecond = addressTokensPerSecond;
+        this.addressBurst = Math.max(1, addressBurst);
+        // javacはCPUバウンドなので、並列度と同じ数のプラットフォームスレッドで実行する
+        for (int i = 0; i < parallelism; i++) {
+            Thread worker = new Thread(this::workerLoop, "compile-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        LOG.info("コンパイルスケジューラを初期化しました (並列度: {}, 待ち行列の上限: {}, クライアントあたり: {}, {} 回/秒, バースト: {})",
+                parallelism, this.queueCapacity, this.maxQueuedPerClient, tokensPerSecond, this.burst);
+    }
+
+    /**
+     * 待ち行列と実行中のコンパイル数のゲージを登録します。
+     * 構築中のインスタンスを外部に渡さないよう、コンストラクタではなく構築後に登録します。
+     */
+    @PostConstruct
+    public void registerGauges() {
+        metrics.gauge("compiler.queue.size", "コンパイルの待ち行列にある要求数", this::getQueuedCount);
+        metrics.gauge("compiler.running", "実行中のコンパイル数", running::get);
+    }
+
+    /**
+     * コンパイル要求を受け付けます。キャッシュにヒットした場合は待ち行列を経由せずに完了済みの結果を返します。
+     * 受け付けられない場合は、呼び出しスレッドを待たせずに即座に {@link RejectedException} をスローします。
+     * @param clientKey 公平性の単位となるクライアントキー（セッションIDまたはIPアドレス）
+     * @param clientAddress 要求元のIPアドレス（アドレスごとのトークンバケットに使用）
+     * @param sourceCode コンパイルするソースコード
+     * @return コンパイルの完了時に完了する {@link CompletableFuture}
+     * @throws RejectedException トークンが不足している場合、または待ち行列が満杯の場合
+     */
+    public CompletableFuture<ScheduledResult> submit(String clientKey, String clientAddress, String sourceCode) {
+        return submit(clientKey, clientAddress, "single", () -> compilationCache.getIfCached(sourceCode), () -> compilationCache.compile(sourceCode));
+    }
+
+    /**
+     * 複数ファイルからなるプロジェクトのコンパイル要求を受け付けます。受け付けの規則は {@link #submit(String, String, String)} と同じです。
+     * キャッシュにない場合は、クライアントの作業領域で変更されたファイルだけが再コンパイルされます。
+     * @param clientKey 公平性の単位となるクライアントキー
+     * @param clientAddress 要求元のIPアドレス
+     * @param sourceUnits コンパイルするソースファイルのリスト
+     * @param mainClass メインクラスの名前（nullの場合は自動検出）
+     * @return コンパイルの完了時に完了する {@link CompletableFuture}
+     * @throws RejectedException トークンが不足している場合、または待ち行列が満杯の場合
+     */
+    public CompletableFuture<ScheduledResult> submitProject(String clientKey, String clientAddress, List<SourceUnit> sourceUnits, String mainClass) {
+        return submit(clientKey, clientAddress, "project", () -> compilationCache.getIfCachedProject(sourceUnits, mainClass),
+                () -> incrementalCompilationService.compileProject(clientKey, sourceUnits, mainClass));
+    }
+
+    /**
+     * コンパイル要求を受け付ける共通処理です。
+     * @param clientKey クライアントキー
+     * @param clientAddress 要求元のIPアドレス
+     * @param kind コンパイルの種類（メトリクスのタグに使用）
+     * @param cacheLookup キャッシュを参照する処理（キャッシュにない場合はnullを返す）
+     * @param compileAction ワーカーで実行するコンパイル処理
+     * @return コンパイルの完了時に完了する {@link CompletableFuture}
+     */
+    private CompletableFuture<ScheduledResult> submit(String clientKey, String clientAddress, String kind, Supplier<CompilationResult> cacheLookup,
+                                                      Supplier<CompilationResult> compileAction) {
+        // キャッシュヒットはjavacを実行しないため、トークンも待ち行列も消費しない
+        long lookupStart = System.nanoTime();
+        CompilationResult cached = cacheLookup.get();
+        if (cached != null) {
+            metrics.recordCompileRequest("cached");
+            return CompletableFuture.completedFuture(new ScheduledResult(cached, 0, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lookupStart)));
+        }
+
+        TokenBucket bucket = bucketFor(clientKey);
+        TokenBucket addressBucket = addressBucketFor(clientAddress);
+        acquireTokens(bucket, addressBucket);
+
+        Job job = new Job(clientKey, kind, compileAction);
+        int position;
+        queueLock.lock();
+        try {
+            ArrayDeque<Job> clientQueue = queues.get(clientKey);
+            int clientQueued = clientQueue != null ? clientQueue.size() : 0;
+            if (queuedCount >= queueCapacity || clientQueued >= maxQueuedPerClient) {
+                bucket.refund(burst);
+                addressBucket.refund(addressBurst);
+                rejectedQueueFull.incrementAndGet();
+                metrics.recordCompileRequest("queue-full");
+                // 1つのコンパイルにおおよそ1秒かかるものとして、並列度から待ち時間を見積もる
+                throw new RejectedException("コンパイルの待ち行列が満杯です。しばらく待ってから再試行してください。",
+                        queuedCount + 1, Math.max(1, (queuedCount + parallelism - 1) / parallelism));
+            }
+            if (clientQueue == null) {
+                clientQueue = new ArrayDeque<>();
+                queues.put(clientKey, clientQueue);
+            }
+            clientQueue.addLast(job);
+            queuedCount++;
+            position = queuedCount;
+            notEmpty.signal();
+        } finally {
+            queueLock.unlock();
+        }
+        metrics.recordCompileRequest("queued");
+        LOG.debug("コンパイル要求を受け付けました (クライアント: {}, 待ち行列の位置: {})", clientKey, position);
+        return job.future;
+    }
+
+    /**
+     * 一括コンパイルの要求を受け付けます。バッチ1件につき、クライアントとIPアドレスのトークンを1つずつ消費します。
+     * 受け付けた後の個々のコンパイルは {@link #submitBatchTask(String, Runnable)} で待ち行列に入れてください。
+     * @param clientKey 公平性の単位となるクライアントキー
+     * @param clientAddress 要求元のIPアドレス
+     * @throws RejectedException トークンが不足している場合
+     */
+    public void admitBatch(String clientKey, String clientAddress) {
+        acquireTokens(bucketFor(clientKey), addressBucketFor(clientAddress));
+        metrics.recordCompileRequest("batch");
+    }
+
+    /**
+     * {@link #admitBatch(String, String)} で受け付けた一括コンパイルのタスクを、クライアントの待ち行列に入れます。
+     * トークンは消費せず、待ち行列の上限による拒否も行いません。呼び出し側は、同時に待ち行列に置くタスクの数を
+     * {@link #getMaxQueuedPerClient()} 以下に抑えてください（待ち行列全体の要求数には数えられます）。
+     * @param clientKey 一括コンパイルを要求したクライアントのキー
+     * @param task ワーカーで実行する処理
+     * @return タスクの完了時に完了する {@link CompletableFuture}
+     */
+    public CompletableFuture<Void> submitBatchTask(String clientKey, Runnable task) {
+        Job job = new Job(clientKey, "batch", () -> {
+            task.run();
+            return null;
+        });
+        queueLock.lock();
+        try {
+            if (shutdown) {
+                throw new IllegalStateException("コンパイルスケジューラは停止しています");
+            }
+            queues.computeIfAbsent(clientKey, key -> new ArrayDeque<>()).addLast(job);
+            queuedCount++;
+            notEmpty.signal();
+        } finally {
+            queueLock.unlock();
+        }
+        return job.future.thenApply(ignored -> null);
+    }
+
+    /**
+     * 1クライアントあたりの待ち行列の上限を返します。
+     * @return 上限
+     */
+    public int getMaxQueuedPerClient() {
+        return maxQueuedPerClient;
+    }
+
+    /**
+     * 待ち行列にある要求の総数を返します。
+     * @return 待機中の要求数
+     */
+    public int getQueuedCount() {
+        queueLock.lock();
+        try {
+            return queuedCount;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * スケジューラの状態（並列度、待ち行列、拒否数、待ち時間とコンパイル時間の平均・最大）を返します。
+     * @return 統計情報（項目名 → 値）
+     */
+    public Map<String, Object> getStats() {
+        long completedCount = completed.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("parallelism", parallelism);
+        stats.put("running", running.get());
+        stats.put("queued", getQueuedCount());
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("trackedClients", buckets.size());
+        stats.put("trackedAddresses", addressBuckets.size());
+        stats.put("completed", completedCount);
+        stats.put("rejectedRateLimited", rejectedRateLimited.get());
+        stats.put("rejectedQueueFull", rejectedQueueFull.get());
+        stats.put("avgQueueWaitMillis", completedCount == 0 ? 0 : (double) totalQueueWaitMillis.get() / completedCount);
+        stats.put("maxQueueWaitMillis", maxQueueWaitMillis.get());
+        stats.put("avgCompileMillis", completedCount == 0 ? 0 : (double) totalCompileMillis.get() / completedCount);
+        stats.put("maxCompileMillis", maxCompileMillis.get());
+        return stats;
+    }
+
+    /**
+     * アプリケーション終了時にワーカースレッドを停止し、待機中の要求を失敗させます。
+     */
+    @PreDestroy
+    public void shutdown() {
+        shutdown = true;
+        workers.forEach(Thread::interrupt);
+        queueLock.lock();
+        try {
+            for (ArrayDeque<Job> clientQueue : queues.values()) {
+                for (Job job : clientQueue) {
+                    job.future.completeExceptionally(new IllegalStateException("コンパイルスケジューラは停止しています"));
+                }
+            }
+            queues.clear();
+            queuedCount = 0;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * ワーカースレッドの処理。待ち行列から要求を取り出してコンパイルし、結果を通知します。
+     */
+    private void workerLoop() {
+        while (!shutdown) {
+            Job job;
+            try {
+                job = take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long startNanos = System.nanoTime();
+            long queueWaitMillis = TimeUnit.NANOSECONDS.toMillis(startNanos - job.enqueuedNanos);
+            metrics.recordQueueWait(startNanos - job.enqueuedNanos);
+            running.incrementAndGet();
+            try {
+                CompilationResult result = job.compileAction.get();
+                long compileNanos = System.nanoTime() - startNanos;
+                long compileMillis = TimeUnit.NANOSECONDS.toMillis(compileNanos);
+                record(queueWaitMillis, compileMillis);
+                if (result != null) { // 一括コンパイルのタスクは自身でコンパイル時間を記録する
+                    metrics.recordCompile(job.kind, result.isSuccess(), compileNanos);
+                }
+                LOG.debug("コンパイル完了 (クライアント: {}, 待ち時間: {}ms, コンパイル時間: {}ms)", job.clientKey, queueWaitMillis, compileMillis);
+                job.future.complete(new ScheduledResult(result, queueWaitMillis, compileMillis));
+            } catch (Throwable e) {
+                // Error（OutOfMemoryError や StackOverflowError など）でもワーカースレッドを終わらせず、
+                // 呼び出し元が待ち続けないよう必ず結果を通知する
+                if (!(e instanceof RuntimeException)) {
+                    LOG.error("コンパイル中にエラーが発生しました (クライアント: {})", job.clientKey, e);
+                }
+                job.future.completeExceptionally(e);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 次に処理する要求を取り出します。先頭のクライアントから1件取り出し、
+     * まだ要求が残っていればそのクライアントを末尾に回すことで、クライアント間を順番に巡回します。
+     * @return 次の要求
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    private Job take() throws InterruptedException {
+        queueLock.lock();
+        try {
+            while (queuedCount == 0) {
+                notEmpty.await();
+            }
+            Iterator<Map.Entry<String, ArrayDeque<Job>>> iterator = queues.entrySet().iterator();
+            Map.Entry<String, ArrayDeque<Job>> head = iterator.next();
+            iterator.remove();
+            Job job = head.getValue().pollFirst();
+            if (!head.getValue().isEmpty()) {
+                queues.put(head.getKey(), head.getValue()); // 末尾に回す
+            }
+            queuedCount--;
+            return job;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * クライアントとIPアドレスのトークンを1つずつ消費します。どちらかが不足している場合は、消費したトークンを戻して拒否します。
+     * @param bucket クライアントのトークンバケット
+     * @param addressBucket IPアドレスのトークンバケット
+     * @throws RejectedException トークンが不足している場合
+     */
+    private void acquireTokens(TokenBucket bucket, TokenBucket addressBucket) {
+        long waitNanos = bucket.tryAcquire(tokensPerSecond, burst);
+        if (waitNanos == 0) {
+            // クライアントのトークンが残っていても、アドレス全体の上限を超える場合は拒否する
+            waitNanos = addressBucket.tryAcquire(addressTokensPerSecond, addressBurst);
+            if (waitNanos > 0) {
+                bucket.refund(burst);
+            }
+        }
+        if (waitNanos > 0) {
+            rejectedRateLimited.incrementAndGet();
+            metrics.recordCompileRequest("rate-limited");
+            throw new RejectedException("コンパイルの要求が多すぎます。しばらく待ってから再試行してください。",
+                    getQueuedCount() + 1, toRetryAfterSeconds(waitNanos));
+        }
+    }
+
+    /**
+     * クライアントのトークンバケットを返します（なければ作成します）。
+     * バケットが増えすぎた場合は、満杯になっている（しばらく使われていない）バケットを削除します。
+     * @param clientKey クライアントキー
+     * @return トークンバケット
+     */
+    private TokenBucket bucketFor(String clientKey) {
+        if (buckets.size() > 1024) {
+            buckets.values().removeIf(bucket -> bucket.isFull(tokensPerSecond, burst));
+        }
+        return buckets.computeIfAbsent(clientKey, key -> new TokenBucket(burst));
+    }
+
+    /**
+     * IPアドレスのトークンバケットを返します（なければ作成します）。
+     * @param clientAddress IPアドレス
+     * @return トークンバケット
+     */
+    private TokenBucket addressBucketFor(String clientAddress) {
+        if (addressBuckets.size() > 1024) {
+            addressBuckets.values().removeIf(bucket -> bucket.isFull(addressTokensPerSecond, addressBurst));
+        }
+        return addressBuckets.computeIfAbsent(clientAddress, key -> new TokenBucket(addressBurst));
+    }
+
+    /**
+     * 待ち時間とコンパイル時間の統計を更新します。
+     */
+    private void record(long queueWaitMillis, long compileMillis) {
+        completed.incrementAndGet();
+        totalQueueWaitMillis.addAndGet(queueWaitMillis);
+        maxQueueWaitMillis.accumulateAndGet(queueWaitMillis, Math::max);
+        totalCompileMillis.addAndGet(compileMillis);
+        maxCompileMillis.accumulateAndGet(compileMillis, Math::max);
+    }
+
+    /**
+     * ナノ秒数を Retry-After 用の秒数（切り上げ、1以上）に変換します。
+     */
+    private static long toRetryAfterSeconds(long nanos) {
+        return Math.max(1, (nanos + 999_999_999L) / 1_000_000_000L);
+    }
+}
@@ -0,0 +1,241 @@
+package tech.nagatani.dev.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import tech.nagatani.dev.DynamicCompiler;
+import tech.nagatani.dev.RateLimitedLogger;
+import tech.nagatani.dev.metrics.PipelineMetrics;
+
+import javax.annotation.PreDestroy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * 実行の後片付けのうち時間のかかる処理（子プロセスの終了と一時ディレクトリの削除）を、
+ * 後片付けの呼び出し元（WebSocketのクローズ処理など）から切り離してバックグラウンドで行うサービス。
+ *
+ * <p>子プロセスは、まずプロセスとその子孫にSIGTERM（{@link Process#destroy()}）を送り、
+ * {@code execution.teardown.term-grace-ms} 以内に終了しなければ強制終了（SIGKILL）します。
+ * 終了は {@link ProcessHandle#onExit()} で待つため、待っている間スレッドを占有しません。</p>
+ *
+ * <p>一時ディレクトリは削除待ちのキューに入れ、{@code execution.teardown.batch-delay-ms} の間に溜まったものを
+ * バックグラウンドのスレッドがまとめて削除します。多数の実行が同時に終了しても、削除は1本のスレッドで順に行われます。</p>
+ */
+@Service
+public class ExecutionTeardown {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExecutionTeardown.class);
+    // SIGTERMを無視するプログラムは多数ありうるため、件数を制限して出力する
+    private static final RateLimitedLogger RATE_LIMITED_LOG = new RateLimitedLogger(LOG, 20, 10, TimeUnit.SECONDS);
+
+    // 強制終了した後にプロセスの終了を待つ最大時間（ミリ秒）。これを過ぎたら終了を待たずに後片付けを完了とする
+    private static final long KILL_WAIT_MILLIS = 10_000;
+
+    private final DynamicCompiler dynamicCompiler; // 一時ディレクトリの削除に使用
+    private final PipelineMetrics metrics; // 後片付けの所要時間の記録先
+    private final long termGraceMillis; // SIGTERMを送ってから強制終了するまでの猶予（ミリ秒）
+    private final long batchDelayMillis; // 一時ディレクトリの削除をまとめる時間（ミリ秒）
+    private final ScheduledExecutorService executor; // 強制終了と一時ディレクトリの削除を行うスレッド
+
+    private final Map<String, Process> terminating = new ConcurrentHashMap<>(); // 実行ID → 終了を待っているプロセス
+    private final ConcurrentLinkedQueue<Path> pendingDirectories = new ConcurrentLinkedQueue<>(); // 削除待ちの一時ディレクトリ
+    private final AtomicInteger pendingDirectoryCount = new AtomicInteger(); // 削除待ちの一時ディレクトリの数
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false); // 一括削除が予約されているかどうか
+
+    private final AtomicLong exitedCount = new AtomicLong(); // 後片付けの時点で既に終了していたプロセスの累計
+    private final AtomicLong terminatedCount = new AtomicLong(); // SIGTERMで終了したプロセスの累計
+    private final AtomicLong killedCount = new AtomicLong(); // 強制終了したプロセスの累計
+    private final AtomicLong deletedDirectories = new AtomicLong(); // 削除した一時ディレクトリの累計
+    private final AtomicLong directoryBatches = new AtomicLong(); // 一括削除の回数
+
+    /**
+     * 後片付けのサービスを構築します。
+     * @param dynamicCompiler 一時ディレクトリの削除に使用する動的コンパイルサービス
+     * @param metrics パイプラインのメトリクス
+     * @param termGraceMillis SIGTERMを送ってから強制終了するまでの猶予（{@code execution.teardown.term-grace-ms}、0ですぐに強制終了）
+     * @param batchDelayMillis 一時ディレクトリの削除をまとめる時間（{@code execution.teardown.batch-delay-ms}）
+     */
+    public ExecutionTeardown(DynamicCompiler dynamicCompiler, PipelineMetrics metrics,
+                             @Value("${execution.teardown.term-grace-ms:500}") long termGraceMillis,
+                             @Value("${execution.teardown.batch-delay-ms:50}") long batchDelayMillis) {
+        this.dynamicCompiler = dynamicCompiler;
+        this.metrics = metrics;
+        this.termGraceMillis = Math.max(0, termGraceMillis);
+        this.batchDelayMillis = Math.max(0, batchDelayMillis);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "execution-teardown");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics.gauge("execution.teardown.pending", "後片付けで終了を待っているプロセスの数", terminating::size);
+        metrics.gauge("execution.teardown.directories.pending", "削除待ちの一時ディレクトリの数", pendingDirectoryCount::get);
+    }
+
+    /**
+     * プロセスとその子孫を終了させます。終了を待たずにすぐに戻ります。
+     * SIGTERMを送り、猶予の間に終了しなければ強制終了します。
+     * @param executionId 実行ID（ログ出力用）
+     * @param process 終了させるプロセス
+     * @return プロセスが終了したとき（または強制終了しても終了を確認できなかったとき）に完了するFuture
+     */
+    public CompletableFuture<Void> terminate(String executionId, Process process) {
+        long startNanos = System.nanoTime();
+        // 親が終了すると子孫はinitに付け替えられて辿れなくなるため、シグナルを送る前に取得しておく
+        List<ProcessHandle> descendants = process.descendants().collect(Collectors.toList());
+        if (!process.isAlive()) {
+            descendants.forEach(ProcessHandle::destroyForcibly); // 親の終了後も残っている子孫
+            exitedCount.incrementAndGet();
+            metrics.recordTeardown("exited", System.nanoTime() - startNanos);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        terminating.put(executionId, process);
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (termGraceMillis == 0) {
+            kill(executionId, process, descendants, startNanos, done);
+            return done;
+        }
+        descendants.forEach(ProcessHandle::destroy);
+        process.destroy(); // SIGTERM
+        process.onExit()
+            .thenApply(exited -> Boolean.TRUE)
+            .completeOnTimeout(Boolean.FALSE, termGraceMillis, TimeUnit.MILLISECONDS)
+            .thenAcceptAsync(exited -> {
+                if (exited) {
+                    // 親が終了しても、SIGTERMを無視した子孫が残っていれば強制終了する
+                    descendants.stream().filter(ProcessHandle::isAlive).forEach(ProcessHandle::destroyForcibly);
+                    terminating.remove(executionId, process);
+                    terminatedCount.incrementAndGet();
+                    metrics.recordTeardown("terminated", System.nanoTime() - startNanos);
+                    done.complete(null);
+                } else {
+                    RATE_LIMITED_LOG.info("実行ID {} のプロセスが {} ミリ秒以内にSIGTERMで終了しなかったため、強制終了します。", executionId, termGraceMillis);
+                    kill(executionId, process, descendants, startNanos, done);
+                }
+            }, executor);
+        return done;
+    }
+
+    /**
+     * プロセスとその子孫を強制終了し、終了したら後片付けの完了を記録します。
+     */
+    private void kill(String executionId, Process process, List<ProcessHandle> descendants, long startNanos, CompletableFuture<Void> done) {
+        // SIGTERMの後に新たに作られた子孫も対象にする
+        Set<ProcessHandle> targets = new HashSet<>(descendants);
+        process.descendants().forEach(targets::add);
+        process.destroyForcibly();
+        targets.forEach(ProcessHandle::destroyForcibly);
+        process.onExit()
+            .thenApply(exited -> Boolean.TRUE)
+            .completeOnTimeout(Boolean.FALSE, KILL_WAIT_MILLIS, TimeUnit.MILLISECONDS)
+            .thenAccept(exited -> {
+                if (!exited) {
+                    RATE_LIMITED_LOG.warn("実行ID {} のプロセス（PID {}）が強制終了後も終了しません。", executionId, process.pid());
+                }
+                terminating.remove(executionId, process);
+                killedCount.incrementAndGet();
+                metrics.recordTeardown("killed", System.nanoTime() - startNanos);
+                done.complete(null);
+            });
+    }
+
+    /**
+     * 一時ディレクトリを削除待ちのキューに入れます。ディレクトリはバックグラウンドでまとめて削除されます。
+     * @param directory 削除するディレクトリ（nullの場合は何もしません）
+     */
+    public void deleteDirectoryLater(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        pendingDirectories.add(directory);
+        pendingDirectoryCount.incrementAndGet();
+        if (drainScheduled.compareAndSet(false, true)) {
+            try {
+                executor.schedule(this::deletePendingDirectories, batchDelayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                deletePendingDirectories(); // 停止処理中は呼び出し元で削除する
+            }
+        }
+    }
+
+    /**
+     * 削除待ちの一時ディレクトリをまとめて削除します。
+     */
+    private void deletePendingDirectories() {
+        // 削除中に追加されたディレクトリのために次の一括削除を予約できるよう、先にフラグを戻す
+        drainScheduled.set(false);
+        long startNanos = System.nanoTime();
+        int deleted = 0;
+        Path directory;
+        while ((directory = pendingDirectories.poll()) != null) {
+            pendingDirectoryCount.decrementAndGet();
+            if (Files.exists(directory)) { // ResourceReaper が先に削除した場合は何もしない
+                dynamicCompiler.deleteTempDirectory(directory);
+            }
+            deleted++;
+        }
+        if (deleted > 0) {
+            deletedDirectories.addAndGet(deleted);
+            directoryBatches.incrementAndGet();
+            metrics.recordDirectoryBatch(deleted, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * 削除待ちの一時ディレクトリを返します。これらのディレクトリは、放置されたディレクトリの削除の対象外です。
+     * @return 削除待ちのディレクトリの集合
+     */
+    public Set<Path> getPendingDirectories() {
+        return new HashSet<>(pendingDirectories);
+    }
+
+    /**
+     * 後片付けの統計情報を返します。
+     * @return 項目名 → 値
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("termGraceMillis", termGraceMillis);
+        stats.put("batchDelayMillis", batchDelayMillis);
+        stats.put("pendingProcesses", terminating.size());
+        stats.put("pendingDirectories", pendingDirectoryCount.get());
+        stats.put("totalExited", exitedCount.get());
+        stats.put("totalTerminated", terminatedCount.get());
+        stats.put("totalKilled", killedCount.get());
+        stats.put("totalDeletedDirectories", deletedDirectories.get());
+        stats.put("totalDirectoryBatches", directoryBatches.get());
+        return stats;
+    }
+
+    /**
+     * サーバーの停止時に、終了を待っているプロセスを強制終了し、削除待ちの一時ディレクトリを削除します。
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        for (Process process : terminating.values()) {
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+        }
+        terminating.clear();
+        deletePendingDirectories();
+    }
+}
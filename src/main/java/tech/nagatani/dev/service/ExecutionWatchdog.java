@@ -0,0 +1,391 @@
+package tech.nagatani.dev.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import tech.nagatani.dev.ExitReason;
+import tech.nagatani.dev.ExitReport;
+import tech.nagatani.dev.RateLimitedLogger;
+import tech.nagatani.dev.metrics.PipelineMetrics;
+import tech.nagatani.dev.worker.ResourceLimits;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * すべての実行（子プロセスとインプロセス実行）に {@link ResourceLimits} の上限を適用するサービス。
+ * 実行ごとに {@link Guard} を作成し、1つの監視スレッドが一定間隔で実時間・CPU時間・スレッド数を確認して、
+ * 上限を超えた実行を終了させます。出力のバイト数は出力の読み取り時に {@link Guard#recordOutput(long)} で数えます。
+ * 実行が終了すると {@link Guard#finish(int)} により終了理由と使用したリソースをまとめた {@link ExitReport} が作成され、
+ * クライアントに送信されます。
+ *
+ * <p>CPU時間・スレッド数・常駐メモリは子プロセスのみ計測します（インプロセス実行ではサーバーのスレッドと区別できないため）。
+ * cgroup v2 が利用可能な場合は、メモリとスレッド数の上限はカーネルによっても強制されます。</p>
+ *
+ * <p>ジャッジのテストケースのように実行ごとに異なる上限が必要な場合は、実行の開始前に
+ * {@link #overrideLimits(String, LimitOverride)} で上限を上書きします。</p>
+ */
+@Service
+public class ExecutionWatchdog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExecutionWatchdog.class);
+    // 監視の周期ごとに発生しうる警告は件数を制限して出力する
+    private static final RateLimitedLogger RATE_LIMITED_LOG = new RateLimitedLogger(LOG, 20, 10, TimeUnit.SECONDS);
+
+    private final ResourceLimits limits; // 適用する上限
+    private final PipelineMetrics metrics; // 実行時間（終了理由ごと）の記録先
+    private final ScheduledExecutorService scheduler; // 上限を確認する監視スレッド
+    private final Map<String, Guard> guards = new ConcurrentHashMap<>(); // 実行ID → 監視中の実行
+    private final Map<ExitReason, AtomicLong> exitCounts = new EnumMap<>(ExitReason.class); // 終了理由ごとの実行数
+    private final Map<String, LimitOverride> overrides = new ConcurrentHashMap<>(); // 実行ID → 開始時に適用する上限の上書き
+
+    /**
+     * 1つの実行に適用する上限の上書き。0以下の項目はサーバー全体の上限（{@link ResourceLimits}）を使用します。
+     */
+    public static class LimitOverride {
+        private final long wallClockMillis; // 実時間の上限（ミリ秒）
+        private final long cpuMillis; // CPU時間の上限（ミリ秒）
+        private final long memoryMb; // 常駐メモリの上限（MB）。cgroupとは別に、監視スレッドが計測して適用する
+
+        /**
+         * 上限の上書きを構築します。
+         * @param wallClockMillis 実時間の上限（ミリ秒、0以下で上書きしない）
+         * @param cpuMillis CPU時間の上限（ミリ秒、0以下で上書きしない）
+         * @param memoryMb 常駐メモリの上限（MB、0以下で適用しない）。子JVM自身が使用するメモリを含みます。
+         */
+        public LimitOverride(long wallClockMillis, long cpuMillis, long memoryMb) {
+            this.wallClockMillis = wallClockMillis;
+            this.cpuMillis = cpuMillis;
+            this.memoryMb = memoryMb;
+        }
+
+        /**
+         * 実時間の上限を返します。
+         * @return 実時間の上限（ミリ秒、0以下は上書きしない）
+         */
+        public long getWallClockMillis() {
+            return wallClockMillis;
+        }
+    }
+
+    /**
+     * 実行の監視を行う1つの実行。
+     */
+    public class Guard {
+        private final String executionId; // 実行ID
+        private final Process process; // 子プロセス（インプロセス実行の場合はnull）
+        private final Runnable killAction; // 上限を超えたときに実行を終了させる処理
+        private final ResourceLimits.Cgroup cgroup; // 子プロセスのcgroup（使用しない場合はnull）
+        private final long wallLimit; // 実時間の上限（ミリ秒、0以下で無制限）
+        private final long cpuLimit; // CPU時間の上限（ミリ秒、0以下で無制限）
+        private final long memoryLimitMb; // 常駐メモリの上限（MB、0以下で監視スレッドは適用しない）
+        private final long startNanos = System.nanoTime(); // 監視を開始した時刻
+        private final long cpuBaselineNanos; // 監視開始時点のCPU時間（事前起動ワーカーの起動分を除くため。取得できない場合は-1）
+        private final AtomicLong outputBytes = new AtomicLong(); // 出力したバイト数
+        private final AtomicBoolean finished = new AtomicBoolean(); // 終了報告を作成したかどうか
+        private volatile long cpuNanos = -1; // 直近に計測したCPU時間（ベースラインからの差分）
+        private volatile int peakThreads = -1; // 観測されたスレッド数の最大値
+        private volatile long peakMemoryKb = -1; // 観測された常駐メモリの最大値（KB）
+        private volatile ExitReason limitReason; // 超過した上限（なければnull）
+        private volatile long limitValue; // 超過した上限の値
+        private volatile boolean terminated = false; // 上限以外の理由でサーバーが終了させたかどうか
+
+        Guard(String executionId, Process process, ResourceLimits.Cgroup cgroup, Runnable killAction) {
+            this.executionId = executionId;
+            this.process = process;
+            this.killAction = killAction;
+            this.cpuBaselineNanos = process != null ? totalCpuNanos(process) : -1;
+            this.cgroup = cgroup;
+            LimitOverride override = overrides.remove(executionId);
+            this.wallLimit = override != null && override.wallClockMillis > 0 ? override.wallClockMillis : limits.getWallClockMillis();
+            this.cpuLimit = override != null && override.cpuMillis > 0 ? override.cpuMillis : limits.getCpuMillis();
+            this.memoryLimitMb = override != null ? override.memoryMb : 0;
+        }
+
+        /**
+         * 出力したバイト数を加算し、上限を超えた場合は実行を終了させます。
+         * @param bytes 出力したバイト数
+         * @return 出力を続けてよい場合はtrue。上限を超えた場合はfalse（呼び出し側は残りの出力を転送しないでください）。
+         */
+        public boolean recordOutput(long bytes) {
+            long total = outputBytes.addAndGet(bytes);
+            long max = limits.getMaxOutputBytes();
+            if (max > 0 && total > max) {
+                limitExceeded(ExitReason.OUTPUT_LIMIT, max);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * 上限を超えたことを記録し、実行を終了させます。最初に超過した上限だけが終了理由として報告されます。
+         * @param reason 超過した上限の種類
+         * @param limit 上限の値
+         */
+        public void limitExceeded(ExitReason reason, long limit) {
+            synchronized (this) {
+                if (limitReason != null || finished.get()) {
+                    return;
+                }
+                limitReason = reason;
+                limitValue = limit;
+            }
+            LOG.info("実行ID {} が上限を超えたため終了させます ({}: {})", executionId, reason.getWireName(), limit);
+            killAction.run();
+        }
+
+        /**
+         * 上限以外の理由（クライアントの切断など）でサーバーが実行を終了させることを記録します。
+         */
+        public void markTerminated() {
+            terminated = true;
+        }
+
+        /**
+         * 実行の終了を記録して監視を終え、終了報告を作成します。2回目以降の呼び出しではnullを返します。
+         * @param exitCode 終了コード
+         * @return 終了報告
+         */
+        public ExitReport finish(int exitCode) {
+            if (!finished.compareAndSet(false, true)) {
+                return null;
+            }
+            guards.remove(executionId, this);
+            if (process != null) {
+                sample(); // 終了直前までのCPU時間を反映する（取得できなければ直近の計測値のまま）
+            }
+            ExitReason reason;
+            long limit;
+            synchronized (this) {
+                reason = limitReason;
+                limit = limitValue;
+            }
+            if (reason == null && cgroup != null && cgroup.wasOomKilled()) {
+                reason = ExitReason.MEMORY_LIMIT;
+                limit = limits.getMemoryMb();
+            } else if (reason == null && cgroup != null && exitCode != 0 && cgroup.hitThreadLimit()) {
+                // スレッドを作成できずに異常終了した（OutOfMemoryError: unable to create native thread など）
+                reason = ExitReason.THREAD_LIMIT;
+                limit = limits.getMaxThreads();
+            } else if (reason == null) {
+                reason = terminated ? ExitReason.TERMINATED : ExitReason.EXITED;
+                limit = 0;
+            }
+            if (cgroup != null) {
+                cgroup.release();
+            }
+            exitCounts.get(reason).incrementAndGet();
+            long cpu = cpuNanos;
+            ExitReport report = new ExitReport(reason, exitCode, limit, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
+                cpu >= 0 ? TimeUnit.NANOSECONDS.toMillis(cpu) : -1, outputBytes.get(), peakThreads, peakMemoryKb);
+            metrics.recordRun(report);
+            return report;
+        }
+
+        /**
+         * 子プロセスのCPU時間・スレッド数・常駐メモリを計測します。
+         */
+        private void sample() {
+            long total = totalCpuNanos(process);
+            if (total >= 0 && cpuBaselineNanos >= 0) {
+                cpuNanos = Math.max(cpuNanos, total - cpuBaselineNanos);
+            }
+            long[] status = readProcStatus(process.pid());
+            if (status[0] > peakThreads) {
+                peakThreads = (int) status[0];
+            }
+            if (status[1] > peakMemoryKb) {
+                peakMemoryKb = status[1];
+            }
+        }
+
+        /**
+         * 上限を確認します。監視スレッドから一定間隔で呼び出されます。
+         */
+        private void check() {
+            if (wallLimit > 0 && System.nanoTime() - startNanos > TimeUnit.MILLISECONDS.toNanos(wallLimit)) {
+                limitExceeded(ExitReason.WALL_CLOCK_LIMIT, wallLimit);
+                return;
+            }
+            if (process == null || !process.isAlive()) {
+                return;
+            }
+            sample();
+            if (cpuLimit > 0 && cpuNanos > TimeUnit.MILLISECONDS.toNanos(cpuLimit)) {
+                limitExceeded(ExitReason.CPU_LIMIT, cpuLimit);
+                return;
+            }
+            int threadLimit = limits.getMaxThreads();
+            if (threadLimit > 0 && peakThreads > threadLimit) {
+                limitExceeded(ExitReason.THREAD_LIMIT, threadLimit);
+                return;
+            }
+            if (memoryLimitMb > 0 && peakMemoryKb > memoryLimitMb * 1024) {
+                limitExceeded(ExitReason.MEMORY_LIMIT, memoryLimitMb);
+            }
+        }
+    }
+
+    /**
+     * 監視サービスを構築し、監視スレッドを開始します。
+     * @param limits 適用する上限
+     * @param metrics パイプラインのメトリクス
+     * @param pollIntervalMs 上限を確認する間隔（{@code execution.limits.poll-interval-ms}）
+     */
+    public ExecutionWatchdog(ResourceLimits limits, PipelineMetrics metrics,
+                             @Value("${execution.limits.poll-interval-ms:200}") long pollIntervalMs) {
+        this.limits = limits;
+        this.metrics = metrics;
+        metrics.gauge("execution.watched", "リソースの上限を監視中の実行数", guards::size);
+        for (ExitReason reason : ExitReason.values()) {
+            exitCounts.put(reason, new AtomicLong());
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "execution-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(10, pollIntervalMs);
+        scheduler.scheduleWithFixedDelay(this::checkAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 子プロセスの監視を開始します。上限を超えた場合は子プロセスとその子孫を強制終了します。
+     * 子プロセスが起動時に入ったcgroupは、終了報告の作成時にメモリやスレッド数の上限による終了の判定に使用され、その後削除されます。
+     * @param executionId 実行ID
+     * @param process 子プロセス
+     * @param cgroup 子プロセスが属するcgroup（{@link tech.nagatani.dev.worker.ChildJvmLauncher#start} で作成されたもの。使用しない場合はnull）
+     * @return 監視中の実行
+     */
+    public Guard watch(String executionId, Process process, ResourceLimits.Cgroup cgroup) {
+        return register(new Guard(executionId, process, cgroup, () -> {
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+        }));
+    }
+
+    /**
+     * インプロセス実行の監視を開始します。上限を超えた場合は指定された処理で実行を中断します。
+     * @param executionId 実行ID
+     * @param cancelAction 実行を中断する処理
+     * @return 監視中の実行
+     */
+    public Guard watch(String executionId, Runnable cancelAction) {
+        return register(new Guard(executionId, null, null, cancelAction));
+    }
+
+    private Guard register(Guard guard) {
+        Guard previous = guards.put(guard.executionId, guard);
+        if (previous != null) {
+            previous.finish(-1); // 同じ実行IDで開始し直された場合、古い監視は終える
+        }
+        return guard;
+    }
+
+    /**
+     * 指定された実行IDで次に開始される実行に、サーバー全体とは異なる上限を適用します。
+     * 実行の開始（{@link #watch}）より前に呼び出してください。開始されなかった場合は {@link #clearLimitOverride(String)} で取り消します。
+     * @param executionId 実行ID
+     * @param override 適用する上限
+     */
+    public void overrideLimits(String executionId, LimitOverride override) {
+        overrides.put(executionId, override);
+    }
+
+    /**
+     * まだ適用されていない上限の上書きを取り消します。
+     * @param executionId 実行ID
+     */
+    public void clearLimitOverride(String executionId) {
+        overrides.remove(executionId);
+    }
+
+    /**
+     * 上限以外の理由でサーバーが実行を終了させることを記録します。終了報告の理由は {@link ExitReason#TERMINATED} になります。
+     * @param executionId 実行ID
+     */
+    public void markTerminated(String executionId) {
+        Guard guard = guards.get(executionId);
+        if (guard != null) {
+            guard.markTerminated();
+        }
+    }
+
+    /**
+     * 監視中のすべての実行の上限を確認します。
+     */
+    private void checkAll() {
+        for (Guard guard : guards.values()) {
+            try {
+                guard.check();
+            } catch (RuntimeException e) {
+                RATE_LIMITED_LOG.warn("実行ID {} の上限の確認中にエラーが発生しました: {}", guard.executionId, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * プロセスが使用したCPU時間の合計を返します。
+     * @return CPU時間（ナノ秒）。取得できない場合は-1。
+     */
+    private static long totalCpuNanos(Process process) {
+        return process.info().totalCpuDuration().map(Duration::toNanos).orElse(-1L);
+    }
+
+    /**
+     * プロセスのスレッド数と常駐メモリの最大値（VmHWM）を /proc/&lt;pid&gt;/status から取得します。
+     * @return {スレッド数, 常駐メモリの最大値（KB）}。取得できない項目（Linux以外、プロセスが終了済みなど）は-1。
+     */
+    private static long[] readProcStatus(long pid) {
+        long[] status = {-1, -1};
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"), StandardCharsets.UTF_8)) {
+                if (line.startsWith("Threads:")) {
+                    status[0] = Long.parseLong(line.substring("Threads:".length()).trim());
+                } else if (line.startsWith("VmHWM:")) {
+                    // 形式は "VmHWM:     12345 kB"
+                    status[1] = Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // 取得できない場合はスレッド数とメモリの上限を適用しない
+        }
+        return status;
+    }
+
+    /**
+     * 監視中の実行数と、終了理由ごとの実行数を返します。
+     * @return 統計情報（項目名 → 値）
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("limits", limits.toMap());
+        stats.put("watching", guards.size());
+        Map<String, Long> exits = new LinkedHashMap<>();
+        exitCounts.forEach((reason, count) -> exits.put(reason.getWireName(), count.get()));
+        stats.put("exits", exits);
+        return stats;
+    }
+
+    /**
+     * アプリケーション終了時に監視スレッドを停止します。
+     */
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,643 @@
+package tech.nagatani.dev.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import tech.nagatani.dev.CompilationResult;
+import tech.nagatani.dev.ExitReason;
+import tech.nagatani.dev.ExitReport;
+import tech.nagatani.dev.IncrementalTextDecoder;
+import tech.nagatani.dev.OutputSink;
+import tech.nagatani.dev.RateLimitedLogger;
+import tech.nagatani.dev.websocket.OutputChannel;
+import tech.nagatani.dev.worker.WorkerBootstrap;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+
+/**
+ * コンパイルされたプログラムを子プロセスを使わずにサーバーJVM内で実行するサービス（インプロセス実行モード）。
+ * クラスは実行ごとに分離されたクラスローダーで定義され、{@code main} は専用のプラットフォームスレッド上で実行されます。
+ * 割り込みを無視して動き続ける {@code main} が仮想スレッドのキャリアスレッドを占有し、サーバーの他の仮想スレッド
+ * （出力の送信や標準入力の書き込み、ジャッジのケースなど）を止めてしまわないようにするためです。
+ * 同時に存在できる {@code main} のスレッドの数は {@code execution.in-process.max-threads} で制限され、
+ * 期限を過ぎて割り込まれても終了しないスレッドはリークとして数えられ、終了するまで枠を占有し続けます
+ * （枠が空いていない間は、新しいインプロセス実行を開始しません）。
+ * {@code System.in/out/err} はサーバー全体で一度だけルーティング用のストリームに差し替えられ、実行ごとのストリームに振り分けられます。
+ * 振り分け先は、{@code main} のスレッドではスレッドローカルで、それ以外のスレッド（ユーザーコードが生成したスレッドや
+ * 並列ストリームが使用する {@code ForkJoinPool.commonPool} のワーカーなど）では、呼び出し元のスタック上にある
+ * ユーザーコードのクラスローダーで決まります。スレッドローカルを子スレッドに引き継がないため、プールされたスレッドが
+ * 以前の実行に紐付いたまま残り、別の実行やサーバーの出力を誤って振り分けることはありません。
+ * {@code main} が終了した後の入出力は、元のストリームに渡されます。
+ * 出力はパイプを経由せずに直接 {@link OutputSink#sendOutputToSession(String, OutputChannel, String)} に渡されます。
+ * 実時間と出力量の上限は {@link ExecutionWatchdog} によって子プロセスと同じく適用されます（CPU時間とスレッド数は計測できません）。
+ * ただし上限を超えた場合にできるのは割り込みと標準入力を閉じることだけで、スレッドを強制的に停止することはできません。
+ *
+ * <p><b>注意:</b> ユーザーコードはサーバーと同じJVMで動作するため、{@code System.exit} の呼び出しなどはサーバー自体に影響します。
+ * 信頼できる内部環境でのみ有効化してください（{@code execution.in-process.enabled}）。</p>
+ */
+@Service
+public class InProcessExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InProcessExecutor.class);
+    // 期限切れは実行ごとに発生しうるため、件数を制限して出力する
+    private static final RateLimitedLogger RATE_LIMITED_LOG = new RateLimitedLogger(LOG, 20, 10, TimeUnit.SECONDS);
+
+    // main を実行しているスレッドが属するインプロセス実行（子スレッドには引き継がない）
+    private static final ThreadLocal<Execution> CURRENT_EXECUTION = new ThreadLocal<>();
+    // 出力の送信処理中など、振り分けを一時的に止めているスレッド（サーバー側のログが実行に振り分けられないようにする）
+    private static final ThreadLocal<Boolean> ROUTING_SUSPENDED = new ThreadLocal<>();
+    // 実行中のインプロセス実行（ユーザーコードのクラスローダー → 実行）。main 以外のスレッドの振り分けに使用する
+    private static final Map<ClassLoader, Execution> EXECUTIONS_BY_LOADER = new ConcurrentHashMap<>();
+    // 呼び出し元のクラスを辿るためのスタックウォーカー
+    private static final StackWalker STACK_WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+    private static boolean streamsInstalled = false; // System.in/out/err を差し替え済みかどうか
+    // 期限切れで割り込んでから、スレッドが終了しなければリークとみなすまでの時間
+    private static final long LEAK_GRACE_MS = 1000;
+
+    private final boolean enabled; // インプロセス実行モードが有効かどうか
+    private final long timeoutMs; // 1回の実行に許される実時間の上限（ミリ秒）
+    private final ExecutionWatchdog watchdog; // 実時間と出力量の上限を適用する監視サービス
+    private final ScheduledExecutorService deadlineScheduler; // 実行期限を監視するスケジューラ
+    private final int maxThreads; // 同時に存在できる main のスレッドの最大数
+    private final Semaphore threadSlots; // main のスレッドの枠（スレッドが実際に終了するまで返却しない）
+    private final AtomicInteger leakedThreads = new AtomicInteger(); // 期限切れの割り込み後も終了していないスレッドの数
+    private final AtomicLong rejected = new AtomicLong(); // 枠が空いていないため開始しなかった実行の数
+
+    /**
+     * インプロセス実行サービスを構築します。
+     * @param enabled インプロセス実行モードを有効にするかどうか（{@code execution.in-process.enabled}）
+     * @param timeoutMs 1回の実行に許される実時間の上限（{@code execution.in-process.timeout-ms}）
+     * @param maxThreads 同時に存在できる main のスレッドの最大数（{@code execution.in-process.max-threads}）
+     * @param watchdog 実時間と出力量の上限を適用する監視サービス
+     */
+    public InProcessExecutor(@Value("${execution.in-process.enabled:false}") boolean enabled,
+                             @Value("${execution.in-process.timeout-ms:10000}") long timeoutMs,
+                             @Value("${execution.in-process.max-threads:4}") int maxThreads,
+                             ExecutionWatchdog watchdog) {
+        this.enabled = enabled;
+        this.timeoutMs = timeoutMs;
+        this.maxThreads = Math.max(1, maxThreads);
+        this.threadSlots = new Semaphore(this.maxThreads);
+        this.watchdog = watchdog;
+        this.deadlineScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "in-process-deadline");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 実行中のインプロセス実行を表すハンドル。標準入力への書き込みと実行の中断を提供します。
+     */
+    public static class Execution {
+        private final String executionId; // 実行ID
+        private final StdinPipe stdin; // この実行の標準入力
+        private final ChunkOutputStream stdout; // この実行の標準出力（書き込みごとにWebSocketへ転送）
+        private final ChunkOutputStream stderr; // この実行の標準エラー出力
+        private volatile Thread mainThread; // main を実行しているプラットフォームスレッド
+        private volatile ScheduledFuture<?> deadline; // 実行期限のタイマー
+        private volatile ExecutionWatchdog.Guard guard; // 出力量などの上限を適用する監視中の実行
+        private volatile boolean finished = false; // main が終了したかどうか（終了後の入出力は振り分けない）
+        private final ReentrantLock leakLock = new ReentrantLock(); // exited と leaked を保護するロック
+        private boolean exited = false; // main のスレッドが終了したかどうか
+        private boolean leaked = false; // リークとして数えられたかどうか
+        private final OutputSink outputSink; // 出力と終了報告の送信先
+        private final AtomicBoolean outputClosed = new AtomicBoolean(); // 出力の終端を送信したかどうか
+
+        Execution(String executionId, Charset charset, OutputSink outputSink) {
+            this.executionId = executionId;
+            this.outputSink = outputSink;
+            // 入力待ちでブロックする直前に、まとめられている出力をすぐに送信させる（プロンプトを待たせないため）
+            this.stdin = new StdinPipe(() -> outputSink.flushSession(executionId));
+            this.stdout = new ChunkOutputStream(charset, this::recordOutput, text -> outputSink.sendOutputToSession(executionId, OutputChannel.STDOUT, text));
+            this.stderr = new ChunkOutputStream(charset, this::recordOutput, text -> outputSink.sendOutputToSession(executionId, OutputChannel.STDERR, text));
+        }
+
+        /**
+         * 出力したバイト数を監視サービスに記録します。
+         * @return 出力を続けてよい場合はtrue。上限を超えた場合はfalse。
+         */
+        private boolean recordOutput(int bytes) {
+            ExecutionWatchdog.Guard current = guard;
+            return current == null || current.recordOutput(bytes);
+        }
+
+        /**
+         * デコーダに残っている出力を送信してから、出力の終端を送信します（最初の1回のみ）。以後の出力は破棄されます。
+         * main の終了時のほか、リークしたスレッドを待たずに応答を終えるためにも使用します。
+         */
+        void closeOutput() {
+            if (!outputClosed.compareAndSet(false, true)) {
+                return;
+            }
+            stdout.flushRemaining();
+            stderr.flushRemaining();
+            stdout.discardFurtherOutput();
+            stderr.discardFurtherOutput();
+            outputSink.outputClosed(executionId, OutputChannel.STDOUT);
+            outputSink.outputClosed(executionId, OutputChannel.STDERR);
+        }
+
+        /**
+         * この実行の標準入力に書き込むためのストリームを返します。
+         * @return 標準入力への書き込みストリーム
+         */
+        public OutputStream getStdin() {
+            return stdin.writer;
+        }
+
+        /**
+         * 実行を中断します。main スレッドに割り込み、標準入力を閉じます。
+         * ユーザーコードが割り込みを無視する場合、スレッドを強制的に停止することはできません（スレッドは終了するまで枠を占有します）。
+         */
+        public void cancel() {
+            stdin.close();
+            Thread thread = mainThread;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * 実行IDを返します。
+         * @return 実行ID
+         */
+        public String getExecutionId() {
+            return executionId;
+        }
+    }
+
+    /**
+     * インプロセス実行モードが有効かどうかを返します。
+     * @return 有効な場合はtrue
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * コンパイル結果のクラスを分離されたクラスローダーで定義し、専用のプラットフォームスレッド上で {@code main} を開始します。
+     * 開始された実行は {@link InteractiveProcessManager} に登録され、WebSocketからの入力と後片付けの対象になります。
+     * スレッドの枠が空いていない場合（終了しないスレッドが残っている場合など）は開始せず、エラーメッセージを送信します。
+     *
+     * @param compilationResult 実行するコードの {@link CompilationResult}
+     * @param executionId この実行を識別する一意のID
+     * @param processManager 実行を登録する {@link InteractiveProcessManager}
+     * @param outputSink 出力と終了報告の送信先（WebSocketハンドラやHTTPのストリーミング応答）
+     */
+    public void start(CompilationResult compilationResult, String executionId,
+                      InteractiveProcessManager processManager, OutputSink outputSink) {
+        if (!compilationResult.isSuccess() || compilationResult.getClassBytes().isEmpty() || compilationResult.getClassName() == null) {
+            outputSink.sendMessageToSession(executionId, "エラー: コンパイル失敗または詳細不足のため、プログラムを開始できません。");
+            return;
+        }
+        if (!threadSlots.tryAcquire()) {
+            rejected.incrementAndGet();
+            RATE_LIMITED_LOG.warn("インプロセス実行のスレッドの枠が空いていないため、実行ID {} を開始しません (リーク中: {})",
+                executionId, leakedThreads.get());
+            outputSink.sendMessageToSession(executionId, "エラー: インプロセス実行の同時実行数の上限に達しているため、プログラムを開始できません。");
+            return;
+        }
+        installRoutingStreams();
+
+        Execution execution = new Execution(executionId, StandardCharsets.UTF_8, outputSink);
+        // 実行ごとに新しいクラスローダーを作成（親はプラットフォームクラスローダーなので、サーバーのクラスは見えない）
+        ClassLoader loader = new WorkerBootstrap.MemoryClassLoader(new HashMap<>(compilationResult.getClassBytes()));
+
+        Thread mainThread = Thread.ofPlatform().daemon(true).name("in-process-" + executionId).unstarted(() -> {
+            try {
+                runMain(compilationResult, executionId, execution, loader, outputSink);
+            } finally {
+                // スレッドが実際に終了するまで枠を返却しない（期限切れの後も動き続けたスレッドはここで初めて返却される）
+                boolean wasLeaked;
+                execution.leakLock.lock();
+                try {
+                    execution.exited = true;
+                    wasLeaked = execution.leaked;
+                } finally {
+                    execution.leakLock.unlock();
+                }
+                if (wasLeaked) {
+                    int remaining = leakedThreads.decrementAndGet();
+                    LOG.info("実行ID {} のリークしていたスレッドが終了しました (残り: {})", executionId, remaining);
+                }
+                threadSlots.release();
+            }
+        });
+        execution.mainThread = mainThread;
+        execution.guard = watchdog.watch(executionId, execution::cancel);
+        // インプロセス実行専用の実時間の上限を過ぎても終了していなければ中断する
+        execution.deadline = deadlineScheduler.schedule(() -> {
+            if (mainThread.isAlive()) {
+                execution.guard.limitExceeded(ExitReason.WALL_CLOCK_LIMIT, timeoutMs);
+                RATE_LIMITED_LOG.info("実行ID {} のインプロセス実行が期限切れのため中断されました。", executionId);
+                deadlineScheduler.schedule(() -> checkLeaked(execution), LEAK_GRACE_MS, TimeUnit.MILLISECONDS);
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+
+        processManager.registerInProcessExecution(executionId, execution);
+        EXECUTIONS_BY_LOADER.put(loader, execution);
+        mainThread.start();
+        LOG.debug("実行ID {} のプログラムをインプロセスで開始しました (クラス: {})", executionId, compilationResult.getClassName());
+    }
+
+    /**
+     * {@code main} のスレッドで、{@code main} を呼び出して後片付けと終了報告の送信を行います。
+     */
+    private static void runMain(CompilationResult compilationResult, String executionId, Execution execution,
+                                ClassLoader loader, OutputSink outputSink) {
+        CURRENT_EXECUTION.set(execution); // main のスレッドだけに設定する（生成されたスレッドはクラスローダーで振り分ける）
+        Thread.currentThread().setContextClassLoader(loader);
+        long startNanos = System.nanoTime();
+        int exitCode = 0;
+        try {
+            Class<?> mainClass = Class.forName(compilationResult.getClassName(), true, loader);
+            Method mainMethod = mainClass.getMethod("main", String[].class);
+            mainMethod.setAccessible(true);
+            mainMethod.invoke(null, (Object) new String[0]);
+        } catch (InvocationTargetException e) {
+            exitCode = 1;
+            // javaランチャーと同じ形式で、System.err 経由でこの実行の標準エラー出力に送る
+            System.err.print("Exception in thread \"main\" ");
+            e.getCause().printStackTrace();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            exitCode = 1;
+            System.err.println("エラー: mainメソッドを実行できません - " + e);
+        } finally {
+            execution.deadline.cancel(false); // 期限前に終了した場合はタイマーを取り消す
+            System.out.flush();
+            System.err.flush();
+            execution.closeOutput();
+            execution.finished = true; // 残っているスレッドの以後の入出力は元のストリームに渡す
+            EXECUTIONS_BY_LOADER.remove(loader, execution);
+            CURRENT_EXECUTION.remove();
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        LOG.debug("実行ID {} のインプロセス実行が {}ms で終了しました。", executionId, elapsedMs);
+        ExitReport report = execution.guard.finish(exitCode);
+        if (report != null) {
+            outputSink.sendExitReport(executionId, report); // 終了報告は待たずに送信される
+        }
+    }
+
+    /**
+     * 期限切れで割り込んだ後も {@code main} のスレッドが動き続けている場合、リークとして数えます。
+     * リークしたスレッドは終了するまで枠を占有し続けます。
+     */
+    private void checkLeaked(Execution execution) {
+        execution.leakLock.lock();
+        try {
+            if (execution.exited || execution.leaked) {
+                return;
+            }
+            execution.leaked = true;
+        } finally {
+            execution.leakLock.unlock();
+        }
+        int leaked = leakedThreads.incrementAndGet();
+        RATE_LIMITED_LOG.warn("実行ID {} のスレッドが割り込み後も終了しません。終了するまで枠を占有します (リーク中: {}/{})",
+            execution.executionId, leaked, maxThreads);
+        // スレッドの終了を待たずに出力の終端と終了報告を送信し、応答やジャッジのケースを終わらせる（以後の出力は破棄する）
+        execution.closeOutput();
+        ExitReport report = execution.guard.finish(-1); // スレッドは終了していないため、終了コードはない
+        if (report != null) {
+            execution.outputSink.sendExitReport(execution.executionId, report);
+        }
+    }
+
+    /**
+     * インプロセス実行のスレッドの枠の使用状況を返します。
+     * @return 統計情報（項目名 → 値）
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("maxThreads", maxThreads);
+        stats.put("running", maxThreads - threadSlots.availablePermits());
+        stats.put("leakedThreads", leakedThreads.get());
+        stats.put("rejected", rejected.get());
+        return stats;
+    }
+
+    /**
+     * アプリケーション終了時に期限監視スケジューラを停止します。
+     */
+    @PreDestroy
+    public void shutdown() {
+        deadlineScheduler.shutdownNow();
+    }
+
+    /**
+     * 現在のスレッドの入出力を振り分ける実行を返します。
+     * main のスレッドはスレッドローカルから、それ以外のスレッドは呼び出し元のスタックを辿り、
+     * 実行中のいずれかの実行のクラスローダーで定義されたクラスが見つかればその実行を返します。
+     * @return 振り分け先の実行。どの実行にも属さない場合や、実行の main が終了している場合はnull。
+     */
+    private static Execution currentExecution() {
+        if (ROUTING_SUSPENDED.get() != null) {
+            return null;
+        }
+        Execution execution = CURRENT_EXECUTION.get();
+        if (execution == null && !EXECUTIONS_BY_LOADER.isEmpty()) {
+            execution = STACK_WALKER.walk(frames -> frames
+                .map(frame -> frame.getDeclaringClass().getClassLoader())
+                .filter(loader -> loader != null) // ブートストラップクラスローダーのクラス
+                .map(EXECUTIONS_BY_LOADER::get)
+                .filter(found -> found != null)
+                .findFirst()
+                .orElse(null));
+        }
+        return execution == null || execution.finished ? null : execution;
+    }
+
+    /**
+     * {@code System.in/out/err} をルーティング用のストリームに差し替えます（最初の1回のみ）。
+     * インプロセス実行に属さないスレッドからの入出力は、元のストリームにそのまま渡されます。
+     */
+    private static synchronized void installRoutingStreams() {
+        if (streamsInstalled) {
+            return;
+        }
+        PrintStream originalOut = System.out;
+        PrintStream originalErr = System.err;
+        InputStream originalIn = System.in;
+        // 子プロセスの起動（-Dstdout.encoding=UTF-8 など）と同じく、ユーザーコードの出力は常にUTF-8でエンコードする
+        // （サーバーの stderr の既定の文字セットがUTF-8でない環境でも、日本語などが化けないようにするため）
+        System.setOut(new PrintStream(new RoutingOutputStream(originalOut, false), true, StandardCharsets.UTF_8));
+        System.setErr(new PrintStream(new RoutingOutputStream(originalErr, true), true, StandardCharsets.UTF_8));
+        System.setIn(new RoutingInputStream(originalIn));
+        streamsInstalled = true;
+    }
+
+    /**
+     * 現在のスレッドが属する実行の標準出力（または標準エラー出力）に書き込み、
+     * どの実行にも属さない場合は元のストリームに書き込む出力ストリーム。
+     */
+    private static class RoutingOutputStream extends OutputStream {
+        private final OutputStream original; // 差し替え前のストリーム
+        private final boolean isErr; // 標準エラー出力用かどうか
+
+        RoutingOutputStream(OutputStream original, boolean isErr) {
+            this.original = original;
+            this.isErr = isErr;
+        }
+
+        private OutputStream target() {
+            Execution execution = currentExecution();
+            if (execution == null) {
+                return original;
+            }
+            return isErr ? execution.stderr : execution.stdout;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target().flush();
+        }
+    }
+
+    /**
+     * 現在のスレッドが属する実行の標準入力から読み取り、
+     * どの実行にも属さない場合は元のストリームから読み取る入力ストリーム。
+     */
+    private static class RoutingInputStream extends InputStream {
+        private final InputStream original; // 差し替え前のストリーム
+
+        RoutingInputStream(InputStream original) {
+            this.original = original;
+        }
+
+        private InputStream source() {
+            Execution execution = currentExecution();
+            return execution == null ? original : execution.stdin;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return source().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return source().read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return source().available();
+        }
+    }
+
+    /**
+     * 書き込まれたバイト列を書き込みごとに文字列へデコードし、そのままコールバックに渡す出力ストリーム。
+     * 子プロセスモードと同じく行単位ではなく書き込まれた分をすぐに転送するため、改行のないプロンプトも即座に表示されます。
+     * 書き込みの境界で分断されたマルチバイト文字は次の書き込みと結合してからデコードします。
+     * 出力量の上限を超えた後の書き込みは破棄されます。
+     */
+    private static class ChunkOutputStream extends OutputStream {
+        private final IncrementalTextDecoder decoder; // 書き込みをまたぐ文字を扱うデコーダ
+        private final Consumer<String> chunkConsumer; // デコードされた出力を受け取るコールバック
+        private final IntPredicate outputRecorder; // 出力したバイト数を記録し、続けてよいかを返すコールバック
+        private volatile boolean limitReached = false; // 出力量の上限を超えたかどうか
+        // デコーダの状態を保護するロック。送信キューが一杯の場合はコールバック内で待機するため、
+        // 仮想スレッドをピン留めする synchronized ではなくReentrantLockを使用する。
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        ChunkOutputStream(Charset charset, IntPredicate outputRecorder, Consumer<String> chunkConsumer) {
+            this.decoder = new IncrementalTextDecoder(charset);
+            this.outputRecorder = outputRecorder;
+            this.chunkConsumer = chunkConsumer;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (limitReached || !outputRecorder.test(len)) {
+                limitReached = true; // 実行は監視サービスが中断する
+                return;
+            }
+            writeLock.lock();
+            try {
+                emit(decoder.decode(b, off, len));
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * 以後の書き込みをすべて破棄します（出力の終端を送信した後に使用）。
+         */
+        void discardFurtherOutput() {
+            limitReached = true;
+        }
+
+        /**
+         * デコーダに残っている不完全な文字を送信します（実行終了時に使用）。
+         */
+        void flushRemaining() {
+            writeLock.lock();
+            try {
+                emit(decoder.finish());
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void emit(String text) {
+            if (text.isEmpty()) {
+                return;
+            }
+            // 送信処理中のサーバー側のログ出力が再びこの実行に振り分けられないよう、一時的に振り分けを止める
+            boolean nested = ROUTING_SUSPENDED.get() != null;
+            ROUTING_SUSPENDED.set(Boolean.TRUE);
+            try {
+                chunkConsumer.accept(text);
+            } finally {
+                if (!nested) {
+                    ROUTING_SUSPENDED.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * WebSocketから受け取った入力をユーザーコードの標準入力として提供するパイプ。
+     * 読み取り側は入力が届くまでブロックし、割り込まれた場合は {@link InterruptedIOException} をスローします。
+     */
+    private static class StdinPipe extends InputStream {
+        private static final byte[] EOF = new byte[0]; // 入力の終端を表すマーカー
+        private final Runnable beforeBlock; // 入力待ちでブロックする直前に呼び出される処理
+        // 読み取り状態を保護するロック。synchronized でブロックすると仮想スレッドがキャリアスレッドを占有（ピン留め）し、
+        // 他の仮想スレッド（出力の書き込みスレッドなど）が実行できなくなるため、ReentrantLockを使用する。
+        private final ReentrantLock readLock = new ReentrantLock();
+        private final LinkedBlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>(); // 未読の入力チャンク
+        private byte[] current = null; // 読み取り中のチャンク
+        private int position = 0; // 読み取り中のチャンク内の位置
+        private boolean eof = false; // 入力の終端に達したかどうか
+
+        StdinPipe(Runnable beforeBlock) {
+            this.beforeBlock = beforeBlock;
+        }
+
+        // 書き込み側（WebSocketハンドラが使用）
+        final OutputStream writer = new OutputStream() {
+            @Override
+            public void write(int b) {
+                chunks.add(new byte[] { (byte) b });
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                byte[] copy = new byte[len];
+                System.arraycopy(b, off, copy, 0, len);
+                chunks.add(copy);
+            }
+
+            @Override
+            public void close() {
+                StdinPipe.this.close();
+            }
+        };
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            readLock.lock();
+            try {
+                return readLocked(b, off, len);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        private int readLocked(byte[] b, int off, int len) throws IOException {
+            while (!eof && (current == null || position >= current.length)) {
+                try {
+                    current = chunks.poll();
+                    if (current == null) {
+                        beforeBlock.run();
+                        current = chunks.take();
+                    }
+                    position = 0;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("標準入力の待機中に割り込まれました");
+                }
+                if (current == EOF) {
+                    eof = true;
+                }
+            }
+            if (eof) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            readLock.lock();
+            try {
+                return current != null && current != EOF ? current.length - position : 0;
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            chunks.add(EOF);
+        }
+    }
+}
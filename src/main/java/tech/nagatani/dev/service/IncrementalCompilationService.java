@@ -0,0 +1,125 @@
+package tech.nagatani.dev.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import tech.nagatani.dev.CompilationResult;
+import tech.nagatani.dev.CompilationWorkspace;
+import tech.nagatani.dev.DynamicCompiler;
+import tech.nagatani.dev.SourceUnit;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * クライアント（セッションまたはIPアドレス）ごとの {@link CompilationWorkspace} を管理するサービス。
+ * 同じクライアントがプロジェクトを編集して再投稿した場合、変更されたファイルだけが再コンパイルされます。
+ * 作業領域の数には上限があり、上限を超えた場合や一定時間使われなかった場合は、最も長く使われていないものから破棄されます。
+ */
+@Service
+public class IncrementalCompilationService {
+
+    private final DynamicCompiler dynamicCompiler; // 作業領域が使用するコンパイラ
+    private final CompilationCache compilationCache; // 作業領域を使用しない場合のコンパイルと、結果の登録先
+    private final boolean enabled; // インクリメンタルコンパイルが有効かどうか
+    private final int maxWorkspaces; // 保持する作業領域の最大数
+    private final long idleTimeoutMillis; // 作業領域を破棄するまでの未使用時間
+
+    // アクセス順のLinkedHashMapによるLRU（クライアントキー → 作業領域）。アクセスはすべて this で同期する。
+    private final LinkedHashMap<String, CompilationWorkspace> workspaces = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong compiles = new AtomicLong(); // 作業領域を使用したコンパイル数
+    private final AtomicLong reusedUnits = new AtomicLong(); // 再利用したファイル数の合計
+    private final AtomicLong recompiledUnits = new AtomicLong(); // 再コンパイル（無効化を含む）したファイル数の合計
+    private final AtomicLong estimatedSavedMillis = new AtomicLong(); // 推定節約時間の合計
+    private final AtomicLong evictions = new AtomicLong(); // 破棄した作業領域の数
+
+    /**
+     * インクリメンタルコンパイルサービスを構築します。
+     * @param dynamicCompiler 作業領域が使用するコンパイラ
+     * @param compilationCache コンパイルキャッシュ
+     * @param enabled インクリメンタルコンパイルを使用するかどうか（{@code compiler.workspace.enabled}）
+     * @param maxWorkspaces 保持する作業領域の最大数（{@code compiler.workspace.max-workspaces}）
+     * @param idleTimeoutMillis 作業領域を破棄するまでの未使用時間（{@code compiler.workspace.idle-timeout-ms}）
+     */
+    public IncrementalCompilationService(DynamicCompiler dynamicCompiler, CompilationCache compilationCache,
+                                         @Value("${compiler.workspace.enabled:true}") boolean enabled,
+                                         @Value("${compiler.workspace.max-workspaces:256}") int maxWorkspaces,
+                                         @Value("${compiler.workspace.idle-timeout-ms:1800000}") long idleTimeoutMillis) {
+        this.dynamicCompiler = dynamicCompiler;
+        this.compilationCache = compilationCache;
+        this.enabled = enabled;
+        this.maxWorkspaces = Math.max(1, maxWorkspaces);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * クライアントの作業領域を使用してプロジェクトをコンパイルします。
+     * 成功した結果はコンパイルキャッシュにも登録されるため、同じ内容の再投稿はjavacを実行せずに処理されます。
+     * インクリメンタルコンパイルが無効な場合は {@link CompilationCache#compileProject(List, String)} と同じです。
+     * @param clientKey クライアントキー
+     * @param sourceUnits コンパイルするソースファイルのリスト（プロジェクト全体）
+     * @param mainClass メインクラスの名前（nullの場合は自動検出）
+     * @return コンパイル結果。{@link CompilationResult#getIncrementalStats()} に再利用の統計情報が格納されます。
+     */
+    public CompilationResult compileProject(String clientKey, List<SourceUnit> sourceUnits, String mainClass) {
+        if (!enabled) {
+            return compilationCache.compileProject(sourceUnits, mainClass);
+        }
+        CompilationResult result = workspaceFor(clientKey).compile(sourceUnits, mainClass);
+        CompilationWorkspace.IncrementalStats stats = result.getIncrementalStats();
+        if (stats != null) {
+            compiles.incrementAndGet();
+            reusedUnits.addAndGet(stats.getReusedUnits().size());
+            recompiledUnits.addAndGet(stats.getRecompiledUnits().size() + stats.getInvalidatedUnits().size());
+            estimatedSavedMillis.addAndGet(stats.getEstimatedSavedMillis());
+        }
+        if (result.isSuccess()) {
+            compilationCache.storeProject(sourceUnits, mainClass, result.copyForNewExecution());
+        }
+        return result;
+    }
+
+    /**
+     * クライアントの作業領域を返します。なければ作成し、上限を超えた作業領域や未使用時間を超えた作業領域を破棄します。
+     */
+    private synchronized CompilationWorkspace workspaceFor(String clientKey) {
+        CompilationWorkspace workspace = workspaces.get(clientKey); // アクセス順が更新される
+        if (workspace == null) {
+            workspace = new CompilationWorkspace(dynamicCompiler);
+            workspaces.put(clientKey, workspace);
+        }
+        // 先頭（最も長く使われていないもの）から順に破棄する
+        Iterator<CompilationWorkspace> iterator = workspaces.values().iterator();
+        while (iterator.hasNext()) {
+            CompilationWorkspace eldest = iterator.next();
+            if (eldest == workspace || (workspaces.size() <= maxWorkspaces && eldest.getIdleMillis() < idleTimeoutMillis)) {
+                break;
+            }
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+        return workspace;
+    }
+
+    /**
+     * 作業領域の状態（数、再利用したファイル数、推定節約時間など）を返します。
+     * @return 統計情報（項目名 → 値）
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        synchronized (this) {
+            stats.put("workspaces", workspaces.size());
+        }
+        stats.put("maxWorkspaces", maxWorkspaces);
+        stats.put("compiles", compiles.get());
+        stats.put("reusedUnits", reusedUnits.get());
+        stats.put("recompiledUnits", recompiledUnits.get());
+        stats.put("estimatedSavedMillis", estimatedSavedMillis.get());
+        stats.put("evictions", evictions.get());
+        return stats;
+    }
+}
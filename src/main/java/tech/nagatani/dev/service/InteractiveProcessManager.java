@@ -1,14 +1,27 @@
 package tech.nagatani.dev.service;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import tech.nagatani.dev.CompilationResult; // 作成される予定
-// import tech.nagatani.dev.DynamicCompiler; // 将来的に必要になる可能性あり
+import tech.nagatani.dev.ExecutionOptions;
+import tech.nagatani.dev.metrics.PipelineMetrics;
 // import tech.nagatani.dev.websocket.ExecutionWebSocketHandler; // 将来的に必要になる可能性あり
 
+import javax.annotation.PostConstruct;
+
 // import java.io.IOException; // 現在は未使用
 import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 対話型Javaプロセスとその関連リソース（コンパイル結果、アクティブプロセス、I/Oスレッドなど）を管理するサービス。
@@ -17,9 +30,31 @@ import java.util.concurrent.ConcurrentHashMap;
 @Service
 public class InteractiveProcessManager {
 
+    private static final Logger LOG = LoggerFactory.getLogger(InteractiveProcessManager.class);
+
     // プロセス開始前にコンパイル結果を一時的に保持するマップ。
     // キーは実行ID (executionId)、値は CompilationResult オブジェクト。
     private final Map<String, CompilationResult> pendingCompilations = new ConcurrentHashMap<>();
+
+    // プロセス開始前に、実行要求ごとに選択された実行オプション（実行方式と起動プロファイル）を保持するマップ。
+    // キーは実行ID (executionId)、値は ExecutionOptions。
+    private final Map<String, ExecutionOptions> pendingOptions = new ConcurrentHashMap<>();
+
+    // 一括コンパイル（/api/compile/batch）で登録された保留中の実行ID。
+    // 1回のバッチで大量に登録されるため、対話的な実行とは別の上限で管理し、互いの保留エントリを押し出さないようにする。
+    private final Set<String> batchPending = ConcurrentHashMap.newKeySet();
+
+    // コンパイル結果が登録された時刻（System.nanoTime）。期限切れの保留エントリの判定に使用。
+    // キーは実行ID (executionId)、値は登録時刻。
+    private final Map<String, Long> pendingSince = new ConcurrentHashMap<>();
+
+    // 開始済みの実行のコンパイル結果を保持するマップ。終了時に一時ディレクトリを削除するために使用。
+    // キーは実行ID (executionId)、値は CompilationResult オブジェクト。
+    private final Map<String, CompilationResult> runningCompilations = new ConcurrentHashMap<>();
+
+    // 実行が開始された時刻（System.nanoTime）。孤立した実行の判定に使用。
+    // キーは実行ID (executionId)、値は開始時刻。
+    private final Map<String, Long> startedAt = new ConcurrentHashMap<>();
     
     // アクティブなJavaプロセスを保持するマップ。
     // キーは実行ID (executionId)、値は Process オブジェクト。
@@ -33,15 +68,57 @@ public class InteractiveProcessManager {
     // キーは実行ID + "-stderr"、値は Thread オブジェクト。
     private final Map<String, Thread> errorThreads = new ConcurrentHashMap<>();
 
+    // サーバーJVM内で実行中のインプロセス実行を保持するマップ。
+    // キーは実行ID (executionId)、値は InProcessExecutor.Execution オブジェクト。
+    private final Map<String, InProcessExecutor.Execution> inProcessExecutions = new ConcurrentHashMap<>();
+
+    // WebSocketではなくHTTPの応答（/api/run など）で出力を受け取っている実行の実行ID。
+    // これらの実行はWebSocketセッションを持たないため、孤立した実行として回収されないようにする。
+    private final Set<String> httpConsumers = ConcurrentHashMap.newKeySet();
+
+    // 複数の実行で共有され、個々の実行が終わっても使い続けられるコンパイル結果（ジャッジのプログラムとチェッカーなど）。
+    // クラスファイルのディレクトリは最初の実行時に作成されるため、パスではなくコンパイル結果を保持する。
+    private final Set<CompilationResult> sharedCompilations = ConcurrentHashMap.newKeySet();
+
     // private ExecutionWebSocketHandler webSocketHandler; // 将来的に必要になる可能性あり
-    // private DynamicCompiler dynamicCompiler; // 将来的に必要になる可能性あり
+    private final ExecutionTeardown teardown; // プロセスの終了と一時ディレクトリの削除をバックグラウンドで行う
+    private final ExecutionWatchdog watchdog; // サーバーが終了させた実行を終了報告に反映するために使用
+    private final OutputLogStore outputLogs; // 実行の出力ログ（後片付けで削除する）
+    private final PipelineMetrics metrics; // 後片付けの呼び出しの所要時間の記録先
+    private final int maxPending; // 保持する保留中のコンパイル結果の最大数（一括コンパイルの分を除く）
+    private final int maxPendingBatch; // 一括コンパイルで登録された保留中のコンパイル結果の最大数
 
     /**
      * InteractiveProcessManagerの新しいインスタンスを構築します。
-     * このサービスが他のSpring管理ビーンを必要とする場合は、コンストラクタインジェクションを使用します。
-     * 現状では、自己完結型であるか、他のコンポーネントによって使用されます。
+     * @param teardown プロセスの終了と一時ディレクトリの削除をバックグラウンドで行うサービス
+     * @param watchdog 実行ごとのリソースの上限を適用する監視サービス
+     * @param outputLogs 実行の出力ログ（後片付けで一時ディレクトリごと削除する）
+     * @param metrics 実行中・開始待ちの実行数などのゲージと、後片付けの所要時間の記録先
+     * @param maxPending 保持する保留中のコンパイル結果の最大数（{@code execution.reaper.max-pending}）。
+     *                   超えた場合は最も古いものから破棄されます。
+     * @param maxPendingBatch 一括コンパイルで登録された保留中のコンパイル結果の最大数（{@code execution.reaper.max-pending-batch}）。
+     *                        超えた場合は一括コンパイルの分だけが古いものから破棄されます。
+     */
+    public InteractiveProcessManager(ExecutionTeardown teardown, ExecutionWatchdog watchdog, OutputLogStore outputLogs, PipelineMetrics metrics,
+                                     @Value("${execution.reaper.max-pending:1000}") int maxPending,
+                                     @Value("${execution.reaper.max-pending-batch:1000}") int maxPendingBatch) {
+        this.teardown = teardown;
+        this.watchdog = watchdog;
+        this.outputLogs = outputLogs;
+        this.metrics = metrics;
+        this.maxPending = Math.max(1, maxPending);
+        this.maxPendingBatch = Math.max(1, maxPendingBatch);
+    }
+
+    /**
+     * 実行中・開始待ちの実行数と一時ディレクトリ数のゲージを登録します。
+     * 構築中のインスタンスを外部に渡さないよう、コンストラクタではなく構築後に登録します。
      */
-    public InteractiveProcessManager() {
+    @PostConstruct
+    public void registerGauges() {
+        metrics.gauge("execution.active", "実行中のセッション数（子プロセスとインプロセス実行の合計）", this::getActiveSessionCount);
+        metrics.gauge("execution.pending", "WebSocketの接続を待っているコンパイル結果の数", this::getPendingCount);
+        metrics.gauge("execution.temp.directories", "実行中・開始待ちの実行が使用している一時ディレクトリの数", () -> getDirectoriesInUse().size());
     }
 
     /**
@@ -51,7 +128,49 @@ public class InteractiveProcessManager {
      * @param compilationResult 登録する {@link CompilationResult} オブジェクト。
      */
     public void registerCompilationResult(String executionId, CompilationResult compilationResult) {
+        registerCompilationResult(executionId, compilationResult, ExecutionOptions.DEFAULT);
+    }
+
+    /**
+     * 指定された実行IDに関連付けて、コンパイル結果と実行オプションを登録（一時保存）します。
+     * 保留中のコンパイル結果が上限を超えた場合は、最も古いものから破棄します。
+     * @param executionId コンパイル結果に紐付ける一意の実行ID。
+     * @param compilationResult 登録する {@link CompilationResult} オブジェクト。
+     * @param executionOptions この実行で使用する {@link ExecutionOptions}。
+     */
+    public void registerCompilationResult(String executionId, CompilationResult compilationResult, ExecutionOptions executionOptions) {
+        registerCompilationResult(executionId, compilationResult, executionOptions, false);
+    }
+
+    /**
+     * 指定された実行IDに関連付けて、コンパイル結果と実行オプションを登録（一時保存）します。
+     * 一括コンパイルで登録された結果は対話的な実行とは別の上限（{@code execution.reaper.max-pending-batch}）で管理され、
+     * 上限を超えても対話的な実行の保留中のコンパイル結果は破棄されません。
+     * @param executionId コンパイル結果に紐付ける一意の実行ID。
+     * @param compilationResult 登録する {@link CompilationResult} オブジェクト。
+     * @param executionOptions この実行で使用する {@link ExecutionOptions}。
+     * @param batch 一括コンパイルで登録する場合はtrue
+     */
+    public void registerCompilationResult(String executionId, CompilationResult compilationResult, ExecutionOptions executionOptions,
+                                          boolean batch) {
+        pendingSince.put(executionId, System.nanoTime());
         pendingCompilations.put(executionId, compilationResult);
+        pendingOptions.put(executionId, executionOptions);
+        if (batch) {
+            batchPending.add(executionId);
+        }
+        if (pendingCompilations.size() - batchPending.size() > maxPending || batchPending.size() > maxPendingBatch) {
+            evictPending(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * 指定された実行IDに対して選択された実行オプションを取得します。
+     * @param executionId 実行ID。
+     * @return 登録された {@link ExecutionOptions}。登録がない場合は {@link ExecutionOptions#DEFAULT}。
+     */
+    public ExecutionOptions getExecutionOptions(String executionId) {
+        return pendingOptions.getOrDefault(executionId, ExecutionOptions.DEFAULT);
     }
 
     /**
@@ -68,6 +187,7 @@ public class InteractiveProcessManager {
      * プロセスが登録されると、対応する保留中のコンパイル結果はクリアされます。
      * @param executionId プロセスに紐付ける一意の実行ID。
      * @param process 登録する実行中の {@link Process} オブジェクト。
+     * 読み取りスレッドは未開始の状態で渡され、ここで開始されます（通常は仮想スレッド）。
      * @param outputThread プロセスの標準出力を処理する {@link Thread}。nullの場合あり。
      * @param errorThread プロセスの標準エラー出力を処理する {@link Thread}。nullの場合あり。
      */
@@ -84,8 +204,52 @@ public class InteractiveProcessManager {
             errorThreads.put(executionId + "-stderr", errorThread);
             errorThread.start();
         }
-        // プロセスが開始されたため、保留中のコンパイル結果を削除
-        pendingCompilations.remove(executionId);
+        // プロセスが開始されたため、保留中のコンパイル結果を実行中に移す（終了時に一時ディレクトリを削除するため）
+        markStarted(executionId);
+    }
+
+    /**
+     * 新しく開始されたインプロセス実行を登録します。
+     * 登録されると、対応する保留中のコンパイル結果はクリアされます。
+     * @param executionId 実行に紐付ける一意の実行ID。
+     * @param execution 登録する {@link InProcessExecutor.Execution}。
+     */
+    public void registerInProcessExecution(String executionId, InProcessExecutor.Execution execution) {
+        inProcessExecutions.put(executionId, execution);
+        markStarted(executionId);
+    }
+
+    /**
+     * 保留中のコンパイル結果を実行中に移し、開始時刻を記録します。
+     * @param executionId 開始された実行ID
+     */
+    private void markStarted(String executionId) {
+        startedAt.put(executionId, System.nanoTime());
+        CompilationResult compilationResult = pendingCompilations.remove(executionId);
+        if (compilationResult != null) {
+            runningCompilations.put(executionId, compilationResult);
+        }
+        pendingOptions.remove(executionId);
+        pendingSince.remove(executionId);
+        batchPending.remove(executionId);
+    }
+
+    /**
+     * 指定された実行IDの出力を、WebSocketではなくHTTPの応答で受け取ることを登録します。
+     * 登録は {@link #cleanupProcess(String)} で解除されます。
+     * @param executionId 実行ID
+     */
+    public void registerHttpConsumer(String executionId) {
+        httpConsumers.add(executionId);
+    }
+
+    /**
+     * 指定された実行IDの出力をHTTPの応答で受け取っているかどうかを返します。
+     * @param executionId 実行ID
+     * @return HTTPの応答で受け取っている場合はtrue
+     */
+    public boolean hasHttpConsumer(String executionId) {
+        return httpConsumers.contains(executionId);
     }
 
     /**
@@ -108,26 +272,205 @@ public class InteractiveProcessManager {
         if (process != null) {
             return process.getOutputStream();
         }
+        // インプロセス実行の場合はその実行の標準入力パイプを返す
+        InProcessExecutor.Execution execution = inProcessExecutions.get(executionId);
+        if (execution != null) {
+            return execution.getStdin();
+        }
         return null;
     }
 
+    /**
+     * 指定された実行IDのプログラムを終了させます（子プロセスは強制終了、インプロセス実行は中断）。
+     * リソースの登録は解除しないため、終了コードの通知などは通常どおり行われ、後片付けは {@link #cleanupProcess(String)} で行います。
+     * @param executionId 終了させる実行ID。
+     */
+    public void terminateExecution(String executionId) {
+        watchdog.markTerminated(executionId); // 終了報告の理由を "terminated" にする
+        Process process = activeProcesses.get(executionId);
+        if (process != null) {
+            process.destroyForcibly();
+        }
+        InProcessExecutor.Execution execution = inProcessExecutions.get(executionId);
+        if (execution != null) {
+            execution.cancel();
+        }
+    }
+
+    /**
+     * 現在実行中のセッション数（子プロセスとインプロセス実行の合計）を返します。
+     * @return 実行中のセッション数
+     */
+    public int getActiveSessionCount() {
+        return activeProcesses.size() + inProcessExecutions.size();
+    }
+
+    /**
+     * 開始待ち（コンパイル結果のみ登録済み）の実行数を返します。
+     * @return 開始待ちの実行数
+     */
+    public int getPendingCount() {
+        return pendingCompilations.size();
+    }
+
+    /**
+     * 登録されている出力読み取りスレッドのうち、生存しているものの数を返します。
+     * @return 生存している読み取りスレッド数
+     */
+    public int getLiveReaderThreadCount() {
+        return countAlive(outputThreads) + countAlive(errorThreads);
+    }
+
+    /**
+     * 生存している出力読み取りスレッドのうち、プラットフォームスレッド（OSスレッド）であるものの数を返します。
+     * 読み取りスレッドは仮想スレッドで作成されるため、通常は0になります。
+     * @return 生存しているプラットフォームスレッドの読み取りスレッド数
+     */
+    public int getLivePlatformReaderThreadCount() {
+        int count = 0;
+        for (Map<String, Thread> threads : List.of(outputThreads, errorThreads)) {
+            for (Thread thread : threads.values()) {
+                if (thread.isAlive() && !thread.isVirtual()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * スレッドマップ内で生存しているスレッドの数を数えます。
+     * @param threads 対象のスレッドマップ
+     * @return 生存しているスレッド数
+     */
+    private static int countAlive(Map<String, Thread> threads) {
+        int count = 0;
+        for (Thread thread : threads.values()) {
+            if (thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 登録から指定時間以上経過した保留中のコンパイル結果（WebSocketが接続されなかった実行）を破棄します。
+     * 保留中の数が上限を超えている場合は、経過時間にかかわらず古いものから破棄します。
+     * 上限は対話的な実行と一括コンパイルで登録されたものとで別々に適用されます。
+     * @param ttlMillis 保留中のコンパイル結果を保持する時間（ミリ秒）
+     * @return 破棄した数
+     */
+    public int evictPending(long ttlMillis) {
+        long now = System.nanoTime();
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(pendingSince.entrySet());
+        entries.sort(Map.Entry.comparingByValue(Comparator.naturalOrder())); // 古い順
+        int batchExcess = batchPending.size() - maxPendingBatch;
+        int excess = pendingCompilations.size() - batchPending.size() - maxPending;
+        int evicted = 0;
+        int evictedBatch = 0;
+        for (Map.Entry<String, Long> entry : entries) {
+            String executionId = entry.getKey();
+            boolean batch = batchPending.contains(executionId);
+            boolean expired = TimeUnit.NANOSECONDS.toMillis(now - entry.getValue()) >= ttlMillis;
+            if (!expired && (batch ? evictedBatch >= batchExcess : evicted - evictedBatch >= excess)) {
+                continue; // 上限以内のより新しいエントリ
+            }
+            // 破棄と同時にWebSocketが接続して開始された場合は対象外
+            if (pendingSince.remove(executionId, entry.getValue())) {
+                CompilationResult cr = pendingCompilations.remove(executionId);
+                pendingOptions.remove(executionId);
+                batchPending.remove(executionId);
+                if (cr != null && cr.getCompiledCodePath() != null) {
+                    teardown.deleteDirectoryLater(cr.getCompiledCodePath());
+                }
+                evicted++;
+                if (batch) {
+                    evictedBatch++;
+                }
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * 開始から指定時間以上経過した実行の実行IDを返します。
+     * @param minAgeMillis 開始からの経過時間（ミリ秒）
+     * @return 実行IDのリスト（子プロセスとインプロセス実行の両方）
+     */
+    public List<String> getExecutionsOlderThan(long minAgeMillis) {
+        long now = System.nanoTime();
+        List<String> executionIds = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : startedAt.entrySet()) {
+            if (TimeUnit.NANOSECONDS.toMillis(now - entry.getValue()) >= minAgeMillis) {
+                executionIds.add(entry.getKey());
+            }
+        }
+        return executionIds;
+    }
+
+    /**
+     * 複数の実行で共有されるコンパイル結果を登録します。登録を解除するまで、そのクラスファイルのディレクトリ
+     * （登録後に作成されたものを含む）は放置されたディレクトリの削除の対象外になります。
+     * 実行時間の上限を大きく超えて使われるもの（多数のケースを順に実行するジャッジなど）に使用します。
+     * @param compilationResult 共有されるコンパイル結果
+     */
+    public void registerSharedCompilation(CompilationResult compilationResult) {
+        sharedCompilations.add(compilationResult);
+    }
+
+    /**
+     * {@link #registerSharedCompilation(CompilationResult)} で登録したコンパイル結果の登録を解除します。
+     * @param compilationResult 登録を解除するコンパイル結果
+     */
+    public void unregisterSharedCompilation(CompilationResult compilationResult) {
+        sharedCompilations.remove(compilationResult);
+    }
+
+    /**
+     * 保留中・実行中・共有中のコンパイル結果と、出力ログが使用している一時ディレクトリ（削除待ちのものを含む）を返します。
+     * これらのディレクトリは、放置されたディレクトリの削除の対象外です。
+     * @return 使用中のディレクトリの集合
+     */
+    public Set<Path> getDirectoriesInUse() {
+        Set<Path> directories = new HashSet<>();
+        for (Map<String, CompilationResult> results : List.of(pendingCompilations, runningCompilations)) {
+            for (CompilationResult cr : results.values()) {
+                if (cr.getCompiledCodePath() != null) {
+                    directories.add(cr.getCompiledCodePath());
+                }
+            }
+        }
+        for (CompilationResult cr : sharedCompilations) {
+            if (cr.getCompiledCodePath() != null) {
+                directories.add(cr.getCompiledCodePath());
+            }
+        }
+        directories.addAll(outputLogs.getDirectoriesInUse());
+        directories.addAll(teardown.getPendingDirectories());
+        return directories;
+    }
+
     /**
      * 指定された実行IDに関連付けられたプロセスとそのリソースをクリーンアップします。
-     * これには、プロセスの強制終了、I/Oスレッドの中断、および関連するマップからのエントリ削除が含まれます。
+     * これには、プロセスの終了（インプロセス実行の場合は中断）、I/Oスレッドの中断、および関連するマップからのエントリ削除が含まれます。
      * 保留中のコンパイル結果も（まだ存在する場合）クリーンアップされます。
+     * プロセスの終了（SIGTERMの後、必要なら強制終了）と一時ディレクトリの削除は {@link ExecutionTeardown} がバックグラウンドで行うため、
+     * このメソッドはそれらの完了を待たずに戻ります。
      * @param executionId クリーンアップするプロセスの実行ID。
      */
     public void cleanupProcess(String executionId) {
+        long startNanos = System.nanoTime();
+        watchdog.markTerminated(executionId); // まだ実行中であれば、終了報告の理由を "terminated" にする
         // アクティブなプロセスをマップから削除し、取得
         Process process = activeProcesses.remove(executionId);
         if (process != null) {
-            process.destroyForcibly(); // プロセスを強制終了
-            try {
-                process.waitFor(); // プロセスの終了を待機
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt(); // スレッドの割り込み状態を再設定
-                System.err.println("プロセス " + executionId + " の終了待機中に割り込みが発生しました。");
-            }
+            teardown.terminate(executionId, process); // プロセスとその子孫を終了させる（終了は待たない）
+        }
+
+        // インプロセス実行の場合は実行を中断
+        InProcessExecutor.Execution execution = inProcessExecutions.remove(executionId);
+        if (execution != null) {
+            execution.cancel();
         }
 
         // 標準出力スレッドをマップから削除し、生存していれば中断
@@ -143,10 +486,23 @@ public class InteractiveProcessManager {
         }
         
         // 開始されなかった場合に備えて、保留中のコンパイル結果からもクリーンアップ
-        CompilationResult cr = pendingCompilations.remove(executionId);
-        // 将来的には、ここでcr.getCompiledCodePath()を使用して一時ディレクトリも削除することを検討
-        // (DynamicCompilerのdeleteTempDirectoryを呼び出すなど)
-        
-        System.out.println("実行ID: " + executionId + " のリソースをクリーンアップしました。");
+        CompilationResult pending = pendingCompilations.remove(executionId);
+        pendingOptions.remove(executionId);
+        pendingSince.remove(executionId);
+        batchPending.remove(executionId);
+        startedAt.remove(executionId);
+        httpConsumers.remove(executionId);
+        // 出力ログを閉じ、書き出したファイルの一時ディレクトリを削除待ちにする
+        outputLogs.release(executionId);
+        // この実行のためにクラスファイルを書き出した一時ディレクトリを削除待ちにする
+        CompilationResult running = runningCompilations.remove(executionId);
+        for (CompilationResult cr : new CompilationResult[] {pending, running}) {
+            if (cr != null && cr.getCompiledCodePath() != null) {
+                teardown.deleteDirectoryLater(cr.getCompiledCodePath());
+            }
+        }
+        metrics.recordCleanupCall(System.nanoTime() - startNanos);
+
+        LOG.debug("実行ID: {} のリソースをクリーンアップしました。", executionId);
     }
 }
@@ -0,0 +1,698 @@
+package tech.nagatani.dev.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import tech.nagatani.dev.CompilationResult;
+import tech.nagatani.dev.ComparisonMode;
+import tech.nagatani.dev.DynamicCompiler;
+import tech.nagatani.dev.ExecutionCompletion;
+import tech.nagatani.dev.ExecutionMode;
+import tech.nagatani.dev.ExecutionOptions;
+import tech.nagatani.dev.ExitReason;
+import tech.nagatani.dev.ExitReport;
+import tech.nagatani.dev.OutputSink;
+import tech.nagatani.dev.RateLimitedLogger;
+import tech.nagatani.dev.Verdict;
+import tech.nagatani.dev.metrics.PipelineMetrics;
+import tech.nagatani.dev.websocket.OutputChannel;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 1回コンパイルしたプログラムを多数のテストケース（標準入力と期待される出力の組）に対して実行し、
+ * ケースごとの判定（{@link Verdict}）を下すサービス（採点用）。
+ * <p>
+ * すべてのケースは同じ {@link CompilationResult} を共有し（事前起動ワーカーにはクラスファイルのバイト列を送信し、
+ * 新しいJVMでは一度だけ書き出した一時ディレクトリを使用します）、{@code judge.parallelism} 個まで並列に実行されます。
+ * 並列実行の枠はサーバー全体で共有されるため、複数のジャッジ要求が同時に届いてもCPUコア数以上のプログラムは同時に実行されません。
+ * <p>
+ * 各ケースには {@link ExecutionWatchdog.LimitOverride} により、サーバー全体とは別の上限が適用されます。
+ * <ul>
+ *   <li>制限時間はCPU時間に適用します（子プロセスの場合）。待機し続けるプログラムのために、実時間にも
+ *       制限時間の2倍に {@code judge.wall-clock-slack-ms} を加えた上限を設けます。インプロセス実行ではCPU時間を計測できないため、実時間で判定します。</li>
+ *   <li>メモリの上限は子プロセスの常駐メモリ（JVM自身が使用する分を含む）に適用します。</li>
+ * </ul>
+ * <p>
+ * 比較方法が {@link ComparisonMode#CHECKER} の場合、チェッカープログラムはケースごとに実行され、標準入力から次の形式のデータを受け取ります。
+ * 1行目に入力・期待される出力・プログラムの出力のUTF-8でのバイト数を空白区切りで書き、その直後に3つの内容をこの順に連結したもの。
+ * チェッカーが終了コード0で終了すれば AC、1で終了すれば WA、それ以外は JE と判定し、チェッカーの標準出力をメッセージとして返します。
+ * <p>
+ * 応答を待つクライアントがいなくなった場合（タイムアウトや切断）は {@link JudgeRun#cancel()} により、
+ * まだ開始していないケースを実行せずに JE として打ち切ります。実行中のケースはそのまま終了まで実行されます。
+ */
+@Service
+public class JudgeService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JudgeService.class);
+    // ケースごとに発生しうる警告は件数を制限して出力する
+    private static final RateLimitedLogger RATE_LIMITED_LOG = new RateLimitedLogger(LOG, 20, 10, TimeUnit.SECONDS);
+
+    // 結果に含めるプログラムの出力と標準エラー出力の最大文字数（隠しテストの出力全体は返さない）
+    private static final int PREVIEW_CHARS = 1024;
+    // 終了報告が届かない場合に、実時間の上限に加えて待つ時間
+    private static final long FINISH_GRACE_MS = 5000;
+
+    private final DynamicCompiler dynamicCompiler; // 子プロセスでの実行と一時ディレクトリの削除
+    private final InProcessExecutor inProcessExecutor; // インプロセスでの実行
+    private final InteractiveProcessManager processManager; // 実行の登録と後片付け
+    private final ExecutionWatchdog watchdog; // ケースごとの上限の適用
+    private final PipelineMetrics metrics; // ケースごとの判定と所要時間の記録先
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor(); // ケースを実行するスレッド（枠を待つ間もOSスレッドを占有しない）
+    private final Semaphore slots; // 同時に実行するプログラムの数を制限する枠
+    private final int parallelism; // 同時に実行するプログラムの最大数
+    private final long wallClockSlackMs; // 実時間の上限に加える余裕（JVMの起動などのため）
+    private final long checkerTimeLimitMs; // チェッカーの制限時間
+
+    private final AtomicLong judgements = new AtomicLong(); // 受け付けたジャッジ要求の数
+    private final AtomicLong cases = new AtomicLong(); // 実行したケースの数
+    private final Map<Verdict, AtomicLong> verdictCounts = new EnumMap<>(Verdict.class); // 判定ごとのケース数
+
+    /**
+     * 1つのテストケース。
+     */
+    public static class TestCase {
+        private final String id; // 呼び出し側が結果を対応付けるためのID
+        private final String input; // プログラムの標準入力に書き込む内容
+        private final String expectedOutput; // 期待される出力
+
+        /**
+         * テストケースを構築します。
+         * @param id 呼び出し側が結果を対応付けるためのID
+         * @param input 標準入力に書き込む内容（nullの場合は空）
+         * @param expectedOutput 期待される出力（nullの場合は空）
+         */
+        public TestCase(String id, String input, String expectedOutput) {
+            this.id = id;
+            this.input = input != null ? input : "";
+            this.expectedOutput = expectedOutput != null ? expectedOutput : "";
+        }
+    }
+
+    /**
+     * ジャッジの条件（比較方法と上限、実行方式）。
+     */
+    public static class JudgeOptions {
+        private final ComparisonMode comparisonMode; // 出力の比較方法
+        private final long timeLimitMs; // 制限時間（ミリ秒）
+        private final long memoryLimitMb; // メモリの上限（MB、0以下で適用しない）
+        private final ExecutionOptions executionOptions; // 実行方式と起動プロファイル
+
+        /**
+         * ジャッジの条件を構築します。
+         * @param comparisonMode 出力の比較方法
+         * @param timeLimitMs 制限時間（ミリ秒）
+         * @param memoryLimitMb メモリの上限（MB、0以下で適用しない）
+         * @param executionOptions 実行方式と起動プロファイル
+         */
+        public JudgeOptions(ComparisonMode comparisonMode, long timeLimitMs, long memoryLimitMb, ExecutionOptions executionOptions) {
+            this.comparisonMode = comparisonMode;
+            this.timeLimitMs = timeLimitMs;
+            this.memoryLimitMb = memoryLimitMb;
+            this.executionOptions = executionOptions;
+        }
+    }
+
+    /**
+     * 1つのテストケースの判定結果。
+     */
+    public static class CaseResult {
+        private final int index; // 入力リスト内の位置
+        private final String id; // テストケースのID
+        private final Verdict verdict; // 判定
+        private final ExitReport report; // プログラムの終了報告（開始できなかった場合などはnull）
+        private final String outputPreview; // プログラムの出力の先頭
+        private final String stderrPreview; // 標準エラー出力の先頭
+        private final String checkerMessage; // チェッカーの出力（チェッカーを使用しない場合はnull）
+
+        CaseResult(int index, String id, Verdict verdict, ExitReport report, String outputPreview, String stderrPreview, String checkerMessage) {
+            this.index = index;
+            this.id = id;
+            this.verdict = verdict;
+            this.report = report;
+            this.outputPreview = outputPreview;
+            this.stderrPreview = stderrPreview;
+            this.checkerMessage = checkerMessage;
+        }
+
+        /**
+         * 判定を返します。
+         * @return 判定
+         */
+        public Verdict getVerdict() {
+            return verdict;
+        }
+
+        /**
+         * JSON応答に含める形式に変換します。
+         * @return 項目名 → 値のマップ
+         */
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("index", index);
+            map.put("id", id);
+            map.put("verdict", verdict.getWireName());
+            if (report != null) {
+                map.put("exitCode", report.getExitCode());
+                map.put("reason", report.getReason().getWireName());
+                map.put("cpuMillis", report.getCpuMillis());
+                map.put("wallMillis", report.getWallMillis());
+                map.put("peakMemoryKb", report.getPeakMemoryKb());
+                map.put("outputBytes", report.getOutputBytes());
+            }
+            map.put("output", outputPreview);
+            map.put("stderr", stderrPreview);
+            if (checkerMessage != null) {
+                map.put("checkerMessage", checkerMessage);
+            }
+            return map;
+        }
+    }
+
+    /**
+     * すべてのテストケースの判定結果と集計。
+     */
+    public static class JudgeReport {
+        private final List<CaseResult> results; // ケースごとの結果（入力リストの順）
+        private final long wallMillis; // 最初のケースの開始から最後のケースの終了までの時間
+        private final int parallelism; // 同時に実行したプログラムの最大数
+
+        JudgeReport(List<CaseResult> results, long wallMillis, int parallelism) {
+            this.results = results;
+            this.wallMillis = wallMillis;
+            this.parallelism = parallelism;
+        }
+
+        /**
+         * 全体の判定を返します。すべてのケースが AC なら AC、そうでなければ最初に AC でなかったケースの判定です。
+         * @return 全体の判定
+         */
+        public Verdict getVerdict() {
+            for (CaseResult result : results) {
+                if (result.verdict != Verdict.ACCEPTED) {
+                    return result.verdict;
+                }
+            }
+            return Verdict.ACCEPTED;
+        }
+
+        /**
+         * JSON応答に含める形式に変換します。
+         * @return 項目名 → 値のマップ（全体の判定、判定ごとのケース数、時間の集計、ケースごとの結果）
+         */
+        public Map<String, Object> toMap() {
+            Map<String, Integer> summary = new LinkedHashMap<>();
+            long totalCpu = 0;
+            long maxCpu = 0;
+            long maxWall = 0;
+            long maxMemory = -1;
+            List<Map<String, Object>> caseMaps = new ArrayList<>();
+            for (CaseResult result : results) {
+                summary.merge(result.verdict.getWireName(), 1, Integer::sum);
+                if (result.report != null) {
+                    totalCpu += Math.max(0, result.report.getCpuMillis());
+                    maxCpu = Math.max(maxCpu, result.report.getCpuMillis());
+                    maxWall = Math.max(maxWall, result.report.getWallMillis());
+                    maxMemory = Math.max(maxMemory, result.report.getPeakMemoryKb());
+                }
+                caseMaps.add(result.toMap());
+            }
+            Map<String, Object> timing = new LinkedHashMap<>();
+            timing.put("wallMillis", wallMillis);
+            timing.put("totalCpuMillis", totalCpu);
+            timing.put("maxCpuMillis", maxCpu);
+            timing.put("maxWallMillis", maxWall);
+            timing.put("maxPeakMemoryKb", maxMemory);
+            timing.put("parallelism", parallelism);
+
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("verdict", getVerdict().getWireName());
+            map.put("passed", summary.getOrDefault(Verdict.ACCEPTED.getWireName(), 0));
+            map.put("total", results.size());
+            map.put("summary", summary);
+            map.put("timing", timing);
+            map.put("cases", caseMaps);
+            return map;
+        }
+    }
+
+    /**
+     * 実行中のジャッジ。すべてのケースの判定が終わったときに完了する {@link CompletableFuture} と、
+     * まだ開始していないケースを取り消す操作を持ちます。
+     */
+    public static class JudgeRun {
+        private final CompletableFuture<JudgeReport> future; // すべてのケースの判定が終わったときに完了する
+        private final List<PendingCase> cases; // ケースごとの実行状態
+
+        JudgeRun(CompletableFuture<JudgeReport> future, List<PendingCase> cases) {
+            this.future = future;
+            this.cases = cases;
+        }
+
+        /**
+         * すべてのケースの判定が終わったときに完了する {@link CompletableFuture} を返します。
+         * @return 判定結果のFuture
+         */
+        public CompletableFuture<JudgeReport> getFuture() {
+            return future;
+        }
+
+        /**
+         * まだ開始していないケースを取り消します。取り消したケースは実行されず、判定は JE になります。
+         * 既に開始したケースは終了まで実行されます。すべてのケースが開始済みの場合は何もしません。
+         * @return 取り消したケースの数
+         */
+        public int cancel() {
+            int cancelled = 0;
+            for (PendingCase pendingCase : cases) {
+                if (pendingCase.cancel()) {
+                    cancelled++;
+                }
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * 1つのケースの実行状態。開始と取り消しのどちらか先に行われた方だけが有効になります。
+     */
+    private static class PendingCase {
+        static final int WAITING = 0; // 並列実行の枠を待っている
+        static final int STARTED = 1; // 実行を開始した
+        static final int CANCELLED = 2; // 開始前に取り消された
+
+        final int index; // 入力リスト内の位置
+        final String id; // テストケースのID
+        final AtomicInteger state = new AtomicInteger(WAITING);
+        final CompletableFuture<CaseResult> result = new CompletableFuture<>(); // ケースの判定結果
+        volatile Future<?> task; // 枠を待っているスレッド（取り消し時に割り込む）
+
+        PendingCase(int index, String id) {
+            this.index = index;
+            this.id = id;
+        }
+
+        /**
+         * 実行の開始を記録します。
+         * @return 開始できた場合はtrue、既に取り消されていた場合はfalse
+         */
+        boolean start() {
+            return state.compareAndSet(WAITING, STARTED);
+        }
+
+        /**
+         * 開始前であれば取り消し、枠を待っているスレッドに割り込みます。
+         * @return 取り消した場合はtrue
+         */
+        boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) {
+                return false;
+            }
+            result.complete(new CaseResult(index, id, Verdict.JUDGE_ERROR, null, "", "ジャッジが取り消されました。", null));
+            Future<?> waiting = task;
+            if (waiting != null) {
+                waiting.cancel(true);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 1回の実行の結果（終了報告と出力）。
+     */
+    private static class RunOutcome {
+        final ExitReport report; // 終了報告（開始できなかった、または終了報告が届かなかった場合はnull）
+        final String stdout; // 標準出力
+        final String stderr; // 標準エラー出力とサーバーからの通知
+
+        RunOutcome(ExitReport report, String stdout, String stderr) {
+            this.report = report;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+    }
+
+    /**
+     * 1回の実行の出力をメモリに集める {@link OutputSink}。
+     * 出力の総量は {@link ExecutionWatchdog} の出力の上限で制限されます。
+     */
+    private static class CollectingOutputSink implements OutputSink {
+        private final ReentrantLock lock = new ReentrantLock(); // 読み取りスレッドは仮想スレッドのため synchronized は使わない
+        private final StringBuilder stdout = new StringBuilder(); // 標準出力
+        private final StringBuilder stderr = new StringBuilder(); // 標準エラー出力とサーバーからの通知
+        private final ExecutionCompletion completion = new ExecutionCompletion(); // 終了報告と出力の終端
+
+        @Override
+        public void sendMessageToSession(String executionId, String message) {
+            sendOutputToSession(executionId, OutputChannel.SYSTEM, message + "\n");
+        }
+
+        @Override
+        public void sendOutputToSession(String executionId, OutputChannel channel, String text) {
+            lock.lock();
+            try {
+                (channel == OutputChannel.STDOUT ? stdout : stderr).append(text);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void flushSession(String executionId) {
+            // 実行の終了後にまとめて読み取るため、途中で送信するものはない
+        }
+
+        @Override
+        public void sendExitReport(String executionId, ExitReport report) {
+            completion.exitReported(report);
+        }
+
+        @Override
+        public void outputClosed(String executionId, OutputChannel channel) {
+            completion.outputClosed(channel);
+        }
+
+        RunOutcome toOutcome(ExitReport report) {
+            lock.lock();
+            try {
+                return new RunOutcome(report, stdout.toString(), stderr.toString());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * ジャッジサービスを構築します。
+     * @param dynamicCompiler 動的コンパイルサービス
+     * @param inProcessExecutor インプロセス実行サービス
+     * @param processManager 対話型プロセス管理サービス
+     * @param watchdog 実行の監視サービス
+     * @param metrics パイプラインのメトリクス
+     * @param configuredParallelism 同時に実行するプログラムの最大数（{@code judge.parallelism}）。0以下の場合はCPUコア数。
+     * @param wallClockSlackMs 実時間の上限に加える余裕（{@code judge.wall-clock-slack-ms}）
+     * @param checkerTimeLimitMs チェッカーの制限時間（{@code judge.checker-time-limit-ms}）
+     */
+    public JudgeService(DynamicCompiler dynamicCompiler,
+                        InProcessExecutor inProcessExecutor,
+                        InteractiveProcessManager processManager,
+                        ExecutionWatchdog watchdog,
+                        PipelineMetrics metrics,
+                        @Value("${judge.parallelism:0}") int configuredParallelism,
+                        @Value("${judge.wall-clock-slack-ms:1000}") long wallClockSlackMs,
+                        @Value("${judge.checker-time-limit-ms:5000}") long checkerTimeLimitMs) {
+        this.dynamicCompiler = dynamicCompiler;
+        this.inProcessExecutor = inProcessExecutor;
+        this.processManager = processManager;
+        this.watchdog = watchdog;
+        this.metrics = metrics;
+        this.parallelism = configuredParallelism > 0 ? configuredParallelism : Runtime.getRuntime().availableProcessors();
+        this.slots = new Semaphore(parallelism, true);
+        this.wallClockSlackMs = Math.max(0, wallClockSlackMs);
+        this.checkerTimeLimitMs = checkerTimeLimitMs;
+        for (Verdict verdict : Verdict.values()) {
+            verdictCounts.put(verdict, new AtomicLong());
+        }
+        metrics.gauge("judge.running", "実行中のジャッジのテストケース数", () -> parallelism - slots.availablePermits());
+    }
+
+    /**
+     * コンパイル済みのプログラムをすべてのテストケースに対して並列に実行し、判定します。このメソッドはすぐに戻ります。
+     * 完了後、プログラム（とチェッカー）のクラスファイルを書き出した一時ディレクトリは削除されるため、
+     * 渡すコンパイル結果はこのジャッジ専用のもの（{@link CompilationResult#copyForNewExecution()} など）にしてください。
+     *
+     * @param program コンパイルに成功したプログラム
+     * @param testCases テストケースのリスト
+     * @param options 比較方法と上限、実行方式
+     * @param checker コンパイルに成功したチェッカー（{@link ComparisonMode#CHECKER} 以外ではnull）
+     * @return 実行中のジャッジ（判定結果のFutureと、開始前のケースの取り消し）
+     */
+    public JudgeRun judge(CompilationResult program, List<TestCase> testCases, JudgeOptions options, CompilationResult checker) {
+        judgements.incrementAndGet();
+        long startNanos = System.nanoTime();
+        // ケースが順に作成するクラスファイルのディレクトリを、ジャッジが終わるまで放置されたディレクトリの削除から守る
+        processManager.registerSharedCompilation(program);
+        if (checker != null) {
+            processManager.registerSharedCompilation(checker);
+        }
+        List<PendingCase> pendingCases = new ArrayList<>();
+        List<CompletableFuture<CaseResult>> futures = new ArrayList<>();
+        for (int i = 0; i < testCases.size(); i++) {
+            TestCase testCase = testCases.get(i);
+            PendingCase pendingCase = new PendingCase(i, testCase.id != null ? testCase.id : String.valueOf(i));
+            pendingCases.add(pendingCase);
+            futures.add(pendingCase.result);
+            pendingCase.task = executor.submit(() -> {
+                pendingCase.result.complete(judgeCase(pendingCase, testCase, program, options, checker));
+            });
+        }
+        CompletableFuture<JudgeReport> report = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+            .handle((ignored, error) -> {
+                // コンパイル結果を共有したすべてのケースが終わったので、一時ディレクトリを削除する
+                dynamicCompiler.deleteTempDirectory(program.getCompiledCodePath());
+                processManager.unregisterSharedCompilation(program);
+                if (checker != null) {
+                    dynamicCompiler.deleteTempDirectory(checker.getCompiledCodePath());
+                    processManager.unregisterSharedCompilation(checker);
+                }
+                List<CaseResult> results = new ArrayList<>();
+                for (CompletableFuture<CaseResult> future : futures) {
+                    results.add(future.join()); // judgeCase は例外をスローしない
+                }
+                long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                LOG.info("ジャッジが完了しました ({} ケース, {}ms)", results.size(), wallMillis);
+                return new JudgeReport(results, wallMillis, Math.min(parallelism, testCases.size()));
+            });
+        return new JudgeRun(report, pendingCases);
+    }
+
+    /**
+     * すべてのケースの判定にかかる時間の上限の見積もりを返します。
+     * 各ケースの実時間の上限（チェッカーを使う場合はチェッカーの分を加えたもの）に、
+     * 並列実行の枠の数で割ったケース数（切り上げ）を掛けた値です。他のジャッジ要求と枠を共有する分は含みません。
+     * @param caseCount ケースの数
+     * @param options 比較方法と上限
+     * @return 見積もり（ミリ秒）
+     */
+    public long estimateDurationMillis(int caseCount, JudgeOptions options) {
+        long perCaseMillis = options.timeLimitMs * 2 + wallClockSlackMs;
+        if (options.comparisonMode == ComparisonMode.CHECKER) {
+            perCaseMillis += checkerTimeLimitMs * 2 + wallClockSlackMs;
+        }
+        long waves = (caseCount + parallelism - 1) / parallelism;
+        return waves * perCaseMillis;
+    }
+
+    /**
+     * 1つのテストケースを実行して判定します。並列実行の枠が空くまで待ちます。
+     * 枠を待つ間に取り消された場合は実行しません（結果は取り消した側が設定します）。
+     */
+    private CaseResult judgeCase(PendingCase pendingCase, TestCase testCase, CompilationResult program, JudgeOptions options,
+                                 CompilationResult checker) {
+        int index = pendingCase.index;
+        String id = pendingCase.id;
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (pendingCase.state.get() == PendingCase.CANCELLED) {
+                return null; // 取り消しによる割り込み
+            }
+            return record(new CaseResult(index, id, Verdict.JUDGE_ERROR, null, "", "ジャッジが中断されました。", null), 0);
+        }
+        if (!pendingCase.start()) {
+            slots.release(); // 枠を取得する前に取り消された
+            return null;
+        }
+        long startNanos = System.nanoTime();
+        try {
+            ExecutionWatchdog.LimitOverride limits = new ExecutionWatchdog.LimitOverride(
+                options.timeLimitMs * 2 + wallClockSlackMs, options.timeLimitMs, options.memoryLimitMb);
+            RunOutcome run = execute(program, testCase.input.getBytes(StandardCharsets.UTF_8), options.executionOptions, limits);
+            Verdict verdict = classify(run, options);
+            String checkerMessage = null;
+            if (verdict == null) {
+                if (options.comparisonMode == ComparisonMode.CHECKER) {
+                    RunOutcome checked = execute(checker, checkerInput(testCase, run.stdout), options.executionOptions,
+                        new ExecutionWatchdog.LimitOverride(checkerTimeLimitMs * 2 + wallClockSlackMs, checkerTimeLimitMs, 0));
+                    checkerMessage = preview(checked.stdout.isEmpty() ? checked.stderr : checked.stdout);
+                    int exitCode = checked.report != null && checked.report.getReason() == ExitReason.EXITED ? checked.report.getExitCode() : -1;
+                    verdict = exitCode == 0 ? Verdict.ACCEPTED : exitCode == 1 ? Verdict.WRONG_ANSWER : Verdict.JUDGE_ERROR;
+                } else {
+                    verdict = options.comparisonMode.matches(testCase.expectedOutput, run.stdout) ? Verdict.ACCEPTED : Verdict.WRONG_ANSWER;
+                }
+            }
+            return record(new CaseResult(index, id, verdict, run.report, preview(run.stdout), preview(run.stderr), checkerMessage),
+                System.nanoTime() - startNanos);
+        } catch (RuntimeException e) {
+            RATE_LIMITED_LOG.warn("テストケース {} の判定中にエラーが発生しました: {}", id, e.toString());
+            return record(new CaseResult(index, id, Verdict.JUDGE_ERROR, null, "", e.toString(), null), System.nanoTime() - startNanos);
+        } finally {
+            slots.release();
+        }
+    }
+
+    /**
+     * 実行の結果から、出力を比較する前に確定する判定を返します。
+     * @return 判定。正常に終了して出力を比較すべき場合はnull。
+     */
+    private Verdict classify(RunOutcome run, JudgeOptions options) {
+        ExitReport report = run.report;
+        if (report == null) {
+            return Verdict.JUDGE_ERROR;
+        }
+        switch (report.getReason()) {
+            case WALL_CLOCK_LIMIT:
+            case CPU_LIMIT:
+                return Verdict.TIME_LIMIT_EXCEEDED;
+            case MEMORY_LIMIT:
+                return Verdict.MEMORY_LIMIT_EXCEEDED;
+            case OUTPUT_LIMIT:
+                return Verdict.OUTPUT_LIMIT_EXCEEDED;
+            case THREAD_LIMIT:
+                return Verdict.RUNTIME_ERROR;
+            case TERMINATED:
+                return Verdict.JUDGE_ERROR;
+            default:
+                break;
+        }
+        // 監視スレッドの確認の間に上限を超えて終了した場合も、計測値で判定する
+        long usedMillis = report.getCpuMillis() >= 0 ? report.getCpuMillis() : report.getWallMillis();
+        if (usedMillis > options.timeLimitMs) {
+            return Verdict.TIME_LIMIT_EXCEEDED;
+        }
+        if (options.memoryLimitMb > 0 && report.getPeakMemoryKb() > options.memoryLimitMb * 1024) {
+            return Verdict.MEMORY_LIMIT_EXCEEDED;
+        }
+        if (report.getExitCode() != 0) {
+            // ヒープ（-Xmx）の上限に達した場合は、JVMが OutOfMemoryError で異常終了する
+            return run.stderr.contains("java.lang.OutOfMemoryError") ? Verdict.MEMORY_LIMIT_EXCEEDED : Verdict.RUNTIME_ERROR;
+        }
+        return null;
+    }
+
+    /**
+     * コンパイル結果を1回実行し、標準入力を書き込んで閉じ、終了報告と出力の終端が揃うまで待ちます。
+     * 実行はジャッジ専用の実行IDで登録され、終了後に後片付けされます（コンパイル結果の一時ディレクトリは削除されません）。
+     */
+    private RunOutcome execute(CompilationResult compilationResult, byte[] input, ExecutionOptions executionOptions,
+                               ExecutionWatchdog.LimitOverride limits) {
+        String executionId = "judge-" + UUID.randomUUID();
+        CollectingOutputSink sink = new CollectingOutputSink();
+        watchdog.overrideLimits(executionId, limits);
+        // WebSocketセッションがなくても孤立した実行として回収されないようにする
+        processManager.registerHttpConsumer(executionId);
+        try {
+            if (executionOptions.getExecutionMode() == ExecutionMode.IN_PROCESS && inProcessExecutor.isEnabled()) {
+                inProcessExecutor.start(compilationResult, executionId, processManager, sink);
+            } else {
+                dynamicCompiler.startProcess(compilationResult, executionId, processManager, sink, executionOptions.getLaunchProfile());
+            }
+            OutputStream stdin = processManager.getProcessStdin(executionId);
+            if (stdin == null) {
+                return sink.toOutcome(null); // 開始できなかった（理由は標準エラー出力に含まれる）
+            }
+            // 入力を読まずに終了するプログラムでパイプが詰まってもブロックしないよう、書き込みは別の仮想スレッドで行う
+            Thread.ofVirtual().name("judge-stdin-" + executionId).start(() -> {
+                try (OutputStream out = stdin) {
+                    out.write(input);
+                    out.flush();
+                } catch (IOException e) {
+                    // プログラムが入力をすべて読まずに終了した場合など
+                }
+            });
+            try {
+                return sink.toOutcome(sink.completion.whenFinished().get(limits.getWallClockMillis() + FINISH_GRACE_MS, TimeUnit.MILLISECONDS));
+            } catch (TimeoutException | ExecutionException e) {
+                RATE_LIMITED_LOG.warn("実行ID {} の終了報告が届きませんでした。", executionId);
+                return sink.toOutcome(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return sink.toOutcome(null);
+            }
+        } finally {
+            processManager.cleanupProcess(executionId);
+            watchdog.clearLimitOverride(executionId);
+        }
+    }
+
+    /**
+     * チェッカーの標準入力に書き込む内容を作成します（形式はクラスのJavadocを参照）。
+     */
+    private static byte[] checkerInput(TestCase testCase, String actualOutput) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[][] parts = {
+            testCase.input.getBytes(StandardCharsets.UTF_8),
+            testCase.expectedOutput.getBytes(StandardCharsets.UTF_8),
+            actualOutput.getBytes(StandardCharsets.UTF_8)};
+        String header = parts[0].length + " " + parts[1].length + " " + parts[2].length + "\n";
+        buffer.writeBytes(header.getBytes(StandardCharsets.UTF_8));
+        for (byte[] part : parts) {
+            buffer.writeBytes(part);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * 結果に含めるために文字列の先頭を切り出します。
+     */
+    private static String preview(String text) {
+        return text.length() <= PREVIEW_CHARS ? text : text.substring(0, PREVIEW_CHARS) + "...";
+    }
+
+    /**
+     * ケースの判定を統計とメトリクスに記録します。
+     */
+    private CaseResult record(CaseResult result, long nanos) {
+        cases.incrementAndGet();
+        verdictCounts.get(result.verdict).incrementAndGet();
+        metrics.recordJudgeCase(result.verdict, nanos);
+        return result;
+    }
+
+    /**
+     * 同時実行数と、これまでのジャッジ要求・ケース・判定ごとの数を返します。
+     * @return 統計情報（項目名 → 値）
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("parallelism", parallelism);
+        stats.put("running", parallelism - slots.availablePermits());
+        stats.put("judgements", judgements.get());
+        stats.put("cases", cases.get());
+        Map<String, Long> verdicts = new LinkedHashMap<>();
+        verdictCounts.forEach((verdict, count) -> verdicts.put(verdict.getWireName(), count.get()));
+        stats.put("verdicts", verdicts);
+        return stats;
+    }
+
+    /**
+     * アプリケーション終了時にケースを実行するスレッドを停止します。
+     */
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
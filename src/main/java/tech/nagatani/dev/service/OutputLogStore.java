@@ -0,0 +1,442 @@
+package tech.nagatani.dev.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import tech.nagatani.dev.RateLimitedLogger;
+import tech.nagatani.dev.metrics.PipelineMetrics;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 対話型実行の出力（標準出力と標準エラー出力を届いた順に並べたもの）を、後からダウンロードできるように保持するサービス。
+ *
+ * <p>出力は最初の {@code output.log.memory-threshold-bytes} バイトまではメモリに保持され、同時にクライアントにも表示されます。
+ * それを超えると、実行ごとの一時ディレクトリ（{@code java-output-*}）のファイルに追記専用の {@link FileChannel} で書き出され、
+ * クライアントへの表示は打ち切られます（{@link OutputLog#record(String)} が false を返します）。
+ * ファイルのサイズは {@code output.log.max-file-bytes} を上限とし、超えた分は記録されません。</p>
+ *
+ * <p>ログは実行の後片付け（{@link InteractiveProcessManager#cleanupProcess(String)}）で閉じられ、
+ * 一時ディレクトリは {@link ExecutionTeardown#deleteDirectoryLater(Path)} によりバックグラウンドで削除されます。
+ * 後片付けされずに残ったディレクトリは、コンパイル用の一時ディレクトリと同様に {@link ResourceReaper} が削除します。</p>
+ */
+@Service
+public class OutputLogStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OutputLogStore.class);
+    // 実行ごとに発生しうる書き込みエラーは件数を制限して出力する
+    private static final RateLimitedLogger RATE_LIMITED_LOG = new RateLimitedLogger(LOG, 20, 10, TimeUnit.SECONDS);
+
+    // ファイルに書き出す前にまとめる書き込みバッファのバイト数（小さなチャンクごとのシステムコールを避ける）
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+    // ログを書き出す一時ディレクトリの接頭辞（ResourceReaper が放置されたディレクトリを探すときにも使用する）
+    static final String DIRECTORY_PREFIX = "java-output-";
+    // 一時ディレクトリ内のログファイル名
+    private static final String FILE_NAME = "output.log";
+
+    /**
+     * 1つの実行の出力ログ。出力の読み取りスレッド（標準出力・標準エラー出力）から同時に書き込まれ、
+     * ダウンロードの要求から読み取られるため、状態はロックで保護します（仮想スレッドをピン留めしないようReentrantLockを使用）。
+     */
+    public class OutputLog {
+        private final String executionId; // 対象の実行ID
+        private final ReentrantLock lock = new ReentrantLock(); // 状態を保護するロック
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream(); // ファイルに書き出すまでの出力（書き出した後はnull）
+        private Path directory; // ログファイルを置く一時ディレクトリ（書き出すまではnull）
+        private FileChannel channel; // 追記専用のファイルチャネル（書き出すまではnull）
+        private ByteBuffer writeBuffer; // ファイルに書き出す前にまとめるバッファ
+        private long totalBytes = 0; // 記録した出力のバイト数（上限を超えて記録しなかった分は含まない）
+        private long discardedBytes = 0; // ファイルの上限を超えたため記録しなかったバイト数
+        private boolean liveTruncated = false; // クライアントへの表示を打ち切ったかどうか
+        private boolean closed = false; // 後片付けされたかどうか
+
+        OutputLog(String executionId) {
+            this.executionId = executionId;
+        }
+
+        /**
+         * 出力を記録します。
+         * @param text 出力（標準出力または標準エラー出力のチャンク）
+         * @return クライアントにも表示してよい場合はtrue。メモリに保持する量を超え、ファイルに書き出すようになった後はfalse。
+         */
+        public boolean record(String text) {
+            if (text.isEmpty()) {
+                return true;
+            }
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            lock.lock();
+            try {
+                if (closed) {
+                    return false;
+                }
+                if (memory != null && memory.size() + bytes.length <= memoryThresholdBytes) {
+                    memory.write(bytes, 0, bytes.length);
+                    totalBytes += bytes.length;
+                    return true;
+                }
+                if (memory != null) {
+                    spill();
+                }
+                if (channel == null) {
+                    // ファイルに書き出せなかった場合は、以降の出力を記録しない
+                    discardedBytes += bytes.length;
+                    return false;
+                }
+                long room = maxFileBytes - totalBytes;
+                int length = (int) Math.max(0, Math.min(bytes.length, room));
+                if (length > 0) {
+                    write(bytes, length);
+                }
+                discardedBytes += bytes.length - length;
+                return false;
+            } catch (IOException e) {
+                RATE_LIMITED_LOG.warn("実行ID {} の出力ログへの書き込みに失敗しました: {}", executionId, e.getMessage());
+                discardedBytes += bytes.length;
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * クライアントへの表示を打ち切ったことを記録します。打ち切りの通知を一度だけ送るために使用します。
+         * @return 初めて呼び出された場合はtrue
+         */
+        public boolean markLiveTruncated() {
+            lock.lock();
+            try {
+                boolean first = !liveTruncated;
+                liveTruncated = true;
+                return first;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * メモリに保持していた出力をファイルに書き出し、以降の出力をファイルに追記するようにします。ロックを保持した状態で呼び出します。
+         * 一時ディレクトリやファイルを作成できなかった場合は、メモリの出力も破棄します（以降の出力は記録されません）。
+         */
+        private void spill() {
+            try {
+                directory = Files.createTempDirectory(DIRECTORY_PREFIX);
+                channel = FileChannel.open(directory.resolve(FILE_NAME),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_BYTES);
+                byte[] held = memory.toByteArray();
+                memory = null;
+                writeFully(ByteBuffer.wrap(held));
+                spilledLogs.incrementAndGet();
+                LOG.debug("実行ID {} の出力が {} バイトを超えたため、{} に書き出します。", executionId, memoryThresholdBytes, directory);
+            } catch (IOException e) {
+                RATE_LIMITED_LOG.warn("実行ID {} の出力ログをファイルに書き出せませんでした: {}", executionId, e.getMessage());
+                memory = null;
+                closeChannel();
+                teardown.deleteDirectoryLater(directory);
+                directory = null;
+                discardedBytes += totalBytes;
+                totalBytes = 0;
+            }
+        }
+
+        /**
+         * 出力を書き込みバッファに追加し、一杯になったらファイルに書き出します。ロックを保持した状態で呼び出します。
+         */
+        private void write(byte[] bytes, int length) throws IOException {
+            if (length > writeBuffer.remaining()) {
+                flushBuffer();
+            }
+            if (length > writeBuffer.capacity()) {
+                writeFully(ByteBuffer.wrap(bytes, 0, length));
+            } else {
+                writeBuffer.put(bytes, 0, length);
+            }
+            totalBytes += length;
+            spilledBytes.addAndGet(length);
+        }
+
+        private void flushBuffer() throws IOException {
+            if (writeBuffer != null && writeBuffer.position() > 0) {
+                writeBuffer.flip();
+                writeFully(writeBuffer);
+                writeBuffer.clear();
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * 記録済みの出力の指定された範囲を、チャネルに書き込みます。
+         * ファイルに書き出している場合は {@link FileChannel#transferTo} で転送するため、出力をヒープにコピーしません。
+         * @param position 開始位置（バイト）
+         * @param count バイト数（記録済みの範囲を超える分は無視されます）
+         * @param target 書き込み先
+         * @return 書き込んだバイト数
+         * @throws IOException 読み取りまたは書き込みに失敗した場合
+         */
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            FileChannel source;
+            lock.lock();
+            try {
+                if (closed) {
+                    throw new IOException("出力ログは既に削除されています");
+                }
+                long end = Math.min(totalBytes, position + count);
+                if (position >= end) {
+                    return 0;
+                }
+                if (memory != null) {
+                    // ファイルに書き出す前はメモリ上の出力をそのまま返す（メモリに保持する量の上限以下）
+                    ByteBuffer buffer = ByteBuffer.wrap(memory.toByteArray(), (int) position, (int) (end - position));
+                    long written = 0;
+                    while (buffer.hasRemaining()) {
+                        written += target.write(buffer);
+                    }
+                    return written;
+                }
+                flushBuffer();
+                source = channel;
+                count = end - position;
+            } finally {
+                lock.unlock();
+            }
+            // 追記はファイルの末尾にのみ行われるため、記録済みの範囲はロックの外で転送できる
+            long transferred = 0;
+            while (transferred < count) {
+                long n = source.transferTo(position + transferred, count - transferred, target);
+                if (n <= 0) {
+                    break;
+                }
+                transferred += n;
+            }
+            return transferred;
+        }
+
+        /**
+         * 記録済みの出力をファイルに反映し、ログファイルのパスを返します。
+         * Tomcatのsendfile（ゼロコピー転送）でファイルを直接送信するために使用します。
+         * @return ログファイルのパス。まだファイルに書き出していない場合はnull。
+         * @throws IOException 書き出しに失敗した場合
+         */
+        public Path flushToFile() throws IOException {
+            lock.lock();
+            try {
+                if (closed || channel == null) {
+                    return null;
+                }
+                flushBuffer();
+                return directory.resolve(FILE_NAME);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 記録した出力のバイト数を返します。
+         * @return 記録したバイト数
+         */
+        public long getTotalBytes() {
+            lock.lock();
+            try {
+                return totalBytes;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * ファイルの上限を超えたため記録しなかったバイト数を返します。
+         * @return 記録しなかったバイト数
+         */
+        public long getDiscardedBytes() {
+            lock.lock();
+            try {
+                return discardedBytes;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 出力をファイルに書き出しているかどうかを返します。
+         * @return 書き出している場合はtrue
+         */
+        public boolean isSpilled() {
+            lock.lock();
+            try {
+                return channel != null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * ログファイルを置いている一時ディレクトリを返します。
+         * @return 一時ディレクトリ（ファイルに書き出していない場合はnull）
+         */
+        Path getDirectory() {
+            lock.lock();
+            try {
+                return directory;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * ファイルを閉じて一時ディレクトリを削除待ちにします。
+         */
+        void delete() {
+            Path toDelete;
+            lock.lock();
+            try {
+                closed = true;
+                memory = null;
+                closeChannel();
+                toDelete = directory;
+                directory = null;
+            } finally {
+                lock.unlock();
+            }
+            teardown.deleteDirectoryLater(toDelete);
+        }
+
+        private void closeChannel() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    RATE_LIMITED_LOG.warn("実行ID {} の出力ログを閉じられませんでした: {}", executionId, e.getMessage());
+                }
+                channel = null;
+            }
+        }
+    }
+
+    private final Map<String, OutputLog> logs = new ConcurrentHashMap<>(); // 実行ID → 出力ログ
+    private final ExecutionTeardown teardown; // 一時ディレクトリの削除に使用
+    private final long memoryThresholdBytes; // メモリに保持してクライアントに表示する最大バイト数
+    private final long maxFileBytes; // 実行ごとのログファイルの最大バイト数
+    private final AtomicLong spilledLogs = new AtomicLong(); // ファイルに書き出したログの累計
+    private final AtomicLong spilledBytes = new AtomicLong(); // ファイルに書き出したバイト数の累計
+
+    /**
+     * 出力ログのサービスを構築します。
+     * @param teardown 一時ディレクトリをバックグラウンドで削除するサービス
+     * @param metrics パイプラインのメトリクス
+     * @param memoryThresholdBytes メモリに保持してクライアントに表示する最大バイト数（{@code output.log.memory-threshold-bytes}）
+     * @param maxFileBytes 実行ごとのログファイルの最大バイト数（{@code output.log.max-file-bytes}）
+     */
+    public OutputLogStore(ExecutionTeardown teardown, PipelineMetrics metrics,
+                          @Value("${output.log.memory-threshold-bytes:1048576}") long memoryThresholdBytes,
+                          @Value("${output.log.max-file-bytes:268435456}") long maxFileBytes) {
+        this.teardown = teardown;
+        this.memoryThresholdBytes = Math.max(0, memoryThresholdBytes);
+        this.maxFileBytes = Math.max(this.memoryThresholdBytes, maxFileBytes);
+        metrics.gauge("output.log.spilled", "出力をファイルに書き出している実行の数",
+            () -> logs.values().stream().filter(OutputLog::isSpilled).count());
+    }
+
+    /**
+     * 実行の出力ログを作成します。既に作成されている場合はそれを返します。
+     * @param executionId 実行ID
+     * @return 出力ログ
+     */
+    public OutputLog create(String executionId) {
+        return logs.computeIfAbsent(executionId, OutputLog::new);
+    }
+
+    /**
+     * 実行の出力ログを返します。
+     * @param executionId 実行ID
+     * @return 出力ログ（作成されていないか、後片付けされた場合はnull）
+     */
+    public OutputLog get(String executionId) {
+        return logs.get(executionId);
+    }
+
+    /**
+     * 実行の出力ログを削除します（ファイルを閉じ、一時ディレクトリを削除待ちにします）。実行の後片付けで呼び出されます。
+     * @param executionId 実行ID
+     */
+    public void release(String executionId) {
+        OutputLog log = logs.remove(executionId);
+        if (log != null) {
+            log.delete();
+        }
+    }
+
+    /**
+     * 出力ログが使用している一時ディレクトリを返します。これらのディレクトリは、放置されたディレクトリの削除の対象外です。
+     * @return 使用中のディレクトリの集合
+     */
+    public Set<Path> getDirectoriesInUse() {
+        Set<Path> directories = new HashSet<>();
+        for (OutputLog log : logs.values()) {
+            Path directory = log.getDirectory();
+            if (directory != null) {
+                directories.add(directory);
+            }
+        }
+        return directories;
+    }
+
+    /**
+     * 出力ログの統計情報を返します。
+     * @return 項目名 → 値
+     */
+    public Map<String, Object> getStats() {
+        long spilled = 0;
+        long retainedBytes = 0;
+        long discardedBytes = 0;
+        for (OutputLog log : logs.values()) {
+            if (log.isSpilled()) {
+                spilled++;
+            }
+            retainedBytes += log.getTotalBytes();
+            discardedBytes += log.getDiscardedBytes();
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("memoryThresholdBytes", memoryThresholdBytes);
+        stats.put("maxFileBytes", maxFileBytes);
+        stats.put("logs", logs.size());
+        stats.put("spilledLogs", spilled);
+        stats.put("retainedBytes", retainedBytes);
+        stats.put("discardedBytes", discardedBytes);
+        stats.put("totalSpilledLogs", spilledLogs.get());
+        stats.put("totalSpilledBytes", spilledBytes.get());
+        return stats;
+    }
+
+    /**
+     * サーバーの停止時に、残っている出力ログをすべて削除します。
+     */
+    @PreDestroy
+    public void shutdown() {
+        for (String executionId : logs.keySet()) {
+            release(executionId);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package tech.nagatani.dev.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import tech.nagatani.dev.RateLimitedLogger;
+import tech.nagatani.dev.websocket.ExecutionWebSocketHandler;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 放置されたリソースを定期的に回収するコンポーネント。
+ * <ul>
+ *   <li>WebSocketが接続されないまま期限を過ぎた保留中のコンパイル結果を破棄します。</li>
+ *   <li>WebSocketセッション（またはHTTPのストリーミング応答）がなくなり、再接続も待っていない実行（孤立したプロセス）と、実行時間の上限を超えた実行を終了させて後片付けします。</li>
+ *   <li>どの実行からも参照されていない古い一時ディレクトリ（java-compile-* と出力ログの java-output-*）を、1回あたりの上限数までまとめて削除します。
+ *       サーバーの異常終了などで残ったディレクトリも対象になります。</li>
+ * </ul>
+ * 回収した数は {@link #getStats()} で確認できます。
+ */
+@Component
+public class ResourceReaper {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResourceReaper.class);
+    // 削除の失敗はディレクトリごとに発生しうるため、件数を制限して出力する
+    private static final RateLimitedLogger RATE_LIMITED_LOG = new RateLimitedLogger(LOG, 20, 10, TimeUnit.SECONDS);
+
+    // CompilationResult と OutputLogStore が作成する一時ディレクトリの名前のパターン
+    private static final String TEMP_DIRECTORY_GLOB = "java-{compile,output}-*";
+
+    private final InteractiveProcessManager processManager; // 保留中・実行中のリソースの管理
+    private final ExecutionWebSocketHandler webSocketHandler; // WebSocketセッションの有無の確認に使用
+    private final long pendingTtlMillis; // 保留中のコンパイル結果を保持する時間
+    private final long orphanGraceMillis; // セッションのない実行を孤立とみなすまでの猶予
+    private final long maxExecutionMillis; // 実行時間の上限
+    private final long tempDirectoryTtlMillis; // 参照されていない一時ディレクトリを削除するまでの時間
+    private final int maxDeletionsPerRun; // 1回の回収で削除するディレクトリの最大数
+    private final Path tempRoot; // 一時ディレクトリの親ディレクトリ
+
+    private final AtomicLong runs = new AtomicLong(); // 回収の実行回数
+    private final AtomicLong evictedPending = new AtomicLong(); // 破棄した保留中のコンパイル結果の数
+    private final AtomicLong reapedOrphans = new AtomicLong(); // 後片付けした孤立した実行の数
+    private final AtomicLong terminatedOverdue = new AtomicLong(); // 実行時間の上限で終了させた実行の数
+    private final AtomicLong deletedDirectories = new AtomicLong(); // 削除した一時ディレクトリの数
+    private final AtomicLong reclaimedBytes = new AtomicLong(); // 削除した一時ディレクトリの合計サイズ
+    private volatile Map<String, Object> lastRun = new LinkedHashMap<>(); // 直近の回収の結果
+
+    /**
+     * リソース回収コンポーネントを構築します。
+     * @param processManager 対話型プロセス管理サービス
+     * @param webSocketHandler WebSocket実行ハンドラ
+     * @param pendingTtlMillis 保留中のコンパイル結果を保持する時間（{@code execution.reaper.pending-ttl-ms}）
+     * @param orphanGraceMillis セッションのない実行を孤立とみなすまでの猶予（{@code execution.reaper.orphan-grace-ms}）
+     * @param maxExecutionMillis 実行時間の上限（{@code execution.reaper.max-execution-ms}）。0以下の場合は無制限。
+     * @param tempDirectoryTtlMillis 参照されていない一時ディレクトリを削除するまでの時間（{@code execution.reaper.temp-dir-ttl-ms}）
+     * @param maxDeletionsPerRun 1回の回収で削除するディレクトリの最大数（{@code execution.reaper.max-deletions-per-run}）
+     */
+    public ResourceReaper(InteractiveProcessManager processManager, ExecutionWebSocketHandler webSocketHandler,
+                          @Value("${execution.reaper.pending-ttl-ms:300000}") long pendingTtlMillis,
+                          @Value("${execution.reaper.orphan-grace-ms:10000}") long orphanGraceMillis,
+                          @Value("${execution.reaper.max-execution-ms:1800000}") long maxExecutionMillis,
+                          @Value("${execution.reaper.temp-dir-ttl-ms:3600000}") long tempDirectoryTtlMillis,
+                          @Value("${execution.reaper.max-deletions-per-run:200}") int maxDeletionsPerRun) {
+        this.processManager = processManager;
+        this.webSocketHandler = webSocketHandler;
+        this.pendingTtlMillis = pendingTtlMillis;
+        this.orphanGraceMillis = orphanGraceMillis;
+        this.maxExecutionMillis = maxExecutionMillis;
+        this.tempDirectoryTtlMillis = tempDirectoryTtlMillis;
+        this.maxDeletionsPerRun = Math.max(1, maxDeletionsPerRun);
+        this.tempRoot = Paths.get(System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * 放置されたリソースを回収します。{@code execution.reaper.interval-ms} ごとに実行されます。
+     */
+    @Scheduled(fixedDelayString = "${execution.reaper.interval-ms:30000}", initialDelayString = "${execution.reaper.interval-ms:30000}")
+    public void reap() {
+        long startNanos = System.nanoTime();
+        int pending = processManager.evictPending(pendingTtlMillis);
+
+        int orphans = 0;
+        int overdue = 0;
+        for (String executionId : processManager.getExecutionsOlderThan(orphanGraceMillis)) {
+            if (!webSocketHandler.hasSession(executionId) && !webSocketHandler.isAwaitingReconnect(executionId)
+                    && !processManager.hasHttpConsumer(executionId)) {
+                // クライアントが切断済み（クローズ処理の取りこぼし）なので、プロセスを終了させて後片付けする
+                processManager.cleanupProcess(executionId);
+                orphans++;
+            }
+        }
+        if (maxExecutionMillis > 0) {
+            for (String executionId : processManager.getExecutionsOlderThan(maxExecutionMillis)) {
+                // 登録を解除して後片付けするため、次回以降の回収で再び対象になることはない
+                processManager.cleanupProcess(executionId);
+                webSocketHandler.sendMessageToSession(executionId, "\n情報: 実行時間の上限 (" + maxExecutionMillis + "ms) を超えたため、プログラムを終了しました。");
+                webSocketHandler.flushSession(executionId);
+                overdue++;
+            }
+        }
+
+        long[] reclaimed = deleteAbandonedDirectories();
+
+        runs.incrementAndGet();
+        evictedPending.addAndGet(pending);
+        reapedOrphans.addAndGet(orphans);
+        terminatedOverdue.addAndGet(overdue);
+        deletedDirectories.addAndGet(reclaimed[0]);
+        reclaimedBytes.addAndGet(reclaimed[1]);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+        Map<String, Object> run = new LinkedHashMap<>();
+        run.put("evictedPending", pending);
+        run.put("reapedOrphans", orphans);
+        run.put("terminatedOverdue", overdue);
+        run.put("deletedDirectories", reclaimed[0]);
+        run.put("reclaimedBytes", reclaimed[1]);
+        run.put("elapsedMillis", elapsedMs);
+        lastRun = run;
+        if (pending + orphans + overdue + reclaimed[0] > 0) {
+            LOG.debug("リソースを回収しました (保留中の結果: {}, 孤立した実行: {}, 上限超過: {}, 一時ディレクトリ: {} 個 / {} バイト, {}ms)",
+                pending, orphans, overdue, reclaimed[0], reclaimed[1], elapsedMs);
+        }
+    }
+
+    /**
+     * どの実行からも参照されておらず、最終更新から期限を過ぎた一時ディレクトリを古い順に削除します。
+     * @return 削除したディレクトリ数と合計バイト数
+     */
+    private long[] deleteAbandonedDirectories() {
+        Set<Path> inUse = processManager.getDirectoriesInUse();
+        long cutoff = System.currentTimeMillis() - tempDirectoryTtlMillis;
+        List<Path> candidates = new ArrayList<>();
+        Map<Path, Long> modifiedTimes = new LinkedHashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(tempRoot, TEMP_DIRECTORY_GLOB)) {
+            for (Path directory : stream) {
+                if (!Files.isDirectory(directory) || inUse.contains(directory)) {
+                    continue;
+                }
+                long modified = Files.getLastModifiedTime(directory).toMillis();
+                if (modified < cutoff) {
+                    candidates.add(directory);
+                    modifiedTimes.put(directory, modified);
+                }
+            }
+        } catch (IOException e) {
+            RATE_LIMITED_LOG.warn("一時ディレクトリの一覧を取得できませんでした - {}", e.getMessage());
+            return new long[] {0, 0};
+        }
+        candidates.sort(Comparator.comparing(modifiedTimes::get));
+
+        long deleted = 0;
+        long bytes = 0;
+        for (Path directory : candidates.subList(0, Math.min(candidates.size(), maxDeletionsPerRun))) {
+            try {
+                bytes += deleteRecursively(directory);
+                deleted++;
+            } catch (IOException e) {
+                RATE_LIMITED_LOG.warn("一時ディレクトリ {} の削除に失敗しました - {}", directory, e.getMessage());
+            }
+        }
+        return new long[] {deleted, bytes};
+    }
+
+    /**
+     * ディレクトリを再帰的に削除し、削除したファイルの合計サイズを返します。
+     */
+    private static long deleteRecursively(Path directory) throws IOException {
+        long[] bytes = {0};
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                bytes[0] += attributes.size();
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return bytes[0];
+    }
+
+    /**
+     * これまでに回収したリソースの合計と、直近の回収の結果を返します。
+     * @return 統計情報（項目名 → 値）
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("runs", runs.get());
+        stats.put("evictedPending", evictedPending.get());
+        stats.put("reapedOrphans", reapedOrphans.get());
+        stats.put("terminatedOverdue", terminatedOverdue.get());
+        stats.put("deletedDirectories", deletedDirectories.get());
+        stats.put("reclaimedBytes", reclaimedBytes.get());
+        stats.put("lastRun", lastRun);
+        return stats;
+    }
+}
@@ -1,91 +1,281 @@
 package tech.nagatani.dev.websocket;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.adapter.NativeWebSocketSession;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 import tech.nagatani.dev.CompilationResult;
 import tech.nagatani.dev.DynamicCompiler;
+import tech.nagatani.dev.ExecutionMode;
+import tech.nagatani.dev.ExecutionOptions;
+import tech.nagatani.dev.ExitReport;
+import tech.nagatani.dev.OutputSink;
+import tech.nagatani.dev.RateLimitedLogger;
+import tech.nagatani.dev.metrics.PipelineMetrics;
+import tech.nagatani.dev.service.InProcessExecutor;
 import tech.nagatani.dev.service.InteractiveProcessManager;
+import tech.nagatani.dev.service.OutputLogStore;
 
+import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.io.OutputStream;
 // import java.io.OutputStreamWriter; // 前のステップで削除された
 import java.net.URI;
 // import java.nio.charset.StandardCharsets; // 前のステップで削除された
 // import java.util.Arrays; // 前のステップで削除された
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 対話的なコード実行のためのWebSocket接続を管理するハンドラクラス。
  * Springコンポーネントとしてマークされています。
+ * 実行中のプログラムの出力は {@link OutputSink} として受け取り、セッションごとの送信キューを経由して送信します。
+ *
+ * <p>接続が異常に切れた場合（ページの再読み込みやネットワークの瞬断）は、すぐにはプログラムを終了させず、
+ * {@code websocket.reconnect.grace-ms} の間は出力を記録しながら再接続を待ちます。
+ * クライアントは同じ実行IDと受信した最後のオフセット（{@code /ws/execute?id=<executionId>&offset=<offset>}）で再接続すると、
+ * 受信できなかった出力だけが再送され、その後は通常どおり出力を受け取れます。</p>
  */
 @Component
-public class ExecutionWebSocketHandler extends TextWebSocketHandler {
+public class ExecutionWebSocketHandler extends TextWebSocketHandler implements OutputSink {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExecutionWebSocketHandler.class);
+    // セッションやフレームごとに発生しうる警告（送信エラーなど）は件数を制限して出力する
+    private static final RateLimitedLogger RATE_LIMITED_LOG = new RateLimitedLogger(LOG, 20, 10, TimeUnit.SECONDS);
+
+    // Tomcatのブロッキング送信のタイムアウト（ミリ秒）を指定するセッションのユーザープロパティ名
+    private static final String BLOCKING_SEND_TIMEOUT_PROPERTY = "org.apache.tomcat.websocket.BLOCKING_SEND_TIMEOUT";
 
     // executionIdをキーとしてアクティブなWebSocketセッションを保持するマップ
     private final Map<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
+    // executionIdをキーとして、セッションごとの送信キュー（出力アグリゲータ）を保持するマップ
+    private final Map<String, OutputAggregator> aggregators = new ConcurrentHashMap<>();
     private final InteractiveProcessManager processManager; // プロセス管理サービス
     private final DynamicCompiler dynamicCompiler; // 動的コンパイルサービス
+    private final InProcessExecutor inProcessExecutor; // インプロセス実行サービス
+    private final OutputLogStore outputLogs; // 実行の出力ログ（表示しきれない出力をダウンロードできるように保持する）
+    private final ObjectMapper objectMapper; // 終了報告をJSONに変換するためのマッパー
+    private final PipelineMetrics metrics; // 送信時間と出力量の記録先
+    private final long flushIntervalMs; // 出力をまとめて送信するまでの最大待ち時間（ミリ秒）
+    private final long flushSizeBytes; // このバイト数に達したら待ち時間を待たずに送信する
+    private final long maxQueuedBytes; // セッションごとの送信キューに保持できる最大バイト数
+    private final OverflowPolicy overflowPolicy; // 送信キューが上限に達したときの動作
+    private final long sendTimeLimitMs; // 1フレームの送信に許される最大時間（ミリ秒）
+    private final long replayBufferBytes; // 再接続時に再送するために実行ごとに保持する出力の最大バイト数
+    private final long reconnectGraceMs; // 接続が切れてからプログラムを終了させるまでに再接続を待つ時間（ミリ秒）
+    // executionIdをキーとして、再接続の待機期限が来たときに後片付けする予定を保持するマップ
+    private final Map<String, ScheduledFuture<?>> pendingCleanups = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService reconnectScheduler; // 再接続の待機期限を管理するスケジューラ
+    // 接続・切断・待機期限の処理を直列化するロック（再接続と期限切れの後片付けが競合しないように）
+    private final ReentrantLock connectionLock = new ReentrantLock();
 
     /**
      * 必要なサービスを注入してExecutionWebSocketHandlerを構築します。
      * @param processManager プロセス管理サービス
      * @param dynamicCompiler 動的コンパイルサービス
+     * @param inProcessExecutor インプロセス実行サービス
+     * @param outputLogs 実行の出力ログのサービス
+     * @param objectMapper 終了報告をJSONに変換するためのマッパー
+     * @param metrics パイプラインのメトリクス
+     * @param flushIntervalMs 出力をまとめて送信するまでの最大待ち時間（{@code websocket.output.flush-interval-ms}）
+     * @param flushSizeBytes このバイト数に達したら待ち時間を待たずに送信する（{@code websocket.output.flush-size-bytes}）
+     * @param maxQueuedBytes セッションごとの送信キューに保持できる最大バイト数（{@code websocket.output.max-queued-bytes}）
+     * @param overflowPolicy 送信キューが上限に達したときの動作（{@code websocket.output.overflow-policy}: pause / drop-oldest / terminate）
+     * @param sendTimeLimitMs 1フレームの送信に許される最大時間（{@code websocket.output.send-time-limit-ms}）
+     * @param replayBufferBytes 再接続時に再送するために実行ごとに保持する出力の最大バイト数（{@code websocket.replay.buffer-bytes}）
+     * @param reconnectGraceMs 接続が切れてからプログラムを終了させるまでに再接続を待つ時間（{@code websocket.reconnect.grace-ms}、0の場合は待たない）
      */
-    public ExecutionWebSocketHandler(InteractiveProcessManager processManager, DynamicCompiler dynamicCompiler) {
+    public ExecutionWebSocketHandler(InteractiveProcessManager processManager, DynamicCompiler dynamicCompiler,
+                                     InProcessExecutor inProcessExecutor, OutputLogStore outputLogs, ObjectMapper objectMapper, PipelineMetrics metrics,
+                                     @Value("${websocket.output.flush-interval-ms:50}") long flushIntervalMs,
+                                     @Value("${websocket.output.flush-size-bytes:16384}") long flushSizeBytes,
+                                     @Value("${websocket.output.max-queued-bytes:1048576}") long maxQueuedBytes,
+                                     @Value("${websocket.output.overflow-policy:pause}") String overflowPolicy,
+                                     @Value("${websocket.output.send-time-limit-ms:10000}") long sendTimeLimitMs,
+                                     @Value("${websocket.replay.buffer-bytes:1048576}") long replayBufferBytes,
+                                     @Value("${websocket.reconnect.grace-ms:30000}") long reconnectGraceMs) {
         this.processManager = processManager;
         this.dynamicCompiler = dynamicCompiler;
+        this.inProcessExecutor = inProcessExecutor;
+        this.outputLogs = outputLogs;
+        this.objectMapper = objectMapper;
+        this.metrics = metrics;
+        this.flushIntervalMs = flushIntervalMs;
+        this.flushSizeBytes = flushSizeBytes;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.overflowPolicy = OverflowPolicy.fromString(overflowPolicy);
+        this.sendTimeLimitMs = sendTimeLimitMs;
+        this.replayBufferBytes = replayBufferBytes;
+        this.reconnectGraceMs = reconnectGraceMs;
+        this.reconnectScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "websocket-reconnect");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics.gauge("websocket.sessions", "接続中のWebSocketセッション数", sessions::size);
+        metrics.gauge("websocket.reconnect.pending", "再接続を待っている実行の数", pendingCleanups::size);
     }
 
     /**
      * 新しいWebSocket接続が確立された後に呼び出されます。
-     * URIからexecutionIdを抽出し、セッションを登録し、関連するJavaプロセスの開始を試みます。
+     * URIからexecutionIdを抽出し、セッションを登録し、選択された実行方式（子プロセスまたはインプロセス）でプログラムの開始を試みます。
+     * 既に開始されている実行への接続（再接続）の場合は、プログラムを開始し直さずに、クエリの {@code offset} より後の出力を再送します。
      * @param session 新しく確立されたWebSocketセッション
      * @throws Exception エラーが発生した場合
      */
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
         URI uri = session.getUri();
-        String query = uri.getQuery(); // クエリは "id=<executionId>" であるべき
-        String executionId = null;
-        // クエリからexecutionIdを抽出
-        if (query != null && query.startsWith("id=")) {
-            executionId = query.substring(3);
-        }
+        // クエリは "id=<executionId>"（再接続の場合は "id=<executionId>&offset=<offset>"）であるべき
+        Map<String, String> query = parseQuery(uri.getQuery());
+        String executionId = query.get("id");
 
         // executionIdがなければエラー処理
         if (executionId == null || executionId.trim().isEmpty()) {
-            System.err.println("WebSocket URIにExecutionIdがありません: " + uri);
-            session.sendMessage(new TextMessage("エラー: ExecutionIdが必要です。"));
+            LOG.warn("WebSocket URIにExecutionIdがありません: {}", uri);
+            session.sendMessage(systemMessage("エラー: ExecutionIdが必要です。"));
             session.close(CloseStatus.BAD_DATA.withReason("ExecutionIdが見つかりません"));
             return;
         }
         
-        // セッション属性にexecutionIdを保存し、セッションをマップに登録
+        // セッション属性にexecutionIdを保存
         session.getAttributes().put("executionId", executionId);
-        sessions.put(executionId, session);
-        System.out.println("WebSocket接続確立 (executionId: " + executionId + ", Session: " + session.getId() + ")");
+        // 送信がブロックし続けないよう、Tomcatのブロッキング送信のタイムアウトを設定（送信時間の上限）
+        if (session instanceof NativeWebSocketSession) {
+            javax.websocket.Session nativeSession = ((NativeWebSocketSession) session).getNativeSession(javax.websocket.Session.class);
+            if (nativeSession != null) {
+                nativeSession.getUserProperties().put(BLOCKING_SEND_TIMEOUT_PROPERTY, sendTimeLimitMs);
+            }
+        }
+
+        boolean reconnected = false;
+        WebSocketSession replaced = null;
+        connectionLock.lock();
+        try {
+            OutputAggregator existing = aggregators.get(executionId);
+            if (existing != null) {
+                // 再接続: 後片付けの予定を取り消し、新しいセッションに切り替えて受信できなかった出力を再送する
+                ScheduledFuture<?> cleanup = pendingCleanups.remove(executionId);
+                if (cleanup != null) {
+                    cleanup.cancel(false);
+                }
+                replaced = sessions.put(executionId, session);
+                reconnected = true;
+                long replayBytes = existing.attach(parseOffset(query.get("offset")));
+                LOG.debug("WebSocket再接続 (executionId: {}, Session: {}, 再送: {} バイト)", executionId, session.getId(), replayBytes);
+            } else {
+                // セッションをマップに登録し、プログラムの出力を時間・サイズの窓でまとめて送信する、実行専用の送信キューを用意
+                sessions.put(executionId, session);
+                String id = executionId;
+                aggregators.put(executionId, new OutputAggregator(executionId, frame -> sendFrame(id, frame),
+                    () -> processManager.terminateExecution(id), flushIntervalMs, flushSizeBytes, maxQueuedBytes, overflowPolicy,
+                    replayBufferBytes));
+                LOG.debug("WebSocket接続確立 (executionId: {}, Session: {})", executionId, session.getId());
+            }
+        } finally {
+            connectionLock.unlock();
+        }
+        if (reconnected) {
+            // 同じ実行に別のタブなどから接続し直された場合、古いセッションは閉じる（クローズ処理では実行を終了させない）
+            if (replaced != null && replaced.isOpen()) {
+                replaced.close(CloseStatus.NORMAL.withReason("別の接続に引き継がれました"));
+            }
+            return;
+        }
 
         // 関連するコンパイル結果を取得
         CompilationResult compilationResult = processManager.getCompilationResult(executionId);
         if (compilationResult == null) {
-            System.err.println("executionId: " + executionId + " のコンパイル結果が見つかりません。");
-            session.sendMessage(new TextMessage("エラー: この実行のためのコンパイルデータが見つかりません。期限切れか失敗した可能性があります。"));
-            session.close(CloseStatus.POLICY_VIOLATION.withReason("コンパイルデータなし"));
+            LOG.warn("executionId: {} のコンパイル結果が見つかりません。", executionId);
+            rejectSession(session, executionId, "エラー: この実行のためのコンパイルデータが見つかりません。期限切れか失敗した可能性があります。",
+                CloseStatus.POLICY_VIOLATION.withReason("コンパイルデータなし"));
             return;
         }
 
-        // コンパイルが成功していればプロセスを開始
+        // コンパイルが成功していれば、選択された実行方式でプログラムを開始
         if (compilationResult.isSuccess()) {
-            dynamicCompiler.startProcess(compilationResult, executionId, processManager, this);
+            outputLogs.create(executionId); // 出力ログは実行の後片付けで削除される
+            ExecutionOptions executionOptions = processManager.getExecutionOptions(executionId);
+            if (executionOptions.getExecutionMode() == ExecutionMode.IN_PROCESS && inProcessExecutor.isEnabled()) {
+                inProcessExecutor.start(compilationResult, executionId, processManager, this);
+            } else {
+                dynamicCompiler.startProcess(compilationResult, executionId, processManager, this, executionOptions.getLaunchProfile());
+            }
         } else {
-            session.sendMessage(new TextMessage("エラー: コンパイルが成功しなかったため、プロセスを開始できません。"));
             // オプション: HTTPレスポンス経由でまだ送信されていない場合、診断情報を送信
             // compilationResult.getDiagnostics().forEach(diag -> { try { session.sendMessage(new TextMessage(diag)); } catch (IOException e) {} });
-            session.close(CloseStatus.POLICY_VIOLATION.withReason("コンパイル失敗"));
+            rejectSession(session, executionId, "エラー: コンパイルが成功しなかったため、プロセスを開始できません。",
+                CloseStatus.POLICY_VIOLATION.withReason("コンパイル失敗"));
+        }
+    }
+
+    /**
+     * プログラムを開始できない接続を、送信キューを破棄してから閉じます。再接続を待たずに後片付けされます。
+     * @param session 対象のセッション
+     * @param executionId 実行ID
+     * @param message クライアントに送信するエラーメッセージ
+     * @param status クローズステータス
+     * @throws IOException 送信またはクローズに失敗した場合
+     */
+    private void rejectSession(WebSocketSession session, String executionId, String message, CloseStatus status) throws IOException {
+        connectionLock.lock();
+        try {
+            OutputAggregator aggregator = aggregators.remove(executionId);
+            if (aggregator != null) {
+                aggregator.close();
+            }
+        } finally {
+            connectionLock.unlock();
+        }
+        session.sendMessage(systemMessage(message));
+        session.close(status);
+    }
+
+    /**
+     * クエリ文字列を名前と値のマップに変換します。値はURLデコードされません（実行IDとオフセットはデコードが不要なため）。
+     * @param query クエリ文字列（nullの場合あり）
+     * @return 名前 → 値
+     */
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new LinkedHashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.putIfAbsent(pair.substring(0, eq), pair.substring(eq + 1));
+            }
+        }
+        return params;
+    }
+
+    /**
+     * 再接続時にクライアントが伝えたオフセットを解析します。
+     * @param value クエリの {@code offset} の値（nullの場合あり）
+     * @return オフセット。指定がないか不正な場合は0（保持しているすべての出力を再送する）
+     */
+    private static long parseOffset(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return 0;
         }
     }
 
@@ -103,8 +293,8 @@ public class ExecutionWebSocketHandler extends TextWebSocketHandler {
         String executionId = (String) session.getAttributes().get("executionId");
         // executionIdがセッション属性になければエラー
         if (executionId == null) {
-            System.err.println("セッション " + session.getId() + " のhandleTextMessage中にexecutionIdがセッション属性に見つかりません。");
-            session.sendMessage(new TextMessage("エラー: セッションコンテキストが失われました。入力を処理できません。"));
+            LOG.warn("セッション {} のhandleTextMessage中にexecutionIdがセッション属性に見つかりません。", session.getId());
+            session.sendMessage(systemMessage("エラー: セッションコンテキストが失われました。入力を処理できません。"));
             return;
         }
 
@@ -119,19 +309,24 @@ public class ExecutionWebSocketHandler extends TextWebSocketHandler {
                 processStdinStream.write((payload + "\n").getBytes());
                 processStdinStream.flush(); // データを即座に送信するために重要
             } catch (IOException e) {
-                System.err.println("実行ID " + executionId + " のプロセス標準入力への書き込みエラー: " + e.getMessage());
+                RATE_LIMITED_LOG.warn("実行ID {} のプロセス標準入力への書き込みエラー: {}", executionId, e.getMessage());
                 // オプション: エラーメッセージをクライアントにWebSocket経由で送信
                 sendMessageToSession(executionId, "エラー: 実行中のプログラムに入力を送信できませんでした。");
+                flushSession(executionId);
             }
         } else {
-            System.err.println("実行ID " + executionId + " のプロセス標準入力が見つかりません。入力は無視されました: " + message.getPayload());
-            session.sendMessage(new TextMessage("エラー: プログラムが実行されていないか、入力を受け付けていません。"));
+            RATE_LIMITED_LOG.warn("実行ID {} のプロセス標準入力が見つかりません。入力は無視されました ({} 文字)", executionId, message.getPayloadLength());
+            // 出力の送信と競合しないよう、送信キュー経由で送信する
+            sendMessageToSession(executionId, "エラー: プログラムが実行されていないか、入力を受け付けていません。");
+            flushSession(executionId);
         }
     }
 
     /**
      * WebSocket接続が閉じた後に呼び出されます。
      * セッションを削除し、関連するJavaプロセス（実行中の場合）のクリーンアップを開始します。
+     * 正常なクローズ（{@link CloseStatus#NORMAL}）以外で切れた場合は、{@code websocket.reconnect.grace-ms} の間は再接続を待ち、
+     * その間に再接続されなかったときにクリーンアップします。
      * @param session 閉じたWebSocketセッション
      * @param status 接続が閉じた理由を示すクローズステータス
      * @throws Exception エラーが発生した場合
@@ -140,29 +335,98 @@ public class ExecutionWebSocketHandler extends TextWebSocketHandler {
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
         String executionId = (String) session.getAttributes().get("executionId");
         if (executionId != null) {
-            // セッションマップから削除
-            sessions.remove(executionId);
-            System.out.println("WebSocket接続クローズ (executionId: " + executionId + ", Session: " + session.getId() + ") ステータス: " + status);
-            // 関連プロセスのクリーンアップを指示
-            processManager.cleanupProcess(executionId);
-            
-            // この実行IDの一時ディレクトリもクリーンアップされていることを確認
-            CompilationResult cr = processManager.getCompilationResult(executionId); // 既に削除されている場合はnullの可能性あり
-            if (cr != null && cr.getCompiledCodePath() != null) {
-                dynamicCompiler.deleteTempDirectory(cr.getCompiledCodePath());
-            } else {
-                 // プロセス開始時にCRがprocessManagerから削除された場合、パスを取得する別の方法が必要
-                 // これは少しトリッキーです。DynamicCompiler.startProcessはパスをCompilationResultに保存します。
-                 // cleanupProcessも一時ディレクトリを削除する場合、これは冗長であるか問題を引き起こす可能性があります。
-                 // 今のところ、InteractiveProcessManagerのcleanupProcessが一時フォルダの削除を処理すると仮定します。
-                 // ここの 'deleteTempDirectory' 呼び出しは、IPMがそれを処理する場合、削除される可能性があります。
-                 // IPM.cleanupProcessを改良して一時フォルダの削除を含めるようにしましょう。
+            OutputAggregator aggregator;
+            connectionLock.lock();
+            try {
+                // 別のセッションに引き継がれた後の古いセッションであれば、何もしない
+                if (!sessions.remove(executionId, session)) {
+                    LOG.debug("引き継がれたWebSocket接続クローズ (executionId: {}, Session: {}) ステータス: {}", executionId, session.getId(), status);
+                    return;
+                }
+                aggregator = aggregators.get(executionId);
+                if (aggregator != null && reconnectGraceMs > 0 && !CloseStatus.NORMAL.equalsCode(status)) {
+                    // 未送信の出力はキューから外して記録だけを続け、再接続を待つ
+                    aggregator.detach();
+                    pendingCleanups.put(executionId,
+                        reconnectScheduler.schedule(() -> expireReconnect(executionId), reconnectGraceMs, TimeUnit.MILLISECONDS));
+                    LOG.debug("WebSocket接続切断 (executionId: {}, Session: {}) ステータス: {}、{}ms 再接続を待ちます", executionId, session.getId(), status, reconnectGraceMs);
+                    return;
+                }
+                aggregators.remove(executionId);
+            } finally {
+                connectionLock.unlock();
             }
+            // 未送信の出力を破棄してアグリゲータを停止
+            if (aggregator != null) {
+                aggregator.close();
+            }
+            LOG.debug("WebSocket接続クローズ (executionId: {}, Session: {}) ステータス: {}", executionId, session.getId(), status);
+            // 関連プロセスのクリーンアップを指示（この実行の一時ディレクトリも削除される）
+            processManager.cleanupProcess(executionId);
         } else {
-            System.out.println("WebSocket接続クローズ (Session: " + session.getId() + ", executionId見つからず) ステータス: " + status);
+            LOG.debug("WebSocket接続クローズ (Session: {}, executionId見つからず) ステータス: {}", session.getId(), status);
         }
     }
     
+    /**
+     * 指定された実行IDのWebSocketセッションが接続中かどうかを返します。
+     * 接続のない実行は孤立しているとみなされ、定期的な後片付けの対象になります。
+     * @param executionId 実行ID
+     * @return 接続中の場合はtrue
+     */
+    public boolean hasSession(String executionId) {
+        return sessions.containsKey(executionId);
+    }
+
+    /**
+     * 指定された実行IDに再接続できる（開始済みで、まだ後片付けされていない）かどうかを返します。
+     * @param executionId 実行ID
+     * @return 再接続できる場合はtrue
+     */
+    public boolean isReconnectable(String executionId) {
+        return aggregators.containsKey(executionId);
+    }
+
+    /**
+     * 指定された実行IDの接続が切れた後、再接続を待っている（待機期限が来ていない）かどうかを返します。
+     * @param executionId 実行ID
+     * @return 再接続を待っている場合はtrue
+     */
+    public boolean isAwaitingReconnect(String executionId) {
+        return pendingCleanups.containsKey(executionId);
+    }
+
+    /**
+     * 再接続の待機期限が来たときに呼び出され、再接続されていなければ送信キューを破棄してプログラムを終了させます。
+     * @param executionId 実行ID
+     */
+    private void expireReconnect(String executionId) {
+        OutputAggregator aggregator;
+        connectionLock.lock();
+        try {
+            pendingCleanups.remove(executionId);
+            if (sessions.containsKey(executionId)) {
+                return;
+            }
+            aggregator = aggregators.remove(executionId);
+        } finally {
+            connectionLock.unlock();
+        }
+        if (aggregator != null) {
+            aggregator.close();
+        }
+        LOG.debug("executionId: {} は {}ms 以内に再接続されなかったため、クリーンアップします。", executionId, reconnectGraceMs);
+        processManager.cleanupProcess(executionId);
+    }
+
+    /**
+     * 再接続の待機期限を管理するスケジューラを停止します。
+     */
+    @PreDestroy
+    public void shutdown() {
+        reconnectScheduler.shutdownNow();
+    }
+
     /**
      * WebSocketトランスポートエラーが発生したときに呼び出されます。
      * @param session エラーが発生したセッション
@@ -171,7 +435,7 @@ public class ExecutionWebSocketHandler extends TextWebSocketHandler {
      */
     @Override
     public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
-        System.err.println("WebSocketトランスポートエラー (Session " + session.getId() + "): " + exception.getMessage());
+        RATE_LIMITED_LOG.warn("WebSocketトランスポートエラー (Session {}): {}", session.getId(), exception.getMessage());
         // 適切であれば、ここでafterConnectionClosedロジックを呼び出すことも検討
         // String executionId = (String) session.getAttributes().get("executionId");
         // if (executionId != null) {
@@ -182,14 +446,105 @@ public class ExecutionWebSocketHandler extends TextWebSocketHandler {
 
 
     /**
-     * 特定のクライアントセッションにメッセージを送信します。
-     * このメソッドは通常、実行中のJavaプロセスからの出力をクライアントに中継するために使用されます。
+     * 特定のクライアントセッションにサーバーからの通知メッセージを送信します。
+     * メッセージは {@link OutputChannel#SYSTEM} チャネルの1行（末尾に改行を付加）として、セッションの送信キューに追加されます。
      * @param executionId メッセージの送信先となるクライアントセッションを識別する実行ID
      * @param message 送信するメッセージ文字列
      */
+    @Override
     public void sendMessageToSession(String executionId, String message) {
-        // System.out.println("サーバーWS送信クライアント (" + executionId + "): " + message); // ログは前のステップで削除
+        sendOutputToSession(executionId, OutputChannel.SYSTEM, message + "\n");
+    }
+
+    /**
+     * 特定のクライアントセッションに実行中のプログラムの出力を送信します。
+     * 出力はセッションの送信キュー（{@link OutputAggregator}）に追加され、他の出力とまとめて1つのフレームとして送信されます。
+     * キューが上限に達している場合は、設定された {@link OverflowPolicy} に従います（PAUSE の場合は空きができるまで待機します）。
+     * プログラムの出力は出力ログ（{@link OutputLogStore}）にも記録され、メモリに保持する量を超えた後は表示を打ち切り、
+     * ダウンロードの案内を一度だけ送信します（出力はファイルに書き出されます）。
+     * @param executionId 出力の送信先となるクライアントセッションを識別する実行ID
+     * @param channel 出力のチャネル（標準出力・標準エラー出力・システム通知）
+     * @param text 送信する出力（改行は付加されません）
+     */
+    @Override
+    public void sendOutputToSession(String executionId, OutputChannel channel, String text) {
+        if (channel != OutputChannel.SYSTEM) {
+            metrics.recordOutput(channel == OutputChannel.STDERR, OutputAggregator.utf8Length(text), countLines(text));
+            OutputLogStore.OutputLog log = outputLogs.get(executionId);
+            if (log != null && !log.record(text)) {
+                if (log.markLiveTruncated()) {
+                    sendMessageToSession(executionId, "\n情報: 出力が多いため、ここから先の表示を省略します。"
+                        + "出力の全体は /api/executions/" + executionId + "/output からダウンロードできます。");
+                    flushSession(executionId);
+                }
+                return;
+            }
+        }
+        OutputAggregator aggregator = aggregators.get(executionId);
+        if (aggregator != null) {
+            aggregator.append(channel, text);
+        } else {
+            // 送信キューがない（既に閉じられた等）場合は直接送信を試みる
+            sendFrame(executionId, OutputAggregator.singleChunkFrame(channel, text));
+        }
+    }
 
+    /**
+     * 出力に含まれる改行の数を返します。
+     */
+    private static long countLines(String text) {
+        long lines = 0;
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+            lines++;
+        }
+        return lines;
+    }
+
+    /**
+     * 特定のクライアントセッションに実行の終了報告を送信します。
+     * 報告は {@link OutputChannel#EXIT} チャネルのチャンクとして、表示用のメッセージと構造化された報告（{@code report}）を含み、
+     * それまでの出力の後に待ち時間を待たずに送信されます。
+     * @param executionId 送信先のクライアントセッションを識別する実行ID
+     * @param report 終了報告
+     */
+    @Override
+    public void sendExitReport(String executionId, ExitReport report) {
+        String reportJson;
+        try {
+            reportJson = objectMapper.writeValueAsString(report.toMap());
+        } catch (JsonProcessingException e) {
+            // 数値と文字列だけのマップなので通常は発生しない。報告なしでメッセージだけを送る
+            LOG.warn("実行ID {} の終了報告をJSONに変換できませんでした: {}", executionId, e.getMessage());
+            sendMessageToSession(executionId, report.getMessage());
+            return;
+        }
+        OutputAggregator aggregator = aggregators.get(executionId);
+        if (aggregator != null) {
+            aggregator.appendExitReport(report.getMessage(), reportJson);
+        } else {
+            sendFrame(executionId, OutputAggregator.exitReportFrame(report.getMessage(), reportJson));
+        }
+    }
+
+    /**
+     * 特定のクライアントセッションにまとめられている未送信の出力を、待ち時間を待たずに送信するよう要求します。
+     * プログラムの出力が途切れたとき（入力待ちになった可能性があるとき）に呼び出されます。
+     * @param executionId 対象の実行ID
+     */
+    @Override
+    public void flushSession(String executionId) {
+        OutputAggregator aggregator = aggregators.get(executionId);
+        if (aggregator != null) {
+            aggregator.flush();
+        }
+    }
+
+    /**
+     * 特定のクライアントセッションに1つのフレームを送信します。
+     * @param executionId 送信先のクライアントセッションを識別する実行ID
+     * @param frame 送信するフレーム（チャンクのJSON配列）
+     */
+    private void sendFrame(String executionId, String frame) {
         // executionIdに対応するセッションを取得
         WebSocketSession session = sessions.get(executionId);
         // セッションが存在し、開いている場合のみメッセージを送信
@@ -197,13 +552,55 @@ public class ExecutionWebSocketHandler extends TextWebSocketHandler {
             try {
                 // メッセージをテキストメッセージとして送信
                 // 可能であれば、メッセージが断片化されずに完全なテキストメッセージとして送信されるようにする
-                session.sendMessage(new TextMessage(message));
+                long startNanos = System.nanoTime();
+                session.sendMessage(new TextMessage(frame));
+                metrics.recordWebSocketSend(System.nanoTime() - startNanos, OutputAggregator.utf8Length(frame));
             } catch (IOException e) {
-                System.err.println("セッション " + executionId + " へのメッセージ送信エラー: " + e.getMessage());
-                // 送信に失敗した場合、セッションが壊れている可能性があります。クリーンアップを検討してください。
+                // 送信時間の上限を超えた場合もここに来る。セッションは信頼できないため閉じ、クローズ処理でプログラムも終了させる
+                RATE_LIMITED_LOG.warn("セッション {} へのメッセージ送信エラー: {}", executionId, e.getMessage());
+                try {
+                    session.close(CloseStatus.SESSION_NOT_RELIABLE);
+                } catch (IOException closeError) {
+                    RATE_LIMITED_LOG.warn("セッション {} のクローズに失敗しました: {}", executionId, closeError.getMessage());
+                }
             }
-        } else {
-            // System.out.println("セッション " + executionId + " が見つからないか開いていません。メッセージは送信されませんでした: " + message);
         }
     }
+
+    /**
+     * 送信キューを経由せずに送信する、サーバーからの通知メッセージ（{@link OutputChannel#SYSTEM} の1チャンク）を作成します。
+     * @param message 通知メッセージ
+     * @return 送信するテキストメッセージ
+     */
+    private static TextMessage systemMessage(String message) {
+        return new TextMessage(OutputAggregator.singleChunkFrame(OutputChannel.SYSTEM, message + "\n"));
+    }
+
+    /**
+     * セッションごとの送信キューの統計情報を返します。
+     * @return 実行ID → 統計情報（項目名 → 値）
+     */
+    public Map<String, Map<String, Object>> getOutputQueueStats() {
+        Map<String, Map<String, Object>> stats = new LinkedHashMap<>();
+        aggregators.forEach((executionId, aggregator) -> {
+            Map<String, Object> queueStats = new LinkedHashMap<>();
+            queueStats.put("overflowPolicy", aggregator.getOverflowPolicy());
+            queueStats.put("queuedChunks", aggregator.getQueuedChunks());
+            queueStats.put("queuedBytes", aggregator.getQueuedBytes());
+            queueStats.put("droppedChunks", aggregator.getDroppedChunks());
+            queueStats.put("droppedBytes", aggregator.getDroppedBytes());
+            queueStats.put("pauseCount", aggregator.getPauseCount());
+            queueStats.put("pausedMillis", aggregator.getPausedMillis());
+            queueStats.put("sentFrames", aggregator.getSentFrames());
+            queueStats.put("sentBytes", aggregator.getSentBytes());
+            queueStats.put("maxSendMillis", aggregator.getMaxSendMillis());
+            queueStats.put("connected", sessions.containsKey(executionId));
+            queueStats.put("replayRetainedBytes", aggregator.getReplayRetainedBytes());
+            queueStats.put("replayEndOffset", aggregator.getReplayEndOffset());
+            queueStats.put("reconnects", aggregator.getReattachCount());
+            queueStats.put("replayedBytes", aggregator.getReplayedBytes());
+            stats.put(executionId, queueStats);
+        });
+        return stats;
+    }
 }
@@ -0,0 +1,665 @@
+package tech.nagatani.dev.websocket;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.nagatani.dev.RateLimitedLogger;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * 1つの実行セッションの送信キュー。出力をまとめて、少ない数のWebSocketフレームとして送信します。
+ * 出力読み取りスレッドは {@link #append(OutputChannel, String)} で出力のチャンクをキューに追加するだけで、
+ * 実際の送信は専用の書き込みスレッド（仮想スレッド）だけが行います。
+ * そのため、1つのセッションに対して複数のスレッドが同時に送信することはありません。
+ * キューに溜まった出力は、最初のチャンクが追加されてから一定時間が経過したとき、またはキューが一定サイズに達したときの
+ * いずれか早い方で1つのフレームとして送信されます。
+ * プログラムが入力待ちになった（出力が途切れた）ときは {@link #flush()} により即座に送信されるため、対話性は損なわれません。
+ *
+ * <p>キューにはバイト数（UTF-8換算）の上限があり、クライアントの受信が追いつかずに上限に達した場合は
+ * {@link OverflowPolicy} に従って、追加を待機させる・古い出力を破棄する・実行を終了させる、のいずれかを行います。</p>
+ *
+ * <p>送信されるフレームはチャンクのJSON配列です（例: {@code [{"channel":"stdout","data":"Name: "}]}）。
+ * {@code data} は出力をそのまま含み、改行も出力に含まれるものだけです。同じチャネルの連続したチャンクは1つにまとめられます。
+ * 実行の終了報告（{@link OutputChannel#EXIT}）のチャンクだけは、構造化された報告を {@code report} として持ち、まとめられません
+ * （例: {@code {"channel":"exit","data":"...","report":{"reason":"cpu-limit","exitCode":137,...}}}）。</p>
+ *
+ * <p>追加された出力はすべて {@link OutputReplayBuffer} にも記録され、チャンクにはその終端オフセットが {@code offset} として付けられます
+ * （例: {@code {"channel":"stdout","data":"...","offset":1234}}）。
+ * 接続が切れた間は {@link #detach()} によりキューへの追加を止め、出力の記録だけを続けます。
+ * 再接続したときは {@link #attach(long)} により、クライアントが受信した最後のオフセット以降の記録を再送してから、通常の送信に戻ります。</p>
+ */
+public class OutputAggregator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OutputAggregator.class);
+    // フレームごとに発生しうる送信エラーは件数を制限して出力する
+    private static final RateLimitedLogger RATE_LIMITED_LOG = new RateLimitedLogger(LOG, 20, 10, TimeUnit.SECONDS);
+
+    // 同じチャネルの連続したチャンクをまとめる最大バイト数（DROP_OLDEST で一度に破棄される量の上限にもなる）
+    private static final long MAX_MERGED_CHUNK_BYTES = 8192;
+
+    /**
+     * キュー内の出力のチャンク。
+     */
+    private static class Chunk {
+        final OutputChannel channel; // 出力のチャネル
+        final StringBuilder data = new StringBuilder(); // 出力の内容
+        long bytes = 0; // 内容のバイト数（UTF-8換算）
+        final String reportJson; // 終了報告のJSONオブジェクト（終了報告のチャンク以外はnull）
+        long endOffset = -1; // 最後の記録の終端オフセット（再送バッファに記録されない通知は-1）
+
+        Chunk(OutputChannel channel, String reportJson) {
+            this.channel = channel;
+            this.reportJson = reportJson;
+        }
+    }
+
+    private final String executionId; // 対象の実行ID（スレッド名とログに使用）
+    private final Consumer<String> frameSender; // まとめたフレームを送信するコールバック
+    private final Runnable terminateAction; // TERMINATE ポリシーで実行を終了させる処理
+    private final long flushIntervalNanos; // 最初のチャンクが追加されてから送信するまでの最大待ち時間
+    private final long flushSizeBytes; // このバイト数に達したら待ち時間を待たずに送信する
+    private final long maxQueuedBytes; // キューに保持できる最大バイト数
+    private final OverflowPolicy overflowPolicy; // キューが上限に達したときの動作
+    private final OutputReplayBuffer replayBuffer; // 再接続したクライアントに再送するための出力の記録（ロック内で使用）
+    private final ReentrantLock lock = new ReentrantLock(); // キューを保護するロック（仮想スレッドをピン留めしないようReentrantLockを使用）
+    private final Condition changed = lock.newCondition(); // キューや状態の変化を書き込みスレッドに通知する条件
+    private final Condition notFull = lock.newCondition(); // キューに空きができたことを待機中の読み取りスレッドに通知する条件
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>(); // 未送信のチャンク
+    private long queuedBytes = 0; // 未送信のチャンクのバイト数
+    private long firstPendingNanos = 0; // キューに最初のチャンクが追加された時刻
+    private boolean flushRequested = false; // 即時送信が要求されたかどうか
+    private boolean terminated = false; // TERMINATE ポリシーにより実行を終了させたかどうか
+    private boolean closed = false; // 閉じられたかどうか
+    private boolean attached = true; // クライアントが接続中かどうか（切断中はキューに追加しない）
+    private long unreportedDroppedChunks = 0; // 破棄したがまだクライアントに通知していないチャンク数
+    private long unreportedDroppedBytes = 0; // 破棄したがまだクライアントに通知していないバイト数
+
+    // 統計情報（ロック内で更新）
+    private long droppedChunks = 0; // 破棄したチャンクの累計
+    private long droppedBytes = 0; // 破棄したバイト数の累計
+    private long pauseCount = 0; // キューが一杯のため追加を待機させた回数
+    private long pausedNanos = 0; // 追加を待機させた時間の累計
+    private long sentFrames = 0; // 送信したフレーム数
+    private long sentBytes = 0; // 送信したバイト数
+    private long maxSendNanos = 0; // 1フレームの送信にかかった最大時間
+    private long reattachCount = 0; // 再接続した回数
+    private long replayedBytes = 0; // 再接続時に再送したバイト数の累計
+
+    /**
+     * 送信キューを構築し、書き込みスレッドを開始します。
+     * @param executionId 対象の実行ID
+     * @param frameSender まとめたフレームを送信するコールバック（書き込みスレッドからのみ呼び出されます）
+     * @param terminateAction {@link OverflowPolicy#TERMINATE} で実行を終了させる処理
+     * @param flushIntervalMs 最初のチャンクが追加されてから送信するまでの最大待ち時間（ミリ秒）
+     * @param flushSizeBytes このバイト数に達したら待ち時間を待たずに送信する
+     * @param maxQueuedBytes キューに保持できる最大バイト数
+     * @param overflowPolicy キューが上限に達したときの動作
+     * @param replayBufferBytes 再接続時に再送するために保持する出力の最大バイト数
+     */
+    public OutputAggregator(String executionId, Consumer<String> frameSender, Runnable terminateAction,
+                            long flushIntervalMs, long flushSizeBytes, long maxQueuedBytes, OverflowPolicy overflowPolicy,
+                            long replayBufferBytes) {
+        this.executionId = executionId;
+        this.frameSender = frameSender;
+        this.terminateAction = terminateAction;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, flushIntervalMs));
+        this.maxQueuedBytes = Math.max(1, maxQueuedBytes);
+        this.flushSizeBytes = Math.min(Math.max(1, flushSizeBytes), this.maxQueuedBytes);
+        this.overflowPolicy = overflowPolicy;
+        this.replayBuffer = new OutputReplayBuffer(replayBufferBytes);
+        Thread.ofVirtual().name("ws-writer-" + executionId).start(this::writeLoop); // フレームを送信する書き込みスレッド
+    }
+
+    /**
+     * 出力のチャンクをキューに追加します。キューが一定サイズに達した場合は書き込みスレッドを起こします。
+     * キューがバイト数の上限を超える場合は {@link OverflowPolicy} に従います（{@link OverflowPolicy#PAUSE} の場合はここで待機します）。
+     * 出力は再送バッファにも記録されます。切断中（{@link #detach()} の後）は記録だけを行い、閉じられた後に追加された出力は破棄されます。
+     * @param channel 出力のチャネル
+     * @param text 追加する出力（改行は付加されません）
+     */
+    public void append(OutputChannel channel, String text) {
+        append(channel, text, null);
+    }
+
+    /**
+     * 実行の終了報告をキューに追加し、待ち時間を待たずに送信するよう要求します。
+     * 終了報告のチャンクは前後のチャンクとまとめられません。
+     * @param message 表示用のメッセージ
+     * @param reportJson 構造化された終了報告（JSONオブジェクト）
+     */
+    public void appendExitReport(String message, String reportJson) {
+        append(OutputChannel.EXIT, message, reportJson);
+        flush();
+    }
+
+    private void append(OutputChannel channel, String text, String reportJson) {
+        if (text.isEmpty() && reportJson == null) {
+            return;
+        }
+        long bytes = utf8Length(text);
+        boolean terminate = false;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (!attached) {
+                // 切断中は再接続に備えて記録だけを行う
+                replayBuffer.append(channel, text, reportJson);
+                return;
+            }
+            // 1チャンクだけで上限を超える場合は、キューが空であれば受け入れる（永久に待機しないように）
+            if (!chunks.isEmpty() && queuedBytes + bytes > maxQueuedBytes) {
+                if (overflowPolicy == OverflowPolicy.PAUSE) {
+                    if (!awaitSpace(bytes)) {
+                        return;
+                    }
+                } else if (overflowPolicy == OverflowPolicy.DROP_OLDEST || terminated) {
+                    // 終了済みの場合も、終了コードなどのメッセージのために古い出力を捨てて場所を空ける
+                    while (!chunks.isEmpty() && queuedBytes + bytes > maxQueuedBytes) {
+                        drop(chunks.removeFirst());
+                    }
+                } else {
+                    // TERMINATE: キューの内容を破棄し、実行を終了させる
+                    while (!chunks.isEmpty()) {
+                        drop(chunks.removeFirst());
+                    }
+                    terminated = true;
+                    terminate = true;
+                }
+            }
+            // 待機中に切断された場合も、出力は記録する
+            long endOffset = replayBuffer.append(channel, text, reportJson);
+            if (!attached) {
+                return;
+            }
+            if (chunks.isEmpty()) {
+                firstPendingNanos = System.nanoTime();
+                changed.signal(); // 書き込みスレッドに待ち時間の計測を開始させる
+            }
+            Chunk last = chunks.peekLast();
+            if (reportJson != null || last == null || last.channel != channel || last.reportJson != null
+                    || last.bytes + bytes > MAX_MERGED_CHUNK_BYTES) {
+                last = new Chunk(channel, reportJson);
+                chunks.addLast(last);
+            }
+            last.data.append(text);
+            last.bytes += bytes;
+            last.endOffset = endOffset;
+            queuedBytes += bytes;
+            if (queuedBytes >= flushSizeBytes) {
+                changed.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (terminate) {
+            LOG.info("実行ID {} の送信キューが上限 ({} バイト) に達したため、実行を終了します。", executionId, maxQueuedBytes);
+            append(OutputChannel.SYSTEM, "\nエラー: 出力が多すぎてクライアントへの送信が追いつかないため、プログラムを終了しました。\n");
+            flush();
+            terminateAction.run();
+        }
+    }
+
+    /**
+     * {@link OverflowPolicy#PAUSE} で、指定されたバイト数を追加できる空きができるまで待機します。ロックを保持した状態で呼び出します。
+     * 待機中は書き込みスレッドに即時送信を要求します。
+     * @param bytes 追加するバイト数
+     * @return 追加してよい場合はtrue（待機中に切断された場合を含む）。閉じられたか割り込まれた場合はfalse。
+     */
+    private boolean awaitSpace(long bytes) {
+        pauseCount++;
+        long startNanos = System.nanoTime();
+        try {
+            while (!closed && attached && !chunks.isEmpty() && queuedBytes + bytes > maxQueuedBytes) {
+                flushRequested = true;
+                changed.signal();
+                notFull.await();
+            }
+            return !closed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // 読み取りスレッドの中断（クリーンアップ）
+            return false;
+        } finally {
+            pausedNanos += System.nanoTime() - startNanos;
+        }
+    }
+
+    /**
+     * 1つのチャンクを破棄し、統計と未通知の破棄数を更新します。ロックを保持した状態で呼び出します。
+     * @param chunk 破棄するチャンク
+     */
+    private void drop(Chunk chunk) {
+        queuedBytes -= chunk.bytes;
+        droppedChunks++;
+        droppedBytes += chunk.bytes;
+        unreportedDroppedChunks++;
+        unreportedDroppedBytes += chunk.bytes;
+    }
+
+    /**
+     * キューに溜まっている出力を、待ち時間を待たずに送信するよう要求します。
+     * プログラムが入力待ちになったときなど、出力が途切れたときに呼び出します。
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            if (!chunks.isEmpty()) {
+                flushRequested = true;
+                changed.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * クライアントの接続が切れたことを通知します。未送信の出力は（再送バッファに記録済みのため）キューから取り除き、
+     * 再接続されるまでは出力を記録するだけにします。待機中の読み取りスレッドも再開させるため、切断中もプログラムは止まりません。
+     */
+    public void detach() {
+        lock.lock();
+        try {
+            attached = false;
+            chunks.clear();
+            queuedBytes = 0;
+            flushRequested = false;
+            unreportedDroppedChunks = 0;
+            unreportedDroppedBytes = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * クライアントが再接続したことを通知します。クライアントが受信した最後のオフセットより後の記録をキューに入れて即時送信を要求し、
+     * 以降の出力は通常どおりキューに追加します。未送信のチャンクは再送する記録に含まれるため取り除かれます。
+     * 再送できる範囲より前の出力が失われている場合は、その旨の通知を先頭に付けます。
+     * クライアントは、既に受信したオフセット以下のチャンクを無視する必要があります（切り替え前に送信中だったフレームと重複しうるため）。
+     * @param lastOffset クライアントが受信した最後のチャンクの {@code offset}（何も受信していない場合は0）
+     * @return 再送するバイト数
+     */
+    public long attach(long lastOffset) {
+        lock.lock();
+        try {
+            attached = true;
+            chunks.clear();
+            queuedBytes = 0;
+            unreportedDroppedChunks = 0;
+            unreportedDroppedBytes = 0;
+            if (lastOffset < replayBuffer.getStartOffset()) {
+                Chunk notice = new Chunk(OutputChannel.SYSTEM, null);
+                notice.data.append("\n[... 再送できる量を超えたため、切断前後の出力の一部は表示できません ...]\n");
+                notice.bytes = utf8Length(notice.data);
+                chunks.addLast(notice);
+            }
+            long bytes = 0;
+            for (OutputReplayBuffer.Record record : replayBuffer.readFrom(lastOffset)) {
+                Chunk chunk = new Chunk(record.getChannel(), record.getReportJson());
+                chunk.data.append(record.getData());
+                chunk.bytes = utf8Length(record.getData());
+                chunk.endOffset = record.getEndOffset();
+                chunks.addLast(chunk);
+                bytes += chunk.bytes;
+            }
+            for (Chunk chunk : chunks) {
+                queuedBytes += chunk.bytes;
+            }
+            reattachCount++;
+            replayedBytes += bytes;
+            if (!chunks.isEmpty()) {
+                firstPendingNanos = System.nanoTime();
+                flushRequested = true;
+                changed.signal();
+            }
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 送信キューを閉じます。残りの出力は送信せずに破棄し、待機中の読み取りスレッドと書き込みスレッドを終了させます。
+     * セッションが既に閉じられた後に呼び出されることを想定しています。
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            chunks.clear();
+            queuedBytes = 0;
+            changed.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * キューが上限に達したときの動作を返します。
+     * @return オーバーフローポリシー
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * キュー内の未送信のチャンク数を返します。
+     * @return 未送信のチャンク数
+     */
+    public int getQueuedChunks() {
+        lock.lock();
+        try {
+            return chunks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * キュー内の未送信のバイト数を返します。
+     * @return 未送信のバイト数
+     */
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * これまでに破棄したチャンク数を返します。
+     * @return 破棄したチャンク数
+     */
+    public long getDroppedChunks() {
+        lock.lock();
+        try {
+            return droppedChunks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * これまでに破棄したバイト数を返します。
+     * @return 破棄したバイト数
+     */
+    public long getDroppedBytes() {
+        lock.lock();
+        try {
+            return droppedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * キューが一杯のため出力の追加を待機させた回数を返します。
+     * @return 待機させた回数
+     */
+    public long getPauseCount() {
+        lock.lock();
+        try {
+            return pauseCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 出力の追加を待機させた時間の累計を返します。
+     * @return 待機時間の累計（ミリ秒）
+     */
+    public long getPausedMillis() {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(pausedNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 送信したフレーム数を返します。
+     * @return 送信したフレーム数
+     */
+    public long getSentFrames() {
+        lock.lock();
+        try {
+            return sentFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 送信したバイト数を返します。
+     * @return 送信したバイト数
+     */
+    public long getSentBytes() {
+        lock.lock();
+        try {
+            return sentBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 1フレームの送信にかかった最大時間を返します。
+     * @return 最大送信時間（ミリ秒）
+     */
+    public long getMaxSendMillis() {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(maxSendNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 再送バッファに保持している出力のバイト数を返します。
+     * @return 保持しているバイト数
+     */
+    public long getReplayRetainedBytes() {
+        lock.lock();
+        try {
+            return replayBuffer.getRetainedBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 再送バッファに記録した最後のオフセットを返します。
+     * @return 終端オフセット
+     */
+    public long getReplayEndOffset() {
+        lock.lock();
+        try {
+            return replayBuffer.getEndOffset();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 再接続した回数を返します。
+     * @return 再接続した回数
+     */
+    public long getReattachCount() {
+        lock.lock();
+        try {
+            return reattachCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 再接続時に再送したバイト数の累計を返します。
+     * @return 再送したバイト数
+     */
+    public long getReplayedBytes() {
+        lock.lock();
+        try {
+            return replayedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 書き込みスレッドの処理。送信条件を満たすまで待機し、キューの内容を1つのフレームとして送信します。
+     * 送信はロックの外で行うため、送信中も読み取りスレッドは（上限まで）出力を追加し続けられます。
+     */
+    private void writeLoop() {
+        while (true) {
+            String frame;
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        return;
+                    }
+                    if (chunks.isEmpty()) {
+                        changed.await();
+                        continue;
+                    }
+                    long remainingNanos = flushIntervalNanos - (System.nanoTime() - firstPendingNanos);
+                    if (flushRequested || queuedBytes >= flushSizeBytes || remainingNanos <= 0) {
+                        break;
+                    }
+                    changed.awaitNanos(remainingNanos);
+                }
+                frame = takeFrame();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            long startNanos = System.nanoTime();
+            try {
+                frameSender.accept(frame);
+            } catch (RuntimeException e) {
+                RATE_LIMITED_LOG.warn("実行ID {} の出力フレーム送信中にエラーが発生しました: {}", executionId, e.getMessage());
+            }
+            long sendNanos = System.nanoTime() - startNanos;
+
+            lock.lock();
+            try {
+                sentFrames++;
+                sentBytes += utf8Length(frame);
+                maxSendNanos = Math.max(maxSendNanos, sendNanos);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * キュー内のすべてのチャンクを取り出して1つのフレーム（JSON配列）にします。ロックを保持した状態で呼び出します。
+     * 前回の送信以降に破棄した出力がある場合は、その旨を示す {@link OutputChannel#SYSTEM} のチャンクをフレームの先頭に付けます。
+     * @return 送信するフレーム
+     */
+    private String takeFrame() {
+        StringBuilder frame = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 8, queuedBytes + 64));
+        frame.append('[');
+        if (unreportedDroppedChunks > 0) {
+            appendChunk(frame, OutputChannel.SYSTEM, "\n[... 出力が多すぎるため " + unreportedDroppedBytes + " バイトの出力を破棄しました ...]\n", null, -1);
+            unreportedDroppedChunks = 0;
+            unreportedDroppedBytes = 0;
+        }
+        Chunk chunk;
+        while ((chunk = chunks.pollFirst()) != null) {
+            appendChunk(frame, chunk.channel, chunk.data, chunk.reportJson, chunk.endOffset);
+        }
+        frame.append(']');
+        queuedBytes = 0;
+        flushRequested = false;
+        notFull.signalAll(); // 待機中の読み取りスレッドを再開させる
+        return frame.toString();
+    }
+
+    /**
+     * 1つのチャンクをJSONオブジェクトとしてフレームに追加します。
+     * @param frame 追加先のフレーム（'[' の後または前のチャンクの後）
+     * @param channel チャンクのチャネル
+     * @param data チャンクの内容
+     * @param reportJson 終了報告のJSONオブジェクト（終了報告のチャンク以外はnull）
+     * @param endOffset 再送バッファでの終端オフセット（-1の場合は {@code offset} を付けない）
+     */
+    private static void appendChunk(StringBuilder frame, OutputChannel channel, CharSequence data, String reportJson, long endOffset) {
+        if (frame.length() > 1) {
+            frame.append(',');
+        }
+        frame.append("{\"channel\":\"").append(channel.getWireName()).append("\",\"data\":\"");
+        JsonStringEncoder.getInstance().quoteAsString(data, frame);
+        frame.append('"');
+        if (reportJson != null) {
+            frame.append(",\"report\":").append(reportJson);
+        }
+        if (endOffset >= 0) {
+            frame.append(",\"offset\":").append(endOffset);
+        }
+        frame.append('}');
+    }
+
+    /**
+     * 1つのチャンクだけを含むフレームを作成します。送信キューを経由せずに直接送信するメッセージに使用します。
+     * @param channel チャンクのチャネル
+     * @param data チャンクの内容
+     * @return フレーム（JSON配列）
+     */
+    public static String singleChunkFrame(OutputChannel channel, String data) {
+        StringBuilder frame = new StringBuilder(data.length() + 48).append('[');
+        appendChunk(frame, channel, data, null, -1);
+        return frame.append(']').toString();
+    }
+
+    /**
+     * 終了報告だけを含むフレームを作成します。送信キューを経由せずに直接送信する場合に使用します。
+     * @param message 表示用のメッセージ
+     * @param reportJson 構造化された終了報告（JSONオブジェクト）
+     * @return フレーム（JSON配列）
+     */
+    public static String exitReportFrame(String message, String reportJson) {
+        StringBuilder frame = new StringBuilder(message.length() + reportJson.length() + 64).append('[');
+        appendChunk(frame, OutputChannel.EXIT, message, reportJson, -1);
+        return frame.append(']').toString();
+    }
+
+    /**
+     * 文字列をUTF-8でエンコードした場合のバイト数を、実際にエンコードせずに計算します。
+     * @param text 対象の文字列
+     * @return UTF-8でのバイト数
+     */
+    static long utf8Length(CharSequence text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4; // サロゲートペアは4バイト
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
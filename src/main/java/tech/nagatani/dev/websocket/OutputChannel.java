@@ -0,0 +1,30 @@
+package tech.nagatani.dev.websocket;
+
+/**
+ * クライアントに送信する出力のチャネル。WebSocketのフレームでは各チャンクにチャネル名が付けられ、
+ * クライアントはチャネルごとに表示を分けます（標準エラー出力を赤字で表示するなど）。
+ */
+public enum OutputChannel {
+    /** プログラムの標準出力。 */
+    STDOUT("stdout"),
+    /** プログラムの標準エラー出力。 */
+    STDERR("stderr"),
+    /** サーバーからの通知（終了コード、エラー、タイムアウトなど）。 */
+    SYSTEM("system"),
+    /** 実行の終了報告。{@code data} に表示用のメッセージ、{@code report} に終了理由や使用リソースを構造化した形式で含みます。 */
+    EXIT("exit");
+
+    private final String wireName; // フレーム内で使用するチャネル名
+
+    OutputChannel(String wireName) {
+        this.wireName = wireName;
+    }
+
+    /**
+     * フレーム内で使用するチャネル名を返します。
+     * @return チャネル名（"stdout" / "stderr" / "system" / "exit"）
+     */
+    public String getWireName() {
+        return wireName;
+    }
+}
@@ -0,0 +1,204 @@
+package tech.nagatani.dev.websocket;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 1つの実行の出力を、再接続したクライアントに再送するために保持する、容量に上限のあるリングバッファ。
+ * 出力は追加された単位（記録: チャネル・内容・終了報告）ごとにバイト配列へ書き込まれ、
+ * 実行の開始からの通算バイト位置（オフセット）で識別されます。容量を超えると古い記録から上書きされます。
+ *
+ * <p>記録の形式は、チャネル（1バイト）・内容のバイト数（4バイト）・終了報告のバイト数（4バイト、なければ-1）に続けて、
+ * 内容と終了報告をUTF-8で並べたものです。フレームの各チャンクには、そのチャンクの最後の記録の終端オフセットが付けられ、
+ * クライアントは受信した最後のオフセットを再接続時に伝えることで、それ以降の記録だけを再送してもらえます。</p>
+ *
+ * <p>出力の少ない実行が容量分のメモリを占有しないよう、配列は必要に応じて容量まで拡張されます。
+ * スレッドセーフではないため、呼び出し側（{@link OutputAggregator}）のロック内で使用します。</p>
+ */
+public class OutputReplayBuffer {
+
+    // 記録のヘッダーのバイト数（チャネル1バイト + 内容のバイト数4バイト + 終了報告のバイト数4バイト）
+    private static final int HEADER_BYTES = 9;
+    // 配列の初期サイズ
+    private static final int INITIAL_BYTES = 4096;
+    private static final OutputChannel[] CHANNELS = OutputChannel.values();
+
+    /**
+     * 再送する出力の記録。
+     */
+    public static class Record {
+        private final OutputChannel channel; // 出力のチャネル
+        private final String data; // 出力の内容
+        private final String reportJson; // 終了報告のJSONオブジェクト（終了報告の記録以外はnull）
+        private final long endOffset; // 記録の終端オフセット
+
+        Record(OutputChannel channel, String data, String reportJson, long endOffset) {
+            this.channel = channel;
+            this.data = data;
+            this.reportJson = reportJson;
+            this.endOffset = endOffset;
+        }
+
+        public OutputChannel getChannel() {
+            return channel;
+        }
+
+        public String getData() {
+            return data;
+        }
+
+        public String getReportJson() {
+            return reportJson;
+        }
+
+        public long getEndOffset() {
+            return endOffset;
+        }
+    }
+
+    private final int capacity; // 保持できる最大バイト数
+    private byte[] buffer = new byte[0]; // 記録を書き込む配列（容量まで拡張される）
+    private long startOffset = 0; // 保持している最も古い記録のオフセット
+    private long endOffset = 0; // 次に追加される記録のオフセット
+
+    /**
+     * リングバッファを構築します。
+     * @param capacity 保持できる最大バイト数（0の場合は何も保持せず、オフセットだけを進めます）
+     */
+    public OutputReplayBuffer(long capacity) {
+        this.capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(0, capacity));
+    }
+
+    /**
+     * 出力の記録を追加します。容量を超える場合は古い記録を破棄します。
+     * 1つの記録だけで容量を超える場合は、それまでの記録も含めて何も保持しません（オフセットは進みます）。
+     * @param channel 出力のチャネル
+     * @param data 出力の内容
+     * @param reportJson 終了報告のJSONオブジェクト（終了報告の記録以外はnull）
+     * @return 追加した記録の終端オフセット
+     */
+    public long append(OutputChannel channel, String data, String reportJson) {
+        byte[] dataBytes = data.getBytes(StandardCharsets.UTF_8);
+        byte[] reportBytes = reportJson != null ? reportJson.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        long recordBytes = (long) HEADER_BYTES + dataBytes.length + reportBytes.length;
+        if (recordBytes > capacity) {
+            endOffset += recordBytes;
+            startOffset = endOffset;
+            return endOffset;
+        }
+        ensureSpace(recordBytes);
+
+        byte[] header = new byte[HEADER_BYTES];
+        header[0] = (byte) channel.ordinal();
+        putInt(header, 1, dataBytes.length);
+        putInt(header, 5, reportJson != null ? reportBytes.length : -1);
+        write(endOffset, header);
+        write(endOffset + HEADER_BYTES, dataBytes);
+        write(endOffset + HEADER_BYTES + dataBytes.length, reportBytes);
+        endOffset += recordBytes;
+        return endOffset;
+    }
+
+    /**
+     * 指定された記録を書き込めるよう、配列を拡張するか古い記録を破棄します。
+     * 配列の拡張は、まだ一度も折り返していない（最初の記録のオフセットが0の）間だけ行われるため、
+     * 拡張の前後で記録の位置は変わりません。
+     */
+    private void ensureSpace(long recordBytes) {
+        long required = endOffset - startOffset + recordBytes;
+        if (required > buffer.length && buffer.length < capacity && startOffset == 0) {
+            long newLength = Math.max(required, Math.max(INITIAL_BYTES, (long) buffer.length * 2));
+            buffer = Arrays.copyOf(buffer, (int) Math.min(capacity, newLength));
+        }
+        while (endOffset - startOffset + recordBytes > buffer.length) {
+            startOffset += recordLength(startOffset);
+        }
+    }
+
+    /**
+     * 指定されたオフセット以降に始まる記録を、古い順に返します。
+     * オフセットが既に破棄された位置の場合は、保持しているすべての記録を返します（{@link #getStartOffset()} と比較して欠落を判定できます）。
+     * オフセットが記録の途中を指す場合、その記録は含まれません。
+     * @param offset クライアントが受信した最後のオフセット
+     * @return 再送する記録
+     */
+    public List<Record> readFrom(long offset) {
+        List<Record> records = new ArrayList<>();
+        long position = startOffset;
+        while (position < endOffset) {
+            byte[] header = read(position, HEADER_BYTES);
+            int dataLength = getInt(header, 1);
+            int reportLength = getInt(header, 5);
+            long length = (long) HEADER_BYTES + dataLength + Math.max(0, reportLength);
+            if (position >= offset) {
+                String data = new String(read(position + HEADER_BYTES, dataLength), StandardCharsets.UTF_8);
+                String reportJson = reportLength >= 0
+                    ? new String(read(position + HEADER_BYTES + dataLength, reportLength), StandardCharsets.UTF_8) : null;
+                records.add(new Record(CHANNELS[header[0]], data, reportJson, position + length));
+            }
+            position += length;
+        }
+        return records;
+    }
+
+    /**
+     * 保持している最も古い記録のオフセットを返します。これより前の出力は再送できません。
+     * @return 最も古い記録のオフセット
+     */
+    public long getStartOffset() {
+        return startOffset;
+    }
+
+    /**
+     * 次に追加される記録のオフセット（これまでに追加された記録の通算バイト数）を返します。
+     * @return 終端オフセット
+     */
+    public long getEndOffset() {
+        return endOffset;
+    }
+
+    /**
+     * 現在保持している記録のバイト数を返します。
+     * @return 保持しているバイト数
+     */
+    public long getRetainedBytes() {
+        return endOffset - startOffset;
+    }
+
+    private long recordLength(long position) {
+        byte[] header = read(position, HEADER_BYTES);
+        return (long) HEADER_BYTES + getInt(header, 1) + Math.max(0, getInt(header, 5));
+    }
+
+    private void write(long offset, byte[] bytes) {
+        int position = (int) (offset % buffer.length);
+        int first = Math.min(bytes.length, buffer.length - position);
+        System.arraycopy(bytes, 0, buffer, position, first);
+        System.arraycopy(bytes, first, buffer, 0, bytes.length - first);
+    }
+
+    private byte[] read(long offset, int length) {
+        byte[] bytes = new byte[length];
+        if (length == 0) {
+            return bytes;
+        }
+        int position = (int) (offset % buffer.length);
+        int first = Math.min(length, buffer.length - position);
+        System.arraycopy(buffer, position, bytes, 0, first);
+        System.arraycopy(buffer, 0, bytes, first, length - first);
+        return bytes;
+    }
+
+    private static void putInt(byte[] bytes, int index, int value) {
+        bytes[index] = (byte) (value >>> 24);
+        bytes[index + 1] = (byte) (value >>> 16);
+        bytes[index + 2] = (byte) (value >>> 8);
+        bytes[index + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] bytes, int index) {
+        return (bytes[index] << 24) | ((bytes[index + 1] & 0xff) << 16) | ((bytes[index + 2] & 0xff) << 8) | (bytes[index + 3] & 0xff);
+    }
+}
@@ -0,0 +1,33 @@
+package tech.nagatani.dev.websocket;
+
+/**
+ * セッションごとの送信キュー（{@link OutputAggregator}）がバイト数の上限に達したときの動作を表す列挙型。
+ * クライアント（ブラウザ）の受信がプログラムの出力速度に追いつかない場合に適用されます。
+ */
+public enum OverflowPolicy {
+    /**
+     * キューに空きができるまで出力の追加を待機させます。読み取りスレッドが子プロセスのパイプを読まなくなるため、
+     * パイプが一杯になった時点で子プロセスの書き込みもブロックされ、プログラムが一時停止します。出力は失われません。既定の動作です。
+     */
+    PAUSE,
+    /** キュー内の最も古い出力を破棄して新しい出力を追加し、破棄したことを示すマーカーをクライアントに送信します。 */
+    DROP_OLDEST,
+    /** キュー内の出力を破棄し、プログラムの実行を終了させます。 */
+    TERMINATE;
+
+    /**
+     * 設定値などの文字列からポリシーを解析します。大文字・小文字およびハイフンの違いは無視されます。
+     * @param value 解析する文字列（例: "pause", "drop-oldest", "terminate"）
+     * @return 対応するポリシー。nullまたは不明な値の場合は {@link #PAUSE}。
+     */
+    public static OverflowPolicy fromString(String value) {
+        if (value != null) {
+            for (OverflowPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(value.trim().replace('-', '_'))) {
+                    return policy;
+                }
+            }
+        }
+        return PAUSE;
+    }
+}
@@ -0,0 +1,267 @@
+package tech.nagatani.dev.worker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import tech.nagatani.dev.metrics.PipelineMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 子JVM用のAppCDS（動的CDS）アーカイブを作成・管理するコンポーネント。
+ * サーバー起動後にバックグラウンドで {@link CdsTrainingProgram} を {@code -XX:ArchiveClassesAtExit} 付きで実行し、
+ * 典型的なユーザープログラムがロードするJDKクラスをアーカイブします。作成したアーカイブは {@link ChildJvmLauncher} に設定され、
+ * CDSを使用する起動プロファイル（{@link LaunchProfile#FAST_START}）の子JVMに {@code -XX:SharedArchiveFile} として渡されます。
+ * アーカイブのファイル名にはJDKとブートストラップJARの識別子を含めるため、JDKが変わると自動的に再作成されます。
+ * 作成後には、アーカイブの有無による子JVMの起動時間を計測し、ログに出力するとともに
+ * ゲージ（{@code worker.cds.startup}）と {@code /api/stats} で公開します。
+ */
+@Component
+public class CdsArchiveManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CdsArchiveManager.class);
+
+    private static final int STARTUP_SAMPLES = 3; // 起動時間の計測回数
+    private static final long TRAINING_TIMEOUT_SECONDS = 60; // 学習用プログラムの実行タイムアウト
+
+    private final ChildJvmLauncher launcher; // 子JVMの起動コマンドを組み立てるランチャー
+    private final boolean enabled; // CDSアーカイブを作成・使用するかどうか
+    private volatile long startupMillisWithoutArchive = -1; // アーカイブなしの平均起動時間（未計測の場合は-1）
+    private volatile long startupMillisWithArchive = -1; // アーカイブありの平均起動時間（未計測の場合は-1）
+
+    /**
+     * CDSアーカイブマネージャを構築します。
+     * @param launcher 子JVMの起動コマンドを組み立てるランチャー
+     * @param metrics 起動時間のゲージの登録先
+     * @param enabled CDSアーカイブを作成・使用するかどうか（{@code execution.cds.enabled}）
+     */
+    public CdsArchiveManager(ChildJvmLauncher launcher, PipelineMetrics metrics, @Value("${execution.cds.enabled:true}") boolean enabled) {
+        this.launcher = launcher;
+        this.enabled = enabled;
+        metrics.gauge("worker.cds.startup.without-archive", "CDSアーカイブなしで起動した子JVMの平均起動時間（ミリ秒、未計測の場合はNaN）",
+            () -> startupMillisWithoutArchive >= 0 ? startupMillisWithoutArchive : Double.NaN);
+        metrics.gauge("worker.cds.startup.with-archive", "CDSアーカイブありで起動した子JVMの平均起動時間（ミリ秒、未計測の場合はNaN）",
+            () -> startupMillisWithArchive >= 0 ? startupMillisWithArchive : Double.NaN);
+    }
+
+    /**
+     * アプリケーションの起動完了後に、バックグラウンドでアーカイブを用意します。
+     * 現在のJDK用のアーカイブが既に存在する場合は再利用し、なければ作成します。
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void prepareArchiveInBackground() {
+        if (!enabled || launcher.getBootstrapJar() == null) {
+            return;
+        }
+        Thread thread = new Thread(this::prepareArchive, "cds-archive-builder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * アーカイブなしで起動した子JVMの平均起動時間（学習用プログラムの開始から終了まで）を返します。
+     * @return 平均起動時間（ミリ秒）。未計測の場合は-1。
+     */
+    public long getStartupMillisWithoutArchive() {
+        return startupMillisWithoutArchive;
+    }
+
+    /**
+     * アーカイブありで起動した子JVMの平均起動時間（学習用プログラムの開始から終了まで）を返します。
+     * @return 平均起動時間（ミリ秒）。未計測の場合は-1。
+     */
+    public long getStartupMillisWithArchive() {
+        return startupMillisWithArchive;
+    }
+
+    /**
+     * CDSアーカイブの状態と、アーカイブの有無による子JVMの起動時間を返します。
+     * @return 項目名 → 値
+     */
+    public Map<String, Object> getStats() {
+        Path archive = launcher.getCdsArchive();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("archive", archive != null ? archive.toString() : null);
+        stats.put("startupMillisWithoutArchive", startupMillisWithoutArchive);
+        stats.put("startupMillisWithArchive", startupMillisWithArchive);
+        return stats;
+    }
+
+    /**
+     * アーカイブを用意してランチャーに設定し、起動時間を計測します。
+     */
+    private void prepareArchive() {
+        Path archive = launcher.getWorkDirectory().resolve("app-" + archiveFingerprint() + ".jsa");
+        try {
+            if (Files.exists(archive)) {
+                LOG.info("既存のCDSアーカイブを使用します: {}", archive);
+            } else {
+                deleteStaleArchives(archive);
+                long startNanos = System.nanoTime();
+                if (!buildArchive(archive)) {
+                    LOG.warn("CDSアーカイブを作成できませんでした。子JVMはアーカイブなしで起動されます。");
+                    return;
+                }
+                LOG.info("CDSアーカイブを作成しました: {} ({}ms)", archive, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+            }
+            launcher.setCdsArchive(archive);
+            measureStartup(archive);
+            LOG.info("子JVMの起動時間 ({}): CDSアーカイブなし {}ms, CDSアーカイブあり {}ms",
+                LaunchProfile.FAST_START, startupMillisWithoutArchive, startupMillisWithArchive);
+        } catch (IOException e) {
+            LOG.warn("CDSアーカイブの準備に失敗しました - {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 学習用プログラムを {@code -XX:ArchiveClassesAtExit} 付きで実行し、アーカイブを作成します。
+     * 作成中のアーカイブが使われないよう、一時ファイルに書き出してから移動します。
+     * @param archive 作成するアーカイブのパス
+     * @return 作成に成功した場合はtrue
+     * @throws IOException プロセスの起動またはファイル操作に失敗した場合
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    private boolean buildArchive(Path archive) throws IOException, InterruptedException {
+        Path temp = archive.resolveSibling(archive.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        List<String> command = trainingCommand(null);
+        command.add(command.size() - 3, "-XX:ArchiveClassesAtExit=" + temp); // "-cp" の前に挿入
+
+        if (runTrainingProgram(command) != 0 || !Files.exists(temp)) {
+            Files.deleteIfExists(temp);
+            return false;
+        }
+        Files.move(temp, archive, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * {@link LaunchProfile#FAST_START} のフラグで学習用プログラムをアーカイブなし・ありで交互に数回実行し、
+     * それぞれの平均所要時間を計測します。ディスクキャッシュなどの影響を揃えるため、最初の1回ずつは計測から除外します。
+     * @param archive 比較に使用するCDSアーカイブ
+     * @throws IOException プロセスの起動に失敗した場合
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    private void measureStartup(Path archive) throws IOException, InterruptedException {
+        List<String> withoutArchive = trainingCommand(null);
+        List<String> withArchive = trainingCommand(archive);
+        runTrainingProgram(withoutArchive);
+        runTrainingProgram(withArchive);
+
+        long totalWithout = 0;
+        long totalWith = 0;
+        for (int i = 0; i < STARTUP_SAMPLES; i++) {
+            long startNanos = System.nanoTime();
+            runTrainingProgram(withoutArchive);
+            totalWithout += System.nanoTime() - startNanos;
+            startNanos = System.nanoTime();
+            runTrainingProgram(withArchive);
+            totalWith += System.nanoTime() - startNanos;
+        }
+        startupMillisWithoutArchive = TimeUnit.NANOSECONDS.toMillis(totalWithout / STARTUP_SAMPLES);
+        startupMillisWithArchive = TimeUnit.NANOSECONDS.toMillis(totalWith / STARTUP_SAMPLES);
+    }
+
+    /**
+     * 学習用プログラムを {@link LaunchProfile#FAST_START} のフラグで実行するコマンドを組み立てます。
+     * @param archive 使用するCDSアーカイブ。nullの場合はアーカイブなし。
+     * @return 起動コマンド
+     */
+    private List<String> trainingCommand(Path archive) {
+        List<String> command = new ArrayList<>();
+        command.add(launcher.getJavaExecutable());
+        command.addAll(LaunchProfile.FAST_START.getJvmFlags());
+        if (archive != null) {
+            command.add("-XX:SharedArchiveFile=" + archive);
+        }
+        command.add("-cp");
+        command.add(launcher.getBootstrapJar().toString());
+        command.add(WorkerBootstrap.class.getName());
+        return command;
+    }
+
+    /**
+     * 指定されたコマンドでワーカーを起動し、学習用プログラムのペイロードと入力を送って終了を待ちます。
+     * @param command 起動コマンド
+     * @return 終了コード。タイムアウトした場合は-1。
+     * @throws IOException プロセスの起動に失敗した場合
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    private int runTrainingProgram(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        try (OutputStream stdin = process.getOutputStream()) {
+            WorkerBootstrap.writePayload(stdin, CdsTrainingProgram.class.getName(), loadTrainingClasses());
+            stdin.write("training\n".getBytes(StandardCharsets.UTF_8));
+        }
+        if (!process.waitFor(TRAINING_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+            return -1;
+        }
+        return process.exitValue();
+    }
+
+    /**
+     * 学習用プログラムのクラスファイルをサーバーのクラスパスから読み込みます。
+     * @return バイナリクラス名 → クラスファイルのバイト列
+     * @throws IOException 読み込みに失敗した場合
+     */
+    private Map<String, byte[]> loadTrainingClasses() throws IOException {
+        String name = CdsTrainingProgram.class.getName();
+        try (InputStream in = CdsArchiveManager.class.getClassLoader().getResourceAsStream(name.replace('.', '/') + ".class")) {
+            if (in == null) {
+                throw new IOException("学習用プログラムのクラスファイルが見つかりません: " + name);
+            }
+            return Collections.singletonMap(name, in.readAllBytes());
+        }
+    }
+
+    /**
+     * 古いJDKや古いブートストラップJAR用に作成されたアーカイブを削除します。
+     * @param current 現在使用するアーカイブのパス（削除しない）
+     */
+    private void deleteStaleArchives(Path current) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(current.getParent(), "app-*.jsa*")) {
+            for (Path stale : stream) {
+                if (!stale.equals(current)) {
+                    Files.deleteIfExists(stale);
+                    LOG.info("古いCDSアーカイブを削除しました: {}", stale);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("古いCDSアーカイブの削除に失敗しました - {}", e.getMessage());
+        }
+    }
+
+    /**
+     * JDK（パスとバージョン）とブートストラップJARを識別するフィンガープリントを計算します。
+     * いずれかが変わるとアーカイブは再作成されます。
+     * @return フィンガープリント文字列
+     */
+    private String archiveFingerprint() {
+        String identity = System.getProperty("java.home") + "|" + System.getProperty("java.vm.version")
+            + "|" + System.getProperty("java.runtime.version") + "|" + launcher.getBootstrapJar().getFileName();
+        return ChildJvmLauncher.sha256(identity.getBytes(StandardCharsets.UTF_8)).substring(0, 16);
+    }
+}
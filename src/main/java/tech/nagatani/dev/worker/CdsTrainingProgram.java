@@ -0,0 +1,41 @@
+package tech.nagatani.dev.worker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+/**
+ * CDSアーカイブ作成時に子JVMで実行される学習用プログラム。
+ * {@code testprograms.InteractiveTest} と同様に、典型的なユーザープログラムが使用するJDKクラス
+ * （Scanner による標準入力の読み取り、文字列の連結と書式化、コレクション、例外処理など）をロードさせます。
+ * このクラスは {@link WorkerBootstrap} 経由でペイロードとして送信され、ユーザープログラムと同じ経路で実行されます。
+ */
+public class CdsTrainingProgram {
+
+    public static void main(String[] args) {
+        @SuppressWarnings("resource") // System.in を閉じないため
+        Scanner scanner = new Scanner(System.in);
+        System.out.println("SERVER_MSG: Interactive Test Program Started.");
+        System.out.print("SERVER_MSG: Please enter your name: ");
+        String name = scanner.hasNextLine() ? scanner.nextLine() : "";
+        System.out.println("SERVER_MSG: Hello, " + name + "!");
+
+        List<Integer> numbers = new ArrayList<>();
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            numbers.add(i * i);
+            counts.merge("key" + (i % 7), 1, Integer::sum);
+        }
+        StringBuilder builder = new StringBuilder();
+        numbers.stream().filter(n -> n % 2 == 0).limit(5).forEach(n -> builder.append(n).append(' '));
+        System.out.println(String.format("%s %.2f %d %s", builder.toString().trim(), Math.sqrt(2), counts.size(), counts));
+        try {
+            Integer.parseInt(name.isEmpty() ? "x" : name);
+        } catch (NumberFormatException e) {
+            System.err.println("SERVER_MSG: " + e.getMessage());
+        }
+        System.out.printf("SERVER_MSG: Program finished.%n");
+    }
+}
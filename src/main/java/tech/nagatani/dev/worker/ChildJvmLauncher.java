@@ -0,0 +1,277 @@
+package tech.nagatani.dev.worker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * ユーザープログラムを実行する子JVMの起動コマンドを組み立てるコンポーネント。
+ * すべての子JVMは、サーバーと同じJDKの {@code java} コマンド、起動プロファイルごとのJVMフラグ、
+ * {@link ResourceLimits} によるヒープなどの上限、UTF-8に固定した標準出力・標準エラー出力、
+ * および先頭に {@link WorkerBootstrap} のJARを置いたクラスパスで起動されます。
+ * ブートストラップJARは作業ディレクトリ内の内容ハッシュを含む固定パスに置かれるため、
+ * サーバーを再起動してもパスと更新日時が変わらず、CDSアーカイブのクラスパス検証に適合し続けます。
+ * ユーザーコードを実行する子JVMは {@link #start} で起動し、cgroup v2 が利用可能な場合は起動時点でcgroupに入れます。
+ */
+@Component
+public class ChildJvmLauncher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChildJvmLauncher.class);
+
+    // ブートストラップJARに格納するクラス
+    private static final Class<?>[] BOOTSTRAP_CLASSES = { WorkerBootstrap.class, WorkerBootstrap.MemoryClassLoader.class };
+    // 子JVMの標準出力・標準エラー出力の文字セットをUTF-8に固定するフラグ（サーバー側はUTF-8としてデコードするため）
+    private static final List<String> OUTPUT_ENCODING_FLAGS = List.of("-Dstdout.encoding=UTF-8", "-Dstderr.encoding=UTF-8");
+
+    private final String javaExecutable; // 子JVMの起動に使用するjavaコマンド（サーバーと同じJDK）
+    private final Path workDirectory; // ブートストラップJARやCDSアーカイブを置く作業ディレクトリ
+    private final LaunchProfile defaultProfile; // 実行要求で指定がない場合の起動プロファイル
+    private final ResourceLimits resourceLimits; // 子JVMに適用するリソースの上限
+    private final Path bootstrapJar; // WorkerBootstrapを格納したJARのパス（作成に失敗した場合はnull）
+    private volatile Path cdsArchive; // 使用可能なCDSアーカイブのパス（未作成の場合はnull）
+
+    /**
+     * ランチャーを構築し、ブートストラップJARを用意します。
+     * @param workDirectory 作業ディレクトリ（{@code execution.launcher.work-dir}）。空の場合は一時ディレクトリ配下を使用します。
+     * @param defaultProfile 既定の起動プロファイル（{@code execution.launch-profile}）
+     * @param resourceLimits 子JVMに適用するリソースの上限
+     */
+    public ChildJvmLauncher(@Value("${execution.launcher.work-dir:}") String workDirectory,
+                            @Value("${execution.launch-profile:fast-start}") String defaultProfile,
+                            ResourceLimits resourceLimits) {
+        this.javaExecutable = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        this.workDirectory = workDirectory.isEmpty()
+            ? Paths.get(System.getProperty("java.io.tmpdir"), "javacompiler-launcher")
+            : Paths.get(workDirectory);
+        LaunchProfile profile = LaunchProfile.fromString(defaultProfile);
+        this.defaultProfile = profile != null ? profile : LaunchProfile.STANDARD;
+        this.resourceLimits = resourceLimits;
+
+        Path jar = null;
+        try {
+            jar = createBootstrapJar();
+        } catch (IOException e) {
+            LOG.warn("ワーカーのブートストラップJARを作成できませんでした: {}", e.getMessage());
+        }
+        this.bootstrapJar = jar;
+    }
+
+    /**
+     * 起動した子JVMと、それが属するcgroup。
+     */
+    public static class ChildJvm {
+        private final Process process; // 子JVMのプロセス
+        private final ResourceLimits.Cgroup cgroup; // 子JVMが起動時に入ったcgroup（使用しない場合はnull）
+
+        ChildJvm(Process process, ResourceLimits.Cgroup cgroup) {
+            this.process = process;
+            this.cgroup = cgroup;
+        }
+
+        /**
+         * 子JVMのプロセスを返します。
+         * @return プロセス
+         */
+        public Process getProcess() {
+            return process;
+        }
+
+        /**
+         * 子JVMが属するcgroupを返します。
+         * @return cgroup。cgroupを使用しない場合はnull。
+         */
+        public ResourceLimits.Cgroup getCgroup() {
+            return cgroup;
+        }
+
+        /**
+         * 子JVMを強制終了し、終了後にcgroupを削除します（プールから破棄する場合などに使用）。
+         */
+        public void discard() {
+            process.destroyForcibly();
+            if (cgroup != null) {
+                process.onExit().thenRun(cgroup::release);
+            }
+        }
+    }
+
+    /**
+     * 子JVMを起動します。cgroup v2 が利用可能な場合は、指定された名前のcgroupを作成し、
+     * JVMを exec する前にそのcgroupに入れるため、ユーザーコードが動き始める前からリソースの上限が適用されます。
+     * @param profile 起動プロファイル。nullの場合は既定のプロファイルを使用します。
+     * @param additionalClasspath ブートストラップJARの後ろに追加するクラスパス要素（空でも可）
+     * @param mainClass 子JVMのメインクラス名
+     * @param cgroupName 作成するcgroupの名前（実行IDなど）
+     * @return 起動した子JVM
+     * @throws IOException プロセスの起動に失敗した場合
+     */
+    public ChildJvm start(LaunchProfile profile, List<String> additionalClasspath, String mainClass, String cgroupName) throws IOException {
+        List<String> command = buildCommand(profile, additionalClasspath, mainClass);
+        ResourceLimits.Cgroup cgroup = resourceLimits.createCgroup(cgroupName);
+        try {
+            Process process = new ProcessBuilder(cgroup != null ? cgroup.wrapCommand(command) : command).start();
+            return new ChildJvm(process, cgroup);
+        } catch (IOException | RuntimeException e) {
+            if (cgroup != null) {
+                cgroup.release();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 子JVMの起動コマンドを組み立てます。
+     * @param profile 起動プロファイル。nullの場合は既定のプロファイルを使用します。
+     * @param additionalClasspath ブートストラップJARの後ろに追加するクラスパス要素（空でも可）
+     * @param mainClass 子JVMのメインクラス名
+     * @return {@link ProcessBuilder} に渡すコマンドのリスト
+     */
+    public List<String> buildCommand(LaunchProfile profile, List<String> additionalClasspath, String mainClass) {
+        LaunchProfile effectiveProfile = profile != null ? profile : defaultProfile;
+        List<String> command = new ArrayList<>();
+        command.add(javaExecutable);
+        command.addAll(effectiveProfile.getJvmFlags());
+        command.addAll(resourceLimits.getJvmFlags()); // プロファイルのフラグより後に置き、同じフラグがあれば上書きする
+        command.addAll(OUTPUT_ENCODING_FLAGS);
+        Path archive = cdsArchive;
+        if (effectiveProfile.usesCdsArchive() && archive != null) {
+            command.add("-XX:SharedArchiveFile=" + archive);
+        }
+        // CDSアーカイブの作成時と同じクラスパスが先頭になるよう、ブートストラップJARを常に先頭に置く
+        List<String> classpath = new ArrayList<>();
+        if (bootstrapJar != null) {
+            classpath.add(bootstrapJar.toString());
+        }
+        classpath.addAll(additionalClasspath);
+        command.add("-cp");
+        command.add(String.join(File.pathSeparator, classpath));
+        command.add(mainClass);
+        return command;
+    }
+
+    /**
+     * 子JVMの起動に使用するjavaコマンドのパスを返します。
+     * @return javaコマンドのパス
+     */
+    public String getJavaExecutable() {
+        return javaExecutable;
+    }
+
+    /**
+     * ブートストラップJARのパスを返します。
+     * @return ブートストラップJARのパス。作成に失敗した場合はnull。
+     */
+    public Path getBootstrapJar() {
+        return bootstrapJar;
+    }
+
+    /**
+     * 作業ディレクトリのパスを返します。
+     * @return 作業ディレクトリ
+     */
+    public Path getWorkDirectory() {
+        return workDirectory;
+    }
+
+    /**
+     * 実行要求で指定がない場合に使用される起動プロファイルを返します。
+     * @return 既定の起動プロファイル
+     */
+    public LaunchProfile getDefaultProfile() {
+        return defaultProfile;
+    }
+
+    /**
+     * 以降の起動で使用するCDSアーカイブを設定します。
+     * @param archive CDSアーカイブのパス。nullの場合はアーカイブを使用しません。
+     */
+    public void setCdsArchive(Path archive) {
+        this.cdsArchive = archive;
+    }
+
+    /**
+     * 現在使用しているCDSアーカイブのパスを返します。
+     * @return CDSアーカイブのパス。未作成の場合はnull。
+     */
+    public Path getCdsArchive() {
+        return cdsArchive;
+    }
+
+    /**
+     * {@link WorkerBootstrap} とその内部クラスを作業ディレクトリ内のJARに書き出します。
+     * サーバーが実行可能JAR（Spring Bootのfat jar）として起動されている場合でも、
+     * 子JVMのクラスパスに指定できる独立したJARが必要になるためです。
+     * ファイル名に内容のハッシュを含め、同じ内容のJARが既に存在する場合は書き換えません。
+     * @return JARのパス
+     * @throws IOException JARの作成に失敗した場合
+     */
+    private Path createBootstrapJar() throws IOException {
+        ByteArrayOutputStream jarBytes = new ByteArrayOutputStream();
+        try (JarOutputStream out = new JarOutputStream(jarBytes)) {
+            for (Class<?> clazz : BOOTSTRAP_CLASSES) {
+                String entryName = clazz.getName().replace('.', '/') + ".class";
+                try (InputStream in = ChildJvmLauncher.class.getClassLoader().getResourceAsStream(entryName)) {
+                    if (in == null) {
+                        throw new IOException("クラスファイルが見つかりません: " + entryName);
+                    }
+                    JarEntry entry = new JarEntry(entryName);
+                    entry.setTime(0); // 内容が同じなら同じバイト列になるよう、タイムスタンプを固定
+                    out.putNextEntry(entry);
+                    in.transferTo(out);
+                    out.closeEntry();
+                }
+            }
+        }
+        byte[] bytes = jarBytes.toByteArray();
+        Files.createDirectories(workDirectory);
+        Path jar = workDirectory.resolve("worker-bootstrap-" + sha256(bytes).substring(0, 16) + ".jar");
+        if (!Files.exists(jar)) {
+            // 書きかけのJARが使われないよう、一時ファイルに書いてから移動する
+            Path temp = Files.createTempFile(workDirectory, "worker-bootstrap-", ".tmp");
+            try {
+                Files.write(temp, bytes);
+                Files.move(temp, jar, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // 作業ディレクトリを共有する別のサーバーが先に作成した（ファイル名のハッシュが同じなので内容も同じ）
+                LOG.debug("ブートストラップJAR {} は別のプロセスが作成済みのため、それを使用します。", jar);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        return jar;
+    }
+
+    /**
+     * バイト列のSHA-256ハッシュを16進数文字列で返します。
+     * @param bytes 対象のバイト列
+     * @return 16進数表記のハッシュ
+     */
+    static String sha256(byte[] bytes) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 が利用できません", e);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package tech.nagatani.dev.worker;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 子JVM（ユーザープログラムの実行用）の起動プロファイル。
+ * 実行要求ごとに選択でき、JVMフラグとCDSアーカイブの使用有無を決定します。
+ */
+public enum LaunchProfile {
+    /** 追加のJVMフラグを指定しない標準の起動（比較用のベースライン）。 */
+    STANDARD(false),
+    /**
+     * 短命なJVM向けに調整された起動。C1コンパイラのみ・SerialGC・パフォーマンスデータ無効化に加え、
+     * 利用可能であればAppCDSアーカイブを使用してJDKクラスのロードと検証を省略します。
+     */
+    FAST_START(true, "-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC", "-XX:-UsePerfData", "-Xshare:auto");
+
+    private final boolean usesCdsArchive; // CDSアーカイブを使用するかどうか
+    private final List<String> jvmFlags; // このプロファイルで追加するJVMフラグ
+
+    LaunchProfile(boolean usesCdsArchive, String... jvmFlags) {
+        this.usesCdsArchive = usesCdsArchive;
+        this.jvmFlags = Collections.unmodifiableList(Arrays.asList(jvmFlags));
+    }
+
+    /**
+     * このプロファイルがCDSアーカイブを使用するかどうかを返します。
+     * @return 使用する場合はtrue
+     */
+    public boolean usesCdsArchive() {
+        return usesCdsArchive;
+    }
+
+    /**
+     * このプロファイルで追加するJVMフラグを返します（CDSアーカイブの指定は含みません）。
+     * @return 変更不可のJVMフラグのリスト
+     */
+    public List<String> getJvmFlags() {
+        return jvmFlags;
+    }
+
+    /**
+     * リクエストパラメータや設定値の文字列から起動プロファイルを解析します。大文字・小文字およびハイフンの違いは無視されます。
+     * @param value 解析する文字列（例: "standard", "fast-start"）
+     * @return 対応する起動プロファイル。nullまたは不明な値の場合はnull。
+     */
+    public static LaunchProfile fromString(String value) {
+        if (value != null) {
+            for (LaunchProfile profile : values()) {
+                if (profile.name().equalsIgnoreCase(value.trim().replace('-', '_'))) {
+                    return profile;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,330 @@
+package tech.nagatani.dev.worker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import tech.nagatani.dev.RateLimitedLogger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ユーザープログラムの1回の実行に適用されるリソースの上限。
+ * <ul>
+ *   <li>ヒープサイズは子JVMのフラグ（{@code -Xmx}）で制限します。事前起動ワーカーにも同じフラグが適用されます。</li>
+ *   <li>実行時間・CPU時間・スレッド数・出力バイト数は、サーバー側の監視（{@code ExecutionWatchdog}）で計測し、
+ *       上限を超えたプロセスを終了させます。</li>
+ *   <li>cgroup v2 が利用可能な場合は、実行ごとにcgroupを作成して memory.max・pids.max・cpu.max をカーネルに強制させます。
+ *       子JVMは起動時点で（{@code java} を exec する前に）cgroupに入るため、起動後に移動する場合と違い、
+ *       ユーザーコードが実行される前のメモリやスレッドも上限の対象になります。
+ *       利用できない環境では、フラグと監視だけで制限します。</li>
+ * </ul>
+ */
+@Component
+public class ResourceLimits {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResourceLimits.class);
+    // cgroupの作成と削除は実行ごとに行われるため、警告は件数を制限して出力する
+    private static final RateLimitedLogger RATE_LIMITED_LOG = new RateLimitedLogger(LOG, 20, 10, TimeUnit.SECONDS);
+
+    // cgroup v2 のマウントポイント
+    private static final Path CGROUP_MOUNT = Paths.get("/sys/fs/cgroup");
+    // 実行ごとのcgroupを作成する親cgroupの名前
+    private static final String CGROUP_PARENT_NAME = "javacompiler-executions";
+    // 子cgroupで有効にするコントローラ
+    private static final String[] CGROUP_CONTROLLERS = { "memory", "pids", "cpu" };
+
+    private final long wallClockMillis; // 実行時間（実時間）の上限
+    private final long cpuMillis; // CPU時間の上限
+    private final int maxHeapMb; // ヒープサイズの上限（-Xmx）
+    private final int maxThreads; // スレッド数の上限（JVM自身のスレッドを含む）
+    private final long maxOutputBytes; // 出力バイト数の上限
+    private final int memoryMb; // cgroup の memory.max（ヒープ以外のメモリを含むプロセス全体）
+    private final int cpuQuotaPercent; // cgroup の cpu.max（1コアに対する割合）
+    private final Path cgroupParent; // 実行ごとのcgroupを作成する親cgroup（cgroup v2 が利用できない場合はnull）
+
+    /**
+     * 1つの実行のために作成されたcgroup。
+     */
+    public static class Cgroup {
+        private final Path directory; // cgroupのディレクトリ
+
+        Cgroup(Path directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * 起動コマンドを、シェル自身をこのcgroupに移動してから元のコマンドを exec するコマンドで包みます。
+         * exec の前に移動するため、JVMが確保するメモリや作成するスレッドは最初からこのcgroupに属します。
+         * 移動に失敗した場合は元のコマンドを実行せずに終了します。
+         * @param command 元の起動コマンド
+         * @return cgroupに入ってから元のコマンドを実行するコマンド
+         */
+        public List<String> wrapCommand(List<String> command) {
+            List<String> wrapped = new ArrayList<>();
+            wrapped.add("/bin/sh");
+            wrapped.add("-c");
+            // $0 に cgroup.procs のパス、$@ に元のコマンドを渡すため、パスや引数の引用符を組み立てる必要がない
+            wrapped.add("echo $$ > \"$0\" || { echo 'エラー: 実行用のcgroupに移動できませんでした' >&2; exit 125; }; exec \"$@\"");
+            wrapped.add(directory.resolve("cgroup.procs").toString());
+            wrapped.addAll(command);
+            return wrapped;
+        }
+
+        /**
+         * このcgroup内のプロセスがメモリの上限によって強制終了されたかどうかを返します（memory.events の oom_kill）。
+         * @return 強制終了された場合はtrue
+         */
+        public boolean wasOomKilled() {
+            return readEventCount("memory.events", "oom_kill") > 0;
+        }
+
+        /**
+         * このcgroup内でスレッド（タスク）の作成が上限によって拒否されたかどうかを返します（pids.events の max）。
+         * @return 拒否された場合はtrue
+         */
+        public boolean hitThreadLimit() {
+            return readEventCount("pids.events", "max") > 0;
+        }
+
+        /**
+         * cgroupを削除します。プロセスの終了後に呼び出してください。
+         */
+        public void release() {
+            try {
+                Files.deleteIfExists(directory);
+            } catch (IOException e) {
+                RATE_LIMITED_LOG.warn("cgroup {} を削除できませんでした: {}", directory, e.getMessage());
+            }
+        }
+
+        private long readEventCount(String file, String key) {
+            try {
+                for (String line : Files.readAllLines(directory.resolve(file), StandardCharsets.UTF_8)) {
+                    String[] fields = line.trim().split("\\s+");
+                    if (fields.length == 2 && fields[0].equals(key)) {
+                        return Long.parseLong(fields[1]);
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // 読み取れない場合は発生しなかったものとして扱う
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * リソースの上限を構築し、cgroup v2 が利用できるかどうかを確認します。
+     * @param wallClockMillis 実行時間の上限（{@code execution.limits.wall-clock-ms}）。0以下の場合は無制限。
+     * @param cpuMillis CPU時間の上限（{@code execution.limits.cpu-ms}）。0以下の場合は無制限。
+     * @param maxHeapMb ヒープサイズの上限（{@code execution.limits.max-heap-mb}）。0以下の場合はJVMの既定値。
+     * @param maxThreads スレッド数の上限（{@code execution.limits.max-threads}）。0以下の場合は無制限。
+     * @param maxOutputBytes 出力バイト数の上限（{@code execution.limits.max-output-bytes}）。0以下の場合は無制限。
+     * @param memoryMb cgroup のメモリの上限（{@code execution.limits.cgroup.memory-mb}）。0以下の場合はヒープの上限から決定。
+     * @param cpuQuotaPercent cgroup のCPU使用率の上限（{@code execution.limits.cgroup.cpu-quota-percent}）。0以下の場合は無制限。
+     * @param cgroupEnabled cgroup v2 を使用するかどうか（{@code execution.limits.cgroup.enabled}）
+     * @param cgroupRoot 親cgroupを作成するディレクトリ（{@code execution.limits.cgroup.root}）。空の場合はサーバー自身のcgroup。
+     */
+    public ResourceLimits(@Value("${execution.limits.wall-clock-ms:300000}") long wallClockMillis,
+                          @Value("${execution.limits.cpu-ms:10000}") long cpuMillis,
+                          @Value("${execution.limits.max-heap-mb:256}") int maxHeapMb,
+                          @Value("${execution.limits.max-threads:64}") int maxThreads,
+                          @Value("${execution.limits.max-output-bytes:10485760}") long maxOutputBytes,
+                          @Value("${execution.limits.cgroup.memory-mb:0}") int memoryMb,
+                          @Value("${execution.limits.cgroup.cpu-quota-percent:100}") int cpuQuotaPercent,
+                          @Value("${execution.limits.cgroup.enabled:true}") boolean cgroupEnabled,
+                          @Value("${execution.limits.cgroup.root:}") String cgroupRoot) {
+        this.wallClockMillis = Math.max(0, wallClockMillis);
+        this.cpuMillis = Math.max(0, cpuMillis);
+        this.maxHeapMb = Math.max(0, maxHeapMb);
+        this.maxThreads = Math.max(0, maxThreads);
+        this.maxOutputBytes = Math.max(0, maxOutputBytes);
+        // ヒープ以外（メタスペース、スレッドスタック、コードキャッシュなど）の分を上乗せする
+        this.memoryMb = memoryMb > 0 ? memoryMb : (this.maxHeapMb > 0 ? this.maxHeapMb * 2 + 64 : 0);
+        this.cpuQuotaPercent = Math.max(0, cpuQuotaPercent);
+        this.cgroupParent = cgroupEnabled ? prepareCgroupParent(cgroupRoot) : null;
+        LOG.info("実行リソースの上限: 実時間 {}ms, CPU {}ms, ヒープ {}MB, スレッド {}, 出力 {} バイト, cgroup: {}",
+            this.wallClockMillis, this.cpuMillis, this.maxHeapMb, this.maxThreads, this.maxOutputBytes,
+            cgroupParent != null ? cgroupParent : "使用しない");
+    }
+
+    /**
+     * 子JVMに追加するリソース制限のフラグを返します。
+     * @return JVMフラグのリスト
+     */
+    public List<String> getJvmFlags() {
+        if (maxHeapMb <= 0) {
+            return Collections.emptyList();
+        }
+        List<String> flags = new ArrayList<>();
+        flags.add("-Xmx" + maxHeapMb + "m");
+        return flags;
+    }
+
+    /**
+     * 1つの子JVMのためのcgroupを作成し、上限を設定します。
+     * プロセスは {@link Cgroup#wrapCommand(List)} で包んだコマンドで起動することで、起動時にこのcgroupに入ります。
+     * @param name cgroupの名前（実行IDなど）
+     * @return 作成したcgroup。cgroup v2 が利用できない場合や作成に失敗した場合はnull。
+     */
+    public Cgroup createCgroup(String name) {
+        if (cgroupParent == null) {
+            return null;
+        }
+        Path directory = cgroupParent.resolve(name.replaceAll("[^A-Za-z0-9_-]", "_"));
+        try {
+            Files.createDirectories(directory);
+            if (memoryMb > 0) {
+                write(directory.resolve("memory.max"), (long) memoryMb * 1024 * 1024 + "");
+                writeIfExists(directory.resolve("memory.swap.max"), "0"); // スワップに逃げて上限が効かなくなるのを防ぐ
+            }
+            if (maxThreads > 0) {
+                write(directory.resolve("pids.max"), String.valueOf(maxThreads));
+            }
+            if (cpuQuotaPercent > 0) {
+                long period = 100_000; // マイクロ秒
+                write(directory.resolve("cpu.max"), period * cpuQuotaPercent / 100 + " " + period);
+            }
+            return new Cgroup(directory);
+        } catch (IOException e) {
+            RATE_LIMITED_LOG.warn("{} のcgroupを設定できませんでした: {}", name, e.getMessage());
+            try {
+                Files.deleteIfExists(directory);
+            } catch (IOException ignored) {
+                // 削除できずに残った場合は、次回以降に同じ名前で作成するときに再利用される
+            }
+            return null;
+        }
+    }
+
+    /**
+     * cgroup v2 が利用可能であれば、実行ごとのcgroupを作成する親cgroupを用意します。
+     * @param cgroupRoot 設定された親ディレクトリ（空の場合はサーバー自身のcgroup）
+     * @return 親cgroupのパス。利用できない場合はnull。
+     */
+    private static Path prepareCgroupParent(String cgroupRoot) {
+        try {
+            if (!Files.exists(CGROUP_MOUNT.resolve("cgroup.controllers"))) {
+                return null; // cgroup v2（unified hierarchy）ではない
+            }
+            Path root = cgroupRoot.isEmpty() ? CGROUP_MOUNT.resolve(ownCgroupPath()) : Paths.get(cgroupRoot);
+            Path parent = root.resolve(CGROUP_PARENT_NAME);
+            // 親cgroupと、その上のcgroupで子に対するコントローラを有効にする。
+            // v2 ではプロセスを持つcgroupの子でコントローラを有効にできないため、root にはサーバーのプロセスがいない
+            // （またはルートcgroupである）必要がある。有効にできないコントローラは無視し、作成後に確認する。
+            enableControllers(root);
+            Files.createDirectories(parent);
+            enableControllers(parent);
+            String enabled = new String(Files.readAllBytes(parent.resolve("cgroup.subtree_control")), StandardCharsets.UTF_8);
+            if (!enabled.contains("memory") || !enabled.contains("pids")) {
+                LOG.warn("cgroup {} で memory/pids コントローラを有効にできないため、cgroupによる制限は使用しません。", parent);
+                return null;
+            }
+            return parent;
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("cgroup v2 を使用できません: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * サーバー自身が属するcgroupのパス（マウントポイントからの相対パス）を返します。
+     */
+    private static String ownCgroupPath() throws IOException {
+        for (String line : Files.readAllLines(Paths.get("/proc/self/cgroup"), StandardCharsets.UTF_8)) {
+            if (line.startsWith("0::")) {
+                return line.substring(3).replaceFirst("^/", "");
+            }
+        }
+        throw new IOException("/proc/self/cgroup に cgroup v2 のエントリがありません");
+    }
+
+    /**
+     * 指定されたcgroupの子で、利用可能なコントローラを有効にします（個別に試み、失敗は無視します）。
+     */
+    private static void enableControllers(Path cgroup) {
+        for (String controller : CGROUP_CONTROLLERS) {
+            try {
+                write(cgroup.resolve("cgroup.subtree_control"), "+" + controller);
+            } catch (IOException ignored) {
+                // 利用できないコントローラ（cpu が委譲されていない場合など）は使用しない
+            }
+        }
+    }
+
+    private static void write(Path file, String value) throws IOException {
+        Files.write(file, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeIfExists(Path file, String value) throws IOException {
+        if (Files.exists(file)) {
+            write(file, value);
+        }
+    }
+
+    /**
+     * 実行時間（実時間）の上限を返します。
+     * @return 上限（ミリ秒）。0の場合は無制限。
+     */
+    public long getWallClockMillis() {
+        return wallClockMillis;
+    }
+
+    /**
+     * CPU時間の上限を返します。
+     * @return 上限（ミリ秒）。0の場合は無制限。
+     */
+    public long getCpuMillis() {
+        return cpuMillis;
+    }
+
+    /**
+     * スレッド数の上限を返します（JVM自身のスレッドを含む）。
+     * @return 上限。0の場合は無制限。
+     */
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    /**
+     * 出力バイト数の上限を返します。
+     * @return 上限（バイト）。0の場合は無制限。
+     */
+    public long getMaxOutputBytes() {
+        return maxOutputBytes;
+    }
+
+    /**
+     * cgroup で強制するメモリの上限を返します。
+     * @return 上限（MB）。0の場合は無制限。
+     */
+    public int getMemoryMb() {
+        return memoryMb;
+    }
+
+    /**
+     * 設定されている上限を返します。
+     * @return 項目名 → 値のマップ
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("wallClockMillis", wallClockMillis);
+        map.put("cpuMillis", cpuMillis);
+        map.put("maxHeapMb", maxHeapMb);
+        map.put("maxThreads", maxThreads);
+        map.put("maxOutputBytes", maxOutputBytes);
+        map.put("cgroup", cgroupParent != null ? cgroupParent.toString() : null);
+        map.put("cgroupMemoryMb", cgroupParent != null ? memoryMb : null);
+        return map;
+    }
+}
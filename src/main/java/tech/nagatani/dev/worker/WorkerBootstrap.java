@@ -0,0 +1,141 @@
+package tech.nagatani.dev.worker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 事前起動されたワーカーJVM内で動作するブートストラップエージェント。
+ * このクラスはサーバーのクラスパスとは独立した小さなJARに格納され、子JVMのメインクラスとして起動されます。
+ * 起動後は標準入力からクラスファイルのペイロードを受け取るまで待機し（アイドル状態）、
+ * 受信したクラスを新しいクラスローダーで定義して {@code main} メソッドを実行します。
+ * ペイロードの後に続く標準入力、および標準出力・標準エラー出力はそのままユーザープログラムのものになるため、
+ * サーバー側は通常の子プロセスと同じ方法で入出力を中継できます。
+ * ワーカーは1回の実行で終了する使い捨てです。
+ *
+ * <p>このクラスはサーバー側のクラス（Springなど）に依存してはいけません。</p>
+ */
+public final class WorkerBootstrap {
+
+    /** ペイロードの先頭に置かれるマジックナンバー（"JDCW"）。 */
+    public static final int MAGIC = 0x4A444357;
+
+    private WorkerBootstrap() {
+    }
+
+    /**
+     * メモリ上のクラスファイルのバイト列からクラスを定義するクラスローダー。
+     * 親にはプラットフォームクラスローダーを使用し、ブートストラップ自身（やサーバー）のクラスはユーザーコードから見えないようにします。
+     * サーバー内でのインプロセス実行でも、実行ごとの分離されたクラスローダーとして使用されます。
+     */
+    public static final class MemoryClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classBytes; // バイナリクラス名 → クラスファイルのバイト列
+
+        /**
+         * 指定されたクラスファイルを定義するクラスローダーを構築します。
+         * @param classBytes バイナリクラス名 → バイト列の変更可能なマップ（定義済みのエントリは削除されます）
+         */
+        public MemoryClassLoader(Map<String, byte[]> classBytes) {
+            super(ClassLoader.getPlatformClassLoader());
+            this.classBytes = classBytes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classBytes.remove(name); // 定義後はバイト列を保持する必要がないため削除
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * ワーカーのエントリポイント。ペイロードを受信してユーザープログラムの {@code main} を実行します。
+     * ユーザープログラムが例外をスローした場合は、そのまま再スローして通常の {@code java} コマンドと同じ終了コードにします。
+     * @param args 使用しません
+     * @throws Throwable ユーザープログラムがスローした例外
+     */
+    public static void main(String[] args) throws Throwable {
+        preloadCommonClasses();
+
+        // ペイロードを読み取る。System.in を直接使うことで、ペイロード以降のバイトを先読みしないようにする。
+        DataInputStream in = new DataInputStream(System.in);
+        String mainClassName;
+        Map<String, byte[]> classBytes = new HashMap<>();
+        try {
+            if (in.readInt() != MAGIC) {
+                System.err.println("ワーカー: 不正なペイロードを受信しました。");
+                System.exit(2);
+                return;
+            }
+            mainClassName = in.readUTF();
+            int classCount = in.readInt();
+            for (int i = 0; i < classCount; i++) {
+                String name = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classBytes.put(name, bytes);
+            }
+        } catch (IOException e) {
+            // ペイロードを受け取る前にサーバー側がパイプを閉じた（プールの停止など）
+            System.exit(2);
+            return;
+        }
+
+        MemoryClassLoader loader = new MemoryClassLoader(classBytes);
+        Thread.currentThread().setContextClassLoader(loader);
+        Class<?> mainClass = Class.forName(mainClassName, true, loader);
+        Method mainMethod = mainClass.getMethod("main", String[].class);
+        mainMethod.setAccessible(true); // javaランチャーと同様に、非publicクラスのmainも実行できるようにする
+        try {
+            mainMethod.invoke(null, (Object) new String[0]);
+        } catch (InvocationTargetException e) {
+            throw e.getCause(); // ユーザープログラムの例外をそのままスロー（"Exception in thread main" と終了コード1）
+        }
+    }
+
+    /**
+     * ワーカーの標準入力にペイロード（メインクラス名とすべてのクラスファイル）を書き込みます（サーバー側で使用）。
+     * ストリームは閉じずにフラッシュのみ行うため、以降はユーザープログラムの標準入力として使用できます。
+     * @param stdin ワーカーの標準入力につながる出力ストリーム
+     * @param mainClassName 実行するメインクラスのバイナリ名
+     * @param classBytes バイナリクラス名 → クラスファイルのバイト列
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public static void writePayload(OutputStream stdin, String mainClassName, Map<String, byte[]> classBytes) throws IOException {
+        DataOutputStream out = new DataOutputStream(stdin);
+        out.writeInt(MAGIC);
+        out.writeUTF(mainClassName);
+        out.writeInt(classBytes.size());
+        for (Map.Entry<String, byte[]> entry : classBytes.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().length);
+            out.write(entry.getValue());
+        }
+        out.flush();
+    }
+
+    /**
+     * アイドル待機中に、典型的なユーザープログラムが使用するJDKクラスを事前にロードしておきます。
+     * これにより、ペイロード受信後の最初の出力までの時間を短縮します。
+     */
+    private static void preloadCommonClasses() {
+        String[] classNames = {
+            "java.util.Scanner", "java.util.ArrayList", "java.util.HashMap",
+            "java.util.Formatter", "java.lang.invoke.StringConcatFactory"
+        };
+        for (String className : classNames) {
+            try {
+                Class.forName(className);
+            } catch (ClassNotFoundException ignored) {
+                // 事前ロードは最適化に過ぎないため無視する
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package tech.nagatani.dev.worker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import tech.nagatani.dev.CompilationResult;
+import tech.nagatani.dev.RateLimitedLogger;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 事前起動されたアイドル状態のワーカーJVMのプール。
+ * 各ワーカーは {@link WorkerBootstrap} を実行しており、ペイロード（クラスファイルのバイト列）を受け取るまで待機しています。
+ * 実行要求時にはアイドルワーカーを1つ取り出してペイロードを送信するだけで済むため、
+ * fork とJVMの起動にかかる時間がWebSocket接続から最初の出力までのクリティカルパスから外れます。
+ * ワーカーは使い捨てで、取り出された分はバックグラウンドで設定された速度で補充されます。
+ * ワーカーは {@link ChildJvmLauncher} の既定の起動プロファイルで起動されます。
+ * cgroup v2 が利用可能な場合、ワーカーは起動時点でワーカーごとのcgroupに入るため、
+ * ペイロードを受け取ってユーザーコードが動き始める時点で、すでにメモリやスレッド数の上限が適用されています。
+ */
+@Component
+public class WorkerPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WorkerPool.class);
+    // 取り出しと補充のたびに発生しうる警告は件数を制限して出力する
+    private static final RateLimitedLogger RATE_LIMITED_LOG = new RateLimitedLogger(LOG, 20, 10, TimeUnit.SECONDS);
+
+    private final ChildJvmLauncher launcher; // ワーカーの起動コマンドを組み立てるランチャー
+    private final int poolSize; // 待機させておくアイドルワーカーの数（0の場合はプール無効）
+    private final int spawnsPerRefill; // 1回の補充で起動するワーカーの最大数（補充速度）
+    private final BlockingQueue<ChildJvmLauncher.ChildJvm> idleWorkers = new LinkedBlockingQueue<>(); // アイドル状態のワーカー
+    private final AtomicLong spawnedWorkers = new AtomicLong(); // 起動したワーカーの数（cgroupの名前に使用）
+    private final ScheduledExecutorService refillExecutor; // ワーカーを補充するバックグラウンドスレッド
+
+    /**
+     * ワーカープールを構築し、補充を開始します。
+     * @param launcher ワーカーの起動コマンドを組み立てるランチャー
+     * @param poolSize 待機させておくアイドルワーカーの数（{@code execution.worker-pool.size}）。0以下の場合はプールを無効化します。
+     * @param refillIntervalMs 補充処理の実行間隔（ミリ秒）（{@code execution.worker-pool.refill-interval-ms}）
+     * @param spawnsPerRefill 1回の補充で起動するワーカーの最大数（{@code execution.worker-pool.spawns-per-refill}）
+     */
+    public WorkerPool(ChildJvmLauncher launcher,
+                      @Value("${execution.worker-pool.size:2}") int poolSize,
+                      @Value("${execution.worker-pool.refill-interval-ms:100}") long refillIntervalMs,
+                      @Value("${execution.worker-pool.spawns-per-refill:1}") int spawnsPerRefill) {
+        this.launcher = launcher;
+        this.poolSize = Math.max(0, poolSize);
+        this.spawnsPerRefill = Math.max(1, spawnsPerRefill);
+
+        if (this.poolSize > 0 && launcher.getBootstrapJar() != null) {
+            refillExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "worker-pool-refill");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refillExecutor.scheduleWithFixedDelay(this::refill, 0, refillIntervalMs, TimeUnit.MILLISECONDS);
+            LOG.info("ワーカープールを開始しました (サイズ: {}, 補充間隔: {}ms, 起動プロファイル: {})",
+                this.poolSize, refillIntervalMs, launcher.getDefaultProfile());
+        } else {
+            refillExecutor = null;
+        }
+    }
+
+    /**
+     * ワーカープールが有効かどうかを返します。
+     * @return 有効な場合はtrue
+     */
+    public boolean isEnabled() {
+        return refillExecutor != null;
+    }
+
+    /**
+     * アイドルワーカーを1つ取り出し、指定されたコンパイル結果のクラスを送信して実行を開始させます。
+     * 使用可能なワーカーがない場合、または要求された起動プロファイルがプールのものと異なる場合は
+     * 待機せずにnullを返すため、呼び出し元は通常の起動方法にフォールバックしてください。
+     * @param compilationResult 実行するクラスを含むコンパイル結果
+     * @param profile 要求された起動プロファイル。nullの場合は既定のプロファイル。
+     * @return ユーザープログラムを実行中のワーカー（プロセスと、それが属するcgroup）。利用可能なワーカーがない場合はnull。
+     */
+    public ChildJvmLauncher.ChildJvm lease(CompilationResult compilationResult, LaunchProfile profile) {
+        if (!isEnabled() || (profile != null && profile != launcher.getDefaultProfile())) {
+            return null;
+        }
+        ChildJvmLauncher.ChildJvm worker;
+        while ((worker = idleWorkers.poll()) != null) {
+            if (!worker.getProcess().isAlive()) {
+                worker.discard(); // 待機中に終了したワーカーは破棄
+                continue;
+            }
+            try {
+                WorkerBootstrap.writePayload(worker.getProcess().getOutputStream(), compilationResult.getClassName(), compilationResult.getClassBytes());
+                return worker;
+            } catch (IOException e) {
+                RATE_LIMITED_LOG.warn("ワーカーへのペイロード送信に失敗しました。別のワーカーを試します: {}", e.getMessage());
+                worker.discard();
+            } finally {
+                refillExecutor.execute(this::refill); // 取り出した分をすぐに補充
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 現在アイドル状態のワーカー数を返します。
+     * @return アイドルワーカー数
+     */
+    public int getIdleCount() {
+        return idleWorkers.size();
+    }
+
+    /**
+     * 設定されたアイドルワーカー数の目標値を返します。
+     * @return プールサイズ
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * アプリケーション終了時に、補充を停止してすべてのアイドルワーカーを終了させます。
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (refillExecutor != null) {
+            refillExecutor.shutdownNow();
+        }
+        ChildJvmLauncher.ChildJvm worker;
+        while ((worker = idleWorkers.poll()) != null) {
+            worker.discard();
+        }
+    }
+
+    /**
+     * 終了したアイドルワーカーを取り除き、目標数に達するまで（1回あたり上限付きで）新しいワーカーを起動します。
+     */
+    private synchronized void refill() {
+        idleWorkers.removeIf(worker -> {
+            if (worker.getProcess().isAlive()) {
+                return false;
+            }
+            worker.discard();
+            return true;
+        });
+        for (int i = 0; i < spawnsPerRefill && idleWorkers.size() < poolSize; i++) {
+            try {
+                idleWorkers.add(spawnWorker());
+            } catch (IOException e) {
+                RATE_LIMITED_LOG.warn("ワーカーJVMの起動に失敗しました: {}", e.getMessage());
+                return; // 次回の補充で再試行
+            }
+        }
+    }
+
+    /**
+     * 新しいワーカーJVMを既定の起動プロファイルで、ワーカーごとのcgroupに入れて起動します。
+     * ワーカーはペイロードを受け取るまで待機します。
+     * @return 起動したワーカー
+     * @throws IOException プロセスの起動に失敗した場合
+     */
+    private ChildJvmLauncher.ChildJvm spawnWorker() throws IOException {
+        return launcher.start(null, Collections.emptyList(), WorkerBootstrap.class.getName(),
+            "worker-" + ProcessHandle.current().pid() + "-" + spawnedWorkers.incrementAndGet());
+    }
+}
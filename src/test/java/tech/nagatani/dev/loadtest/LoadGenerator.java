@@ -0,0 +1,531 @@
+package tech.nagatani.dev.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 起動中のサーバーに対して、対話型セッションの一連の流れを多数の仮想ユーザーで同時に実行する負荷生成ツール。
+ * 各仮想ユーザーは次の流れを繰り返します（{@code testprograms/InteractiveTest} と同じく、標準入力を読んで応答するプログラムを使用します）。
+ * <ol>
+ *   <li>{@code POST /compile} でプログラムをコンパイルし、応答のページから実行IDを取り出す</li>
+ *   <li>{@code /ws/execute?id=...} に接続し、プログラムの最初の出力（"READY"）を待つ</li>
+ *   <li>入力を送信して、プログラムがその入力を含む行を出力するまでの往復時間を計測する（指定回数）</li>
+ *   <li>"quit" を送信し、終了報告を受け取る</li>
+ * </ol>
+ * 終了後、コンパイル時間・最初の出力までの時間・入力の往復時間・セッション全体の時間のパーセンタイルと、
+ * エラーの種類ごとの件数、終了理由の内訳を出力します。{@code --report} を指定するとJSONでも保存するため、
+ * アップグレードの前後などで結果を比較できます。
+ * <p>
+ * 実行例（サーバーを起動しておき、テストクラスをコンパイルした後）:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp "target/test-classes:$(cat target/cp.txt)" \
+ *     tech.nagatani.dev.loadtest.LoadGenerator --users=50 --duration=60 --rounds=5 --report=target/load-report.json
+ * </pre>
+ * オプション（既定値）: {@code --url} (http://localhost:8080), {@code --users} (10), {@code --duration} 秒 (30),
+ * {@code --ramp-up} 秒 (5), {@code --rounds} 1セッションあたりの入力回数 (3), {@code --think-ms} 入力の間隔 (100),
+ * {@code --timeout} 秒 各待機の上限 (30), {@code --mode} 実行方式 (process), {@code --launch-profile} 起動プロファイル (サーバーの既定値),
+ * {@code --unique-sources} 投稿ごとにソースを変えてコンパイルキャッシュを避けるか (true), {@code --report} JSONの出力先 (なし)。
+ * <p>
+ * 仮想ユーザーはそれぞれ自分のHTTPセッション（Cookie）を持つため、コンパイルのレート制限はユーザーごとに適用されます。
+ * 429 応答は "rate-limited" として数え、{@code Retry-After} の秒数だけ待ってから続行します。
+ */
+public class LoadGenerator {
+
+    private static final Pattern EXECUTION_ID_PATTERN = Pattern.compile("executionId = \"([^\"]+)\"");
+    private static final Pattern SESSION_COOKIE_PATTERN = Pattern.compile("(JSESSIONID=[^;]+)");
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Options options;
+    private final HttpClient httpClient;
+    private final Recorder compileLatency = new Recorder(); // POST /compile の応答時間
+    private final Recorder firstOutputLatency = new Recorder(); // WebSocketの接続開始から最初の出力まで
+    private final Recorder echoLatency = new Recorder(); // 入力の送信から応答の受信まで
+    private final Recorder sessionLatency = new Recorder(); // コンパイル要求から終了報告まで
+    private final Map<String, AtomicLong> errors = new ConcurrentHashMap<>(); // エラーの種類 → 件数
+    private final Map<String, AtomicLong> exitReasons = new ConcurrentHashMap<>(); // 終了理由 → 件数
+    private final AtomicLong completedSessions = new AtomicLong(); // 最後まで完了したセッション数
+    private final AtomicLong failedSessions = new AtomicLong(); // 途中で失敗したセッション数
+    private final AtomicLong rateLimited = new AtomicLong(); // 429 で拒否されたコンパイル要求の数
+
+    LoadGenerator(Options options) {
+        this.options = options;
+        this.httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(options.timeoutSeconds)).build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        System.out.println("負荷生成を開始します: " + options);
+        LoadGenerator generator = new LoadGenerator(options);
+        long startNanos = System.nanoTime();
+        generator.run();
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        Map<String, Object> report = generator.buildReport(elapsedSeconds);
+        generator.printReport(report);
+        if (options.reportPath != null) {
+            Files.write(Paths.get(options.reportPath), MAPPER.enable(SerializationFeature.INDENT_OUTPUT).writeValueAsBytes(report));
+            System.out.println("レポートを保存しました: " + options.reportPath);
+        }
+    }
+
+    /**
+     * 全仮想ユーザーを仮想スレッドで実行し、全員が終了するまで待ちます。
+     */
+    void run() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        ExecutorService users = Executors.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < options.users; i++) {
+            int user = i;
+            // 立ち上がり時間の間に均等に開始する
+            long startDelayMillis = options.users > 1 ? TimeUnit.SECONDS.toMillis(options.rampUpSeconds) * user / options.users : 0;
+            users.submit(() -> runUser(user, startDelayMillis, deadline));
+        }
+        users.shutdown();
+        users.awaitTermination(options.durationSeconds + options.rampUpSeconds + options.timeoutSeconds * 4L, TimeUnit.SECONDS);
+        users.shutdownNow();
+    }
+
+    /**
+     * 1人の仮想ユーザーとして、期限までセッションを繰り返します。
+     */
+    private void runUser(int user, long startDelayMillis, long deadline) {
+        VirtualUser state = new VirtualUser(user);
+        try {
+            Thread.sleep(startDelayMillis);
+            while (System.nanoTime() < deadline) {
+                runSession(state);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 1回のセッション（コンパイル → 接続 → 入力の往復 → 終了）を実行します。
+     */
+    private void runSession(VirtualUser user) throws InterruptedException {
+        int iteration = user.iterations++;
+        long sessionStart = System.nanoTime();
+
+        // 1. コンパイル
+        String executionId;
+        try {
+            HttpResponse<String> response = httpClient.send(compileRequest(user, iteration), HttpResponse.BodyHandlers.ofString());
+            long compileNanos = System.nanoTime() - sessionStart;
+            response.headers().firstValue("Set-Cookie").ifPresent(cookie -> {
+                Matcher matcher = SESSION_COOKIE_PATTERN.matcher(cookie);
+                if (matcher.find()) {
+                    user.sessionCookie = matcher.group(1);
+                }
+            });
+            if (response.statusCode() == 429) {
+                rateLimited.incrementAndGet();
+                long retryAfter = response.headers().firstValueAsLong("Retry-After").orElse(1);
+                Thread.sleep(TimeUnit.SECONDS.toMillis(Math.max(1, retryAfter)));
+                return;
+            }
+            if (response.statusCode() != 200) {
+                fail("compile-http-" + response.statusCode());
+                return;
+            }
+            Matcher matcher = EXECUTION_ID_PATTERN.matcher(response.body());
+            if (!matcher.find() || !response.body().contains("SUCCESS")) {
+                fail("compile-failed");
+                return;
+            }
+            executionId = matcher.group(1);
+            compileLatency.record(compileNanos);
+        } catch (IOException e) {
+            fail("compile-io");
+            Thread.sleep(1000); // サーバーが停止している場合に空回りしない
+            return;
+        }
+
+        // 2. 接続して最初の出力を待つ
+        SessionListener listener = new SessionListener();
+        long connectStart = System.nanoTime();
+        WebSocket webSocket;
+        try {
+            webSocket = httpClient.newWebSocketBuilder()
+                .connectTimeout(Duration.ofSeconds(options.timeoutSeconds))
+                .buildAsync(webSocketUri(executionId), listener)
+                .get(options.timeoutSeconds, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            fail("ws-connect");
+            return;
+        }
+        try {
+            if (!await(listener.firstOutput)) {
+                fail(listener.closed.isDone() ? "closed-before-output" : "first-output-timeout");
+                return;
+            }
+            firstOutputLatency.record(listener.firstOutput.join() - connectStart);
+
+            // 3. 入力の往復
+            for (int round = 0; round < options.rounds; round++) {
+                String token = "ping-" + user.id + "-" + iteration + "-" + round;
+                CompletableFuture<Long> echo = listener.expect("ECHO: " + token);
+                long sendStart = System.nanoTime();
+                webSocket.sendText(token, true).get(options.timeoutSeconds, TimeUnit.SECONDS);
+                if (!await(echo)) {
+                    fail(listener.closed.isDone() ? "closed-before-echo" : "echo-timeout");
+                    return;
+                }
+                echoLatency.record(echo.join() - sendStart);
+                if (options.thinkMillis > 0) {
+                    Thread.sleep(options.thinkMillis);
+                }
+            }
+
+            // 4. 終了
+            webSocket.sendText("quit", true).get(options.timeoutSeconds, TimeUnit.SECONDS);
+            if (!await(listener.exitReason)) {
+                fail("exit-timeout");
+                return;
+            }
+            exitReasons.computeIfAbsent(listener.exitReason.join(), key -> new AtomicLong()).incrementAndGet();
+            sessionLatency.record(System.nanoTime() - sessionStart);
+            completedSessions.incrementAndGet();
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            fail("ws-send");
+        } finally {
+            webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "done").exceptionally(e -> null);
+        }
+    }
+
+    private HttpRequest compileRequest(VirtualUser user, int iteration) {
+        StringBuilder body = new StringBuilder();
+        body.append("sourceCode=").append(URLEncoder.encode(echoProgram(user.id, iteration), StandardCharsets.UTF_8));
+        body.append("&executionMode=").append(URLEncoder.encode(options.mode, StandardCharsets.UTF_8));
+        if (options.launchProfile != null) {
+            body.append("&launchProfile=").append(URLEncoder.encode(options.launchProfile, StandardCharsets.UTF_8));
+        }
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(options.url + "/compile"))
+            .timeout(Duration.ofSeconds(options.timeoutSeconds))
+            .header("Content-Type", "application/x-www-form-urlencoded")
+            .POST(HttpRequest.BodyPublishers.ofString(body.toString()));
+        if (user.sessionCookie != null) {
+            request.header("Cookie", user.sessionCookie);
+        }
+        return request.build();
+    }
+
+    private URI webSocketUri(String executionId) {
+        return URI.create(options.url.replaceFirst("^http", "ws") + "/ws/execute?id=" + executionId);
+    }
+
+    /**
+     * 標準入力の各行を "ECHO: " を付けて出力し、"quit" で終了するプログラムのソースを返します。
+     * {@code --unique-sources} が有効な場合は、投稿ごとに異なる定数を埋め込んでコンパイルキャッシュを避けます。
+     */
+    private String echoProgram(int user, int iteration) {
+        String marker = options.uniqueSources ? user + "-" + iteration : "shared";
+        return "import java.io.*;\n"
+            + "public class LoadTestEcho {\n"
+            + "    static final String RUN = \"" + marker + "\";\n"
+            + "    public static void main(String[] args) throws IOException {\n"
+            + "        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));\n"
+            + "        System.out.println(\"READY\");\n"
+            + "        String line;\n"
+            + "        while ((line = in.readLine()) != null && !line.equals(\"quit\")) {\n"
+            + "            System.out.println(\"ECHO: \" + line);\n"
+            + "        }\n"
+            + "    }\n"
+            + "}\n";
+    }
+
+    private boolean await(CompletableFuture<?> future) throws InterruptedException {
+        try {
+            future.get(options.timeoutSeconds, TimeUnit.SECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (java.util.concurrent.ExecutionException e) {
+            return false;
+        }
+    }
+
+    private void fail(String kind) {
+        errors.computeIfAbsent(kind, key -> new AtomicLong()).incrementAndGet();
+        failedSessions.incrementAndGet();
+    }
+
+    /**
+     * 結果をレポートの形式にまとめます。
+     * @param elapsedSeconds 実行にかかった時間（秒）
+     * @return 項目名 → 値のマップ
+     */
+    Map<String, Object> buildReport(double elapsedSeconds) {
+        long completed = completedSessions.get();
+        long failed = failedSessions.get();
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("options", options.toMap());
+        report.put("elapsedSeconds", round(elapsedSeconds));
+        report.put("completedSessions", completed);
+        report.put("failedSessions", failed);
+        report.put("errorRate", completed + failed > 0 ? round((double) failed / (completed + failed)) : 0.0);
+        report.put("rateLimitedCompiles", rateLimited.get());
+        report.put("sessionsPerSecond", elapsedSeconds > 0 ? round(completed / elapsedSeconds) : 0.0);
+        Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("compile", compileLatency.summary());
+        latency.put("firstOutput", firstOutputLatency.summary());
+        latency.put("echoRoundTrip", echoLatency.summary());
+        latency.put("session", sessionLatency.summary());
+        report.put("latencyMillis", latency);
+        report.put("errors", snapshot(errors));
+        report.put("exitReasons", snapshot(exitReasons));
+        return report;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void printReport(Map<String, Object> report) {
+        System.out.println();
+        System.out.println("=== 負荷試験の結果 ===");
+        System.out.printf("経過時間: %s 秒, 完了セッション: %s, 失敗セッション: %s (エラー率 %s), 429: %s, スループット: %s セッション/秒%n",
+            report.get("elapsedSeconds"), report.get("completedSessions"), report.get("failedSessions"),
+            report.get("errorRate"), report.get("rateLimitedCompiles"), report.get("sessionsPerSecond"));
+        System.out.println();
+        System.out.printf("%-16s %8s %9s %9s %9s %9s %9s%n", "latency (ms)", "count", "p50", "p90", "p95", "p99", "max");
+        Map<String, Object> latency = (Map<String, Object>) report.get("latencyMillis");
+        for (Map.Entry<String, Object> entry : latency.entrySet()) {
+            Map<String, Object> summary = (Map<String, Object>) entry.getValue();
+            System.out.printf("%-16s %8s %9s %9s %9s %9s %9s%n", entry.getKey(), summary.get("count"),
+                summary.get("p50"), summary.get("p90"), summary.get("p95"), summary.get("p99"), summary.get("max"));
+        }
+        System.out.println();
+        System.out.println("エラー: " + report.get("errors"));
+        System.out.println("終了理由: " + report.get("exitReasons"));
+    }
+
+    private static Map<String, Long> snapshot(Map<String, AtomicLong> counters) {
+        Map<String, Long> result = new TreeMap<>();
+        counters.forEach((key, value) -> result.put(key, value.get()));
+        return result;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    /**
+     * 1人の仮想ユーザーの状態。そのユーザーの仮想スレッドからのみ使用されます。
+     */
+    private static class VirtualUser {
+        final int id; // ユーザー番号
+        int iterations = 0; // 実行したセッション数
+        String sessionCookie; // サーバーから受け取ったセッションCookie（"JSESSIONID=..."）
+
+        VirtualUser(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * 1つのWebSocketセッションのフレームを受け取り、最初の出力・入力への応答・終了報告の到着を通知するリスナー。
+     */
+    private static class SessionListener implements WebSocket.Listener {
+        final CompletableFuture<Long> firstOutput = new CompletableFuture<>(); // 最初の標準出力を受け取った時刻（nanoTime）
+        final CompletableFuture<String> exitReason = new CompletableFuture<>(); // 終了報告の終了理由
+        final CompletableFuture<Void> closed = new CompletableFuture<>(); // 接続が閉じられた
+        private final StringBuilder frame = new StringBuilder(); // 分割されて届いたフレームの結合用
+        private final StringBuilder stdout = new StringBuilder(); // まだ応答の照合に使っていない標準出力
+        private String expectedLine; // 待っている応答の行
+        private CompletableFuture<Long> expectedFuture; // 応答を受け取った時刻（nanoTime）を通知する
+
+        /**
+         * 指定された文字列を含む出力の到着を待つFutureを登録します（入力を送信する前に呼び出してください）。
+         */
+        synchronized CompletableFuture<Long> expect(String line) {
+            expectedLine = line;
+            expectedFuture = new CompletableFuture<>();
+            checkExpected(System.nanoTime());
+            return expectedFuture;
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            long now = System.nanoTime();
+            frame.append(data);
+            if (last) {
+                handleFrame(frame.toString(), now);
+                frame.setLength(0);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        private void handleFrame(String text, long now) {
+            JsonNode chunks;
+            try {
+                chunks = MAPPER.readTree(text);
+            } catch (IOException e) {
+                return; // チャンクの配列でないフレーム（サーバーからの単独の通知など）は無視する
+            }
+            for (JsonNode chunk : chunks) {
+                String channel = chunk.path("channel").asText();
+                if ("stdout".equals(channel)) {
+                    firstOutput.complete(now);
+                    synchronized (this) {
+                        stdout.append(chunk.path("data").asText());
+                        checkExpected(now);
+                    }
+                } else if ("exit".equals(channel)) {
+                    exitReason.complete(chunk.path("report").path("reason").asText("unknown"));
+                }
+            }
+        }
+
+        private void checkExpected(long now) {
+            if (expectedFuture == null) {
+                return;
+            }
+            int index = stdout.indexOf(expectedLine);
+            if (index >= 0) {
+                stdout.delete(0, index + expectedLine.length());
+                expectedFuture.complete(now);
+                expectedFuture = null;
+            }
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            closed.complete(null);
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            closed.complete(null);
+        }
+    }
+
+    /**
+     * 計測値を記録し、パーセンタイルを求めます。
+     * 値はすべて保持して終了時にソートするため、負荷試験の規模（数十万件程度）までを想定しています。
+     */
+    static class Recorder {
+        private final List<Long> values = new ArrayList<>(); // 計測値（ナノ秒）
+
+        synchronized void record(long nanos) {
+            values.add(nanos);
+        }
+
+        /**
+         * 件数とパーセンタイル（ミリ秒）をまとめます。
+         * @return 項目名 → 値のマップ（count, p50, p90, p95, p99, max）
+         */
+        synchronized Map<String, Object> summary() {
+            long[] sorted = values.stream().mapToLong(Long::longValue).toArray();
+            Arrays.sort(sorted);
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("count", sorted.length);
+            summary.put("p50", percentile(sorted, 0.50));
+            summary.put("p90", percentile(sorted, 0.90));
+            summary.put("p95", percentile(sorted, 0.95));
+            summary.put("p99", percentile(sorted, 0.99));
+            summary.put("max", sorted.length > 0 ? round(sorted[sorted.length - 1] / 1e6) : 0.0);
+            return summary;
+        }
+
+        private static double percentile(long[] sorted, double quantile) {
+            if (sorted.length == 0) {
+                return 0.0;
+            }
+            int index = (int) Math.ceil(quantile * sorted.length) - 1; // 最近順位法
+            return round(sorted[Math.max(0, index)] / 1e6);
+        }
+    }
+
+    /**
+     * コマンドライン引数（{@code --name=value}）で指定されるオプション。
+     */
+    static class Options {
+        String url = "http://localhost:8080";
+        int users = 10;
+        int durationSeconds = 30;
+        int rampUpSeconds = 5;
+        int rounds = 3;
+        long thinkMillis = 100;
+        int timeoutSeconds = 30;
+        String mode = "process";
+        String launchProfile;
+        boolean uniqueSources = true;
+        String reportPath;
+
+        static Options parse(String[] args) {
+            Map<String, String> values = new HashMap<>();
+            for (String arg : args) {
+                if (!arg.startsWith("--") || !arg.contains("=")) {
+                    throw new IllegalArgumentException("オプションは --name=value の形式で指定してください: " + arg);
+                }
+                int separator = arg.indexOf('=');
+                values.put(arg.substring(2, separator), arg.substring(separator + 1));
+            }
+            Options options = new Options();
+            options.url = values.getOrDefault("url", options.url).replaceAll("/+$", "");
+            options.users = Integer.parseInt(values.getOrDefault("users", String.valueOf(options.users)));
+            options.durationSeconds = Integer.parseInt(values.getOrDefault("duration", String.valueOf(options.durationSeconds)));
+            options.rampUpSeconds = Integer.parseInt(values.getOrDefault("ramp-up", String.valueOf(options.rampUpSeconds)));
+            options.rounds = Integer.parseInt(values.getOrDefault("rounds", String.valueOf(options.rounds)));
+            options.thinkMillis = Long.parseLong(values.getOrDefault("think-ms", String.valueOf(options.thinkMillis)));
+            options.timeoutSeconds = Integer.parseInt(values.getOrDefault("timeout", String.valueOf(options.timeoutSeconds)));
+            options.mode = values.getOrDefault("mode", options.mode);
+            options.launchProfile = values.get("launch-profile");
+            options.uniqueSources = Boolean.parseBoolean(values.getOrDefault("unique-sources", String.valueOf(options.uniqueSources)));
+            options.reportPath = values.get("report");
+            return options;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("url", url);
+            map.put("users", users);
+            map.put("durationSeconds", durationSeconds);
+            map.put("rampUpSeconds", rampUpSeconds);
+            map.put("rounds", rounds);
+            map.put("thinkMillis", thinkMillis);
+            map.put("timeoutSeconds", timeoutSeconds);
+            map.put("mode", mode);
+            map.put("launchProfile", launchProfile);
+            map.put("uniqueSources", uniqueSources);
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            return toMap().toString();
+        }
+    }
+}